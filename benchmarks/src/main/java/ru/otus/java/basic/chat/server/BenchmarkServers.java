@@ -0,0 +1,76 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * Helpers setting up in-process servers for the benchmarks.
+ * The benchmarks are packaged into benchmarks/target/benchmarks.jar by mvn package and run offline:
+ * java -jar benchmarks/target/benchmarks.jar -rf json -rff result.json [benchmark name regexp]
+ * The iteration and fork counts are fixed by the annotations, so the JSON results of two commits
+ * measured on the same machine can be compared directly
+ */
+public final class BenchmarkServers {
+    private BenchmarkServers() {
+    }
+
+    /**
+     * Creates a server with the in-memory authentication provider, the server is not listening to a port
+     *
+     * @return a new server
+     */
+    public static Server createServer() {
+        return createServer(createConfig());
+    }
+
+    /**
+     * Creates the default configuration without the room history and the offline messages,
+     * so that the benchmarks don't write files, without the rate limits, so that they are not throttled,
+     * and without the heartbeats, so that the quiet benchmark clients are not pinged or disconnected
+     *
+     * @return a new configuration
+     */
+    public static ServerConfig createConfig() {
+        ServerConfig config = new ServerConfig();
+        config.setHistoryDirectory(null);
+        config.setOfflineMessages(false);
+        for (UserRole role : UserRole.values()) {
+            config.setRateLimit(role, null);
+        }
+        config.setHeartbeatMillis(0);
+        config.setIdleTimeoutMillis(0);
+        return config;
+    }
+
+    /**
+     * Creates a server with a specific configuration and the in-memory authentication provider,
+     * the server is not listening to a port
+     *
+     * @param config the configuration
+     * @return a new server
+     */
+    public static Server createServer(ServerConfig config) {
+        return new Server(config, new InMemoryAuthenticationProvider());
+    }
+
+    /**
+     * Creates a fake client logged in under a username
+     *
+     * @param server   the server
+     * @param username the username
+     * @param role     the role
+     * @param version  the protocol the client speaks
+     * @return a new logged in client
+     */
+    public static FakeClientHandler login(Server server, String username, UserRole role, ProtocolVersion version) {
+        FakeClientHandler client = new FakeClientHandler(server, version);
+        if (!client.login(new UserProfile(username, role))) {
+            throw new IllegalStateException("Failed to log in " + username);
+        }
+        return client;
+    }
+
+    /**
+     * Turns the server log off, so that it does not mix with the results
+     */
+    public static void silenceConsole() {
+        Log.setLevel(LogLevel.OFF);
+    }
+}
@@ -0,0 +1,72 @@
+package ru.otus.java.basic.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of a chat message to every member of a room, through the outbound queues down to the client streams.
+ * With fan-out threads every room is delivered in parallel, a message is handed over to the threads
+ * and the sender waits only when they fall behind, so the time is the throughput of the threads
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    private int roomSize;
+
+    @Param({"V1", "V2"})
+    private ProtocolVersion protocol;
+
+    @Param({"0", "4"})
+    private int fanoutThreads;
+
+    private Server server;
+    private FakeClientHandler sender;
+    private ChatRoom room;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkServers.silenceConsole();
+        ServerConfig config = BenchmarkServers.createConfig();
+        config.setFanoutThreads(fanoutThreads);
+        config.setFanoutThreshold(1);
+        server = BenchmarkServers.createServer(config);
+        sender = BenchmarkServers.login(server, "sender", UserRole.USER, protocol);
+        room = sender.getRoom();
+        for (int i = 1; i < roomSize; i++) {
+            BenchmarkServers.login(server, "user" + i, UserRole.USER, protocol);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcastChat(room, "sender", "Hello, everyone in the chat!");
+    }
+
+    @Benchmark
+    public void chatMessage() throws TerminateClientException {
+        sender.receive("Hello, everyone in the chat!");
+    }
+}
@@ -0,0 +1,88 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.BinaryMessage;
+import ru.otus.java.basic.chat.protocol.Opcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and dispatching of the commands received from a client, and the role permission check.
+ * whisperFramesOnly creates and sends the same messages as whisper without receiving the command,
+ * so running with -prof gc and comparing gc.alloc.rate.norm of the two shows what the dispatch allocates
+ * beyond the outgoing messages. CommandAllocationTest fails the build if it allocates more
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+    private Server server;
+    private FakeClientHandler user;
+    private FakeClientHandler binaryUser;
+    private FakeClientHandler recipient;
+    private final BinaryMessage binaryWhisper = new BinaryMessage(Opcode.WHISPER, 0, 1,
+            new String[]{"recipient", "Hello there, how are you doing today?"});
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkServers.silenceConsole();
+        server = BenchmarkServers.createServer();
+        user = BenchmarkServers.login(server, "sender", UserRole.USER, ProtocolVersion.V1);
+        binaryUser = BenchmarkServers.login(server, "binarySender", UserRole.USER, ProtocolVersion.V2);
+        recipient = BenchmarkServers.login(server, "recipient", UserRole.USER, ProtocolVersion.V1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void whisper() throws TerminateClientException {
+        user.receive("/w recipient Hello there, how are you doing today?");
+    }
+
+    @Benchmark
+    public void whisperFramesOnly() {
+        String message = "/w recipient Hello there, how are you doing today?";
+        String username = message.substring(3, 12);
+        String text = message.substring(13);
+        user.sendFrame(Frame.whisperEcho(username, text));
+        recipient.sendFrame(Frame.whisper(user.getUsername(), text));
+    }
+
+    @Benchmark
+    public void binaryWhisper() throws TerminateClientException {
+        binaryUser.receive(binaryWhisper);
+    }
+
+    @Benchmark
+    public void forbiddenCommand() throws TerminateClientException {
+        user.receive("/kick recipient");
+    }
+
+    @Benchmark
+    public void unknownCommand() throws TerminateClientException {
+        user.receive("/unknown some arguments");
+    }
+
+    @Benchmark
+    public boolean isAllowed() {
+        return UserRole.USER.isAllowed(Permission.WHISPER);
+    }
+}
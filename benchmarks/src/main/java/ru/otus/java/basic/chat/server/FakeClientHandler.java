@@ -0,0 +1,95 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.BinaryMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * A ClientHandler without a network connection, the queued frames are written right away
+ * to an in-memory stream that only counts the bytes
+ */
+public class FakeClientHandler extends ClientHandler {
+    private final CountingOutputStream outputStream = new CountingOutputStream();
+    private final ProtocolVersion version;
+
+    /**
+     * Creates a client of a server
+     *
+     * @param server  the server
+     * @param version the protocol the client speaks
+     */
+    public FakeClientHandler(Server server, ProtocolVersion version) {
+        super(server);
+        this.version = version;
+        this.protocolVersion = version;
+    }
+
+    /**
+     * Writes the queued frames, like the writer thread of a client that keeps up would
+     */
+    @Override
+    protected void onMessageQueued() {
+        try {
+            Frame frame;
+            while ((frame = outboundQueue.poll()) != null) {
+                outputStream.write(frame.encode(version));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Passes a message to the handler as if received from the client
+     *
+     * @param message the message
+     * @throws TerminateClientException if the message terminates the client
+     */
+    public void receive(String message) throws TerminateClientException {
+        handleMessage(message);
+    }
+
+    /**
+     * Passes a binary protocol message to the handler as if received from the client
+     *
+     * @param message the message
+     * @throws TerminateClientException if the message terminates the client
+     */
+    public void receive(BinaryMessage message) throws TerminateClientException {
+        handleBinaryMessage(message);
+    }
+
+    /**
+     * @return the number of bytes written to the client
+     */
+    public long getBytesWritten() {
+        return outputStream.count;
+    }
+
+    @Override
+    protected void closeConnection() {
+        outboundQueue.close();
+    }
+
+    @Override
+    protected void abortConnection() {
+        outboundQueue.close();
+        outboundQueue.clear();
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.BinaryMessage;
+import ru.otus.java.basic.chat.protocol.BinaryProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the wire frames of both protocols, with DataOutputStream.writeUTF as the baseline
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameBenchmark {
+    @Param({"ascii", "cyrillic"})
+    private String text;
+
+    private String message;
+    private ByteBuffer encoded;
+    private ByteBuffer binaryEncoded;
+    private ByteArrayOutputStream byteStream;
+    private DataOutputStream dataStream;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = switch (text) {
+            case "ascii" -> "[Ivanov]: Hello, everyone! Is anybody here tonight?";
+            case "cyrillic" -> "[Иванов]: Привет всем! Есть кто-нибудь сегодня вечером?";
+            default -> throw new IllegalArgumentException(text);
+        };
+        encoded = ByteBuffer.wrap(ModifiedUtf8.encode(message));
+        binaryEncoded = ByteBuffer.wrap(Frame.chat("Ivanov", message).encode(ProtocolVersion.V2));
+        byteStream = new ByteArrayOutputStream(256);
+        dataStream = new DataOutputStream(byteStream);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return Frame.chat("Ivanov", message).encode(ProtocolVersion.V1);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() throws IOException {
+        return Frame.chat("Ivanov", message).encode(ProtocolVersion.V2);
+    }
+
+    @Benchmark
+    public int writeUTF() throws IOException {
+        byteStream.reset();
+        dataStream.writeUTF(message);
+        return byteStream.size();
+    }
+
+    @Benchmark
+    public String decode() throws UTFDataFormatException {
+        return ModifiedUtf8.decode(encoded.duplicate());
+    }
+
+    @Benchmark
+    public BinaryMessage binaryDecode() throws ProtocolException {
+        return BinaryProtocol.decode(binaryEncoded.duplicate());
+    }
+}
@@ -0,0 +1,75 @@
+package ru.otus.java.basic.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of the room history on the broadcasting thread, where a message is only queued to the writer,
+ * and of reading the last messages of a room with 100000 messages in several segments
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    @Param({"NEVER", "BATCH"})
+    private FsyncPolicy fsync;
+
+    private final String text = "Hello there, how are you doing today?";
+    private Path directory;
+    private ChatHistory history;
+    private RoomHistory room;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkServers.silenceConsole();
+        directory = Files.createTempDirectory("history-benchmark");
+        history = new ChatHistory(directory.resolve("chat"), 16 << 20, TimeUnit.DAYS.toMillis(1), 1L << 30,
+                fsync, 1000, 65536, new Metrics());
+        room = RoomHistory.open(directory.resolve("room"), 1 << 20);
+        for (int i = 0; i < 100000; i++) {
+            room.append(System.currentTimeMillis(), "user" + i % 100, text);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        history.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void append() {
+        history.append("general", "sender", text);
+    }
+
+    @Benchmark
+    public int readLast50(Blackhole blackhole) {
+        return room.readLast(50, blackhole::consume);
+    }
+}
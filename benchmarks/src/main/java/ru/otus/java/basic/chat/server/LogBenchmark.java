@@ -0,0 +1,60 @@
+package ru.otus.java.basic.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a log call on the logging thread: a message below the level, and a message passed to
+ * the asynchronous appender or printed by the synchronous one. The output is discarded
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogBenchmark {
+    @Param({"ASYNC", "SYNC"})
+    public String appender;
+
+    private final Logger logger = Log.getLogger(LogBenchmark.class);
+    private final String message = "Hello there, how are you doing today?";
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+        Log.configure(LogLevel.INFO, appender.equals("ASYNC")
+                ? new AsyncLogAppender(out, 8192, LogOverflowPolicy.DROP)
+                : new ConsoleLogAppender(out));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.shutdown();
+    }
+
+    @Benchmark
+    public void disabled() {
+        logger.trace("SEND(id:{}): {}", 1000, message);
+    }
+
+    @Benchmark
+    public void enabled() {
+        logger.info("SEND(id:{}): {}", 1000, message);
+    }
+}
@@ -0,0 +1,59 @@
+package ru.otus.java.basic.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording the metrics on the hot paths, by one thread and by several threads sharing the instruments.
+ * A broadcast records a histogram value and two counters, a message sent or received one counter each,
+ * so the recording must stay within a few tens of nanoseconds for BroadcastBenchmark not to notice it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private final Metrics metrics = new Metrics();
+    private final Counter counter = metrics.counter("counter");
+    private final LatencyHistogram histogram = metrics.histogram("histogram");
+
+    @Benchmark
+    public void counter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedCounter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public void histogram() {
+        histogram.record(1500);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedHistogram() {
+        histogram.record(1500);
+    }
+
+    @Benchmark
+    public void timedSection() {
+        long start = System.nanoTime();
+        histogram.record(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,44 @@
+package ru.otus.java.basic.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password hashing done on every authentication and registration
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordBenchmark {
+    private final String password = "correct horse battery staple";
+    private final String salt = "AbCdEfGhIjKlMnOp";
+    private final UserCredentials credentials = new UserCredentials(
+            Passwords.getSaltedHash(password, salt), salt, new UserProfile("Ivanov", UserRole.USER));
+
+    @Benchmark
+    public String getSaltedHash() {
+        return Passwords.getSaltedHash(password, salt);
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return credentials.matches(password);
+    }
+
+    @Benchmark
+    public String generateSalt() {
+        return Passwords.generateSalt();
+    }
+}
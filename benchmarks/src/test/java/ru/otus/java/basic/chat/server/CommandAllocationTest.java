@@ -0,0 +1,61 @@
+package ru.otus.java.basic.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks what CommandBenchmark shows with -prof gc without running JMH: dispatching /w may not allocate
+ * more than creating and sending its messages, as whisperFramesOnly does
+ */
+class CommandAllocationTest {
+    private static final int WARMUP = 50_000;
+    private static final int MEASURED = 20_000;
+    private static final long TOLERANCE_BYTES = 8;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final CommandBenchmark benchmark = new CommandBenchmark();
+
+    @BeforeEach
+    void setUp() {
+        benchmark.setUp();
+    }
+
+    @AfterEach
+    void tearDown() {
+        benchmark.tearDown();
+    }
+
+    @Test
+    void whisperDispatchAllocatesNoMoreThanItsFrames() throws TerminateClientException {
+        for (int i = 0; i < WARMUP; i++) {
+            benchmark.whisper();
+            benchmark.whisperFramesOnly();
+        }
+        long whisper = Long.MAX_VALUE;
+        long framesOnly = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < MEASURED; i++) {
+                benchmark.whisper();
+            }
+            long middle = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < MEASURED; i++) {
+                benchmark.whisperFramesOnly();
+            }
+            long end = threads.getCurrentThreadAllocatedBytes();
+            whisper = Math.min(whisper, (middle - start) / MEASURED);
+            framesOnly = Math.min(framesOnly, (end - middle) / MEASURED);
+        }
+        System.out.println("whisper " + whisper + " B/op, whisperFramesOnly " + framesOnly + " B/op");
+        long dispatch = whisper;
+        long frames = framesOnly;
+        assertTrue(dispatch <= frames + TOLERANCE_BYTES,
+                () -> "/w dispatch allocates " + dispatch + " B/op, its frames " + frames + " B/op");
+    }
+}
@@ -1,40 +1,66 @@
 package ru.otus.java.basic.chat.client;
 
+import ru.otus.java.basic.chat.protocol.AuthStatus;
+import ru.otus.java.basic.chat.protocol.BinaryMessage;
+import ru.otus.java.basic.chat.protocol.BinaryProtocol;
+import ru.otus.java.basic.chat.protocol.Opcode;
+
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Client {
-    private final Socket socket;
-    private final DataInputStream inputStream;
-    private final DataOutputStream outputStream;
+    private static final int RECONNECT_ATTEMPTS = 10;
+    private static final long RECONNECT_MIN_DELAY_MILLIS = 500;
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 10000;
+
+    private final String host;
+    private final int port;
+    private final Lock sendLock = new ReentrantLock();
+    private volatile Socket socket;
+    private volatile DataInputStream inputStream;
+    private volatile DataOutputStream outputStream;
+    private volatile boolean binary;
+    private volatile String resumeToken;
+    private volatile boolean exiting;
+    private int sequence;
 
     /**
      * Creates a client which connects to a server and starts sending and receiving messages
+     * It offers the server the binary protocol and falls back to the text protocol if the server does not support it
      * It reads lines from system input and sends them to the server until "/exit" is entered
-     * It reads messages from the server and prints them to the system output until "/bye" is received
+     * It reads messages from the server and prints them to the system output until "/bye" is received,
+     * answering the heartbeats of the server without showing them
+     * It keeps the resume token the server sends on login, and if the connection is lost, connects again
+     * and logs in with the token instead of the password
      *
      * @param host a host server address
      * @param port a host server port
      * @throws IOException if something goes wrong
      */
     public Client(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
         Scanner scanner = new Scanner(System.in);
-        socket = new Socket(host, port);
-        inputStream = new DataInputStream(socket.getInputStream());
-        outputStream = new DataOutputStream(socket.getOutputStream());
-        System.out.println("Connection established");
+        connect();
+        System.out.println("Connection established" + (binary ? "" : " (text protocol)"));
         Thread thread = startThread();
         while (true) {
             String message = scanner.nextLine();
-            if (socket.isClosed()) {
+            if (!thread.isAlive()) {
                 System.out.println("Connection lost");
                 break;
             }
-            sendMessage(message);
             if (message.equals("/exit")) {
+                exiting = true;
+            }
+            sendMessage(message);
+            if (exiting) {
                 System.out.println("Disconnecting...");
                 break;
             }
@@ -47,9 +73,83 @@ public class Client {
 
     }
 
+    /**
+     * Opens a connection to the server and negotiates the protocol
+     *
+     * @throws IOException if the connection fails
+     */
+    private void connect() throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            boolean binary = negotiateProtocol(inputStream, outputStream);
+            sendLock.lock();
+            try {
+                this.socket = socket;
+                this.inputStream = inputStream;
+                this.outputStream = outputStream;
+                this.binary = binary;
+            } finally {
+                sendLock.unlock();
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to the server again after the connection is lost and resumes the session with the token
+     * the server has sent on the last login. Waits before every attempt, twice as long after a failed one,
+     * and a random part of the wait keeps the clients dropped at the same time from coming back at the same time
+     *
+     * @return true if connected, false if all the attempts have failed or the user is exiting
+     */
+    private boolean reconnect() {
+        disconnect();
+        long delay = RECONNECT_MIN_DELAY_MILLIS;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !exiting; attempt++) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+            } catch (InterruptedException e) {
+                return false;
+            }
+            try {
+                connect();
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MILLIS);
+                continue;
+            }
+            String token = resumeToken;
+            if (token == null) {
+                System.out.println("Connection established again, log in with /auth");
+            } else {
+                System.out.println("Connection established again, resuming the session");
+                sendMessage("/resume " + token);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Asks the server to switch to the binary protocol and waits for the reply.
+     * A server that does not know the protocol replies with an error, which is not shown
+     *
+     * @param inputStream  the stream of the new connection to read from
+     * @param outputStream the stream of the new connection to write to
+     * @return true if the server has switched to the binary protocol
+     * @throws IOException if the connection fails
+     */
+    private boolean negotiateProtocol(DataInputStream inputStream, DataOutputStream outputStream) throws IOException {
+        outputStream.writeUTF(BinaryProtocol.HANDSHAKE);
+        return inputStream.readUTF().equals(BinaryProtocol.HANDSHAKE);
+    }
+
     /**
      * Creates a thread that reads messages from inputStream and prints them to System.out
-     * until "/bye" is received
+     * until "/bye" is received, reconnecting if the connection is lost
      *
      * @return the thread
      */
@@ -57,16 +157,22 @@ public class Client {
         Thread thread = new Thread(() -> {
             try {
                 while (true) {
-                    String message = inputStream.readUTF();
-                    if (message.equals("/bye")) {
+                    try {
+                        readMessages();
                         System.out.println("Server has terminated the connection");
                         break;
+                    } catch (IOException e) {
+                        if (exiting) {
+                            break;
+                        }
+                        System.out.println("Connection lost, reconnecting...");
+                        if (!reconnect()) {
+                            System.out.println("Error while communicating with the server");
+                            e.printStackTrace();
+                            break;
+                        }
                     }
-                    System.out.println(message);
                 }
-            } catch (IOException e) {
-                System.out.println("Error while communicating with the server");
-                e.printStackTrace();
             } finally {
                 disconnect();
             }
@@ -75,6 +181,87 @@ public class Client {
         return thread;
     }
 
+    /**
+     * Reads messages from inputStream and prints them to System.out until "/bye" is received.
+     * The heartbeats are answered and the resume tokens are kept without showing them
+     *
+     * @throws IOException if the connection fails
+     */
+    private void readMessages() throws IOException {
+        while (true) {
+            if (binary) {
+                BinaryMessage message = BinaryProtocol.read(inputStream);
+                switch (message.opcode()) {
+                    case BYE -> {
+                        return;
+                    }
+                    case PING -> sendPong();
+                    case TOKEN -> resumeToken = message.field(0);
+                    case AUTH_RESULT -> {
+                        if (message.flags() == AuthStatus.INVALID_TOKEN.getCode()) {
+                            resumeToken = null;
+                        }
+                        printMessage(message);
+                    }
+                    default -> printMessage(message);
+                }
+                continue;
+            }
+            String message = inputStream.readUTF();
+            if (message.equals("/bye")) {
+                return;
+            }
+            if (message.equals("/ping")) {
+                sendPong();
+            } else {
+                System.out.println(message);
+            }
+        }
+    }
+
+    /**
+     * Prints a message of the binary protocol the same way the text protocol shows it
+     *
+     * @param message the message
+     */
+    private void printMessage(BinaryMessage message) {
+        switch (message.opcode()) {
+            case CHAT -> {
+                if ((message.flags() & BinaryProtocol.FLAG_HISTORY) != 0) {
+                    System.out.println("[" + message.field(2) + "] [" + message.field(0) + "]: " + message.field(1));
+                } else {
+                    System.out.println("[" + message.field(0) + "]: " + message.field(1));
+                }
+            }
+            case WHISPER -> {
+                if ((message.flags() & BinaryProtocol.FLAG_ECHO) != 0) {
+                    System.out.println("(whispered to " + message.field(0) + "): " + message.field(1));
+                } else if ((message.flags() & BinaryProtocol.FLAG_HISTORY) != 0) {
+                    System.out.println("[" + message.field(2) + "] (whisper from " + message.field(0) + "): "
+                            + message.field(1));
+                } else {
+                    System.out.println("(whisper from " + message.field(0) + "): " + message.field(1));
+                }
+            }
+            case AUTH_RESULT -> {
+                AuthStatus status = AuthStatus.fromCode(message.flags());
+                System.out.println("AUTH: " + (status == null ? message.field(0) : status.getText()));
+            }
+            case SERVER -> System.out.println("SERVER: " + message.field(0));
+            case PRESENCE -> {
+                StringBuilder text = new StringBuilder("/presence ").append(message.field(0));
+                if ((message.flags() & BinaryProtocol.FLAG_SNAPSHOT) != 0) {
+                    text.append(" =");
+                }
+                for (int i = 1; i < message.fields().length; i++) {
+                    text.append(' ').append(message.field(i));
+                }
+                System.out.println(text);
+            }
+            default -> System.out.println(message.field(0));
+        }
+    }
+
     /**
      * Sends a message to the server if the socket is not closed
      * Prints an error message in case of an IOException
@@ -82,37 +269,114 @@ public class Client {
      * @param message the message to send
      */
     private void sendMessage(String message) {
-        if (!socket.isClosed()) {
-            try {
+        if (socket.isClosed()) {
+            System.out.println("Not connected, the message is not sent");
+            return;
+        }
+        sendLock.lock();
+        try {
+            if (binary) {
+                outputStream.write(encode(message));
+            } else {
                 outputStream.writeUTF(message);
-            } catch (IOException e) {
-                System.out.println("Failed to send the message");
-                e.printStackTrace();
             }
+        } catch (IOException e) {
+            System.out.println("Failed to send the message");
+            e.printStackTrace();
+        } finally {
+            sendLock.unlock();
         }
     }
 
     /**
-     * Close the streams and the socket
+     * Answers a heartbeat of the server, called by the reading thread
+     *
+     * @throws IOException if the connection fails
      */
-    private void disconnect() {
+    private void sendPong() throws IOException {
+        sendLock.lock();
         try {
-            if (outputStream != null) outputStream.close();
-        } catch (IOException e) {
-            System.out.println("Error while disconnecting");
-            e.printStackTrace();
+            if (binary) {
+                outputStream.write(BinaryProtocol.encode(Opcode.PONG, 0, 0));
+            } else {
+                outputStream.writeUTF("/pong");
+            }
+        } finally {
+            sendLock.unlock();
         }
-        try {
-            if (inputStream != null) inputStream.close();
-        } catch (IOException e) {
-            System.out.println("Error while disconnecting");
-            e.printStackTrace();
+    }
+
+    /**
+     * Converts a line entered by the user into a binary protocol message.
+     * The commands with wrong arguments are sent as text, for the server to explain the usage
+     *
+     * @param message the line
+     * @return the encoded message
+     * @throws IOException if the message is too long
+     */
+    private byte[] encode(String message) throws IOException {
+        int sequence = ++this.sequence;
+        if (!message.startsWith("/")) {
+            return BinaryProtocol.encode(Opcode.CHAT, 0, sequence, message);
         }
+        String[] arguments = message.split(" ");
+        switch (arguments[0]) {
+            case "/w" -> {
+                String[] parts = message.split(" ", 3);
+                if (parts.length == 3) {
+                    return BinaryProtocol.encode(Opcode.WHISPER, 0, sequence, parts[1], parts[2]);
+                }
+            }
+            case "/auth" -> {
+                if (arguments.length == 3) {
+                    return BinaryProtocol.encode(Opcode.AUTH, 0, sequence, arguments[1], arguments[2]);
+                }
+            }
+            case "/reg" -> {
+                if (arguments.length == 4) {
+                    return BinaryProtocol.encode(Opcode.REGISTER, 0, sequence, arguments[1], arguments[2], arguments[3]);
+                }
+            }
+            case "/kick" -> {
+                if (arguments.length == 2) {
+                    return BinaryProtocol.encode(Opcode.KICK, 0, sequence, arguments[1]);
+                }
+            }
+            case "/exit" -> {
+                if (arguments.length == 1) {
+                    return BinaryProtocol.encode(Opcode.EXIT, 0, sequence);
+                }
+            }
+        }
+        return BinaryProtocol.encode(Opcode.COMMAND, 0, sequence, message);
+    }
+
+    /**
+     * Close the streams and the socket
+     */
+    private void disconnect() {
+        sendLock.lock();
         try {
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            System.out.println("Error while disconnecting");
-            e.printStackTrace();
+            try {
+                if (outputStream != null) outputStream.close();
+            } catch (IOException e) {
+                System.out.println("Error while disconnecting");
+                e.printStackTrace();
+            }
+            try {
+                if (inputStream != null) inputStream.close();
+            } catch (IOException e) {
+                System.out.println("Error while disconnecting");
+                e.printStackTrace();
+            }
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                System.out.println("Error while disconnecting");
+                e.printStackTrace();
+            }
+        } finally {
+            sendLock.unlock();
         }
     }
 }
@@ -0,0 +1,224 @@
+package ru.otus.java.basic.chat.loadgen;
+
+import ru.otus.java.basic.chat.server.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates many users of a chat server:
+ * every user registers with /reg, exits, connects again and logs in with /auth,
+ * then all the users together send chat messages and whispers at a fixed rate for a while, and exit.
+ * The delivery latency is measured from the time a message was due to be sent, so a stalled sender
+ * doesn't hide the stall from the results
+ */
+public class LoadGenerator {
+    private static final long REPLY_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final LoadGeneratorConfig config;
+    private final PrintStream out;
+    private final LoadStatistics statistics = new LoadStatistics();
+    private final String runId = Long.toString(System.currentTimeMillis() % 1_000_000_000L, 36);
+
+    /**
+     * Creates a load generator
+     *
+     * @param config the configuration
+     * @param out    the stream to print the progress and the report to
+     */
+    public LoadGenerator(LoadGeneratorConfig config, PrintStream out) {
+        this.config = config;
+        this.out = out;
+    }
+
+    /**
+     * Runs the load and prints the report
+     *
+     * @throws InterruptedException if interrupted
+     */
+    public void run() throws InterruptedException {
+        out.println("Logging in " + config.getSessions() + " users...");
+        long onboardingStart = System.nanoTime();
+        Session[] sessions = new Session[config.getSessions()];
+        Semaphore concurrency = new Semaphore(config.getConnectConcurrency());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < sessions.length; i++) {
+                int index = i;
+                executor.execute(() -> {
+                    try {
+                        concurrency.acquire();
+                        try {
+                            sessions[index] = onboard(index);
+                        } finally {
+                            concurrency.release();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+        List<Integer> online = new ArrayList<>();
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] != null) {
+                online.add(i);
+            }
+        }
+        out.printf("%d of %d users logged in in %d ms%n", online.size(), sessions.length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - onboardingStart));
+        if (online.size() < 2) {
+            out.println("Not enough users to send messages");
+            return;
+        }
+        long elapsed = send(sessions, online);
+        awaitDeliveries();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int index : online) {
+                executor.execute(() -> {
+                    try {
+                        sessions[index].exit(5000);
+                    } catch (InterruptedException e) {
+                        sessions[index].close();
+                    }
+                });
+            }
+        }
+        statistics.report(out, elapsed);
+    }
+
+    /**
+     * Registers a user, reconnects and logs in
+     *
+     * @param index the number of the user
+     * @return the logged in session, null if failed
+     * @throws InterruptedException if interrupted
+     */
+    private Session onboard(int index) throws InterruptedException {
+        String username = getUsername(index);
+        String login = "l" + username;
+        String password = "secret" + index;
+        try {
+            Session session = request("/reg " + username + " " + login + " " + password,
+                    "AUTH: Registration successful", statistics.registrationLatency);
+            if (session == null) {
+                return null;
+            }
+            session.exit(5000);
+            return request("/auth " + login + " " + password,
+                    "AUTH: Authentication successful", statistics.authenticationLatency);
+        } catch (IOException e) {
+            statistics.errors.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Connects and sends an authentication request, retrying with a growing delay while the server is busy
+     *
+     * @param request  the request
+     * @param expected the expected reply
+     * @param latency  the histogram of the round-trip time
+     * @return the session if the expected reply is received, null otherwise
+     * @throws IOException          if the connection fails
+     * @throws InterruptedException if interrupted
+     */
+    private Session request(String request, String expected, LatencyHistogram latency)
+            throws IOException, InterruptedException {
+        Session session = new Session(config.getHost(), config.getPort(), statistics);
+        session.start();
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            long start = System.nanoTime();
+            session.send(request);
+            String reply = session.awaitReply("AUTH: ", REPLY_TIMEOUT_MILLIS);
+            if (expected.equals(reply)) {
+                latency.record(System.nanoTime() - start);
+                return session;
+            }
+            if (reply == null || !reply.startsWith("SERVER: Server busy")) {
+                break;
+            }
+            statistics.rejected.increment();
+            Thread.sleep(100L * attempt);
+        }
+        statistics.errors.increment();
+        session.close();
+        return null;
+    }
+
+    /**
+     * Sends the chat messages and the whispers at the configured rate, printing the progress every second
+     *
+     * @param sessions the sessions
+     * @param online   the indexes of the logged in sessions
+     * @return how long the sending took in nanoseconds
+     */
+    private long send(Session[] sessions, List<Integer> online) {
+        out.println("Sending " + config.getRate() + " messages/s for " + config.getDurationSeconds() + " s...");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = TimeUnit.SECONDS.toNanos(1) / config.getRate();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastDelivered = 0;
+        for (long due = start; due < end; due += interval) {
+            long now = System.nanoTime();
+            if (due > now) {
+                LockSupport.parkNanos(due - now);
+            }
+            int sender = online.get(random.nextInt(online.size()));
+            boolean sent;
+            if (random.nextDouble() < config.getChatRatio()) {
+                sent = sessions[sender].sendLoad("", due);
+            } else {
+                int recipient = online.get(random.nextInt(online.size()));
+                sent = sessions[sender].sendLoad("/w " + getUsername(recipient) + " ", due);
+            }
+            if (sent) {
+                statistics.sent.increment();
+            } else {
+                statistics.errors.increment();
+            }
+            if (due >= nextReport) {
+                long totalSent = statistics.sent.sum();
+                long totalDelivered = statistics.delivered.sum();
+                out.printf("%3d s: sent %d/s, delivered %d/s%n", TimeUnit.NANOSECONDS.toSeconds(due - start),
+                        totalSent - lastSent, totalDelivered - lastDelivered);
+                lastSent = totalSent;
+                lastDelivered = totalDelivered;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Waits for the messages in flight to be delivered, until nothing arrives for half a second
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private void awaitDeliveries() throws InterruptedException {
+        long delivered;
+        do {
+            delivered = statistics.delivered.sum();
+            Thread.sleep(500);
+        } while (statistics.delivered.sum() != delivered);
+    }
+
+    /**
+     * @param index the number of a user
+     * @return the username of the user, unique for every run
+     */
+    private String getUsername(int index) {
+        return "lg" + runId + "x" + index;
+    }
+}
@@ -0,0 +1,79 @@
+package ru.otus.java.basic.chat.loadgen;
+
+import ru.otus.java.basic.chat.server.Log;
+import ru.otus.java.basic.chat.server.LogLevel;
+import ru.otus.java.basic.chat.server.Server;
+import ru.otus.java.basic.chat.server.ServerConfig;
+import ru.otus.java.basic.chat.server.UserRole;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+
+public class LoadGeneratorApplication {
+    /**
+     * Start the load generator
+     * Arguments: [key=value]..., see LoadGeneratorConfig.fromArguments
+     * With embedded=true a server with the in-memory users is started on the port first, the rest of its
+     * configuration is read from the environment, see ServerConfig.fromEnvironment, except for the rate limits,
+     * which are off so that the load is not throttled.
+     * The embedded server only logs warnings and errors, so that its output does not mix with the report
+     *
+     * @param args passed arguments
+     */
+    public static void main(String[] args) {
+        PrintStream out = System.out;
+        Server server = null;
+        try {
+            LoadGeneratorConfig config = LoadGeneratorConfig.fromArguments(args);
+            if (config.isEmbedded()) {
+                ServerConfig serverConfig = ServerConfig.fromEnvironment();
+                serverConfig.setPort(config.getPort());
+                serverConfig.setAuthentication(ServerConfig.Authentication.MEMORY);
+                for (UserRole role : UserRole.values()) {
+                    serverConfig.setRateLimit(role, null);
+                }
+                Log.setLevel(LogLevel.WARN);
+                server = new Server(serverConfig);
+                Thread serverThread = new Thread(server::start, "embedded-server");
+                serverThread.setDaemon(true);
+                serverThread.start();
+                awaitPort(config.getHost(), config.getPort());
+            }
+            new LoadGenerator(config, out).run();
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage());
+        } catch (IOException e) {
+            out.println("Network error occurred");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            out.println("Interrupted");
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Waits for a server to start listening to a port
+     *
+     * @param host the server address
+     * @param port the port
+     * @throws IOException          if the server does not start in 10 seconds
+     * @throws InterruptedException if interrupted
+     */
+    private static void awaitPort(String host, int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
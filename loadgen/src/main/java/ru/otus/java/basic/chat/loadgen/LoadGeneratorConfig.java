@@ -0,0 +1,110 @@
+package ru.otus.java.basic.chat.loadgen;
+
+public class LoadGeneratorConfig {
+    private String host = "localhost";
+    private int port = 8189;
+    private int sessions = 1000;
+    private int rate = 1000;
+    private int durationSeconds = 30;
+    private double chatRatio = 0.1;
+    private int connectConcurrency = 64;
+    private boolean embedded = false;
+
+    /**
+     * Creates a configuration from command line arguments of the form key=value,
+     * the keys that are not given keep default values:
+     * host=localhost port=8189 sessions=1000 rate=1000 duration=30 chat-ratio=0.1 connect-concurrency=64 embedded=false
+     *
+     * @param args the arguments
+     * @return a new configuration
+     * @throws IllegalArgumentException if some argument is unknown or has an invalid value
+     */
+    public static LoadGeneratorConfig fromArguments(String[] args) {
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid argument: " + arg + ", expected key=value");
+            }
+            String key = arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
+            try {
+                switch (key) {
+                    case "host" -> config.host = value;
+                    case "port" -> config.port = Integer.parseInt(value);
+                    case "sessions" -> config.sessions = Integer.parseInt(value);
+                    case "rate" -> config.rate = Integer.parseInt(value);
+                    case "duration" -> config.durationSeconds = Integer.parseInt(value);
+                    case "chat-ratio" -> config.chatRatio = Double.parseDouble(value);
+                    case "connect-concurrency" -> config.connectConcurrency = Integer.parseInt(value);
+                    case "embedded" -> config.embedded = Boolean.parseBoolean(value);
+                    default -> throw new IllegalArgumentException("Unknown argument: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + key + ": " + value);
+            }
+        }
+        if (config.sessions < 2 || config.rate < 1 || config.durationSeconds < 1 || config.connectConcurrency < 1
+                || config.chatRatio < 0 || config.chatRatio > 1) {
+            throw new IllegalArgumentException("Sessions must be 2+, rate, duration and connect-concurrency positive, "
+                    + "chat-ratio from 0 to 1");
+        }
+        return config;
+    }
+
+    /**
+     * @return the server address
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the server port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the number of simulated users
+     */
+    public int getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @return the number of chat messages and whispers sent per second by all the users together
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * @return how long to send messages for
+     */
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * @return the fraction of broadcast chat messages among the sent messages, the rest are whispers
+     */
+    public double getChatRatio() {
+        return chatRatio;
+    }
+
+    /**
+     * @return the number of users registering and logging in at the same time
+     */
+    public int getConnectConcurrency() {
+        return connectConcurrency;
+    }
+
+    /**
+     * @return true if the load generator starts its own server on the port, with the in-memory users
+     */
+    public boolean isEmbedded() {
+        return embedded;
+    }
+}
@@ -0,0 +1,37 @@
+package ru.otus.java.basic.chat.loadgen;
+
+import ru.otus.java.basic.chat.server.LatencyHistogram;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and the latency histograms of a load run
+ */
+public class LoadStatistics {
+    final LatencyHistogram registrationLatency = new LatencyHistogram();
+    final LatencyHistogram authenticationLatency = new LatencyHistogram();
+    final LatencyHistogram chatLatency = new LatencyHistogram();
+    final LatencyHistogram whisperLatency = new LatencyHistogram();
+    final LongAdder sent = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    /**
+     * Prints the final report
+     *
+     * @param out          the stream to print to
+     * @param elapsedNanos the duration of the sending phase
+     */
+    public void report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        out.println("Registration round-trip: " + registrationLatency);
+        out.println("Authentication round-trip: " + authenticationLatency);
+        out.printf("Sent: %d messages, %.0f/s%n", sent.sum(), sent.sum() / seconds);
+        out.printf("Delivered: %d messages, %.0f/s%n", delivered.sum(), delivered.sum() / seconds);
+        out.println("Chat delivery latency: " + chatLatency);
+        out.println("Whisper delivery latency: " + whisperLatency);
+        out.println("Rejected requests: " + rejected.sum() + ", errors: " + errors.sum());
+    }
+}
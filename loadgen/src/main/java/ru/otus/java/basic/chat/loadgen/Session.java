@@ -0,0 +1,166 @@
+package ru.otus.java.basic.chat.loadgen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection of a simulated user. Speaks the same protocol as the interactive Client:
+ * every message is written with writeUTF and read with readUTF.
+ * A virtual thread reads the incoming messages, records the delivery latency of the load messages,
+ * answers the heartbeats of the server and passes the server replies on to whoever waits for them
+ */
+public class Session {
+    /**
+     * Precedes the send time in the text of a load message
+     */
+    public static final String MARKER = "~lg:";
+
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final Lock sendLock = new ReentrantLock();
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private final LoadStatistics statistics;
+    private volatile Thread reader;
+
+    /**
+     * Connects to a server, the incoming messages are read from the time start is called
+     *
+     * @param host       a server address
+     * @param port       a server port
+     * @param statistics the counters to update
+     * @throws IOException if the connection fails
+     */
+    public Session(String host, int port, LoadStatistics statistics) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.inputStream = new DataInputStream(socket.getInputStream());
+        this.outputStream = new DataOutputStream(socket.getOutputStream());
+        this.statistics = statistics;
+    }
+
+    /**
+     * Starts the virtual thread reading the incoming messages
+     */
+    public void start() {
+        reader = Thread.ofVirtual().start(this::read);
+    }
+
+    /**
+     * Reads the incoming messages until the connection is closed
+     */
+    private void read() {
+        try {
+            while (true) {
+                String message = inputStream.readUTF();
+                int marker = message.lastIndexOf(MARKER);
+                if (marker >= 0) {
+                    long latency = System.nanoTime() - Long.parseLong(message, marker + MARKER.length(),
+                            message.length(), 10);
+                    if (message.startsWith("(whisper from ")) {
+                        statistics.whisperLatency.record(latency);
+                        statistics.delivered.increment();
+                    } else if (message.startsWith("[")) {
+                        statistics.chatLatency.record(latency);
+                        statistics.delivered.increment();
+                    }
+                    continue;
+                }
+                if (message.equals("/ping")) {
+                    send("/pong");
+                } else if (message.startsWith("AUTH: ") || message.startsWith("SERVER: ") || message.equals("/bye")) {
+                    replies.add(message);
+                }
+            }
+        } catch (EOFException e) {
+        } catch (IOException | NumberFormatException e) {
+            if (!socket.isClosed()) {
+                statistics.errors.increment();
+            }
+        } finally {
+            replies.add("<closed>");
+            close();
+        }
+    }
+
+    /**
+     * Sends a message, noop if the connection is closed
+     *
+     * @param message the message
+     * @return true if sent, false if the connection is closed or failed
+     */
+    public boolean send(String message) {
+        sendLock.lock();
+        try {
+            outputStream.writeUTF(message);
+            outputStream.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a load message, the receivers take the delivery latency from the send time
+     *
+     * @param prefix        the command and its arguments, empty for a chat message
+     * @param sendTimeNanos the System.nanoTime the message was due to be sent
+     * @return true if sent
+     */
+    public boolean sendLoad(String prefix, long sendTimeNanos) {
+        return send(prefix + MARKER + sendTimeNanos);
+    }
+
+    /**
+     * Waits for a reply from the server which starts with a prefix, skipping other replies
+     *
+     * @param prefix        the prefix
+     * @param timeoutMillis how long to wait
+     * @return the reply, or the reply that tells why the expected one won't come, null on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public String awaitReply(String prefix, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            String reply = replies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (reply == null || reply.startsWith(prefix) || reply.equals("<closed>")
+                    || reply.startsWith("SERVER: Server busy")) {
+                return reply;
+            }
+        }
+    }
+
+    /**
+     * Sends /exit and waits for the server to close the connection
+     *
+     * @param timeoutMillis how long to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void exit(long timeoutMillis) throws InterruptedException {
+        Thread current = reader;
+        if (send("/exit") && current != null) {
+            current.join(timeoutMillis);
+        }
+        close();
+    }
+
+    /**
+     * Closes the socket
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.otus.java.basic.chat.protocol;
+
+/**
+ * Results of authentication and registration, with the text of the reply
+ */
+public enum AuthStatus {
+    AUTHENTICATED(1, "Authentication successful"),
+    REGISTERED(2, "Registration successful"),
+    INCORRECT_CREDENTIALS(3, "Incorrect login/password"),
+    INVALID_FORMAT(4, "Login must be 3+ symbols, password 6+ symbols, username 3+ symbols"),
+    LOGIN_TAKEN(5, "Login is already taken"),
+    USERNAME_TAKEN(6, "Username is already taken"),
+    INTERNAL_ERROR(7, "Internal database error"),
+    RESUMED(8, "Session resumed"),
+    INVALID_TOKEN(9, "Session has expired, log in with /auth"),
+    ALREADY_LOGGED_IN(10, "User has already logged in");
+
+    private static final AuthStatus[] BY_CODE = new AuthStatus[11];
+
+    static {
+        for (AuthStatus status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
+
+    private final int code;
+    private final String text;
+
+    AuthStatus(int code, String text) {
+        this.code = code;
+        this.text = text;
+    }
+
+    /**
+     * @return the code of the status on the wire
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return the human-readable text of the status
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if the client is about to be logged in
+     */
+    public boolean isSuccess() {
+        return this == AUTHENTICATED || this == REGISTERED || this == RESUMED;
+    }
+
+    /**
+     * @param code a code from the wire
+     * @return the status, null if the code is unknown
+     */
+    public static AuthStatus fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
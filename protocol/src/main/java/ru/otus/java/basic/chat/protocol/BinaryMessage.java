@@ -0,0 +1,19 @@
+package ru.otus.java.basic.chat.protocol;
+
+/**
+ * A decoded message of the binary protocol
+ *
+ * @param opcode   the type of the message
+ * @param flags    opcode-specific flags
+ * @param sequence the sequence number of the request the message replies to, 0 if not a reply
+ * @param fields   the payload fields
+ */
+public record BinaryMessage(Opcode opcode, int flags, int sequence, String[] fields) {
+    /**
+     * @param index an index of a field
+     * @return the field, null if the message has fewer fields
+     */
+    public String field(int index) {
+        return index < fields.length ? fields[index] : null;
+    }
+}
@@ -0,0 +1,221 @@
+package ru.otus.java.basic.chat.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntSupplier;
+
+/**
+ * Encoding and decoding of the binary protocol, version 2.
+ * A client switches to it by sending "/proto 2" as a text message and waiting for the same text in reply,
+ * after which both directions use binary frames. A frame is a header followed by the payload:
+ * opcode (1 byte), flags (1 byte), sequence number (4 bytes), payload length (4 bytes), all big-endian.
+ * The payload is a sequence of fields, each one a 4-byte length followed by the UTF-8 bytes of a string
+ */
+public final class BinaryProtocol {
+    /**
+     * The version number used in the "/proto" handshake
+     */
+    public static final int VERSION = 2;
+    /**
+     * The text sent by the client to switch to the binary protocol and sent back by the server to confirm
+     */
+    public static final String HANDSHAKE = "/proto " + VERSION;
+    /**
+     * The size of the header in bytes
+     */
+    public static final int HEADER_LENGTH = 10;
+    /**
+     * The maximum length of the payload in bytes
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+    /**
+     * WHISPER: the message is the copy sent back to the sender
+     */
+    public static final int FLAG_ECHO = 1;
+    /**
+     * CHAT: the message is from the history of the room; WHISPER: the message was stored while the recipient
+     * was offline. A third field holds the time it was sent
+     */
+    public static final int FLAG_HISTORY = 2;
+    /**
+     * PRESENCE: the message starts the list of all the members of the room, the next messages without the flag
+     * may continue it
+     */
+    public static final int FLAG_SNAPSHOT = 4;
+
+    private static final String[] NO_FIELDS = new String[0];
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Encodes a message into a frame
+     *
+     * @param opcode   the type of the message
+     * @param flags    opcode-specific flags
+     * @param sequence the sequence number
+     * @param fields   the payload fields
+     * @return a new byte array with the frame
+     * @throws ProtocolException if the payload is longer than MAX_PAYLOAD_LENGTH
+     */
+    public static byte[] encode(Opcode opcode, int flags, int sequence, String... fields) throws ProtocolException {
+        byte[][] encodedFields = new byte[fields.length][];
+        long payloadLength = 0;
+        for (int i = 0; i < fields.length; i++) {
+            encodedFields[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            payloadLength += 4 + encodedFields[i].length;
+        }
+        if (payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Payload is too long: " + payloadLength + " bytes");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + (int) payloadLength);
+        frame.put((byte) opcode.getCode());
+        frame.put((byte) flags);
+        frame.putInt(sequence);
+        frame.putInt((int) payloadLength);
+        for (byte[] field : encodedFields) {
+            frame.putInt(field.length);
+            frame.put(field);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Finds out the length of the frame at the position of the buffer, the buffer must be in read mode
+     *
+     * @param buffer a buffer
+     * @return the length of the frame including the header, -1 if the buffer does not contain the whole header
+     * @throws ProtocolException if the payload length is invalid
+     */
+    public static int frameLength(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return -1;
+        }
+        return HEADER_LENGTH + checkPayloadLength(buffer.getInt(buffer.position() + 6));
+    }
+
+    /**
+     * Decodes a frame from the buffer if it contains the whole frame, the buffer must be in read mode.
+     * On success the buffer position is moved past the frame, otherwise the position is left unchanged
+     *
+     * @param buffer a buffer to read from
+     * @return the decoded message, null if the buffer does not contain the whole frame yet
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static BinaryMessage decode(ByteBuffer buffer) throws ProtocolException {
+        int frameLength = frameLength(buffer);
+        if (frameLength < 0 || buffer.remaining() < frameLength) {
+            return null;
+        }
+        int start = buffer.position();
+        Opcode opcode = checkOpcode(buffer.get(start) & 0xFF);
+        int flags = buffer.get(start + 1) & 0xFF;
+        int sequence = buffer.getInt(start + 2);
+        ByteBuffer payload = buffer.slice(start + HEADER_LENGTH, frameLength - HEADER_LENGTH);
+        buffer.position(start + frameLength);
+        return new BinaryMessage(opcode, flags, sequence, decodeFields(payload));
+    }
+
+    /**
+     * Reads a frame from a stream, blocking until the whole frame is received
+     *
+     * @param inputStream a stream to read from
+     * @return the decoded message
+     * @throws IOException if the stream fails or the frame is malformed
+     */
+    public static BinaryMessage read(DataInputStream inputStream) throws IOException {
+        return read(inputStream, MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * Reads a frame from a stream, blocking until the whole frame is received,
+     * rejecting the frame before its payload is allocated if the payload is longer than a limit
+     *
+     * @param inputStream      a stream to read from
+     * @param maxPayloadLength the longest payload accepted, MAX_PAYLOAD_LENGTH applies if it is lower
+     * @return the decoded message
+     * @throws IOException if the stream fails or the frame is malformed or too long
+     */
+    public static BinaryMessage read(DataInputStream inputStream, int maxPayloadLength) throws IOException {
+        return read(inputStream, () -> maxPayloadLength);
+    }
+
+    /**
+     * Reads a frame from a stream like read(DataInputStream, int), with a limit that may change while the read
+     * is blocked: the limit is taken once the header of the frame is received
+     *
+     * @param inputStream      a stream to read from
+     * @param maxPayloadLength the longest payload accepted, MAX_PAYLOAD_LENGTH applies if it is lower
+     * @return the decoded message
+     * @throws IOException if the stream fails or the frame is malformed or too long
+     */
+    public static BinaryMessage read(DataInputStream inputStream, IntSupplier maxPayloadLength) throws IOException {
+        Opcode opcode = checkOpcode(inputStream.readUnsignedByte());
+        int flags = inputStream.readUnsignedByte();
+        int sequence = inputStream.readInt();
+        int payloadLength = checkPayloadLength(inputStream.readInt());
+        int limit = maxPayloadLength.getAsInt();
+        if (payloadLength > limit) {
+            throw new ProtocolException("Payload length " + payloadLength + " exceeds the limit " + limit);
+        }
+        byte[] payload = new byte[payloadLength];
+        inputStream.readFully(payload);
+        return new BinaryMessage(opcode, flags, sequence, decodeFields(ByteBuffer.wrap(payload)));
+    }
+
+    private static Opcode checkOpcode(int code) throws ProtocolException {
+        Opcode opcode = Opcode.fromCode(code);
+        if (opcode == null) {
+            throw new ProtocolException("Unknown opcode: " + code);
+        }
+        return opcode;
+    }
+
+    private static int checkPayloadLength(int payloadLength) throws ProtocolException {
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Invalid payload length: " + payloadLength);
+        }
+        return payloadLength;
+    }
+
+    /**
+     * Decodes the fields of a payload
+     *
+     * @param payload the payload, from position to limit
+     * @return the fields
+     * @throws ProtocolException if a field length exceeds the payload
+     */
+    private static String[] decodeFields(ByteBuffer payload) throws ProtocolException {
+        if (!payload.hasRemaining()) {
+            return NO_FIELDS;
+        }
+        String[] fields = new String[4];
+        int count = 0;
+        while (payload.hasRemaining()) {
+            if (payload.remaining() < 4) {
+                throw new ProtocolException("Truncated field length");
+            }
+            int length = payload.getInt();
+            if (length < 0 || length > payload.remaining()) {
+                throw new ProtocolException("Invalid field length: " + length);
+            }
+            if (count == fields.length) {
+                fields = Arrays.copyOf(fields, count * 2);
+            }
+            if (payload.hasArray()) {
+                fields[count++] = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                        StandardCharsets.UTF_8);
+            } else {
+                byte[] bytes = new byte[length];
+                payload.get(payload.position(), bytes);
+                fields[count++] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            payload.position(payload.position() + length);
+        }
+        return count == fields.length ? fields : Arrays.copyOf(fields, count);
+    }
+}
@@ -0,0 +1,102 @@
+package ru.otus.java.basic.chat.protocol;
+
+/**
+ * Types of the binary protocol messages. The fields of the payload are listed for each direction
+ */
+public enum Opcode {
+    /**
+     * A chat message. Client: text. Server: sender, text; or with FLAG_HISTORY: sender, text, time
+     */
+    CHAT(0x01),
+    /**
+     * A private message. Client: recipient, text.
+     * Server: sender, text; or with FLAG_ECHO: recipient, text, the copy sent back to the sender;
+     * or with FLAG_HISTORY: sender, text, time, a message stored while the recipient was offline
+     */
+    WHISPER(0x02),
+    /**
+     * A chat event such as a user entering or leaving. Server: text
+     */
+    NOTICE(0x03),
+    /**
+     * A reply of the server to a request, usually an error. Server: text
+     */
+    SERVER(0x04),
+    /**
+     * Users coming to and leaving the client's room, sent to the clients that have turned on /presence.
+     * Server: room, then "+username" for every user that has come and "-username" for every user that has gone;
+     * with FLAG_SNAPSHOT the client forgets the members of the room it knows first
+     */
+    PRESENCE(0x05),
+    /**
+     * Client: login, password
+     */
+    AUTH(0x10),
+    /**
+     * Client: username, login, password
+     */
+    REGISTER(0x11),
+    /**
+     * The result of AUTH or REGISTER, the flags hold the AuthStatus code. Server: text
+     */
+    AUTH_RESULT(0x12),
+    /**
+     * The token the server issues on login, to be sent with /resume after a reconnect instead of the password.
+     * Server: token
+     */
+    TOKEN(0x13),
+    /**
+     * A command without its own opcode, in the text form. Client: command line
+     */
+    COMMAND(0x20),
+    /**
+     * Client: username
+     */
+    KICK(0x21),
+    /**
+     * The client is leaving. No fields
+     */
+    EXIT(0x30),
+    /**
+     * The server is closing the connection. No fields
+     */
+    BYE(0x31),
+    /**
+     * The server checks that the client is still there after it has been quiet for a while,
+     * the client answers with PONG. No fields
+     */
+    PING(0x32),
+    /**
+     * The answer to PING. No fields
+     */
+    PONG(0x33);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+    private final int code;
+
+    Opcode(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the code of the opcode on the wire
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param code a code from the wire
+     * @return the opcode, null if the code is unknown
+     */
+    public static Opcode fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -17,6 +17,24 @@ CREATE TABLE authentication."user"
 ALTER TABLE IF EXISTS authentication."user"
     OWNER to pg_database_owner;
 
+CREATE TABLE authentication.offline_message
+(
+    message_id bigserial NOT NULL,
+    recipient text NOT NULL,
+    sender text NOT NULL,
+    text text NOT NULL,
+    sent_at timestamp with time zone NOT NULL,
+    PRIMARY KEY (message_id),
+    FOREIGN KEY (recipient) REFERENCES authentication."user" (name) ON DELETE CASCADE
+);
+
+CREATE INDEX ON authentication.offline_message (recipient);
+
+CREATE INDEX ON authentication.offline_message (sent_at);
+
+ALTER TABLE IF EXISTS authentication.offline_message
+    OWNER to pg_database_owner;
+
 INSERT INTO authentication."user" VALUES (1, 'root', 'dOEWvx9pNtXQuwKbq9NH2tmvU6Y5q+pH4THym026q6U=', 'n\poeDfqvujZkBfT', 'superuser', 'ADMIN');
 INSERT INTO authentication."user" VALUES (2, 'covertops69', 'FsdXFovasGCPlLJeynBXzJZ6vUF8OaAIn0Kjgwj6mPg=', 'FELvSxAippT]Ejkx', 'Alice', 'USER');
 INSERT INTO authentication."user" VALUES (3, 'bob1955', 'Sy/0z2ReF7S4tWZ9QquRO55/Ttyf/ZG202IYUr5Vd/A=', 'Z\asIdgkbANLQKVs', 'Bob', 'USER');
@@ -0,0 +1,151 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.PrintStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the events in a ring buffer and prints them from a background thread, so the logging threads
+ * neither format the messages nor wait for the console. The flusher takes all the buffered events at once
+ * and prints them with a single write. What happens when the buffer is full is set by the overflow policy,
+ * the number of dropped events is reported with the next batch
+ */
+public class AsyncLogAppender implements LogAppender {
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final PrintStream out;
+    private final LogOverflowPolicy policy;
+    private final LogEvent[] buffer;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Thread flusher;
+    private int head;
+    private int size;
+    private long droppedCount;
+    private boolean closed;
+
+    /**
+     * Creates the appender and starts its flusher thread
+     *
+     * @param out      the stream to print to
+     * @param capacity the maximum number of events waiting to be printed
+     * @param policy   what to do when the buffer is full
+     */
+    public AsyncLogAppender(PrintStream out, int capacity, LogOverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Log buffer capacity must be positive");
+        }
+        this.out = out;
+        this.policy = policy;
+        this.buffer = new LogEvent[capacity];
+        this.flusher = Thread.ofPlatform().name("log-flusher").daemon().unstarted(this::run);
+        flusher.start();
+    }
+
+    /**
+     * Puts an event into the buffer. Prints it right away if the appender is closed
+     *
+     * @param event the event
+     */
+    @Override
+    public void append(LogEvent event) {
+        lock.lock();
+        try {
+            while (size == buffer.length && !closed) {
+                if (policy == LogOverflowPolicy.DROP
+                        || policy == LogOverflowPolicy.DROP_BELOW_WARN && event.level().compareTo(LogLevel.WARN) < 0) {
+                    droppedCount++;
+                    return;
+                }
+                notFull.awaitUninterruptibly();
+            }
+            if (!closed) {
+                buffer[(head + size) % buffer.length] = event;
+                if (size++ == 0) {
+                    notEmpty.signal();
+                }
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        StringBuilder builder = new StringBuilder(128);
+        event.formatTo(builder);
+        out.print(builder);
+        out.flush();
+    }
+
+    /**
+     * Prints the buffered events in batches until the appender is closed and the buffer is empty
+     */
+    private void run() {
+        LogEvent[] batch = new LogEvent[buffer.length];
+        StringBuilder builder = new StringBuilder(1024);
+        while (true) {
+            int count;
+            long dropped;
+            lock.lock();
+            try {
+                while (size == 0 && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (size == 0) {
+                    return;
+                }
+                count = size;
+                for (int i = 0; i < count; i++) {
+                    int index = (head + i) % buffer.length;
+                    batch[i] = buffer[index];
+                    buffer[index] = null;
+                }
+                head = (head + count) % buffer.length;
+                size = 0;
+                dropped = droppedCount;
+                droppedCount = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            builder.setLength(0);
+            if (dropped > 0) {
+                builder.append(dropped).append(" log messages dropped, the log buffer was full")
+                        .append(System.lineSeparator());
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    batch[i].formatTo(builder);
+                } catch (RuntimeException e) {
+                    builder.append("Failed to format a log message: ").append(e).append(System.lineSeparator());
+                }
+                batch[i] = null;
+            }
+            out.print(builder);
+            out.flush();
+            if (builder.capacity() > 1 << 20) {
+                builder = new StringBuilder(1024);
+            }
+        }
+    }
+
+    /**
+     * Prints the buffered events and stops the flusher thread, waiting for it for a few seconds at most
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,17 @@
 package ru.otus.java.basic.chat.server;
 
+import ru.otus.java.basic.chat.protocol.AuthStatus;
+
 public interface AuthenticationProvider extends AutoCloseable {
+    /**
+     * Looks up the stored password digest and the profile of a login
+     *
+     * @param login the login
+     * @return the credentials, null if the login is not found
+     * @throws AuthenticationProviderException if the user storage is not available
+     */
+    UserCredentials findCredentials(String login) throws AuthenticationProviderException;
+
     /**
      * Authenticates and logs in a ClientHandler by a login and a password combination.
      * Calls ClientHandler.login on a success, otherwise sends error messages to the client.
@@ -11,7 +22,25 @@ public interface AuthenticationProvider extends AutoCloseable {
      * @return true if authentication successful, false if the login or the password are incorrect,
      * or if the user has already logged in
      */
-    boolean authenticate(ClientHandler clientHandler, String login, String password);
+    default boolean authenticate(ClientHandler clientHandler, String login, String password) {
+        UserCredentials credentials;
+        try {
+            credentials = findCredentials(login);
+        } catch (AuthenticationProviderException e) {
+            clientHandler.sendAuthResult(AuthStatus.INTERNAL_ERROR);
+            Log.getLogger(AuthenticationProvider.class).error("Authentication of the login {} failed", login, e);
+            return false;
+        }
+        if (credentials == null || !credentials.matches(password)) {
+            clientHandler.sendAuthResult(AuthStatus.INCORRECT_CREDENTIALS);
+            return false;
+        }
+        clientHandler.sendAuthResult(AuthStatus.AUTHENTICATED);
+        if (!clientHandler.login(credentials.profile())) {
+            return false;
+        }
+        return true;
+    }
 
     /**
      * Registers a username and logs in a ClientHandler, given the username and a login and a password combination.
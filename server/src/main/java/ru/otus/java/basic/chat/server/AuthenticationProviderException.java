@@ -0,0 +1,14 @@
+package ru.otus.java.basic.chat.server;
+
+public class AuthenticationProviderException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The authentication provider failed to access its user storage
+     *
+     * @param cause the underlying failure
+     */
+    public AuthenticationProviderException(Throwable cause) {
+        super(cause);
+    }
+}
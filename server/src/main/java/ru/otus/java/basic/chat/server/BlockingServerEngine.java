@@ -0,0 +1,43 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+public class BlockingServerEngine implements ServerEngine {
+    private static final Logger logger = Log.getLogger(BlockingServerEngine.class);
+
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Creates a blocking engine
+     *
+     * @param threadFactory a factory of the per-client threads
+     */
+    public BlockingServerEngine(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+    /**
+     * Opens the server socket on the specified port number
+     * Listens to connections and creates a SocketClientHandler with its own thread for each accepted socket connection
+     *
+     * @param server the Server the connections belong to
+     * @param port   a port number for the server socket
+     * @throws IOException if the server socket can't be opened or fails
+     */
+    @Override
+    public void start(Server server, int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            logger.info("Server started on port: {}", port);
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    new SocketClientHandler(server, socket, threadFactory).start();
+                } catch (IOException e) {
+                    logger.warn("Failed to establish connection with a client", e);
+                }
+            }
+        }
+    }
+}
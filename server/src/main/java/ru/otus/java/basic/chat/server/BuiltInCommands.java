@@ -0,0 +1,196 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.BinaryProtocol;
+
+/**
+ * The commands every server has
+ */
+final class BuiltInCommands {
+    private BuiltInCommands() {
+    }
+
+    /**
+     * Registers the built-in commands:
+     * /auth login password - tries to log in to the server using a login and a password combination.
+     * /reg username login password - tries to register a specific username for a login and a password combination.
+     * /resume token - logs in again with the token the server has sent on the last login, see ResumeTokens.
+     * Only the clients of the binary protocol are sent the tokens.
+     * /proto 2 - switches the connection to the binary protocol, see BinaryProtocol.
+     * /w name message - sends the message to the specified username.
+     * /kick name - (admin only) kicks username from the server.
+     * /stats - (admin only) shows the metrics of the server.
+     * /join room - moves to the room, creating it if it does not exist, and shows its last messages if the history is on.
+     * /leave - moves back to the default room.
+     * /rooms - lists the rooms and the number of their members, the current one is marked with *.
+     * /who - lists the users in the current room.
+     * /presence on|off - turns on or off the lists of the users coming to and leaving the current room.
+     * /history count - shows the last messages of the current room, at most ChatHistory.MAX_READ.
+     * /exit - sends /bye to the client, closes the connection and invalidates the resume tokens of the user.
+     * /pong - the answer to /ping, tells the server the client is still there and answers the pings,
+     * so that it is pinged and disconnected when idle from now on.
+     *
+     * @param registry the registry
+     */
+    static void registerAll(CommandRegistry registry) {
+        registry.register("/auth", "/auth <login> <password>", null, BuiltInCommands::auth);
+        registry.register("/reg", "/reg <username> <login> <password>", null, BuiltInCommands::reg);
+        registry.register("/resume", "/resume <token>", null, BuiltInCommands::resume);
+        registry.register("/proto", "/proto " + BinaryProtocol.VERSION, null, BuiltInCommands::proto);
+        registry.register("/w", "/w <username> <message>...", Permission.WHISPER, BuiltInCommands::whisper);
+        registry.register("/kick", "/kick <username>", Permission.KICK, BuiltInCommands::kick);
+        registry.register("/stats", "/stats", Permission.STATS, BuiltInCommands::stats);
+        registry.register("/join", "/join <room>", Permission.ROOMS, BuiltInCommands::join);
+        registry.register("/leave", "/leave", Permission.ROOMS, BuiltInCommands::leave);
+        registry.register("/rooms", "/rooms", Permission.ROOMS, BuiltInCommands::rooms);
+        registry.register("/who", "/who", Permission.ROOMS, BuiltInCommands::who);
+        registry.register("/presence", "/presence on|off", Permission.ROOMS, BuiltInCommands::presence);
+        registry.register("/history", "/history <count>", Permission.HISTORY, BuiltInCommands::history);
+        registry.register("/exit", "/exit", Permission.EXIT, BuiltInCommands::exit);
+        registry.register("/pong", "/pong", null, BuiltInCommands::pong);
+    }
+
+    private static boolean auth(ClientHandler client, CommandArguments arguments) {
+        String login = arguments.next();
+        String password = arguments.next();
+        if (password == null || arguments.hasNext()) {
+            return false;
+        }
+        client.authenticate(login, password);
+        return true;
+    }
+
+    private static boolean reg(ClientHandler client, CommandArguments arguments) {
+        String username = arguments.next();
+        String login = arguments.next();
+        String password = arguments.next();
+        if (password == null || arguments.hasNext()) {
+            return false;
+        }
+        client.register(username, login, password);
+        return true;
+    }
+
+    private static boolean resume(ClientHandler client, CommandArguments arguments) {
+        String token = arguments.next();
+        if (token == null || arguments.hasNext()) {
+            return false;
+        }
+        client.resume(token);
+        return true;
+    }
+
+    private static boolean proto(ClientHandler client, CommandArguments arguments) {
+        String version = arguments.next();
+        if (version == null || arguments.hasNext()) {
+            return false;
+        }
+        client.switchProtocol(version);
+        return true;
+    }
+
+    private static boolean whisper(ClientHandler client, CommandArguments arguments) {
+        String recipient = arguments.next();
+        String text = arguments.rest();
+        if (text == null) {
+            return false;
+        }
+        client.whisper(recipient, text);
+        return true;
+    }
+
+    private static boolean kick(ClientHandler client, CommandArguments arguments) {
+        String username = arguments.next();
+        if (username == null || arguments.hasNext()) {
+            return false;
+        }
+        client.kick(username);
+        return true;
+    }
+
+    private static boolean stats(ClientHandler client, CommandArguments arguments) {
+        if (arguments.hasNext()) {
+            return false;
+        }
+        client.stats();
+        return true;
+    }
+
+    private static boolean join(ClientHandler client, CommandArguments arguments) {
+        String room = arguments.next();
+        if (room == null || arguments.hasNext()) {
+            return false;
+        }
+        client.joinRoom(room);
+        return true;
+    }
+
+    private static boolean leave(ClientHandler client, CommandArguments arguments) {
+        if (arguments.hasNext()) {
+            return false;
+        }
+        client.leaveRoom();
+        return true;
+    }
+
+    private static boolean rooms(ClientHandler client, CommandArguments arguments) {
+        if (arguments.hasNext()) {
+            return false;
+        }
+        client.listRooms();
+        return true;
+    }
+
+    private static boolean who(ClientHandler client, CommandArguments arguments) {
+        if (arguments.hasNext()) {
+            return false;
+        }
+        client.who();
+        return true;
+    }
+
+    private static boolean presence(ClientHandler client, CommandArguments arguments) {
+        String mode = arguments.next();
+        if (mode == null || arguments.hasNext()) {
+            return false;
+        }
+        switch (mode) {
+            case "on" -> client.setPresenceEnabled(true);
+            case "off" -> client.setPresenceEnabled(false);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean history(ClientHandler client, CommandArguments arguments) {
+        String count = arguments.next();
+        if (count == null || arguments.hasNext()) {
+            return false;
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (limit < 1) {
+            return false;
+        }
+        client.history(limit);
+        return true;
+    }
+
+    private static boolean exit(ClientHandler client, CommandArguments arguments) throws TerminateClientException {
+        client.exit();
+        return true;
+    }
+
+    private static boolean pong(ClientHandler client, CommandArguments arguments) {
+        if (arguments.hasNext()) {
+            return false;
+        }
+        client.pong();
+        return true;
+    }
+}
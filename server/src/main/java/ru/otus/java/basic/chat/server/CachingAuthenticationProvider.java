@@ -0,0 +1,238 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An AuthenticationProvider that keeps the recently looked up credentials in memory in front of another provider.
+ * The cache is split into segments, each one a LRU map guarded by its own lock, with the total size bounded.
+ * Unknown logins are cached too, for a shorter time, so that repeated attempts with a wrong login
+ * don't reach the underlying storage. Registration invalidates the login it adds
+ */
+public class CachingAuthenticationProvider implements AuthenticationProvider {
+    private static final Logger logger = Log.getLogger(CachingAuthenticationProvider.class);
+    private static final int SEGMENT_COUNT = 16;
+
+    /**
+     * A cached lookup result, credentials are null for an unknown login
+     *
+     * @param credentials the credentials, null if the login is not found
+     * @param expiresAt   System.nanoTime after which the entry is stale
+     */
+    private record Entry(UserCredentials credentials, long expiresAt) {
+    }
+
+    private class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Lock lock = new ReentrantLock();
+        private final int maxSize;
+        private long generation;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= maxSize) {
+                return false;
+            }
+            evictions.increment();
+            return true;
+        }
+    }
+
+    private final AuthenticationProvider delegate;
+    private final Segment[] segments;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Counter hits;
+    private final Counter negativeHits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter expirations;
+
+    /**
+     * Creates a cache in front of an authentication provider
+     *
+     * @param delegate          the provider to look the credentials up in on a cache miss
+     * @param maxSize           the maximum number of cached logins
+     * @param ttlMillis         how long the credentials of a known login are cached
+     * @param negativeTtlMillis how long an unknown login is cached, 0 to not cache unknown logins
+     * @param metrics           the registry of the cache metrics
+     */
+    public CachingAuthenticationProvider(AuthenticationProvider delegate, int maxSize,
+                                         long ttlMillis, long negativeTtlMillis, Metrics metrics) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.delegate = delegate;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.negativeTtlNanos = negativeTtlMillis * 1_000_000;
+        this.hits = metrics.counter("auth.cache.hits");
+        this.negativeHits = metrics.counter("auth.cache.negative_hits");
+        this.misses = metrics.counter("auth.cache.misses");
+        this.evictions = metrics.counter("auth.cache.evictions");
+        this.expirations = metrics.counter("auth.cache.expirations");
+        int segmentCount = Math.min(SEGMENT_COUNT, maxSize);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * Returns the cached credentials of a login, looks them up in the underlying provider if not cached or stale.
+     * A lookup result is not cached if the login has been invalidated while it was being looked up
+     *
+     * @param login the login
+     * @return the credentials, null if the login is not found
+     * @throws AuthenticationProviderException if the underlying provider fails
+     */
+    @Override
+    public UserCredentials findCredentials(String login) throws AuthenticationProviderException {
+        Segment segment = segmentFor(login);
+        long generation;
+        segment.lock.lock();
+        try {
+            Entry entry = segment.get(login);
+            if (entry != null) {
+                if (entry.expiresAt() - System.nanoTime() > 0) {
+                    if (entry.credentials() == null) {
+                        negativeHits.increment();
+                    } else {
+                        hits.increment();
+                    }
+                    return entry.credentials();
+                }
+                segment.remove(login);
+                expirations.increment();
+            }
+            generation = segment.generation;
+        } finally {
+            segment.lock.unlock();
+        }
+        misses.increment();
+        UserCredentials credentials = delegate.findCredentials(login);
+        long ttl = credentials == null ? negativeTtlNanos : ttlNanos;
+        if (ttl > 0) {
+            segment.lock.lock();
+            try {
+                if (segment.generation == generation) {
+                    segment.put(login, new Entry(credentials, System.nanoTime() + ttl));
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return credentials;
+    }
+
+    /**
+     * Registers a user in the underlying provider, the login is invalidated so that a cached
+     * "not found" does not outlive the registration
+     *
+     * @param clientHandler the ClientHandler to authenticate
+     * @param login         the login
+     * @param password      the password
+     * @param username      the username
+     * @return the result of the underlying provider
+     */
+    @Override
+    public boolean register(ClientHandler clientHandler, String login, String password, String username) {
+        invalidate(login);
+        try {
+            return delegate.register(clientHandler, login, password, username);
+        } finally {
+            invalidate(login);
+        }
+    }
+
+    /**
+     * Removes a login from the cache and discards the lookups of the login that are in progress
+     *
+     * @param login the login
+     */
+    public void invalidate(String login) {
+        Segment segment = segmentFor(login);
+        segment.lock.lock();
+        try {
+            segment.remove(login);
+            segment.generation++;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * @param login a login
+     * @return the segment the login belongs to
+     */
+    private Segment segmentFor(String login) {
+        int hash = login.hashCode();
+        return segments[Math.floorMod(hash ^ (hash >>> 16), segments.length)];
+    }
+
+    /**
+     * @return the number of lookups answered with cached credentials
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups answered with a cached "not found"
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    /**
+     * @return the number of lookups passed to the underlying provider
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries removed to keep the cache within its size
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of entries removed because they became stale
+     */
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the underlying provider
+     */
+    public AuthenticationProvider getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() + ", negativeHits=" + getNegativeHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", expirations=" + getExpirationCount();
+    }
+
+    /**
+     * Reports the cache counters and closes the underlying provider
+     *
+     * @throws Exception if the underlying provider fails to close
+     */
+    @Override
+    public void close() throws Exception {
+        logger.info("Authentication cache: {}", this);
+        delegate.close();
+    }
+}
@@ -0,0 +1,325 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The durable history of the chat rooms, a RoomHistory per room in a subdirectory named after the room.
+ * The broadcasting threads only put the messages into a bounded queue, dropping them if it is full,
+ * and a single writer thread appends them in batches. The writer forces the batch to the disk as set
+ * by the fsync policy and deletes the expired segments once a minute, looking only at the files of the rooms
+ * that are not open. The rooms nobody has written to or read for ten minutes are dropped then and opened again
+ * on their next use; their segments are unmapped by the garbage collector once no reader refers to them anymore.
+ * The reads run on a couple of reader threads rather than on the threads of the connections,
+ * as the pages of a segment may have to be read from the disk
+ */
+public class ChatHistory {
+    private static final Logger logger = Log.getLogger(ChatHistory.class);
+    /**
+     * The maximum number of messages returned by one request
+     */
+    public static final int MAX_READ = 500;
+    private static final int MAX_BATCH = 1024;
+    private static final int READER_THREADS = 2;
+    private static final int READ_QUEUE_CAPACITY = 64;
+    private static final long RETENTION_CHECK_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long IDLE_ROOM_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private record PendingMessage(String room, long timestamp, String sender, String text) {
+    }
+
+    private static final PendingMessage WAKEUP = new PendingMessage(null, 0, null, null);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final BlockingQueue<PendingMessage> queue;
+    private final ConcurrentMap<String, RoomHistory> rooms = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private final ExecutorService readers;
+    private final Counter appended;
+    private final Counter dropped;
+    private final Counter failed;
+    private final Counter fsyncs;
+    private final LatencyHistogram fsyncTime;
+    private volatile boolean closed;
+
+    /**
+     * Creates the history directory if necessary and starts the writer and the reader threads
+     *
+     * @param directory           the directory of the history
+     * @param segmentBytes        the size of a segment file
+     * @param retentionMillis     how long the messages are kept
+     * @param retentionBytes      the maximum size of the history of a room
+     * @param fsyncPolicy         when the messages are forced to the disk
+     * @param fsyncIntervalMillis the interval of the INTERVAL policy
+     * @param queueCapacity       the maximum number of messages waiting for the writer
+     * @param metrics             the registry of the history metrics
+     * @throws UncheckedIOException if the directory can't be created
+     */
+    public ChatHistory(Path directory, int segmentBytes, long retentionMillis, long retentionBytes,
+                       FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, int queueCapacity, Metrics metrics) {
+        if (segmentBytes < 1024 || retentionMillis < 1 || retentionBytes < 1 || fsyncIntervalMillis < 1
+                || queueCapacity < 1) {
+            throw new IllegalArgumentException("History limits must be positive and a segment at least 1 KB");
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create the history directory " + directory, e);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.appended = metrics.counter("history.appended");
+        this.dropped = metrics.counter("history.dropped");
+        this.failed = metrics.counter("history.failed");
+        this.fsyncs = metrics.counter("history.fsyncs");
+        this.fsyncTime = metrics.histogram("history.fsync_time");
+        metrics.gauge("history.queue_depth", queue::size);
+        metrics.gauge("history.open_rooms", rooms::size);
+        this.readers = new ThreadPoolExecutor(READER_THREADS, READER_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(READ_QUEUE_CAPACITY),
+                Thread.ofPlatform().name("history-reader-", 0).daemon().factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.writer = Thread.ofPlatform().name("history-writer").daemon().unstarted(this::run);
+        writer.start();
+    }
+
+    /**
+     * Queues a chat message to be appended to the history of a room, never waits.
+     * The message is dropped and counted if the writer does not keep up
+     *
+     * @param room   the name of the room
+     * @param sender the username of the sender
+     * @param text   the text of the message
+     */
+    public void append(String room, String sender, String text) {
+        if (closed || !queue.offer(new PendingMessage(room, System.currentTimeMillis(), sender, text))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Runs a read of the history on a reader thread
+     *
+     * @param read the read, calling readLast
+     * @return false if too many reads are waiting already or the history is closed
+     */
+    public boolean submitRead(Runnable read) {
+        try {
+            readers.execute(read);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Passes the last messages of a room to a consumer, oldest first, reading them from the mapped segments.
+     * The messages still waiting for the writer are not included
+     *
+     * @param room     the name of the room
+     * @param limit    the maximum number of messages, at most MAX_READ
+     * @param consumer the consumer of the messages
+     * @return the number of messages passed
+     * @throws IOException if the history of the room can't be opened
+     */
+    public int readLast(String room, int limit, Consumer<HistoryRecord> consumer) throws IOException {
+        return room(room).readLast(Math.min(limit, MAX_READ), consumer);
+    }
+
+    /**
+     * Returns the history of a room, opening it on first use
+     *
+     * @param name the name of the room
+     * @return the history
+     * @throws IOException if the segments of the room can't be opened
+     */
+    private RoomHistory room(String name) throws IOException {
+        RoomHistory history = rooms.get(name);
+        if (history != null) {
+            return history;
+        }
+        try {
+            return rooms.computeIfAbsent(name, key -> {
+                try {
+                    return RoomHistory.open(directory.resolve(key), segmentBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Appends the queued messages in batches until the history is closed and the queue is empty
+     */
+    private void run() {
+        List<PendingMessage> batch = new ArrayList<>(MAX_BATCH);
+        Set<RoomHistory> dirty = new HashSet<>();
+        long nextFsync = System.nanoTime() + fsyncIntervalNanos;
+        long nextRetention = System.nanoTime();
+        while (true) {
+            long now = System.nanoTime();
+            long wakeup = fsyncPolicy == FsyncPolicy.INTERVAL && !dirty.isEmpty()
+                    ? Math.min(nextFsync, nextRetention) : nextRetention;
+            try {
+                PendingMessage first = closed ? queue.poll() : queue.poll(Math.max(0, wakeup - now), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            for (PendingMessage message : batch) {
+                if (message != WAKEUP) {
+                    appendNow(message, dirty);
+                }
+            }
+            boolean finished = closed && batch.isEmpty();
+            batch.clear();
+            now = System.nanoTime();
+            if (finished && fsyncPolicy != FsyncPolicy.NEVER
+                    || fsyncPolicy == FsyncPolicy.BATCH
+                    || fsyncPolicy == FsyncPolicy.INTERVAL && now - nextFsync >= 0) {
+                force(dirty);
+                nextFsync = now + fsyncIntervalNanos;
+            }
+            if (finished) {
+                return;
+            }
+            if (now - nextRetention >= 0) {
+                applyRetention(dirty);
+                nextRetention = now + RETENTION_CHECK_NANOS;
+            }
+        }
+    }
+
+    /**
+     * Appends a message to the history of its room
+     *
+     * @param message the message
+     * @param dirty   the histories with messages not forced to the disk yet
+     */
+    private void appendNow(PendingMessage message, Set<RoomHistory> dirty) {
+        try {
+            RoomHistory history = room(message.room());
+            if (history.append(message.timestamp(), message.sender(), message.text())) {
+                appended.increment();
+                dirty.add(history);
+            } else {
+                failed.increment();
+                logger.warn("A message of {} is too long for the history of the room {}", message.sender(), message.room());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            failed.increment();
+            logger.error("Failed to append a message to the history of the room {}", message.room(), e);
+        }
+    }
+
+    /**
+     * Forces the appended messages to the disk, a single group commit for all of them
+     *
+     * @param dirty the histories with messages not forced to the disk yet, cleared
+     */
+    private void force(Set<RoomHistory> dirty) {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (RoomHistory history : dirty) {
+            try {
+                history.force();
+            } catch (UncheckedIOException e) {
+                logger.error("Failed to write the history to the disk", e);
+            }
+        }
+        dirty.clear();
+        fsyncs.increment();
+        fsyncTime.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Deletes the expired segments of all the rooms in the history directory, including the rooms nobody
+     * has written to since the start, without opening the rooms that are not open already,
+     * then drops the rooms that have not been used for a while.
+     * A room is kept locked in the map while its segments are deleted, so that nobody opens it meanwhile
+     *
+     * @param dirty the histories with messages not forced to the disk yet, never closed
+     */
+    private void applyRetention(Set<RoomHistory> dirty) {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        List<Path> roomDirectories;
+        try (Stream<Path> files = Files.list(directory)) {
+            roomDirectories = files.filter(Files::isDirectory).toList();
+        } catch (IOException e) {
+            logger.warn("Failed to list the history directory {}", directory, e);
+            return;
+        }
+        for (Path roomDirectory : roomDirectories) {
+            try {
+                rooms.compute(roomDirectory.getFileName().toString(), (name, history) -> {
+                    try {
+                        if (history != null) {
+                            history.applyRetention(cutoff, retentionBytes);
+                        } else {
+                            RoomHistory.applyRetention(roomDirectory, cutoff, retentionBytes);
+                        }
+                        return history;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                logger.warn("Failed to apply the history retention to {}", roomDirectory, e);
+            }
+        }
+        long now = System.nanoTime();
+        rooms.values().removeIf(history -> !dirty.contains(history) && now - history.getLastUsedNanos() > IDLE_ROOM_NANOS);
+    }
+
+    /**
+     * Stops the reader threads, appends the queued messages, forces them to the disk unless the policy is NEVER
+     * and stops the writer thread,
+     * waiting for it for a few seconds at most. The writer is woken up by a marker message rather than interrupted,
+     * as an interrupt would close the file channel it may be using
+     */
+    public void close() {
+        readers.shutdown();
+        closed = true;
+        queue.offer(WAKEUP);
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named set of clients that receive each other's chat messages. Like ClientRegistry,
+ * the fan-out iterates an array snapshot of the members that is rebuilt only after the membership changes.
+ * The usernames of the members are also kept sorted, updated with every join and leave,
+ * so that listing them never sorts the whole room
+ */
+public class ChatRoom {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private static final class Snapshot {
+        private final long version;
+        private final ClientHandler[] members;
+        private volatile ClientHandler[][] shards;
+
+        private Snapshot(long version, ClientHandler[] members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+
+    private final String name;
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final NavigableSet<String> roster = new ConcurrentSkipListSet<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    /**
+     * Creates an empty room
+     *
+     * @param name the name of the room
+     */
+    public ChatRoom(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of the room
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param client a logged in client
+     * @return true if added, false if the client is already a member
+     */
+    boolean add(ClientHandler client) {
+        if (!members.add(client)) {
+            return false;
+        }
+        roster.add(client.getUsername());
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param client a client
+     * @return true if removed, false if the client is not a member
+     */
+    boolean remove(ClientHandler client) {
+        if (!members.remove(client)) {
+            return false;
+        }
+        roster.remove(client.getUsername());
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the number of members
+     */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * @return the usernames of the members in alphabetical order, a live view that must not be modified
+     */
+    public Collection<String> roster() {
+        return Collections.unmodifiableCollection(roster);
+    }
+
+    /**
+     * @return true if the room has no members
+     */
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * Returns the members of the room. The array is shared between the callers and must not be modified
+     *
+     * @return the members at the moment of the call or shortly before it
+     */
+    public ClientHandler[] members() {
+        return currentSnapshot().members;
+    }
+
+    /**
+     * Returns the members split into shards by client id, so that a client is always in the same shard
+     * while the number of shards is the same. The arrays are shared between the callers and must not be modified
+     *
+     * @param count the number of shards
+     * @return the shards of the members at the moment of the call or shortly before it
+     */
+    public ClientHandler[][] shards(int count) {
+        Snapshot current = currentSnapshot();
+        ClientHandler[][] shards = current.shards;
+        if (shards != null && shards.length == count) {
+            return shards;
+        }
+        int[] sizes = new int[count];
+        for (ClientHandler client : current.members) {
+            sizes[Math.floorMod(client.id, count)]++;
+        }
+        shards = new ClientHandler[count][];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new ClientHandler[sizes[i]];
+            sizes[i] = 0;
+        }
+        for (ClientHandler client : current.members) {
+            int shard = Math.floorMod(client.id, count);
+            shards[shard][sizes[shard]++] = client;
+        }
+        current.shards = shards;
+        return shards;
+    }
+
+    /**
+     * @return the snapshot of the current version of the membership, rebuilt if it is out of date
+     */
+    private Snapshot currentSnapshot() {
+        Snapshot current = snapshot;
+        long currentVersion = version.get();
+        if (current.version == currentVersion) {
+            return current;
+        }
+        current = new Snapshot(currentVersion, members.toArray(EMPTY));
+        snapshot = current;
+        return current;
+    }
+}
@@ -1,197 +1,955 @@
 package ru.otus.java.basic.chat.server;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import ru.otus.java.basic.chat.protocol.AuthStatus;
+import ru.otus.java.basic.chat.protocol.BinaryMessage;
+import ru.otus.java.basic.chat.protocol.BinaryProtocol;
+
 import java.io.IOException;
-import java.net.Socket;
-import java.util.Arrays;
-import java.util.stream.Collectors;
-
-public class ClientHandler {
-    private final Server server;
-    private final Socket socket;
-    private final DataInputStream inputStream;
-    private final DataOutputStream outputStream;
-
-    private UserProfile profile;
-    private final int id;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public abstract class ClientHandler {
+    /**
+     * The longest frame accepted from a client that has not logged in, in bytes
+     */
+    protected static final int MAX_FRAME_LENGTH_BEFORE_LOGIN = 4096;
+    private static final Logger logger = Log.getLogger(ClientHandler.class);
+    private static final int MAX_PENDING_AUTH_REQUESTS = 4;
+    private static final long THROTTLE_GAP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_WHO_NAMES = 200;
+
+    protected final Server server;
+    protected final ServerMetrics metrics;
+    protected final OutboundQueue<Frame> outboundQueue;
+    protected final FlushPolicy flushPolicy;
+    private final Lock loginLock = new ReentrantLock();
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    private final Queue<Runnable> authRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingAuthRequests = new AtomicInteger();
+    private final CommandArguments commandArguments = new CommandArguments();
+    private final RateLimiter rateLimiter;
+    private final IdleReaper idleReaper;
+    private final int maxFrameLength;
+    private volatile TimingWheel.Timeout idleTimer;
+    private final long connectedNanos;
+
+    private volatile UserProfile profile;
+    private volatile ChatRoom room;
+    private volatile TokenBucket connectionBucket;
+    private volatile TokenBucket userBucket;
+    private volatile boolean presenceEnabled;
+    private long throttledSince;
+    private long lastThrottled;
+    private boolean throttled;
+    private volatile long lastReceived;
+    private volatile boolean answersPing;
+    private long lastPing;
+    protected volatile ProtocolVersion protocolVersion = ProtocolVersion.V1;
+    private int requestSequence;
+    private volatile int authSequence;
+    private volatile AuthStatus heldAuthResult;
+    protected final int id;
     private static int idCounter = 0;
 
     /**
-     * Creates a thread that will read and write to the socket of the established connection to a client
+     * Creates a handler for an established connection to a client.
+     * Transport-specific subclasses are responsible for reading messages and passing them to handleMessage,
+     * and for writing the messages from the outbound queue to the client, from the time start is called
      *
      * @param server the Server which accepted the connection
-     * @param socket the Socket of the connection
-     * @throws IOException if something went wrong
      */
-    public ClientHandler(Server server, Socket socket) throws IOException {
+    protected ClientHandler(Server server) {
         this.server = server;
-        this.socket = socket;
-        this.inputStream = new DataInputStream(socket.getInputStream());
-        this.outputStream = new DataOutputStream(socket.getOutputStream());
+        this.metrics = server.getMetrics();
+        ServerConfig config = server.getConfig();
+        this.outboundQueue = new OutboundQueue<>(
+                config.getOutboundQueueCapacity(), config.getSlowConsumerPolicy(), config.getSlowConsumerMillis()
+        );
+        this.flushPolicy = server.getFlushPolicy();
+        this.rateLimiter = server.getRateLimiter();
+        this.connectionBucket = rateLimiter.connectionBucket(null, null);
+        this.idleReaper = server.getIdleReaper();
+        this.maxFrameLength = Math.max(config.getMaxFrameBytes(), MAX_FRAME_LENGTH_BEFORE_LOGIN);
+        this.connectedNanos = System.nanoTime();
+        this.lastReceived = connectedNanos;
+        this.lastPing = connectedNanos;
         this.id = idCounter++;
-        startThread();
+        metrics.connectionsOpened.increment();
     }
 
     /**
-     * Starts the thread which receives messages from the inputStream and broadcasts them to the server
-     * Messages that start with "/" are not broadcast and cause special behavior:
-     * /auth login password - tries to log in to the server using a login and a password combination.
-     * /reg username login password - tries to register a specific username for a login and a password combination.
-     * /w name message - sends the message to the specified username.
-     * /kick name - (admin only) kicks username from the server.
-     * /exit - sends /bye to the client and closes the connection.
+     * Starts serving the connection once the handler is constructed: starts the idle timer of the connection.
+     * Subclasses start their transport after calling this method
      */
-    private void startThread() {
-        System.out.println("Client connection established (id:" + id + ").");
-        new Thread(() -> {
-            try {
-                while (true) {
-                    String message = inputStream.readUTF();
-                    System.out.println("RECV(id:" + id + "): " + message);
-                    if (message.startsWith("/")) {
-                        processCommand(message);
+    public void start() {
+        idleTimer = idleReaper.watch(this);
+    }
+
+    /**
+     * Processes a message received from the client in the text protocol and broadcasts it to the room of the client
+     * Messages that start with "/" are not broadcast, they are commands of the server's CommandRegistry,
+     * see BuiltInCommands for the commands every server has
+     *
+     * @param message the received message
+     * @throws TerminateClientException if the client connection is to be terminated
+     */
+    protected void handleMessage(String message) throws TerminateClientException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("RECV(id:{}): {}", id, message);
+        }
+        metrics.messagesIn.increment();
+        requestSequence = 0;
+        long now = System.nanoTime();
+        lastReceived = now;
+        if (!admit(now, ModifiedUtf8.encodedLength(message))) {
+            return;
+        }
+        if (message.startsWith("/")) {
+            processCommand(message);
+        } else {
+            if (!checkLoggedIn()) {
+                return;
+            }
+            chat(message);
+        }
+    }
+
+    /**
+     * Processes a message received from the client in the binary protocol.
+     * The typed messages are dispatched without parsing, replies to the message carry its sequence number
+     *
+     * @param message the received message
+     * @throws TerminateClientException if the client connection is to be terminated
+     */
+    protected void handleBinaryMessage(BinaryMessage message) throws TerminateClientException {
+        if (logger.isTraceEnabled()) {
+            logger.trace("RECV(id:{}): {} #{}", id, message.opcode(), message.sequence());
+        }
+        metrics.messagesIn.increment();
+        requestSequence = message.sequence();
+        String[] fields = message.fields();
+        int size = 0;
+        for (String field : fields) {
+            size += ModifiedUtf8.encodedLength(field);
+        }
+        long now = System.nanoTime();
+        lastReceived = now;
+        if (!admit(now, size)) {
+            return;
+        }
+        switch (message.opcode()) {
+            case CHAT -> {
+                if (fields.length != 1) {
+                    sendServerReply("Incorrect arguments");
+                } else if (checkLoggedIn()) {
+                    chat(fields[0]);
+                }
+            }
+            case AUTH -> {
+                countCommand("/auth");
+                if (fields.length != 2) {
+                    sendServerReply("Incorrect arguments. Use /auth <login> <password>");
+                } else {
+                    authenticate(fields[0], fields[1]);
+                }
+            }
+            case REGISTER -> {
+                countCommand("/reg");
+                if (fields.length != 3) {
+                    sendServerReply("Incorrect arguments. Use /reg <username> <login> <password>");
+                } else {
+                    register(fields[0], fields[1], fields[2]);
+                }
+            }
+            case WHISPER -> {
+                countCommand("/w");
+                if (checkLoggedIn() && checkPermission(Permission.WHISPER, "/w")) {
+                    if (fields.length != 2) {
+                        sendServerReply("Incorrect arguments. Use /w <username> <message>...");
                     } else {
-                        if (!isLoggedIn()) {
-                            sendMessage("SERVER: You are not authenticated. Use /auth <login> <password> or /reg <username> <login> <password>");
-                            continue;
-                        }
-                        server.broadcastMessage("[" + getUsername() + "]: " + message);
+                        whisper(fields[0], fields[1]);
+                    }
+                }
+            }
+            case KICK -> {
+                countCommand("/kick");
+                if (checkLoggedIn() && checkPermission(Permission.KICK, "/kick")) {
+                    if (fields.length != 1) {
+                        sendServerReply("Incorrect arguments. Use /kick <username>");
+                    } else {
+                        kick(fields[0]);
                     }
                 }
-            } catch (IOException e) {
-                System.out.println("Connection with the client id:" + id + " has been lost");
-            } catch (TerminateClientException e) {
-            } finally {
-                disconnect();
             }
-        }).start();
+            case EXIT -> {
+                countCommand("/exit");
+                if (checkLoggedIn() && checkPermission(Permission.EXIT, "/exit")) {
+                    exit();
+                }
+            }
+            case PONG -> {
+                countCommand("/pong");
+                pong();
+            }
+            case COMMAND -> {
+                if (fields.length != 1 || !fields[0].startsWith("/")) {
+                    sendServerReply("Unrecognized command");
+                } else {
+                    processCommand(fields[0]);
+                }
+            }
+            default -> sendServerReply("Unexpected message " + message.opcode());
+        }
+    }
+
+    /**
+     * Takes a message from the buckets of the connection and of the user before it is processed.
+     * A throttled message is dropped; the client is told to slow down on the first one,
+     * and disconnected if it keeps being throttled, with less than a second between the throttled messages,
+     * for longer than the rate limiter allows
+     *
+     * @param now  the System.nanoTime the message was received
+     * @param size the size of the message in bytes
+     * @return true if the message is to be processed
+     * @throws TerminateClientException if the client is disconnected for flooding
+     */
+    private boolean admit(long now, int size) throws TerminateClientException {
+        TokenBucket connection = connectionBucket;
+        TokenBucket user = userBucket;
+        if ((connection == null || connection.tryAcquire(now, size)) && (user == null || user.tryAcquire(now, size))) {
+            return true;
+        }
+        metrics.messagesThrottled.increment();
+        if (!throttled || now - lastThrottled > THROTTLE_GAP_NANOS) {
+            throttled = true;
+            throttledSince = now;
+            sendServerReply("You are sending messages too fast, the message is dropped. Slow down");
+        } else if (rateLimiter.getDisconnectNanos() > 0 && now - throttledSince >= rateLimiter.getDisconnectNanos()) {
+            metrics.disconnectsFlood.increment();
+            logger.warn("Client id:{} has been flooding for too long, disconnecting", id);
+            sendServerReply("You have been disconnected for flooding");
+            sendFrame(Frame.BYE);
+            throw new TerminateClientException();
+        }
+        lastThrottled = now;
+        return false;
+    }
+
+    /**
+     * Records that the client answers /ping, so that it is pinged and disconnected when idle from now on
+     */
+    void pong() {
+        answersPing = true;
+    }
+
+    /**
+     * Checks the connection when its timer on the idle reaper fires. Aborts the connection if it has not logged in
+     * within the login timeout. Pings the client if it has sent nothing for the heartbeat interval, again every
+     * interval while it stays quiet, and aborts the connection if the client has sent nothing for the idle timeout,
+     * as its peer is most likely gone. Only the clients of the binary protocol and the clients that have sent /pong
+     * are pinged: a text client from before the heartbeats would show the pings and never answer them.
+     * A binary client is held to the idle timeout once it has left a ping unanswered, a text client that is not
+     * pinged to the longer legacy idle timeout. Runs on the thread of the idle reaper
+     *
+     * @param now the current System.nanoTime
+     * @return the time until the next check in nanoseconds, negative to stop watching the connection
+     */
+    long checkIdle(long now) {
+        if (disconnected.get() || outboundQueue.isClosed()) {
+            return -1;
+        }
+        long next = idleReaper.getCheckNanos();
+        long loginTimeout = idleReaper.getLoginTimeoutNanos();
+        if (loginTimeout > 0 && !isLoggedIn()) {
+            if (now - connectedNanos >= loginTimeout) {
+                metrics.disconnectsIdle.increment();
+                logger.info("Client id:{} has not logged in for {} ms, disconnecting", id,
+                        TimeUnit.NANOSECONDS.toMillis(now - connectedNanos));
+                abortConnection();
+                return -1;
+            }
+            next = Math.min(next, connectedNanos + loginTimeout - now);
+        }
+        long received = lastReceived;
+        boolean answering = answersPing;
+        long heartbeat = idleReaper.getHeartbeatNanos();
+        boolean pinged = heartbeat > 0 && (answering || protocolVersion == ProtocolVersion.V2);
+        long idleTimeout = getIdleTimeoutNanos(answering, pinged, received);
+        if (idleTimeout > 0 && now - received >= idleTimeout) {
+            metrics.disconnectsIdle.increment();
+            logger.info("Client id:{} has sent nothing for {} ms, disconnecting", id,
+                    TimeUnit.NANOSECONDS.toMillis(now - received));
+            abortConnection();
+            return -1;
+        }
+        if (pinged) {
+            long pingAt = (lastPing - received > 0 ? lastPing : received) + heartbeat;
+            if (pingAt - now <= 0) {
+                lastPing = now;
+                pingAt = now + heartbeat;
+                metrics.heartbeats.increment();
+                sendFrame(Frame.PING);
+                idleTimeout = getIdleTimeoutNanos(answering, true, received);
+            }
+            next = Math.min(next, pingAt - now);
+        }
+        if (idleTimeout > 0) {
+            next = Math.min(next, received + idleTimeout - now);
+        }
+        return next;
     }
 
     /**
-     * Processes a message containing a command
+     * Must be called by the thread of the idle reaper
+     *
+     * @param answering whether the client has answered a ping
+     * @param pinged    whether the client is pinged
+     * @param received  the System.nanoTime the client last sent a message
+     * @return the idle timeout the client is held to in nanoseconds, 0 if none applies yet
+     */
+    private long getIdleTimeoutNanos(boolean answering, boolean pinged, long received) {
+        if (answering || pinged && lastPing - received > 0) {
+            return idleReaper.getIdleTimeoutNanos();
+        }
+        return pinged ? 0 : idleReaper.getLegacyIdleTimeoutNanos();
+    }
+
+    /**
+     * Broadcasts a chat message of the client to its room, noop if the client has just left the chat
+     *
+     * @param text the text of the message
+     */
+    private void chat(String text) {
+        ChatRoom current = room;
+        if (current != null) {
+            metrics.chatMessages.increment();
+            server.broadcastChat(current, getUsername(), text);
+        }
+    }
+
+    /**
+     * Processes a message containing a command. The command is looked up by the region of the message
+     * before the first space, and its arguments are scanned in place
+     *
      * @param message the message to process
      * @throws TerminateClientException if the client connection is to be terminated
      */
     private void processCommand(String message) throws TerminateClientException {
-        String[] arguments = message.split(" ");
-        String command = arguments[0];
-        if (command.equals("/auth")) {
-            if (arguments.length != 3) {
-                sendMessage("SERVER: Incorrect arguments. Use /auth <login> <password>");
-                return;
+        int nameEnd = message.indexOf(' ');
+        if (nameEnd < 0) {
+            nameEnd = message.length();
+        }
+        CommandRegistry.Entry command = server.getCommands().find(message, 0, nameEnd);
+        if (command == null) {
+            metrics.unknownCommands.increment();
+            if (checkLoggedIn()) {
+                sendServerReply("Unrecognized command");
             }
-            server.getAuthenticationProvider().authenticate(this, arguments[1], arguments[2]);
             return;
         }
-        if (command.equals("/reg")) {
-            if (arguments.length != 4) {
-                sendMessage("SERVER: Incorrect arguments. Use /reg <username> <login> <password>");
-                return;
-            }
-            server.getAuthenticationProvider().register(this, arguments[2], arguments[3], arguments[1]);
+        command.calls().increment();
+        if (command.permission() != null && (!checkLoggedIn() || !checkPermission(command.permission(), command.name()))) {
             return;
         }
+        if (!command.command().execute(this, commandArguments.reset(message, nameEnd))) {
+            sendServerReply("Incorrect arguments. Use " + command.usage());
+        }
+    }
+
+    /**
+     * Counts a command received as a typed message of the binary protocol
+     *
+     * @param name the name of the command
+     */
+    private void countCommand(String name) {
+        CommandRegistry.Entry command = server.getCommands().find(name, 0, name.length());
+        if (command != null) {
+            command.calls().increment();
+        }
+    }
+
+    /**
+     * Sends a reply if the client is not logged in
+     *
+     * @return true if the client is logged in
+     */
+    private boolean checkLoggedIn() {
         if (!isLoggedIn()) {
-            sendMessage("SERVER: You are not authenticated. Use /auth <login> <password> or /reg <username> <login> <password>");
-            return;
+            sendServerReply("You are not authenticated. Use /auth <login> <password> or /reg <username> <login> <password>");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a reply if the role of the client does not allow a command
+     *
+     * @param permission the permission required by the command
+     * @param command    the name of the command
+     * @return true if the command is allowed
+     */
+    private boolean checkPermission(Permission permission, String command) {
+        if (!profile.getRole().isAllowed(permission)) {
+            metrics.forbiddenCommands.increment();
+            sendServerReply("You don't have permission to use the " + command + " command");
+            return false;
         }
-        if (!profile.getRole().isCommandAllowed(command)) {
-            sendMessage("SERVER: You don't have permission to use the " + command + " command");
+        return true;
+    }
+
+    /**
+     * Switches the connection to the requested protocol version if the server supports it.
+     * The messages received after the request are decoded in the new protocol right away,
+     * the messages sent are encoded in the new protocol after the confirmation
+     *
+     * @param version the requested version
+     */
+    void switchProtocol(String version) {
+        if (!version.equals(Integer.toString(BinaryProtocol.VERSION))) {
+            sendServerReply("Unsupported protocol version. Use /proto " + BinaryProtocol.VERSION);
             return;
         }
-        if (command.equals("/w")) {
-            if (arguments.length < 3) {
-                sendMessage("SERVER: Incorrect arguments. Use /w <username> <message>...");
+        sendFrame(Frame.protocolSwitch(ProtocolVersion.V2));
+        protocolVersion = ProtocolVersion.V2;
+    }
+
+    /**
+     * Submits an authentication request
+     *
+     * @param login    the login
+     * @param password the password
+     */
+    void authenticate(String login, String password) {
+        submitAuthentication(() -> server.getAuthenticationProvider().authenticate(this, login, password));
+    }
+
+    /**
+     * Submits a registration request
+     *
+     * @param username the username
+     * @param login    the login
+     * @param password the password
+     */
+    void register(String username, String login, String password) {
+        submitAuthentication(() -> server.getAuthenticationProvider().register(this, login, password, username));
+    }
+
+    /**
+     * Submits a request to log in again with a resume token, which takes over the previous connection
+     * of the user on this node if the server still has it. The token is checked by its signature,
+     * the authentication provider is not involved. The client is told the session is resumed only once it is
+     * logged in, a user still logged in on another node of the cluster can't be resumed
+     *
+     * @param token the resume token
+     */
+    void resume(String token) {
+        submitAuthentication(() -> {
+            UserProfile resumed = server.getResumeTokens().verify(token);
+            if (resumed == null) {
+                sendAuthResult(AuthStatus.INVALID_TOKEN);
                 return;
             }
-            try {
-                String recipient = arguments[1];
-                String whisper = Arrays.stream(arguments).skip(2).collect(Collectors.joining(" "));
-                sendMessage("(whispered to " + recipient + "): " + whisper);
-                server.whisperMessage(recipient, "(whisper from " + getUsername() + "): " + whisper);
-            } catch (UsernameNotFoundException e) {
-                sendMessage("SERVER: User not found");
+            server.replaceSession(resumed.getUsername(), this);
+            login(resumed, AuthStatus.RESUMED);
+        });
+    }
+
+    /**
+     * Sends a private message to another user and its copy back to the client.
+     * The reply about a message to an offline user comes once the message is stored
+     *
+     * @param recipient the username of the recipient
+     * @param text      the text of the message
+     */
+    void whisper(String recipient, String text) {
+        sendFrame(Frame.whisperEcho(recipient, text));
+        if (server.whisperMessage(recipient, getUsername(), text)) {
+            return;
+        }
+        int sequence = requestSequence;
+        try {
+            server.storeWhisper(recipient, getUsername(), text,
+                    result -> sendFrame(Frame.server(offlineReply(recipient, result), sequence)));
+        } catch (UsernameNotFoundException e) {
+            sendServerReply("User not found");
+        }
+    }
+
+    /**
+     * @param recipient the username of the recipient of a private message
+     * @param result    the outcome of storing the message for the offline recipient
+     * @return the reply to the sender
+     */
+    private static String offlineReply(String recipient, OfflineMessageStore.Result result) {
+        return switch (result) {
+            case STORED -> recipient + " is offline, the message will be delivered on login";
+            case UNKNOWN_RECIPIENT -> "User not found";
+            case RECIPIENT_FULL -> recipient + " is offline and has too many messages waiting, the message is not stored";
+            case FAILED -> "Failed to store the message for " + recipient;
+        };
+    }
+
+    /**
+     * Kicks a user from the server
+     *
+     * @param username the username to kick
+     */
+    void kick(String username) {
+        try {
+            if (server.kick(username, getUsername()) != room) {
+                sendServerReply(username + " has been kicked from the chat");
             }
+        } catch (UsernameNotFoundException e) {
+            sendServerReply("User not found");
+        }
+    }
+
+    /**
+     * Moves the client to another room, creating the room if it does not exist
+     *
+     * @param name the name of the room
+     */
+    void joinRoom(String name) {
+        if (!RoomRegistry.isValidName(name)) {
+            sendServerReply("Invalid room name, use up to " + RoomRegistry.MAX_NAME_LENGTH
+                    + " letters, digits, '-' and '_'");
             return;
         }
-        if (command.equals("/kick")) {
-            if (arguments.length != 2) {
-                sendMessage("SERVER: Incorrect arguments. Use /kick <username>");
+        loginLock.lock();
+        try {
+            if (disconnected.get() || room == null) {
+                return;
+            }
+            if (room.getName().equals(name)) {
+                sendServerReply("You are already in the room " + name);
                 return;
             }
+            room = server.changeRoom(this, room, name);
+            if (presenceEnabled) {
+                sendRoster(room);
+            }
+        } finally {
+            loginLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the client back to the default room
+     */
+    void leaveRoom() {
+        ChatRoom current = room;
+        if (current != null && current.getName().equals(RoomRegistry.DEFAULT_ROOM)) {
+            sendServerReply("You can't leave the default room " + RoomRegistry.DEFAULT_ROOM);
+            return;
+        }
+        joinRoom(RoomRegistry.DEFAULT_ROOM);
+    }
+
+    /**
+     * Replies with the rooms and the number of their members
+     */
+    void listRooms() {
+        StringBuilder reply = new StringBuilder("Rooms:");
+        for (ChatRoom chatRoom : server.getRooms().list()) {
+            reply.append("\n").append(chatRoom.getName()).append(" (").append(chatRoom.size()).append(')');
+            if (chatRoom == room) {
+                reply.append(" *");
+            }
+        }
+        sendServerReply(reply.toString());
+    }
+
+    /**
+     * Replies with the users in the client's room, read from its roster in alphabetical order
+     */
+    void who() {
+        ChatRoom current = room;
+        if (current == null) {
+            return;
+        }
+        StringBuilder reply = new StringBuilder("Users in the room ").append(current.getName())
+                .append(" (").append(current.size()).append("):");
+        int listed = 0;
+        for (String username : current.roster()) {
+            if (listed == MAX_WHO_NAMES) {
+                reply.append(" and ").append(current.size() - listed).append(" more");
+                break;
+            }
+            reply.append(listed == 0 ? " " : ", ").append(username);
+            listed++;
+        }
+        sendServerReply(reply.toString());
+    }
+
+    /**
+     * Turns the presence updates on or off. When turned on, the client gets all the members of its room
+     * first, then the users coming and going, and the same again whenever it moves to another room
+     *
+     * @param enabled true to turn the updates on
+     */
+    void setPresenceEnabled(boolean enabled) {
+        loginLock.lock();
+        try {
+            presenceEnabled = enabled;
+            if (enabled && room != null) {
+                sendRoster(room);
+            }
+        } finally {
+            loginLock.unlock();
+        }
+        sendServerReply("Presence updates are " + (enabled ? "on" : "off"));
+    }
+
+    /**
+     * Sends all the members of a room as a presence snapshot
+     *
+     * @param chatRoom the room
+     */
+    private void sendRoster(ChatRoom chatRoom) {
+        List<String> entries = new ArrayList<>(chatRoom.size());
+        for (String username : chatRoom.roster()) {
+            entries.add("+" + username);
+        }
+        for (Frame frame : Frame.presence(chatRoom.getName(), true, entries)) {
+            sendFrame(frame);
+        }
+    }
+
+    /**
+     * @return true if the client has turned on the presence updates
+     */
+    public boolean isPresenceEnabled() {
+        return presenceEnabled;
+    }
+
+    /**
+     * Sends the last messages of the client's room, read from the history on a reader thread as they are sent
+     *
+     * @param limit the maximum number of messages
+     */
+    void history(int limit) {
+        ChatHistory history = server.getHistory();
+        if (history == null) {
+            sendServerReply("The history is disabled on this server");
+            return;
+        }
+        ChatRoom current = room;
+        if (current != null) {
+            sendHistory(history, current.getName(), limit, false);
+        }
+    }
+
+    /**
+     * Sends the last messages of a room the client has just joined, nothing if the room has no history.
+     * The messages are read on a reader thread, so the messages sent to the room meanwhile may come first
+     *
+     * @param roomName the name of the room
+     * @param limit    the maximum number of messages
+     */
+    void replayHistory(String roomName, int limit) {
+        ChatHistory history = server.getHistory();
+        if (history != null) {
+            sendHistory(history, roomName, limit, true);
+        }
+    }
+
+    /**
+     * @param history  the history of the rooms
+     * @param roomName the name of the room
+     * @param limit    the maximum number of messages
+     * @param replay   true to send nothing but the messages, false to also report an empty history and the errors
+     */
+    private void sendHistory(ChatHistory history, String roomName, int limit, boolean replay) {
+        boolean submitted = history.submitRead(() -> {
+            AtomicBoolean announced = new AtomicBoolean();
             try {
-                server.kick(arguments[1], getUsername());
-            } catch (UsernameNotFoundException e) {
-                sendMessage("SERVER: User not found");
+                int found = history.readLast(roomName, limit, record -> {
+                    if (announced.compareAndSet(false, true)) {
+                        sendServerReply("History of the room " + roomName + ":");
+                    }
+                    sendFrame(Frame.history(record));
+                });
+                if (found == 0 && !replay) {
+                    sendServerReply("No messages in the history of the room " + roomName);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to read the history of the room {}", roomName, e);
+                if (!replay) {
+                    sendServerReply("Failed to read the history");
+                }
             }
+        });
+        if (!submitted && !replay) {
+            sendServerReply("Server busy, try again later");
+        }
+    }
+
+    /**
+     * Replies with the metrics of the server, a line per metric
+     */
+    void stats() {
+        sendServerReply("Server metrics:\n" + String.join("\n", server.getMetrics().getRegistry().report()));
+    }
+
+    /**
+     * Sends /bye to the client and revokes the resume tokens of the user, as the user has left on purpose
+     *
+     * @throws TerminateClientException always, to close the connection
+     */
+    void exit() throws TerminateClientException {
+        metrics.disconnectsExit.increment();
+        UserProfile current = profile;
+        if (current != null) {
+            server.revokeResumeTokens(current.getUsername());
+        }
+        sendFrame(Frame.BYE);
+        throw new TerminateClientException();
+    }
+
+    /**
+     * Passes an authentication or registration request to the server's authentication executor.
+     * The client gets its reply and is logged in by the executor thread.
+     * The requests of a client run one at a time in the order received, a few of them may be pending,
+     * and the server rejects the requests when overloaded.
+     * Must be called by the thread handling the messages of the client
+     *
+     * @param request the request
+     */
+    private void submitAuthentication(Runnable request) {
+        if (pendingAuthRequests.get() >= MAX_PENDING_AUTH_REQUESTS) {
+            metrics.authRejected.increment();
+            sendServerReply("Too many authentication requests, wait for the replies");
             return;
         }
-        if (command.equals("/exit")) {
-            sendMessage("/bye");
-            throw new TerminateClientException();
+        int sequence = requestSequence;
+        authRequests.add(() -> {
+            authSequence = sequence;
+            request.run();
+        });
+        if (pendingAuthRequests.incrementAndGet() == 1 && !server.submitAuthentication(this::runAuthRequests)) {
+            authRequests.clear();
+            pendingAuthRequests.set(0);
+            metrics.authRejected.increment();
+            sendServerReply("Server busy, try again later");
         }
-        sendMessage("SERVER: Unrecognized command");
     }
 
     /**
-     * Logs in under a specific user profile. Sends an error message if the username is already taken.
+     * Runs the pending authentication requests of the client until there are none left
+     */
+    private void runAuthRequests() {
+        do {
+            long start = System.nanoTime();
+            try {
+                authRequests.remove().run();
+            } catch (RuntimeException e) {
+                metrics.authFailures.increment();
+                logger.error("Authentication request of the client id:{} failed", id, e);
+            }
+            AuthStatus held = heldAuthResult;
+            if (held != null) {
+                heldAuthResult = null;
+                replyAuthResult(held);
+            }
+            metrics.authTime.record(System.nanoTime() - start);
+        } while (pendingAuthRequests.decrementAndGet() > 0);
+    }
+
+    /**
+     * Logs in under a specific user profile, switching to the rate limits of its role,
+     * sends the success held by sendAuthResult, a new resume token to a client of the binary protocol,
+     * as a text client would show it, and the private messages received while the user was offline.
+     * Sends the held success and an error message if the username is already taken.
+     * Noop if the client has disconnected while being authenticated
+     *
+     * @param profile a user profile to log in
+     * @return true if login successful, false if the username is already taken or the client has disconnected
+     */
+    public boolean login(UserProfile profile) {
+        return login(profile, null);
+    }
+
+    /**
+     * Logs in under a specific user profile like login(UserProfile), replying to the request with a result
+     * once the client is logged in, or with ALREADY_LOGGED_IN if the username is taken
      *
      * @param profile a user profile to log in
-     * @return true if login successful, false if the username is already taken
+     * @param result  the result to reply with on a success, null to reply with the success held by sendAuthResult
+     * @return true if login successful, false if the username is already taken or the client has disconnected
      */
-    public synchronized boolean login(UserProfile profile) {
-        server.unsubscribe(this);
-        this.profile = profile;
+    boolean login(UserProfile profile, AuthStatus result) {
+        AuthStatus held = heldAuthResult;
+        heldAuthResult = null;
+        loginLock.lock();
         try {
-            server.subscribe(this);
-        } catch (UsernameAlreadyTakenException e) {
-            this.profile = null;
-            sendMessage("SERVER: User has already logged in");
-            return false;
+            if (disconnected.get()) {
+                return false;
+            }
+            server.unsubscribe(this);
+            room = null;
+            userBucket = null;
+            this.profile = profile;
+            try {
+                room = server.subscribe(this);
+            } catch (UsernameAlreadyTakenException e) {
+                this.profile = null;
+                if (result == null) {
+                    if (held != null) {
+                        replyAuthResult(held);
+                    }
+                    sendFrame(Frame.server("User has already logged in", authSequence));
+                } else {
+                    replyAuthResult(AuthStatus.ALREADY_LOGGED_IN);
+                }
+                return false;
+            }
+            if (result != null || held != null) {
+                replyAuthResult(result != null ? result : held);
+            }
+            connectionBucket = rateLimiter.connectionBucket(profile.getRole(), connectionBucket);
+            userBucket = rateLimiter.userBucket(profile.getUsername(), profile.getRole());
+            if (protocolVersion == ProtocolVersion.V2) {
+                String token = server.getResumeTokens().issue(profile);
+                if (token != null) {
+                    sendFrame(Frame.resumeToken(token));
+                }
+            }
+            if (presenceEnabled) {
+                sendRoster(room);
+            }
+            server.deliverOfflineMessages(this);
+            return true;
+        } finally {
+            loginLock.unlock();
         }
-        return true;
     }
 
     /**
-     * Sends a message to the client
+     * Replies to the request being processed with a server message
      *
-     * @param message a message to send
+     * @param text the text of the reply
      */
-    public void sendMessage(String message) {
-        try {
-            System.out.println("SEND(id:" + id + "): " + message);
-            outputStream.writeUTF(message);
-        } catch (IOException e) {
-            System.out.println("Failed to send the message");
-            e.printStackTrace();
+    void sendServerReply(String text) {
+        sendFrame(Frame.server(text, requestSequence));
+    }
+
+    /**
+     * Replies to the authentication or registration request being run. A success is held back until login
+     * has logged the client in, so that the client never sends a message longer than the limit before login
+     * in answer to it. Must be called by the authentication thread of the client
+     *
+     * @param status the result of the request
+     */
+    public void sendAuthResult(AuthStatus status) {
+        if ((status == AuthStatus.AUTHENTICATED || status == AuthStatus.REGISTERED) && !isLoggedIn()) {
+            heldAuthResult = status;
+            return;
         }
+        replyAuthResult(status);
+    }
+
+    /**
+     * Sends the reply to the authentication or registration request being run
+     *
+     * @param status the result of the request
+     */
+    private void replyAuthResult(AuthStatus status) {
+        metrics.authResult(status).increment();
+        sendFrame(Frame.authResult(status, authSequence));
     }
 
     /**
-     * Unsubscribes, closes the streams and the socket
+     * Queues a message to be sent to the client without waiting for it to be written.
+     * Aborts the connection if the client does not keep up and the slow consumer policy is DISCONNECT
+     *
+     * @param frame a message to send
+     */
+    public void sendFrame(Frame frame) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("SEND(id:{}): {}", id, frame.getMessage());
+        }
+        if (!outboundQueue.offer(frame)) {
+            metrics.disconnectsSlowConsumer.increment();
+            logger.warn("Client id:{} is not keeping up with outgoing messages, disconnecting", id);
+            abortConnection();
+            return;
+        }
+        metrics.messagesOut.increment();
+        onMessageQueued();
+    }
+
+    /**
+     * Called after a message is added to the outbound queue
+     */
+    protected void onMessageQueued() {
+    }
+
+    /**
+     * Unsubscribes and closes the underlying connection, noop if already disconnected.
+     * Unsubscribing holds the login lock, so a login completing concurrently either happens before
+     * and is undone, or sees the client disconnected
      */
     public void disconnect() {
-        System.out.println("Closing client connection id:" + id);
-        server.unsubscribe(this);
-        try {
-            if (outputStream != null) outputStream.close();
-        } catch (IOException e) {
-            System.out.println("Error while disconnecting");
-            e.printStackTrace();
+        if (!disconnected.compareAndSet(false, true)) {
+            return;
         }
-        try {
-            if (inputStream != null) inputStream.close();
-        } catch (IOException e) {
-            System.out.println("Error while disconnecting");
-            e.printStackTrace();
+        logger.debug("Closing client connection id:{}", id);
+        metrics.connectionsClosed.increment();
+        if (idleTimer != null) {
+            idleTimer.cancel();
         }
+        loginLock.lock();
         try {
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            System.out.println("Error while disconnecting");
-            e.printStackTrace();
+            server.unsubscribe(this);
+            room = null;
+        } finally {
+            loginLock.unlock();
+        }
+        closeConnection();
+    }
+
+    /**
+     * Reports a connection closed by the client or broken by the network.
+     * Counted as lost unless the server had closed the connection first
+     */
+    protected void connectionLost() {
+        if (!disconnected.get() && !outboundQueue.isClosed()) {
+            metrics.disconnectsLost.increment();
         }
+        logger.debug("Connection with the client id:{} has been lost", id);
+    }
+
+    /**
+     * Closes the transport of the connection after the messages from the outbound queue are written
+     */
+    protected abstract void closeConnection();
+
+    /**
+     * Closes the transport of the connection immediately, discarding the pending messages.
+     * May be called from any thread, including while the server is iterating its clients,
+     * so the handler must disconnect itself later rather than from within this call
+     */
+    protected abstract void abortConnection();
+
+    /**
+     * @return the number of messages waiting to be written to the client
+     */
+    public int getOutboundQueueDepth() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * @return the number of messages to the client discarded by the slow consumer policy
+     */
+    public long getDroppedMessageCount() {
+        return outboundQueue.getDroppedCount();
     }
 
     /**
@@ -201,10 +959,29 @@ public class ClientHandler {
         return profile == null ? null : profile.getUsername();
     }
 
+    /**
+     * @return the room the client is in, null if the client is not logged in
+     */
+    public ChatRoom getRoom() {
+        return room;
+    }
+
     /**
      * @return true if the client is logged in under some username, false if the client is not logged in
      */
     private boolean isLoggedIn() {
         return profile != null;
     }
+
+    /**
+     * A client that has not logged in yet only needs short commands, so it may not make the server
+     * allocate buffers for long frames, even with a login request queued: the limit is raised to the configured
+     * maximum once the login has completed. The clients are expected to wait for the reply to the login
+     * before sending long messages
+     *
+     * @return the longest frame the client may send now in bytes
+     */
+    protected int getMaxFrameLength() {
+        return isLoggedIn() ? maxFrameLength : MAX_FRAME_LENGTH_BEFORE_LOGIN;
+    }
 }
@@ -0,0 +1,83 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logged in clients by username. Lookups and updates don't block each other,
+ * broadcasts iterate an array snapshot that is rebuilt only after the set of clients changes
+ */
+public class ClientRegistry {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private record Snapshot(long version, ClientHandler[] clients) {
+    }
+
+    private final ConcurrentMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    /**
+     * Adds a client under its username unless the username is already taken
+     *
+     * @param clientHandler a logged in client
+     * @return true if added, false if the username is taken
+     */
+    public boolean register(ClientHandler clientHandler) {
+        if (clients.putIfAbsent(clientHandler.getUsername(), clientHandler) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes a client if it is registered under its username
+     *
+     * @param clientHandler a client
+     * @return true if removed, false if the client is not registered
+     */
+    public boolean unregister(ClientHandler clientHandler) {
+        String username = clientHandler.getUsername();
+        if (username == null || !clients.remove(username, clientHandler)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param username a username
+     * @return the client logged in under the username, null if there is none
+     */
+    public ClientHandler get(String username) {
+        return clients.get(username);
+    }
+
+    /**
+     * @return the number of registered clients
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Returns the registered clients. The array is shared between the callers and must not be modified.
+     * The map is copied by username first: a traversal of a concurrent map that is resized meanwhile
+     * may meet a client twice if the client is unregistered and registered again
+     *
+     * @return the clients registered at the moment of the call or shortly before it, each one once
+     */
+    public ClientHandler[] snapshot() {
+        Snapshot current = snapshot;
+        long currentVersion = version.get();
+        if (current.version() == currentVersion) {
+            return current.clients();
+        }
+        current = new Snapshot(currentVersion, new HashMap<>(clients).values().toArray(EMPTY));
+        snapshot = current;
+        return current.clients();
+    }
+}
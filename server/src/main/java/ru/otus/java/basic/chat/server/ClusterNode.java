@@ -0,0 +1,499 @@
+package ru.otus.java.basic.chat.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server in a cluster of servers linked into a full mesh over a dedicated TCP port. Every node sends
+ * its relay messages through a PeerLink to every other node and reads theirs from the connections they open.
+ * Room messages are published to all nodes, whispers and kicks are sent to the node of the user.
+ * The revocations of the resume tokens are published too, as the nodes sharing a secret accept each other's tokens.
+ * Every node keeps a replicated directory of the users of all the nodes. Before a user logs in, the node claims
+ * the username from the coordinator of the username, a node picked by its hash, so the concurrent claims
+ * of a username are decided in one place; the winner then announces the user to all the nodes.
+ * A node decides alone while the coordinator is disconnected, and the duplicates this may create are resolved
+ * when the nodes reconnect, in favour of the node with the smaller id: the other node logs its user out.
+ * The nodes trust each other's messages, so a connection is only accepted from a node that proves it knows
+ * the secret of the cluster by signing a random challenge. The traffic is not encrypted: the cluster port must
+ * only be reachable by the nodes, bound to a private network or firewalled
+ */
+public class ClusterNode {
+    private static final Logger logger = Log.getLogger(ClusterNode.class);
+    private static final int BUFFER_SIZE = 65536;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MIN_SECRET_LENGTH = 16;
+    private static final int CHALLENGE_LENGTH = 32;
+    private static final int HANDSHAKE_MAX_LENGTH = 1024;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    /**
+     * A claim of a username sent to its coordinator, waiting for the answer
+     *
+     * @param coordinator the id of the coordinator
+     * @param result      completed with true if the claim is accepted
+     */
+    private record PendingClaim(String coordinator, CompletableFuture<Boolean> result) {
+    }
+
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    private final Mac prototype;
+    private final SecureRandom random = new SecureRandom();
+    private final long claimTimeoutMillis;
+    private final Map<String, PeerLink> links;
+    private final String[] nodeIds;
+    private final ConcurrentMap<String, String> owners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, PendingClaim> claims = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final AtomicLong nextClaimId = new AtomicLong();
+    private final Counter received;
+    private final Counter claimCount;
+    private final Counter claimsRejected;
+    private final Counter claimTimeouts;
+    private final Counter duplicatesEvicted;
+    private Server server;
+    private volatile ServerSocket listener;
+
+    /**
+     * @param nodeId             the id of this node, unique in the cluster
+     * @param bindAddress        the address the port is bound to, null for all the interfaces
+     * @param port               the port the other nodes connect to
+     * @param secret             the key the nodes authenticate each other with, the same on all the nodes
+     * @param peers              the other nodes
+     * @param claimTimeoutMillis the longest wait for the answer to a username claim
+     * @param queueCapacity      the maximum number of chat messages waiting to be sent to a node
+     * @param metrics            the registry of the cluster metrics
+     * @throws IllegalArgumentException if the secret is missing or too short
+     */
+    public ClusterNode(String nodeId, String bindAddress, int port, String secret, List<ClusterPeer> peers,
+                       long claimTimeoutMillis, int queueCapacity, Metrics metrics) {
+        if (claimTimeoutMillis < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Cluster claim timeout and queue capacity must be positive");
+        }
+        byte[] key = secret == null ? new byte[0] : secret.getBytes(StandardCharsets.UTF_8);
+        if (key.length < MIN_SECRET_LENGTH) {
+            throw new IllegalArgumentException("Cluster secret must be at least " + MIN_SECRET_LENGTH + " bytes");
+        }
+        try {
+            this.prototype = Mac.getInstance(ALGORITHM);
+            this.prototype.init(new SecretKeySpec(key, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        Map<String, PeerLink> peerLinks = new LinkedHashMap<>();
+        for (ClusterPeer peer : peers) {
+            if (peer.nodeId().equals(nodeId) || peerLinks.containsKey(peer.nodeId())) {
+                throw new IllegalArgumentException("Duplicate cluster node id " + peer.nodeId());
+            }
+            peerLinks.put(peer.nodeId(), new PeerLink(peer, queueCapacity, metrics));
+        }
+        this.links = Collections.unmodifiableMap(peerLinks);
+        List<String> ids = new ArrayList<>(peerLinks.keySet());
+        ids.add(nodeId);
+        Collections.sort(ids);
+        this.nodeIds = ids.toArray(new String[0]);
+        this.received = metrics.counter("cluster.received");
+        this.claimCount = metrics.counter("cluster.claims");
+        this.claimsRejected = metrics.counter("cluster.claims_rejected");
+        this.claimTimeouts = metrics.counter("cluster.claim_timeouts");
+        this.duplicatesEvicted = metrics.counter("cluster.duplicates_evicted");
+        metrics.gauge("cluster.peers", () -> links.values().stream().filter(PeerLink::isConnected).count());
+        metrics.gauge("cluster.directory", owners::size);
+    }
+
+    /**
+     * Starts listening to the other nodes and connecting to them
+     *
+     * @param server the server of this node
+     * @throws IOException if the cluster port can't be bound
+     */
+    public void start(Server server) throws IOException {
+        this.server = server;
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            serverSocket.bind(bindAddress == null ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        listener = serverSocket;
+        logger.info("Cluster node {} is listening on {}, peers: {}", nodeId, serverSocket.getLocalSocketAddress(),
+                links.keySet());
+        Thread.ofPlatform().name("cluster-listener").daemon().start(this::accept);
+        for (PeerLink link : links.values()) {
+            link.start(this);
+        }
+    }
+
+    /**
+     * Accepts the connections of the other nodes until the node is stopped
+     */
+    private void accept() {
+        ServerSocket serverSocket = listener;
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofPlatform().name("cluster-in").daemon().start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.error("Failed to accept a cluster connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Challenges another node to prove it knows the secret of the cluster, then reads its messages
+     * until the connection is closed. The users of the node are forgotten when its connection is replaced or lost
+     *
+     * @param socket the connection opened by the node
+     */
+    private void serve(Socket socket) {
+        String from = null;
+        try (socket) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            byte[] bytes = new byte[CHALLENGE_LENGTH];
+            random.nextBytes(bytes);
+            String challenge = ENCODER.encodeToString(bytes);
+            socket.setSoTimeout(PeerLink.HANDSHAKE_TIMEOUT_MILLIS);
+            socket.getOutputStream().write(RelayMessage.of(RelayMessage.Type.CHALLENGE, nodeId, challenge).encode());
+            RelayMessage hello = RelayMessage.read(input, HANDSHAKE_MAX_LENGTH);
+            if (hello.getType() != RelayMessage.Type.HELLO || hello.getFieldCount() != 2
+                    || !links.containsKey(hello.field(0))
+                    || !MessageDigest.isEqual(hello.field(1).getBytes(StandardCharsets.UTF_8),
+                    sign(challenge, hello.field(0), nodeId).getBytes(StandardCharsets.UTF_8))) {
+                logger.warn("Rejected a cluster connection from {}: {}", socket.getRemoteSocketAddress(), hello);
+                return;
+            }
+            socket.setSoTimeout(0);
+            from = hello.field(0);
+            Thread.currentThread().setName("cluster-in-" + from);
+            Socket previous = inbound.put(from, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            forget(from);
+            logger.info("Cluster peer {} has connected", from);
+            while (true) {
+                handle(from, RelayMessage.read(input));
+            }
+        } catch (IOException e) {
+            if (from == null) {
+                logger.warn("Rejected a cluster connection from {}: {}", socket.getRemoteSocketAddress(), e.toString());
+            } else if (inbound.get(from) == socket) {
+                logger.warn("Lost the connection from the cluster peer {}", from, e);
+            }
+        } finally {
+            if (from != null && inbound.remove(from, socket)) {
+                forget(from);
+                nodeDown(from);
+            }
+        }
+    }
+
+    /**
+     * Signs the challenge of a connection, so that only the nodes knowing the secret can answer it
+     *
+     * @param challenge the challenge sent by the accepting node
+     * @param from      the id of the connecting node
+     * @param to        the id of the accepting node
+     * @return the signature
+     */
+    String sign(String challenge, String from, String to) {
+        Mac mac;
+        try {
+            mac = (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(ALGORITHM + " can't be cloned", e);
+        }
+        byte[] data = (challenge + "\n" + from + "\n" + to).getBytes(StandardCharsets.UTF_8);
+        return ENCODER.encodeToString(mac.doFinal(data));
+    }
+
+    /**
+     * Applies a message of another node
+     *
+     * @param from    the id of the node
+     * @param message the message
+     * @throws IOException if the message is malformed
+     */
+    private void handle(String from, RelayMessage message) throws IOException {
+        received.increment();
+        switch (message.getType()) {
+            case PING, HELLO, CHALLENGE -> {
+            }
+            case SYNC -> {
+                for (int i = 0; i < message.getFieldCount(); i++) {
+                    adopt(from, message.field(i));
+                }
+            }
+            case CLAIM -> {
+                boolean accepted = acceptClaim(from, message.field(1));
+                sendTo(from, RelayMessage.of(RelayMessage.Type.CLAIM_RESULT, message.field(0), Boolean.toString(accepted)));
+            }
+            case CLAIM_RESULT -> {
+                PendingClaim claim;
+                try {
+                    claim = claims.get(Long.parseLong(message.field(0)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid claim id " + message.field(0));
+                }
+                if (claim != null) {
+                    claim.result().complete(Boolean.parseBoolean(message.field(1)));
+                }
+            }
+            case RELEASE -> owners.remove(message.field(0), from);
+            case ROOM_CHAT -> server.deliverRelayedChat(message.field(0), message.field(1), message.field(2));
+            case ROOM_NOTICE -> server.deliverRelayedNotice(message.field(0), message.field(1));
+            case WHISPER -> server.deliverRelayedWhisper(message.field(0), message.field(1), message.field(2));
+            case KICK -> server.kickRelayed(message.field(0), message.field(1));
+            case REVOKE -> {
+                try {
+                    server.getResumeTokens().revoke(message.field(0), Long.parseLong(message.field(1)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid revocation time " + message.field(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides a claim as the coordinator of the username, recording the winner in the directory
+     *
+     * @param from     the id of the claiming node
+     * @param username the username
+     * @return true if the username is free or already belongs to the node
+     */
+    private boolean acceptClaim(String from, String username) {
+        String owner = owners.putIfAbsent(username, from);
+        return owner == null || owner.equals(from);
+    }
+
+    /**
+     * Records a user of another node announced by SYNC. If the username is claimed by this node too,
+     * which happens when the nodes decided alone while disconnected, the node with the smaller id keeps it:
+     * this node either announces its user again or logs it out
+     *
+     * @param from     the id of the node
+     * @param username the username
+     */
+    private void adopt(String from, String username) {
+        boolean[] local = new boolean[1];
+        String owner = owners.compute(username, (name, current) -> {
+            local[0] = nodeId.equals(current);
+            return local[0] && nodeId.compareTo(from) < 0 ? current : from;
+        });
+        if (!local[0]) {
+            return;
+        }
+        if (owner.equals(nodeId)) {
+            publish(RelayMessage.of(RelayMessage.Type.SYNC, username));
+        } else if (server.evictDuplicate(username)) {
+            duplicatesEvicted.increment();
+        }
+    }
+
+    /**
+     * Forgets the users of a node
+     *
+     * @param node the id of the node
+     */
+    private void forget(String node) {
+        owners.values().removeIf(node::equals);
+    }
+
+    /**
+     * Stops waiting for the answers of a node that has disconnected, deciding its pending claims
+     * as if the node was not in the cluster
+     *
+     * @param node the id of the node
+     */
+    void nodeDown(String node) {
+        for (Map.Entry<Long, PendingClaim> claim : claims.entrySet()) {
+            if (claim.getValue().coordinator().equals(node)) {
+                claim.getValue().result().complete(null);
+            }
+        }
+    }
+
+    /**
+     * @param username a username
+     * @return the id of the node deciding the claims of the username
+     */
+    private String coordinatorOf(String username) {
+        return nodeIds[Math.floorMod(username.hashCode(), nodeIds.length)];
+    }
+
+    /**
+     * Claims a username for a user logging in on this node from the coordinator of the username,
+     * waiting for its answer, and announces the user to all the nodes on a success
+     *
+     * @param username the username
+     * @return false if the username belongs to a user of another node or the coordinator has not answered in time
+     */
+    public boolean claim(String username) {
+        claimCount.increment();
+        String coordinator = coordinatorOf(username);
+        Boolean accepted = null;
+        if (!coordinator.equals(nodeId)) {
+            accepted = askCoordinator(coordinator, username);
+        }
+        if (accepted == null) {
+            accepted = acceptClaim(nodeId, username);
+        }
+        if (!accepted) {
+            claimsRejected.increment();
+            return false;
+        }
+        owners.put(username, nodeId);
+        publish(RelayMessage.of(RelayMessage.Type.SYNC, username));
+        return true;
+    }
+
+    /**
+     * Sends a claim to the coordinator of the username and waits for the answer
+     *
+     * @param coordinator the id of the coordinator
+     * @param username    the username
+     * @return the answer, null if the coordinator is disconnected and this node has to decide alone
+     */
+    private Boolean askCoordinator(String coordinator, String username) {
+        long id = nextClaimId.incrementAndGet();
+        PendingClaim claim = new PendingClaim(coordinator, new CompletableFuture<>());
+        claims.put(id, claim);
+        try {
+            if (!sendTo(coordinator, RelayMessage.of(RelayMessage.Type.CLAIM, Long.toString(id), username))) {
+                return null;
+            }
+            return claim.result().get(claimTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            claimTimeouts.increment();
+            logger.warn("Cluster node {} has not answered the claim of {} in time", coordinator, username);
+            release(username);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            claims.remove(id);
+        }
+    }
+
+    /**
+     * Tells the other nodes that a user of this node has left
+     *
+     * @param username the username
+     */
+    public void release(String username) {
+        owners.remove(username, nodeId);
+        publish(RelayMessage.of(RelayMessage.Type.RELEASE, username));
+    }
+
+    /**
+     * @param username a username
+     * @return the id of the node of the user, null if the user is not logged in on another node
+     */
+    public String ownerOf(String username) {
+        String owner = owners.get(username);
+        return nodeId.equals(owner) ? null : owner;
+    }
+
+    /**
+     * Queues a message to all the connected nodes
+     *
+     * @param message the message
+     */
+    public void publish(RelayMessage message) {
+        for (PeerLink link : links.values()) {
+            link.send(message);
+        }
+    }
+
+    /**
+     * Queues a message to a node
+     *
+     * @param node    the id of the node
+     * @param message the message
+     * @return false if the node is not connected and the message is dropped
+     */
+    public boolean sendTo(String node, RelayMessage message) {
+        PeerLink link = links.get(node);
+        return link != null && link.send(message);
+    }
+
+    /**
+     * @return the usernames of the users of this node
+     */
+    List<String> getLocalUsernames() {
+        return server.getLocalUsernames();
+    }
+
+    /**
+     * @return the times the resume tokens of the users were revoked until, by username
+     */
+    Map<String, Long> getRevocations() {
+        return server.getResumeTokens().getRevocations();
+    }
+
+    /**
+     * @return the id of this node
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Stops listening, closes the connections to the other nodes and the connections from them
+     */
+    public void stop() {
+        ServerSocket serverSocket = listener;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the cluster port", e);
+            }
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        for (Socket socket : inbound.values()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Error while closing a cluster connection", e);
+            }
+        }
+    }
+}
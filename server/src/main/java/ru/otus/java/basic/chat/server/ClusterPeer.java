@@ -0,0 +1,35 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * Another node of the cluster
+ *
+ * @param nodeId the id of the node, unique in the cluster
+ * @param host   the host of the node
+ * @param port   the cluster port of the node
+ */
+public record ClusterPeer(String nodeId, String host, int port) {
+    /**
+     * @param value a peer in the form node_id@host:port
+     * @return the peer
+     * @throws IllegalArgumentException if the value is not in the form
+     */
+    public static ClusterPeer parse(String value) {
+        String trimmed = value.trim();
+        int at = trimmed.indexOf('@');
+        int colon = trimmed.lastIndexOf(':');
+        if (at < 1 || colon < at + 2 || colon == trimmed.length() - 1) {
+            throw new IllegalArgumentException("Invalid cluster peer " + value + ", use node_id@host:port");
+        }
+        try {
+            return new ClusterPeer(trimmed.substring(0, at), trimmed.substring(at + 1, colon),
+                    Integer.parseInt(trimmed.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cluster peer port " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return nodeId + "@" + host + ":" + port;
+    }
+}
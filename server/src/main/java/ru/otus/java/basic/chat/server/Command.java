@@ -0,0 +1,18 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * A text command such as /w, registered in a CommandRegistry
+ */
+@FunctionalInterface
+public interface Command {
+    /**
+     * Executes the command. Called on the thread handling the messages of the client,
+     * after the login and the permission of the command are checked
+     *
+     * @param client    the client that has sent the command
+     * @param arguments the arguments following the command name
+     * @return true if the arguments are correct, false to reply with the usage of the command
+     * @throws TerminateClientException if the client connection is to be terminated
+     */
+    boolean execute(ClientHandler client, CommandArguments arguments) throws TerminateClientException;
+}
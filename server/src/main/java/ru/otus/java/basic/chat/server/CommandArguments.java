@@ -0,0 +1,72 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * A cursor over the arguments of a text command, separated by spaces.
+ * Scans the message in place, strings are created only for the arguments taken.
+ * Reused for every command of a client, so it must not be kept by the commands
+ */
+public final class CommandArguments {
+    private String message;
+    private int position;
+
+    /**
+     * Points the cursor at a message
+     *
+     * @param message  the message
+     * @param position the index the arguments start at
+     * @return this cursor
+     */
+    CommandArguments reset(String message, int position) {
+        this.message = message;
+        this.position = position;
+        return this;
+    }
+
+    /**
+     * @return true if there are more arguments
+     */
+    public boolean hasNext() {
+        skipSpaces();
+        return position < message.length();
+    }
+
+    /**
+     * Takes the next argument
+     *
+     * @return the argument, null if there are no more arguments
+     */
+    public String next() {
+        skipSpaces();
+        int start = position;
+        if (start == message.length()) {
+            return null;
+        }
+        int end = message.indexOf(' ', start);
+        if (end < 0) {
+            end = message.length();
+        }
+        position = end;
+        return message.substring(start, end);
+    }
+
+    /**
+     * Takes the rest of the message, with the spaces between the words kept as they are
+     *
+     * @return the rest of the message, null if there are no more arguments
+     */
+    public String rest() {
+        skipSpaces();
+        int start = position;
+        if (start == message.length()) {
+            return null;
+        }
+        position = message.length();
+        return message.substring(start);
+    }
+
+    private void skipSpaces() {
+        while (position < message.length() && message.charAt(position) == ' ') {
+            position++;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Text commands by name. The names are kept in an open addressing hash table that is looked up
+ * by a region of the received message, so finding a command does not create a string.
+ * Registering a command copies the table, lookups never block
+ */
+public class CommandRegistry {
+    /**
+     * A registered command
+     *
+     * @param name       the name including the leading slash
+     * @param usage      the correct syntax, shown when the arguments are incorrect
+     * @param permission the permission required to run the command, null if the command is available
+     *                   before logging in
+     * @param command    the implementation
+     * @param calls      the number of times the command has been received
+     */
+    public record Entry(String name, String usage, Permission permission, Command command, Counter calls) {
+    }
+
+    private final Metrics metrics;
+    private final Lock lock = new ReentrantLock();
+    private volatile Entry[] table = new Entry[8];
+    private int size;
+
+    /**
+     * Creates an empty registry
+     *
+     * @param metrics the registry of the "commands." counters of the commands
+     */
+    public CommandRegistry(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates a registry with the built-in commands
+     *
+     * @param metrics the registry of the "commands." counters of the commands
+     * @return a new registry
+     */
+    public static CommandRegistry withBuiltInCommands(Metrics metrics) {
+        CommandRegistry registry = new CommandRegistry(metrics);
+        BuiltInCommands.registerAll(registry);
+        return registry;
+    }
+
+    /**
+     * Registers a command, replacing the command of the same name if there is one
+     *
+     * @param name       the name including the leading slash
+     * @param usage      the correct syntax, shown when the arguments are incorrect
+     * @param permission the permission required to run the command, null if the command is available
+     *                   before logging in
+     * @param command    the implementation
+     */
+    public void register(String name, String usage, Permission permission, Command command) {
+        if (!name.startsWith("/") || name.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("Invalid command name: " + name);
+        }
+        lock.lock();
+        try {
+            Entry[] current = table;
+            int capacity = current.length;
+            if ((size + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+            Entry[] updated = new Entry[capacity];
+            for (Entry entry : current) {
+                if (entry != null && !entry.name().equals(name)) {
+                    insert(updated, entry);
+                }
+            }
+            insert(updated, new Entry(name, usage, permission, command, metrics.counter("commands." + name.substring(1))));
+            size = 0;
+            for (Entry entry : updated) {
+                if (entry != null) {
+                    size++;
+                }
+            }
+            table = updated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int index = spread(entry.name().hashCode()) & mask;
+        while (table[index] != null) {
+            index = (index + 1) & mask;
+        }
+        table[index] = entry;
+    }
+
+    /**
+     * Finds a command by a region of a message
+     *
+     * @param message a message
+     * @param start   the index the name starts at
+     * @param end     the index the name ends at, exclusive
+     * @return the command, null if there is no command of that name
+     */
+    public Entry find(String message, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + message.charAt(i);
+        }
+        Entry[] current = table;
+        int mask = current.length - 1;
+        int length = end - start;
+        for (int index = spread(hash) & mask; ; index = (index + 1) & mask) {
+            Entry entry = current[index];
+            if (entry == null) {
+                return null;
+            }
+            String name = entry.name();
+            if (name.length() == length && name.regionMatches(0, message, start, length)) {
+                return entry;
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
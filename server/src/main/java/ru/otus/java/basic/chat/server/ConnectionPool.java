@@ -0,0 +1,347 @@
+package ru.otus.java.basic.chat.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger logger = Log.getLogger(ConnectionPool.class);
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final long validateAfterIdleNanos;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private final Counter acquired;
+    private final Counter timeouts;
+    private final Counter broken;
+    private final LatencyHistogram waitTime;
+    private int size;
+    private int inUse;
+    private int waiting;
+    private volatile boolean closed;
+
+    /**
+     * Creates a bounded pool of JDBC connections, the minimum number of connections is opened by start
+     *
+     * @param url                     a JDBC url
+     * @param user                    a database user name
+     * @param password                a database user password
+     * @param minSize                 the number of connections kept open even if idle
+     * @param maxSize                 the maximum number of open connections
+     * @param acquireTimeoutMillis    how long acquire waits for a free connection
+     * @param idleTimeoutMillis       how long a connection above the minimum may stay idle before it is closed
+     * @param validateAfterIdleMillis a connection idle for longer than this is validated before it is handed out,
+     *                                0 to validate on every acquire
+     * @param metrics                 the registry of the pool metrics
+     */
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long acquireTimeoutMillis, long idleTimeoutMillis, long validateAfterIdleMillis,
+                          Metrics metrics) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.validateAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterIdleMillis);
+        this.acquired = metrics.counter("db.pool.acquired");
+        this.timeouts = metrics.counter("db.pool.timeouts");
+        this.broken = metrics.counter("db.pool.broken");
+        this.waitTime = metrics.histogram("db.pool.wait_time");
+        metrics.gauge("db.pool.size", () -> read(() -> size));
+        metrics.gauge("db.pool.in_use", () -> read(() -> inUse));
+        metrics.gauge("db.pool.idle", () -> read(idle::size));
+        metrics.gauge("db.pool.waiting", () -> read(() -> waiting));
+        metrics.gauge("db.pool.max_size", () -> maxSize);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the minimum number of connections and starts closing the idle connections above it
+     *
+     * @throws SQLException if the initial connections can't be opened, the pool is closed then
+     */
+    public void start() throws SQLException {
+        try {
+            for (int i = 0; i < minSize; i++) {
+                PooledConnection connection = new PooledConnection(this, open());
+                lock.lock();
+                try {
+                    idle.push(connection);
+                    size++;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+        long period = Math.max(1000, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2);
+        evictor.scheduleWithFixedDelay(this::runEvictor, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private Connection open() throws SQLException {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    /**
+     * Takes an idle connection, opens a new one if the pool is not full, or waits for a connection to be released.
+     * The connection must be closed to return it to the pool
+     *
+     * @return a connection
+     * @throws SQLException if no connection becomes available in time, or a new connection can't be opened
+     */
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        while (true) {
+            PooledConnection connection = null;
+            boolean create = false;
+            lock.lock();
+            try {
+                long remaining = acquireTimeoutNanos - (System.nanoTime() - start);
+                while (!closed && idle.isEmpty() && size >= maxSize) {
+                    if (remaining <= 0) {
+                        timeouts.increment();
+                        throw new SQLException("Timed out waiting for a database connection", "08001");
+                    }
+                    waiting++;
+                    try {
+                        remaining = released.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection", "08001");
+                    } finally {
+                        waiting--;
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed", "08003");
+                }
+                if (!idle.isEmpty()) {
+                    connection = idle.pop();
+                } else {
+                    size++;
+                    create = true;
+                }
+                inUse++;
+            } finally {
+                lock.unlock();
+            }
+            acquired.increment();
+            waitTime.record(System.nanoTime() - start);
+            if (create) {
+                try {
+                    return new PooledConnection(this, open());
+                } catch (SQLException | RuntimeException e) {
+                    discard(null);
+                    throw e;
+                }
+            }
+            if (isUsable(connection)) {
+                connection.borrowed();
+                return connection;
+            }
+            discard(connection);
+        }
+    }
+
+    /**
+     * Checks a connection taken from the idle list, the connections idle for long are checked with the server
+     */
+    private boolean isUsable(PooledConnection connection) {
+        try {
+            if (connection.getConnection().isClosed()) {
+                return false;
+            }
+            if (System.nanoTime() - connection.getReleasedAt() < validateAfterIdleNanos) {
+                return true;
+            }
+            return connection.getConnection().isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, called by PooledConnection.close.
+     * The connection is closed instead if it is broken or the pool is closed
+     *
+     * @param connection a connection
+     */
+    void release(PooledConnection connection) {
+        if (!connection.isBroken()) {
+            lock.lock();
+            try {
+                if (!closed) {
+                    inUse--;
+                    idle.push(connection);
+                    released.signal();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        discard(connection);
+    }
+
+    /**
+     * Closes a connection that is in use and frees its place in the pool
+     *
+     * @param connection a connection, null if the connection could not be opened
+     */
+    private void discard(PooledConnection connection) {
+        lock.lock();
+        try {
+            size--;
+            inUse--;
+            if (connection != null && !closed) {
+                broken.increment();
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+    }
+
+    /**
+     * Runs evictAndRefill on the evictor thread, so that a failure is logged rather than cancelling the next runs
+     */
+    private void runEvictor() {
+        try {
+            evictAndRefill();
+        } catch (RuntimeException e) {
+            logger.error("Failed to evict or reopen the database connections", e);
+        }
+    }
+
+    /**
+     * Closes the connections idle for longer than the idle timeout while the pool is above its minimum size,
+     * and reopens connections up to the minimum size after the broken ones were discarded.
+     * A connection reopened while the pool is being closed is closed at once and the refill stops
+     */
+    private void evictAndRefill() {
+        List<PooledConnection> evicted = new ArrayList<>();
+        int missing;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            Iterator<PooledConnection> iterator = idle.descendingIterator();
+            while (iterator.hasNext() && size > minSize) {
+                PooledConnection connection = iterator.next();
+                if (now - connection.getReleasedAt() > idleTimeoutNanos) {
+                    iterator.remove();
+                    size--;
+                    evicted.add(connection);
+                }
+            }
+            missing = closed ? 0 : minSize - size;
+            size += Math.max(missing, 0);
+        } finally {
+            lock.unlock();
+        }
+        evicted.forEach(PooledConnection::closeQuietly);
+        for (int i = 0; i < missing; i++) {
+            PooledConnection connection;
+            try {
+                connection = new PooledConnection(this, open());
+            } catch (SQLException | RuntimeException e) {
+                logger.warn("Failed to reopen a database connection: {}", e.getMessage());
+                lock.lock();
+                try {
+                    size -= missing - i;
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            boolean open;
+            lock.lock();
+            try {
+                open = !closed;
+                if (open) {
+                    idle.push(connection);
+                    released.signal();
+                } else {
+                    size -= missing - i;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!open) {
+                connection.closeQuietly();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a part of the state of the pool for a gauge
+     *
+     * @param value the part of the state
+     * @return the value
+     */
+    private long read(IntSupplier value) {
+        lock.lock();
+        try {
+            return value.getAsInt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeIdle() {
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.closeQuietly();
+        }
+    }
+
+    /**
+     * Closes the idle connections, the connections in use are closed when released
+     */
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        lock.lock();
+        try {
+            closed = true;
+            closeIdle();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
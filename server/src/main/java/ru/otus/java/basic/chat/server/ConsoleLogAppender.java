@@ -0,0 +1,32 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.PrintStream;
+
+/**
+ * Formats and prints the events on the logging thread
+ */
+public class ConsoleLogAppender implements LogAppender {
+    private final PrintStream out;
+
+    /**
+     * Creates an appender printing to a stream
+     *
+     * @param out the stream
+     */
+    public ConsoleLogAppender(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Formats an event and prints it
+     *
+     * @param event the event
+     */
+    @Override
+    public void append(LogEvent event) {
+        StringBuilder builder = new StringBuilder(128);
+        event.formatTo(builder);
+        out.print(builder);
+        out.flush();
+    }
+}
@@ -0,0 +1,37 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic counter. Increments from different threads go to different cells,
+ * so hot counters are not contended; reading sums the cells
+ */
+public class Counter {
+    private final LongAdder value = new LongAdder();
+
+    /**
+     * Adds one
+     */
+    public void increment() {
+        value.increment();
+    }
+
+    /**
+     * @param delta the amount to add
+     */
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    /**
+     * @return the current value
+     */
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
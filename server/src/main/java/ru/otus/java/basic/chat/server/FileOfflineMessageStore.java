@@ -0,0 +1,315 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Offline messages in a local append-only file, for the servers without a database.
+ * The file is a sequence of records: a stored message (type 1, the timestamp, the recipient, the sender
+ * and the text) or the delivery of all the messages of a recipient (type 2, the recipient),
+ * each string an int length followed by UTF-8 bytes. A batch is encoded in memory, appended with one write
+ * and forced to the disk once; a failed write is cut off the file, so that no part of the batch is left behind.
+ * The pending messages are also kept in memory, the file is replayed and compacted on open, and compacted again
+ * by the expiry once messages have expired or the file has doubled since the last compaction
+ */
+public class FileOfflineMessageStore extends OfflineMessageStore {
+    private static final Logger logger = Log.getLogger(FileOfflineMessageStore.class);
+    private static final int MESSAGE_RECORD = 1;
+    private static final int DELIVERY_RECORD = 2;
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+    private final Path file;
+    private final Predicate<String> userExists;
+    private final Map<String, List<OfflineMessage>> messages = new HashMap<>();
+    private FileChannel channel;
+    private long compactionThreshold;
+
+    /**
+     * Creates the store of a file, the file is opened by start
+     *
+     * @param file             the file of the messages
+     * @param userExists       tells if there is a user with a username
+     * @param batchSize        the maximum number of messages written at once
+     * @param flushDelayMillis the longest time a message waits for the batch to fill up
+     * @param capacity         the maximum number of messages waiting to be written
+     * @param maxPerRecipient  the maximum number of messages kept for a recipient
+     * @param ttlMillis        how long a message is kept in milliseconds
+     * @param metrics          the registry of the store metrics
+     */
+    public FileOfflineMessageStore(Path file, Predicate<String> userExists, int batchSize, long flushDelayMillis,
+                                   int capacity, int maxPerRecipient, long ttlMillis, Metrics metrics) {
+        super(batchSize, flushDelayMillis, capacity, maxPerRecipient, ttlMillis, metrics);
+        this.file = file;
+        this.userExists = userExists;
+    }
+
+    /**
+     * Reads the messages not delivered yet from the file, drops the expired ones and compacts the file
+     *
+     * @throws UncheckedIOException if the file can't be read or written
+     */
+    @Override
+    protected void openStorage() {
+        try {
+            replay();
+            removeExpired(getExpiryCutoff());
+            compact();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the offline messages file " + file, e);
+        }
+    }
+
+    /**
+     * Reads the messages not delivered yet, a record cut short by a crash ends the file
+     *
+     * @throws IOException if the file can't be read
+     */
+    private void replay() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int type = input.read();
+                if (type == MESSAGE_RECORD) {
+                    long timestamp = input.readLong();
+                    String recipient = readString(input);
+                    OfflineMessage message = new OfflineMessage(recipient, readString(input), readString(input),
+                            timestamp);
+                    messages.computeIfAbsent(recipient, key -> new ArrayList<>()).add(message);
+                } else if (type == DELIVERY_RECORD) {
+                    messages.remove(readString(input));
+                } else {
+                    if (type != -1) {
+                        logger.warn("Ignoring the rest of the offline messages file {} after an unknown record", file);
+                    }
+                    return;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // nothing stored yet
+        } catch (EOFException e) {
+            logger.warn("Ignoring the incomplete record at the end of the offline messages file {}", file);
+        }
+    }
+
+    /**
+     * Rewrites the file with the messages not delivered yet only, replacing it atomically,
+     * and opens the new file for the next records
+     *
+     * @throws IOException if the file can't be written
+     */
+    private void compact() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temporary.toFile());
+                 DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(stream))) {
+                for (List<OfflineMessage> pending : messages.values()) {
+                    for (OfflineMessage message : pending) {
+                        writeMessage(compacted, message);
+                    }
+                }
+                compacted.flush();
+                stream.getFD().sync();
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        FileChannel previous = channel;
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        compactionThreshold = Math.max(MIN_COMPACTION_BYTES, 2 * channel.size());
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Forgets the messages sent before a cutoff, the file still has them until it is compacted
+     *
+     * @param cutoff the timestamp before which the messages have expired
+     * @return the number of messages forgotten
+     */
+    private int removeExpired(long cutoff) {
+        int removed = 0;
+        Iterator<List<OfflineMessage>> recipients = messages.values().iterator();
+        while (recipients.hasNext()) {
+            List<OfflineMessage> pending = recipients.next();
+            int size = pending.size();
+            pending.removeIf(message -> message.timestamp() < cutoff);
+            removed += size - pending.size();
+            if (pending.isEmpty()) {
+                recipients.remove();
+            }
+        }
+        return removed;
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void writeMessage(DataOutputStream output, OfflineMessage message) throws IOException {
+        output.write(MESSAGE_RECORD);
+        output.writeLong(message.timestamp());
+        writeString(output, message.recipient());
+        writeString(output, message.sender());
+        writeString(output, message.text());
+    }
+
+    /**
+     * Appends the records to the file and forces them to the disk. If that fails, the file is truncated back
+     * to its former size, so that a part of the records is not read on the next open or followed by the next records
+     *
+     * @param records the encoded records
+     * @throws IOException if the records can't be written
+     */
+    private void append(byte[] records) throws IOException {
+        long size = channel.size();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(size);
+            } catch (IOException truncateException) {
+                e.addSuppressed(truncateException);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Appends the messages to known users with room for them and forces them to the disk
+     */
+    @Override
+    protected Result[] write(List<OfflineMessage> batch) throws OfflineMessageStoreException {
+        Result[] results = new Result[batch.size()];
+        Map<String, Integer> counts = new HashMap<>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(records)) {
+            for (int i = 0; i < results.length; i++) {
+                OfflineMessage message = batch.get(i);
+                String recipient = message.recipient();
+                if (!userExists.test(recipient)) {
+                    results[i] = Result.UNKNOWN_RECIPIENT;
+                    continue;
+                }
+                int count = counts.getOrDefault(recipient, messages.getOrDefault(recipient, List.of()).size());
+                if (count >= getMaxPerRecipient()) {
+                    results[i] = Result.RECIPIENT_FULL;
+                    continue;
+                }
+                counts.put(recipient, count + 1);
+                writeMessage(output, message);
+                results[i] = Result.STORED;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            if (records.size() > 0) {
+                append(records.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new OfflineMessageStoreException(e);
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == Result.STORED) {
+                OfflineMessage message = batch.get(i);
+                messages.computeIfAbsent(message.recipient(), key -> new ArrayList<>()).add(message);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Appends the delivery of the messages of the recipient, if there are any
+     */
+    @Override
+    protected List<OfflineMessage> remove(String recipient) throws OfflineMessageStoreException {
+        List<OfflineMessage> pending = messages.get(recipient);
+        if (pending == null) {
+            return List.of();
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(record)) {
+            output.write(DELIVERY_RECORD);
+            writeString(output, recipient);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            append(record.toByteArray());
+        } catch (IOException e) {
+            throw new OfflineMessageStoreException(e);
+        }
+        messages.remove(recipient);
+        return pending;
+    }
+
+    /**
+     * Forgets the expired messages and compacts the file if they were there or it has doubled since
+     * the last compaction
+     */
+    @Override
+    protected int expire(long cutoff) throws OfflineMessageStoreException {
+        int removed = removeExpired(cutoff);
+        try {
+            if (removed > 0 || channel.size() > compactionThreshold) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new OfflineMessageStoreException(e);
+        }
+        return removed;
+    }
+
+    @Override
+    protected void closeStorage() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the offline messages file {}", file, e);
+        }
+    }
+}
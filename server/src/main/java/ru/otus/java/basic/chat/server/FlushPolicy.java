@@ -0,0 +1,24 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * When the messages coalesced for a client are written to its connection.
+ * The messages waiting in the outbound queue are gathered into one write until one of the limits is reached
+ * or the queue is empty; with a delay, an empty queue is given that long to receive more messages
+ *
+ * @param maxBytes       the number of bytes that triggers a write
+ * @param maxMessages    the number of messages that triggers a write
+ * @param maxDelayMicros how long the first message of a batch may wait for more in microseconds,
+ *                       0 to write as soon as the queue is empty
+ */
+public record FlushPolicy(int maxBytes, int maxMessages, long maxDelayMicros) {
+    /**
+     * Checks the limits
+     *
+     * @throws IllegalArgumentException if a limit is out of range
+     */
+    public FlushPolicy {
+        if (maxBytes < 1 || maxMessages < 1 || maxDelayMicros < 0) {
+            throw new IllegalArgumentException("Flush limits must be positive and the delay must not be negative");
+        }
+    }
+}
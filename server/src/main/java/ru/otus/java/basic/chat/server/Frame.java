@@ -0,0 +1,219 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.AuthStatus;
+import ru.otus.java.basic.chat.protocol.BinaryProtocol;
+import ru.otus.java.basic.chat.protocol.Opcode;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable typed message to a client. The same frame may be queued to any number of clients,
+ * it is encoded at most once for each protocol version, when first written to a client speaking that version
+ */
+public final class Frame {
+    /**
+     * Tells the client the server is closing the connection
+     */
+    public static final Frame BYE = new Frame(Opcode.BYE, 0, 0, new String[0], "/bye", null);
+    /**
+     * Checks that the client is still there, the client answers with /pong
+     */
+    public static final Frame PING = new Frame(Opcode.PING, 0, 0, new String[0], "/ping", null);
+    private static final int MAX_PRESENCE_LENGTH = 16384;
+    private static final DateTimeFormatter HISTORY_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final Opcode opcode;
+    private final int flags;
+    private final int sequence;
+    private final String[] fields;
+    private final String text;
+    private final ProtocolVersion protocolSwitch;
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+
+    private Frame(Opcode opcode, int flags, int sequence, String[] fields, String text, ProtocolVersion protocolSwitch) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.sequence = sequence;
+        this.fields = fields;
+        this.text = text;
+        this.protocolSwitch = protocolSwitch;
+    }
+
+    /**
+     * @param sender the username of the sender
+     * @param text   the text of the message
+     * @return a new chat message frame
+     */
+    public static Frame chat(String sender, String text) {
+        return new Frame(Opcode.CHAT, 0, 0, new String[]{sender, text}, "[" + sender + "]: " + text, null);
+    }
+
+    /**
+     * @param record a message from the history of a room
+     * @return a new chat message frame marked as a message from the history, with the time it was sent
+     */
+    public static Frame history(HistoryRecord record) {
+        String time = HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(record.timestamp()));
+        return new Frame(Opcode.CHAT, BinaryProtocol.FLAG_HISTORY, 0,
+                new String[]{record.sender(), record.text(), time},
+                "[" + time + "] [" + record.sender() + "]: " + record.text(), null);
+    }
+
+    /**
+     * @param sender the username of the sender
+     * @param text   the text of the message
+     * @return a new frame of a private message to the recipient
+     */
+    public static Frame whisper(String sender, String text) {
+        return new Frame(Opcode.WHISPER, 0, 0, new String[]{sender, text},
+                "(whisper from " + sender + "): " + text, null);
+    }
+
+    /**
+     * @param message a private message stored while the recipient was offline
+     * @return a new private message frame marked as a stored message, with the time it was sent
+     */
+    public static Frame offlineWhisper(OfflineMessage message) {
+        String time = HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(message.timestamp()));
+        return new Frame(Opcode.WHISPER, BinaryProtocol.FLAG_HISTORY, 0,
+                new String[]{message.sender(), message.text(), time},
+                "[" + time + "] (whisper from " + message.sender() + "): " + message.text(), null);
+    }
+
+    /**
+     * @param recipient the username of the recipient
+     * @param text      the text of the message
+     * @return a new frame of the copy of a private message sent back to the sender
+     */
+    public static Frame whisperEcho(String recipient, String text) {
+        return new Frame(Opcode.WHISPER, BinaryProtocol.FLAG_ECHO, 0, new String[]{recipient, text},
+                "(whispered to " + recipient + "): " + text, null);
+    }
+
+    /**
+     * @param text the text of the event
+     * @return a new frame of a chat event, such as a user entering or leaving
+     */
+    public static Frame notice(String text) {
+        return new Frame(Opcode.NOTICE, 0, 0, new String[]{text}, text, null);
+    }
+
+    /**
+     * Creates the frames of the presence changes of a room, as many as needed to keep each one short
+     *
+     * @param room     the name of the room
+     * @param snapshot true if the changes are all the members of the room, the first frame is marked then
+     * @param entries  "+username" for every user that has come, "-username" for every user that has gone
+     * @return the new frames, none if there are no entries and it is not a snapshot
+     */
+    public static List<Frame> presence(String room, boolean snapshot, List<String> entries) {
+        List<Frame> frames = new ArrayList<>();
+        int from = 0;
+        do {
+            int length = 0;
+            int to = from;
+            while (to < entries.size() && (to == from || length + entries.get(to).length() < MAX_PRESENCE_LENGTH)) {
+                length += entries.get(to).length() + 1;
+                to++;
+            }
+            if (to == from && !snapshot) {
+                break;
+            }
+            boolean first = snapshot && from == 0;
+            String[] fields = new String[1 + to - from];
+            StringBuilder text = new StringBuilder("/presence ").append(room).append(first ? " =" : "");
+            fields[0] = room;
+            for (int i = from; i < to; i++) {
+                fields[1 + i - from] = entries.get(i);
+                text.append(' ').append(entries.get(i));
+            }
+            frames.add(new Frame(Opcode.PRESENCE, first ? BinaryProtocol.FLAG_SNAPSHOT : 0, 0, fields,
+                    text.toString(), null));
+            from = to;
+        } while (from < entries.size());
+        return frames;
+    }
+
+    /**
+     * @param text     the text of the reply
+     * @param sequence the sequence number of the request, 0 if not a reply to a request
+     * @return a new frame of a server reply
+     */
+    public static Frame server(String text, int sequence) {
+        return new Frame(Opcode.SERVER, 0, sequence, new String[]{text}, "SERVER: " + text, null);
+    }
+
+    /**
+     * @param status   the result of authentication or registration
+     * @param sequence the sequence number of the request
+     * @return a new frame of an authentication reply
+     */
+    public static Frame authResult(AuthStatus status, int sequence) {
+        return new Frame(Opcode.AUTH_RESULT, status.getCode(), sequence, new String[]{status.getText()},
+                "AUTH: " + status.getText(), null);
+    }
+
+    /**
+     * @param token the resume token of the client
+     * @return a new frame giving a client of the binary protocol its resume token
+     */
+    public static Frame resumeToken(String token) {
+        return new Frame(Opcode.TOKEN, 0, 0, new String[]{token}, "/token " + token, null);
+    }
+
+    /**
+     * Creates the confirmation of a protocol switch. The frame is written in the current protocol,
+     * the frames after it in the new one
+     *
+     * @param version the protocol version the client switches to
+     * @return a new frame
+     */
+    public static Frame protocolSwitch(ProtocolVersion version) {
+        return new Frame(null, 0, 0, null, BinaryProtocol.HANDSHAKE, version);
+    }
+
+    /**
+     * @return the message in the text form
+     */
+    public String getMessage() {
+        return text;
+    }
+
+    /**
+     * @return the protocol version the client switches to after this frame, null if not a protocol switch
+     */
+    public ProtocolVersion getProtocolSwitch() {
+        return protocolSwitch;
+    }
+
+    /**
+     * Returns the bytes of the frame in a protocol version, encoding them on first use
+     *
+     * @param version the protocol version
+     * @return the encoded frame, must not be modified
+     * @throws IOException if the message is too long for the protocol version
+     */
+    public byte[] encode(ProtocolVersion version) throws IOException {
+        if (version == ProtocolVersion.V1 || protocolSwitch != null) {
+            byte[] bytes = textBytes;
+            if (bytes == null) {
+                bytes = ModifiedUtf8.encode(text);
+                textBytes = bytes;
+            }
+            return bytes;
+        }
+        byte[] bytes = binaryBytes;
+        if (bytes == null) {
+            bytes = BinaryProtocol.encode(opcode, flags, sequence, fields);
+            binaryBytes = bytes;
+        }
+        return bytes;
+    }
+}
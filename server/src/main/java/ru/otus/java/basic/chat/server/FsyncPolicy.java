@@ -0,0 +1,19 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * When the chat history forces the appended messages to the disk
+ */
+public enum FsyncPolicy {
+    /**
+     * Leave it to the operating system, a crash of the machine may lose the recent messages
+     */
+    NEVER,
+    /**
+     * After every batch of messages taken by the history writer, a group commit of everything pending
+     */
+    BATCH,
+    /**
+     * Periodically, a crash of the machine may lose the messages of the last interval
+     */
+    INTERVAL
+}
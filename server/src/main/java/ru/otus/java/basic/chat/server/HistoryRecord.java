@@ -0,0 +1,11 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * A chat message stored in the history of a room
+ *
+ * @param timestamp the time the message was sent, in milliseconds since the epoch
+ * @param sender    the username of the sender
+ * @param text      the text of the message
+ */
+public record HistoryRecord(long timestamp, String sender, String text) {
+}
@@ -0,0 +1,338 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of the history of a room, holding consecutive messages from a base sequence number,
+ * and its sparse index. Both files are memory-mapped, the messages are never loaded as a whole.
+ * A record is the length of the rest (4 bytes), the CRC32C of the rest (4 bytes), the timestamp (8 bytes),
+ * the length of the sender (2 bytes), the sender and the text, the strings in UTF-8.
+ * The index is the number of entries (4 bytes) followed by the entries, each one the number of a record
+ * relative to the base sequence and its position (4 bytes each), an entry every INDEX_INTERVAL bytes of records.
+ * Only the history writer thread appends, the readers see the records appended before they start reading
+ */
+public class HistorySegment {
+    private static final Logger logger = Log.getLogger(HistorySegment.class);
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int RECORD_FIXED_LENGTH = 10;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_HEADER_LENGTH = 4;
+    private static final int INDEX_ENTRY_LENGTH = 8;
+
+    private final long baseSequence;
+    private final Path logPath;
+    private final Path indexPath;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private final CRC32C crc = new CRC32C();
+    private volatile int size;
+    private volatile int count;
+    private volatile int indexCount;
+    private volatile long lastTimestamp;
+    private int lastIndexedPosition;
+    private int forcedSize;
+    private int forcedIndexCount;
+
+    private HistorySegment(long baseSequence, Path logPath, Path indexPath, int capacity) throws IOException {
+        this.baseSequence = baseSequence;
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.log = map(logPath, capacity);
+        this.index = map(indexPath, INDEX_HEADER_LENGTH + (log.capacity() / INDEX_INTERVAL + 2) * INDEX_ENTRY_LENGTH);
+    }
+
+    /**
+     * Maps a file, extending it to the size of the mapping. The mapping stays valid after the channel is closed
+     *
+     * @param path     the file
+     * @param capacity the size of the mapping
+     * @return the mapped buffer
+     * @throws IOException if the file can't be mapped
+     */
+    private static MappedByteBuffer map(Path path, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+        }
+    }
+
+    /**
+     * Creates an empty segment
+     *
+     * @param directory    the directory of the room history
+     * @param baseSequence the sequence number of the first message
+     * @param capacity     the size of the segment file in bytes
+     * @return the segment
+     * @throws IOException if the files can't be created
+     */
+    public static HistorySegment create(Path directory, long baseSequence, int capacity) throws IOException {
+        String name = String.format("%020d", baseSequence);
+        return new HistorySegment(baseSequence,
+                directory.resolve(name + ".log"), directory.resolve(name + ".idx"), capacity);
+    }
+
+    /**
+     * Opens a segment written before, the records after the last complete one are ignored and overwritten later
+     *
+     * @param logPath  the segment file, named after the base sequence number
+     * @param capacity the minimum size of the segment file in bytes
+     * @return the segment
+     * @throws IOException if the files can't be opened
+     */
+    public static HistorySegment open(Path logPath, int capacity) throws IOException {
+        String fileName = logPath.getFileName().toString();
+        String name = fileName.substring(0, fileName.length() - ".log".length());
+        HistorySegment segment = new HistorySegment(Long.parseLong(name), logPath,
+                logPath.resolveSibling(name + ".idx"), capacity);
+        segment.recover();
+        return segment;
+    }
+
+    /**
+     * Reads the timestamp of the first record of a segment file without mapping it
+     *
+     * @param logPath the segment file
+     * @return the timestamp, 0 if the segment has no records
+     * @throws IOException if the file can't be read
+     */
+    public static long readFirstTimestamp(Path logPath) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH + 8);
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return 0;
+                }
+            }
+        }
+        return header.getInt(0) < RECORD_FIXED_LENGTH ? 0 : header.getLong(RECORD_HEADER_LENGTH);
+    }
+
+    /**
+     * Deletes the files of a segment that is not open
+     *
+     * @param logPath the segment file, named after the base sequence number
+     * @throws IOException if a file can't be deleted
+     */
+    public static void deleteFiles(Path logPath) throws IOException {
+        String fileName = logPath.getFileName().toString();
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(logPath.resolveSibling(fileName.substring(0, fileName.length() - ".log".length()) + ".idx"));
+    }
+
+    /**
+     * Finds the end of the complete records, starting from the last index entry that points to a valid record
+     */
+    private void recover() {
+        int entries = Math.min(index.getInt(0), (index.capacity() - INDEX_HEADER_LENGTH) / INDEX_ENTRY_LENGTH);
+        while (entries > 0 && !isValidRecord(indexPosition(entries - 1))) {
+            entries--;
+        }
+        int sequence = 0;
+        int position = 0;
+        if (entries > 0) {
+            sequence = index.getInt(INDEX_HEADER_LENGTH + (entries - 1) * INDEX_ENTRY_LENGTH);
+            position = indexPosition(entries - 1);
+            lastIndexedPosition = position;
+        }
+        long timestamp = 0;
+        while (isValidRecord(position)) {
+            timestamp = log.getLong(position + RECORD_HEADER_LENGTH);
+            position += RECORD_HEADER_LENGTH + log.getInt(position);
+            sequence++;
+        }
+        index.putInt(0, entries);
+        indexCount = entries;
+        forcedIndexCount = entries;
+        lastTimestamp = timestamp;
+        size = position;
+        forcedSize = position;
+        count = sequence;
+        if (position < log.capacity() && log.getInt(position) != 0) {
+            logger.warn("Ignoring the incomplete history record at {} of {}", position, logPath);
+        }
+    }
+
+    private int indexPosition(int entry) {
+        return index.getInt(INDEX_HEADER_LENGTH + entry * INDEX_ENTRY_LENGTH + 4);
+    }
+
+    /**
+     * @param position a position in the segment file
+     * @return true if a complete record with a matching checksum starts at the position
+     */
+    private boolean isValidRecord(int position) {
+        if (position < 0 || position > log.capacity() - RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        int length = log.getInt(position);
+        if (length < RECORD_FIXED_LENGTH || length > log.capacity() - position - RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        crc.reset();
+        crc.update(log.slice(position + RECORD_HEADER_LENGTH, length));
+        return (int) crc.getValue() == log.getInt(position + 4);
+    }
+
+    /**
+     * Appends a record unless the segment is full. Must be called by the history writer thread only
+     *
+     * @param timestamp the time the message was sent
+     * @param sender    the sender in UTF-8, at most 65535 bytes
+     * @param text      the text in UTF-8
+     * @return true if appended, false if the record does not fit into the segment
+     */
+    public boolean append(long timestamp, byte[] sender, byte[] text) {
+        int length = RECORD_FIXED_LENGTH + sender.length + text.length;
+        int position = size;
+        if (length > log.capacity() - position - RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        int body = position + RECORD_HEADER_LENGTH;
+        log.putLong(body, timestamp);
+        log.putShort(body + 8, (short) sender.length);
+        log.put(body + RECORD_FIXED_LENGTH, sender);
+        log.put(body + RECORD_FIXED_LENGTH + sender.length, text);
+        crc.reset();
+        crc.update(log.slice(body, length));
+        log.putInt(position + 4, (int) crc.getValue());
+        log.putInt(position, length);
+        int sequence = count;
+        if (sequence == 0 || position - lastIndexedPosition >= INDEX_INTERVAL) {
+            int entry = indexCount;
+            index.putInt(INDEX_HEADER_LENGTH + entry * INDEX_ENTRY_LENGTH, sequence);
+            index.putInt(INDEX_HEADER_LENGTH + entry * INDEX_ENTRY_LENGTH + 4, position);
+            index.putInt(0, entry + 1);
+            indexCount = entry + 1;
+            lastIndexedPosition = position;
+        }
+        lastTimestamp = timestamp;
+        size = body + length;
+        count = sequence + 1;
+        return true;
+    }
+
+    /**
+     * Passes the records from a sequence number to a consumer, finding the first one through the index.
+     * Safe to call from any thread while the writer appends
+     *
+     * @param fromSequence the sequence number of the first record, the base sequence if it is before the segment
+     * @param limit        the maximum number of records
+     * @param consumer     the consumer of the records
+     * @return the number of records passed
+     */
+    public int read(long fromSequence, int limit, Consumer<HistoryRecord> consumer) {
+        int total = count;
+        int target = (int) Math.max(0, fromSequence - baseSequence);
+        if (target >= total || limit <= 0) {
+            return 0;
+        }
+        int low = 0;
+        int high = indexCount - 1;
+        int sequence = 0;
+        int position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entrySequence = index.getInt(INDEX_HEADER_LENGTH + middle * INDEX_ENTRY_LENGTH);
+            if (entrySequence <= target) {
+                sequence = entrySequence;
+                position = indexPosition(middle);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        for (; sequence < target; sequence++) {
+            position += RECORD_HEADER_LENGTH + log.getInt(position);
+        }
+        int passed = 0;
+        for (; sequence < total && passed < limit; sequence++, passed++) {
+            int length = log.getInt(position);
+            consumer.accept(readRecord(position + RECORD_HEADER_LENGTH, length));
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        return passed;
+    }
+
+    /**
+     * @param body   the position of the record after its length and checksum
+     * @param length the length of the record after its length and checksum
+     * @return the decoded record
+     */
+    private HistoryRecord readRecord(int body, int length) {
+        long timestamp = log.getLong(body);
+        byte[] sender = new byte[log.getShort(body + 8) & 0xFFFF];
+        byte[] text = new byte[length - RECORD_FIXED_LENGTH - sender.length];
+        log.get(body + RECORD_FIXED_LENGTH, sender);
+        log.get(body + RECORD_FIXED_LENGTH + sender.length, text);
+        return new HistoryRecord(timestamp,
+                new String(sender, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the records appended since the last call to the disk, with the index entries pointing to them
+     * Must be called by the history writer thread only
+     *
+     * @return true if something was written
+     */
+    public boolean force() {
+        int currentSize = size;
+        if (currentSize == forcedSize) {
+            return false;
+        }
+        log.force(forcedSize, currentSize - forcedSize);
+        forcedSize = currentSize;
+        int currentIndexCount = indexCount;
+        if (currentIndexCount != forcedIndexCount) {
+            index.force(0, INDEX_HEADER_LENGTH + currentIndexCount * INDEX_ENTRY_LENGTH);
+            forcedIndexCount = currentIndexCount;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the files of the segment. The readers that have already started keep reading the mapped records
+     *
+     * @throws IOException if a file can't be deleted
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    /**
+     * @return the sequence number of the first record
+     */
+    public long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * @return the number of records
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes of the records
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the timestamp of the last record, 0 if there are no records
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+}
@@ -0,0 +1,123 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the connections whose peers are gone without closing them, such as a laptop put to sleep or
+ * a connection dropped by a NAT. Every connection has a timer on a TimingWheel, so a tick costs the same
+ * however many connections there are. A client that has sent nothing for the heartbeat interval is pinged
+ * and is expected to answer with /pong, a client that has sent nothing for the idle timeout is disconnected.
+ * The text clients that have never sent /pong are not pinged, as they may not know the pings, and are disconnected
+ * after the longer legacy idle timeout instead. A connection that has not logged in within the login timeout
+ * is disconnected whatever it sends. The timer of a connection fires when the client may be due a ping or a disconnect, and the connection
+ * decides from the time it last received a message, so receiving a message never touches the wheel
+ */
+public class IdleReaper {
+    private static final int WHEEL_SLOTS = 512;
+
+    private final long heartbeatNanos;
+    private final long idleTimeoutNanos;
+    private final long legacyIdleTimeoutNanos;
+    private final long loginTimeoutNanos;
+    private final long checkNanos;
+    private final TimingWheel wheel;
+
+    /**
+     * Starts the thread of the timers unless all the limits are disabled
+     *
+     * @param heartbeatMillis         how long a client may send nothing before it is pinged in milliseconds,
+     *                                0 to not ping the clients
+     * @param idleTimeoutMillis       how long a pinged client may send nothing before it is disconnected
+     *                                in milliseconds, 0 to never disconnect the idle pinged clients
+     * @param legacyIdleTimeoutMillis how long a text client that is not pinged may send nothing before it is
+     *                                disconnected in milliseconds, 0 to never disconnect the idle text clients
+     * @param loginTimeoutMillis      how long a connection may stay without logging in in milliseconds,
+     *                                0 to never disconnect the clients that have not logged in
+     * @param tickMillis              the precision of the timers in milliseconds
+     * @param metrics                 the registry of the reaper metrics
+     */
+    public IdleReaper(long heartbeatMillis, long idleTimeoutMillis, long legacyIdleTimeoutMillis,
+                      long loginTimeoutMillis, long tickMillis, Metrics metrics) {
+        if (heartbeatMillis < 0 || idleTimeoutMillis < 0 || legacyIdleTimeoutMillis < 0 || loginTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Heartbeat interval and idle timeouts must not be negative");
+        }
+        if (heartbeatMillis > 0 && idleTimeoutMillis > 0 && heartbeatMillis >= idleTimeoutMillis) {
+            throw new IllegalArgumentException("Heartbeat interval must be shorter than the idle timeout");
+        }
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.legacyIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(legacyIdleTimeoutMillis);
+        this.loginTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(loginTimeoutMillis);
+        long shortest = Long.MAX_VALUE;
+        for (long limit : new long[]{heartbeatNanos, idleTimeoutNanos, legacyIdleTimeoutNanos, loginTimeoutNanos}) {
+            if (limit > 0) {
+                shortest = Math.min(shortest, limit);
+            }
+        }
+        this.checkNanos = shortest;
+        if (shortest < Long.MAX_VALUE) {
+            wheel = TimingWheel.start("idle-reaper", tickMillis, WHEEL_SLOTS);
+            metrics.gauge("idle.timers", wheel::size);
+        } else {
+            wheel = null;
+        }
+    }
+
+    /**
+     * Starts watching a new connection, noop if the reaper is disabled.
+     * The timer is to be cancelled when the connection is disconnected
+     *
+     * @param client the client of the connection
+     * @return the timer of the connection, null if the reaper is disabled
+     */
+    public TimingWheel.Timeout watch(ClientHandler client) {
+        return wheel == null ? null : wheel.schedule(client::checkIdle, getCheckNanos());
+    }
+
+    /**
+     * @return how often a connection is checked while none of the limits apply to it yet in nanoseconds
+     */
+    long getCheckNanos() {
+        return checkNanos;
+    }
+
+    /**
+     * @return how long a client may send nothing before it is pinged in nanoseconds, 0 if the clients are not pinged
+     */
+    public long getHeartbeatNanos() {
+        return heartbeatNanos;
+    }
+
+    /**
+     * @return how long a pinged client may send nothing before it is disconnected in nanoseconds,
+     * 0 if the idle pinged clients are never disconnected
+     */
+    public long getIdleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    /**
+     * @return how long a text client that is not pinged may send nothing before it is disconnected in nanoseconds,
+     * 0 if the idle text clients are never disconnected
+     */
+    public long getLegacyIdleTimeoutNanos() {
+        return legacyIdleTimeoutNanos;
+    }
+
+    /**
+     * @return how long a connection may stay without logging in in nanoseconds,
+     * 0 if the clients that have not logged in are never disconnected
+     */
+    public long getLoginTimeoutNanos() {
+        return loginTimeoutNanos;
+    }
+
+    /**
+     * Stops the thread of the timers
+     */
+    public void close() {
+        if (wheel != null) {
+            wheel.close();
+        }
+    }
+}
@@ -1,18 +1,24 @@
 package ru.otus.java.basic.chat.server;
 
+import ru.otus.java.basic.chat.protocol.AuthStatus;
+
 import java.util.ArrayList;
 import java.util.List;
 
 public class InMemoryAuthenticationProvider implements AuthenticationProvider {
+    private static final Logger logger = Log.getLogger(InMemoryAuthenticationProvider.class);
+
     private class User {
         private String login;
-        private String password;
+        private String passwordSaltedHash;
+        private String passwordSalt;
         private String username;
         private UserRole role;
 
         public User(String login, String password, String username, UserRole role) {
             this.login = login;
-            this.password = password;
+            this.passwordSalt = Passwords.generateSalt();
+            this.passwordSaltedHash = Passwords.getSaltedHash(password, passwordSalt);
             this.username = username;
             this.role = role;
         }
@@ -28,20 +34,21 @@ public class InMemoryAuthenticationProvider implements AuthenticationProvider {
         this.users.add(new User("user1", "pass1", "Ivanov", UserRole.ADMIN));
         this.users.add(new User("user2", "pass2", "Pertov", UserRole.USER));
         this.users.add(new User("user3", "pass3", "Sidoroff", UserRole.USER));
-        System.out.println("In-memory authentication service initialized.");
+        logger.info("In-memory authentication service initialized.");
     }
 
     /**
-     * Finds a User for a specific login and password combination
+     * Finds the credentials of a specific login
      *
-     * @param login    a login
-     * @param password a passoword
-     * @return a User if the login and password combination is found, null if no matches found
+     * @param login a login
+     * @return the credentials if the login is found, null otherwise
      */
-    private synchronized User getUserByLoginAndPassword(String login, String password) {
+    @Override
+    public synchronized UserCredentials findCredentials(String login) {
         for (User user : users) {
-            if (user.login.equals(login) && user.password.equals(password)) {
-                return user;
+            if (user.login.equals(login)) {
+                return new UserCredentials(user.passwordSaltedHash, user.passwordSalt,
+                        new UserProfile(user.username, user.role));
             }
         }
         return null;
@@ -78,27 +85,30 @@ public class InMemoryAuthenticationProvider implements AuthenticationProvider {
     }
 
     /**
-     * Authenticates and logs in a ClientHandler by a login and a password combination.
-     * Calls ClientHandler.login on a success, otherwise sends error messages to the client.
+     * @param username a username
+     * @return true if a user has the username
+     */
+    public synchronized boolean hasUsername(String username) {
+        return isUsernameExists(username);
+    }
+
+    /**
+     * Adds a user unless the login or the username is already taken
      *
-     * @param clientHandler the ClientHandler to authenticate
-     * @param login         the login
-     * @param password      the password
-     * @return true if authentication successful, false if the login or the password are incorrect,
-     * or if the user has already logged in
+     * @param login    a login
+     * @param password a password
+     * @param username a username
+     * @return null if the user is added, otherwise the reason for the client
      */
-    @Override
-    public synchronized boolean authenticate(ClientHandler clientHandler, String login, String password) {
-        User user = getUserByLoginAndPassword(login, password);
-        if (user == null) {
-            clientHandler.sendMessage("AUTH: Incorrect login/password");
-            return false;
+    private synchronized AuthStatus addUserIfAbsent(String login, String password, String username) {
+        if (isLoginExists(login)) {
+            return AuthStatus.LOGIN_TAKEN;
         }
-        clientHandler.sendMessage("AUTH: Authentication successful");
-        if (!clientHandler.login(new UserProfile(user.username, user.role))) {
-            return false;
+        if (isUsernameExists(username)) {
+            return AuthStatus.USERNAME_TAKEN;
         }
-        return true;
+        users.add(new User(login, password, username, UserRole.USER));
+        return null;
     }
 
     /**
@@ -113,21 +123,17 @@ public class InMemoryAuthenticationProvider implements AuthenticationProvider {
      * or if the username is already taken, or if the user has already logged in (which is an error)
      */
     @Override
-    public synchronized boolean register(ClientHandler clientHandler, String login, String password, String username) {
+    public boolean register(ClientHandler clientHandler, String login, String password, String username) {
         if (login.length() < 3 || password.length() < 6 || username.length() < 3) {
-            clientHandler.sendMessage("AUTH: Login must be 3+ symbols, password 6+ symbols, username 3+ symbols");
-            return false;
-        }
-        if (isLoginExists(login)) {
-            clientHandler.sendMessage("AUTH: Login is already taken");
+            clientHandler.sendAuthResult(AuthStatus.INVALID_FORMAT);
             return false;
         }
-        if (isUsernameExists(username)) {
-            clientHandler.sendMessage("AUTH: Username is already taken");
+        AuthStatus error = addUserIfAbsent(login, password, username);
+        if (error != null) {
+            clientHandler.sendAuthResult(error);
             return false;
         }
-        users.add(new User(login, password, username, UserRole.USER));
-        clientHandler.sendMessage("AUTH: Registration successful");
+        clientHandler.sendAuthResult(AuthStatus.REGISTERED);
         if (!clientHandler.login(new UserProfile(username, UserRole.USER))) {
             return false;
         }
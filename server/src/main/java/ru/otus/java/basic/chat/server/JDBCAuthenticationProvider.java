@@ -1,22 +1,62 @@
 package ru.otus.java.basic.chat.server;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.sql.*;
-import java.util.Base64;
-import java.util.Random;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
+import ru.otus.java.basic.chat.protocol.AuthStatus;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 
 public class JDBCAuthenticationProvider implements AuthenticationProvider {
-    private final Connection connection;
+    private static final Logger logger = Log.getLogger(JDBCAuthenticationProvider.class);
+
+    /**
+     * How the uniqueness of the login and the username is ensured on registration
+     */
+    public enum RegistrationMode {
+        /**
+         * Looks the login and the username up before inserting, three round-trips
+         */
+        CHECKED,
+        /**
+         * Inserts right away and maps the unique constraint violations of the table to the replies, one round-trip
+         */
+        INSERT
+    }
+
+    private static final String UNIQUE_VIOLATION_SQL_STATE = "23505";
+    private static final String FIND_CREDENTIALS_SQL =
+            "SELECT password_salted_hash, password_salt, name, role FROM authentication.user WHERE login = ?";
+    private static final String LOGIN_EXISTS_SQL = "SELECT 1 FROM authentication.user WHERE login = ?";
+    private static final String USERNAME_EXISTS_SQL = "SELECT 1 FROM authentication.user WHERE name = ?";
+    private static final String ADD_USER_SQL =
+            "INSERT INTO authentication.user (login, password_salted_hash, password_salt, name, role)"
+                    + "VALUES (?, ?, ?, ?, ?)";
+
+    private final ConnectionPool pool;
+    private final RegistrationMode registrationMode;
+    private final LatencyHistogram findCredentialsTime;
+    private final LatencyHistogram loginExistsTime;
+    private final LatencyHistogram usernameExistsTime;
+    private final LatencyHistogram addUserTime;
 
     /**
      * Creates an authentication provider based on PostgresSQL database.
-     * Establishes PostgresSQL connection based on environment variables:
+     * Establishes a pool of PostgresSQL connections based on environment variables:
      * OTUS_CHAT_DB_ADDR=address:port/database_name
      * OTUS_CHAT_DB_USER=database_user_name
      * OTUS_CHAT_DB_PWD=database_user_password
+     * OTUS_CHAT_DB_POOL_MIN=connections_kept_open (optional, 2 by default)
+     * OTUS_CHAT_DB_POOL_MAX=max_open_connections (optional, 10 by default)
+     * OTUS_CHAT_DB_POOL_TIMEOUT_MS=max_wait_for_a_connection (optional, 5000 by default)
+     * OTUS_CHAT_DB_POOL_IDLE_MS=idle_time_before_closing_extra_connections (optional, 600000 by default)
+     * OTUS_CHAT_DB_POOL_VALIDATE_MS=idle_time_before_validating_on_borrow (optional, 5000 by default)
+     * OTUS_CHAT_DB_REGISTRATION=checked|insert (optional, insert by default)
+     *
+     * @param metrics the registry of the connection pool and query metrics
      */
-    public JDBCAuthenticationProvider() {
+    public JDBCAuthenticationProvider(Metrics metrics) {
         String address = System.getenv("OTUS_CHAT_DB_ADDR");
         String user = System.getenv("OTUS_CHAT_DB_USER");
         String password = System.getenv("OTUS_CHAT_DB_PWD");
@@ -25,190 +65,263 @@ public class JDBCAuthenticationProvider implements AuthenticationProvider {
                     "are not set correctly");
         }
         try {
-            this.connection = DriverManager.getConnection("jdbc:postgresql://" + address, user, password);
+            this.pool = new ConnectionPool("jdbc:postgresql://" + address, user, password,
+                    getIntEnv("OTUS_CHAT_DB_POOL_MIN", 2),
+                    getIntEnv("OTUS_CHAT_DB_POOL_MAX", 10),
+                    getIntEnv("OTUS_CHAT_DB_POOL_TIMEOUT_MS", 5000),
+                    getIntEnv("OTUS_CHAT_DB_POOL_IDLE_MS", 600000),
+                    getIntEnv("OTUS_CHAT_DB_POOL_VALIDATE_MS", 5000),
+                    metrics);
+            pool.start();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+        String registrationMode = System.getenv("OTUS_CHAT_DB_REGISTRATION");
+        try {
+            this.registrationMode = registrationMode == null
+                    ? RegistrationMode.INSERT
+                    : RegistrationMode.valueOf(registrationMode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            pool.close();
+            throw new RuntimeException("Environment variable OTUS_CHAT_DB_REGISTRATION is invalid: " + registrationMode);
+        }
+        this.findCredentialsTime = metrics.histogram("db.query.find_credentials");
+        this.loginExistsTime = metrics.histogram("db.query.login_exists");
+        this.usernameExistsTime = metrics.histogram("db.query.username_exists");
+        this.addUserTime = metrics.histogram("db.query.add_user");
     }
 
     /**
-     * Calculates SHA-256 of two concatenated strings
+     * Reads an optional numeric environment variable
      *
-     * @param string     a string
-     * @param saltString another string
-     * @return Base64 encoding of SHA-256 of the concatenation of the two stings
+     * @param name         the variable name
+     * @param defaultValue the value if the variable is not set
+     * @return the value
      */
-    private String getSaltedHash(String string, String saltString) {
+    private static int getIntEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
         try {
-            return Base64.getEncoder().encodeToString(
-                    MessageDigest.getInstance("SHA-256").digest(
-                            (saltString + string).getBytes()
-                    )
-            );
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Environment variable " + name + " is not a number: " + value);
         }
     }
 
     /**
-     * Authenticates and logs in a ClientHandler by a login and a password combination.
-     * Calls ClientHandler.login on a success, otherwise sends error messages to the client.
+     * Looks up the stored password digest and the profile of a login
      *
-     * @param clientHandler the ClientHandler to authenticate
-     * @param login         the login
-     * @param password      the password
-     * @return true if authentication successful, false if the login or the password are incorrect,
-     * or if the user has already logged in
+     * @param login the login
+     * @return the credentials, null if the login is not found
+     * @throws AuthenticationProviderException in case of database failure
      */
     @Override
-    public synchronized boolean authenticate(ClientHandler clientHandler, String login, String password) {
-        try {
-            if (!isLoginPasswordMatch(login, password)) {
-                clientHandler.sendMessage("AUTH: Incorrect login/password");
-                return false;
+    public UserCredentials findCredentials(String login) throws AuthenticationProviderException {
+        try (PooledConnection connection = pool.acquire()) {
+            try {
+                return findCredentials(connection, login);
+            } catch (SQLException e) {
+                connection.failed(e);
+                throw e;
             }
-            clientHandler.sendMessage("AUTH: Authentication successful");
-            UserProfile profile = getUserProfile(login);
-            if (profile == null) {
-                clientHandler.sendMessage("AUTH: Profile not found");
-                return false;
-            }
-            if (!clientHandler.login(profile)) {
-                return false;
-            }
-            return true;
         } catch (SQLException e) {
-            clientHandler.sendMessage("AUTH: Internal database error");
-            e.printStackTrace();
-            return false;
+            throw new AuthenticationProviderException(e);
         }
     }
 
     /**
-     * Checks if login and password matches some database entry
+     * Fetches the password digest, the salt, the name and the role of a login in a single query
      *
-     * @param login    a login
-     * @param password a password
-     * @return true if match is found, false otherwise
-     * @throws SQLException in case of database failure
+     * @param connection a database connection
+     * @param login      a login
+     * @return the stored credentials, null if the login is not found
+     * @throws SQLException in case of database failure or if the stored role is corrupted
      */
-    private boolean isLoginPasswordMatch(String login, String password) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "SELECT password_salted_hash, password_salt FROM authentication.user WHERE login = ?"
-        )) {
+    private UserCredentials findCredentials(PooledConnection connection, String login) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement statement = connection.prepare(FIND_CREDENTIALS_SQL);
             statement.setString(1, login);
             try (ResultSet result = statement.executeQuery()) {
-                if (result.next()) {
-                    String password_salted_hash = result.getString(1);
-                    String password_salt = result.getString(2);
-                    if (password_salted_hash.equals(getSaltedHash(password, password_salt))) {
-                        return true;
-                    }
+                if (!result.next()) {
+                    return null;
                 }
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Creates a UserProfile based on the database entry for the specified login
-     *
-     * @param login a login
-     * @return new UserProfile
-     * @throws SQLException in case of database failure or if login not found
-     */
-    private UserProfile getUserProfile(String login) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "SELECT name, role FROM authentication.user WHERE login = ?"
-        )) {
-            statement.setString(1, login);
-            try (ResultSet result = statement.executeQuery()) {
-                if (result.next()) {
-                    String name = result.getString(1);
-                    String role = result.getString(2);
-                    UserRole userRole;
-                    try {
-                        userRole = UserRole.valueOf(role);
-                    } catch (IllegalArgumentException e) {
-                        throw new SQLException("Database entry for the user role is corrupted (login=" + login + ")");
-                    }
-                    return new UserProfile(name, userRole);
+                String passwordSaltedHash = result.getString(1);
+                String passwordSalt = result.getString(2);
+                String name = result.getString(3);
+                String role = result.getString(4);
+                UserRole userRole;
+                try {
+                    userRole = UserRole.valueOf(role);
+                } catch (IllegalArgumentException e) {
+                    throw new SQLException("Database entry for the user role is corrupted (login=" + login + ")");
                 }
+                return new UserCredentials(passwordSaltedHash, passwordSalt, new UserProfile(name, userRole));
             }
+        } finally {
+            findCredentialsTime.record(System.nanoTime() - start);
         }
-        throw new SQLException("User profile not found");
     }
 
     /**
      * Checks if a login already exists in the database
      *
-     * @param login a login to look up
+     * @param connection a database connection
+     * @param login      a login to look up
      * @return true if already exits, false otherwise
      * @throws SQLException in case of database failure
      */
-    private boolean isLoginExists(String login) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "SELECT 1 FROM authentication.user WHERE login = ?"
-        )) {
+    private boolean isLoginExists(PooledConnection connection, String login) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement statement = connection.prepare(LOGIN_EXISTS_SQL);
             statement.setString(1, login);
             try (ResultSet result = statement.executeQuery()) {
-                if (result.next()) {
-                    return true;
-                }
+                return result.next();
             }
+        } finally {
+            loginExistsTime.record(System.nanoTime() - start);
         }
-        return false;
     }
 
     /**
      * Checks if a username already exists in the database
      *
-     * @param username a username to look up
+     * @param connection a database connection
+     * @param username   a username to look up
      * @return true if already exits, false otherwise
      * @throws SQLException in case of database failure
      */
-    private boolean isUsernameExists(String username) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "SELECT 1 FROM authentication.user WHERE name = ?"
-        )) {
+    private boolean isUsernameExists(PooledConnection connection, String username) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement statement = connection.prepare(USERNAME_EXISTS_SQL);
             statement.setString(1, username);
             try (ResultSet result = statement.executeQuery()) {
-                if (result.next()) {
-                    return true;
-                }
+                return result.next();
             }
+        } finally {
+            usernameExistsTime.record(System.nanoTime() - start);
         }
-        return false;
     }
 
     /**
      * Adds user to the database
      *
-     * @param login    a login
-     * @param password a password
-     * @param username a username
-     * @param role     a name of a role
+     * @param connection a database connection
+     * @param login      a login
+     * @param password   a password
+     * @param username   a username
+     * @param role       a name of a role
      * @throws SQLException in case of database failure
      */
-    private void addUser(String login, String password, String username, UserRole role) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "INSERT INTO authentication.user (login, password_salted_hash, password_salt, name, role)"
-                        + "VALUES (?, ?, ?, ?, ?)"
-        )) {
-            String passwordSalt = new Random()
-                    .ints((int) 'A', (int) 'z')
-                    .limit(16)
-                    .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
-                    .toString();
+    private void addUser(PooledConnection connection, String login, String password, String username, UserRole role)
+            throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement statement = connection.prepare(ADD_USER_SQL);
+            String passwordSalt = Passwords.generateSalt();
             statement.setString(1, login);
-            statement.setString(2, getSaltedHash(password, passwordSalt));
+            statement.setString(2, Passwords.getSaltedHash(password, passwordSalt));
             statement.setString(3, passwordSalt);
             statement.setString(4, username);
             statement.setString(5, role.name());
             statement.executeUpdate();
+        } finally {
+            addUserTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds a user after checking that the login and the username are not taken
+     *
+     * @param connection a database connection
+     * @param login      a login
+     * @param password   a password
+     * @param username   a username
+     * @return null if the user is added, otherwise the reason for the client
+     * @throws SQLException in case of database failure
+     */
+    private AuthStatus addUserChecked(PooledConnection connection, String login, String password, String username)
+            throws SQLException {
+        if (isLoginExists(connection, login)) {
+            return AuthStatus.LOGIN_TAKEN;
+        }
+        if (isUsernameExists(connection, username)) {
+            return AuthStatus.USERNAME_TAKEN;
+        }
+        addUser(connection, login, password, username, UserRole.USER);
+        return null;
+    }
+
+    /**
+     * Adds a user relying on the UNIQUE (login) and UNIQUE (name) constraints of the table to reject taken values
+     *
+     * @param connection a database connection
+     * @param login      a login
+     * @param password   a password
+     * @param username   a username
+     * @return null if the user is added, otherwise the reason for the client
+     * @throws SQLException in case of database failure other than a violation of those constraints
+     */
+    private AuthStatus addUserOrMapViolation(PooledConnection connection, String login, String password, String username)
+            throws SQLException {
+        try {
+            addUser(connection, login, password, username, UserRole.USER);
+            return null;
+        } catch (SQLException e) {
+            if (!UNIQUE_VIOLATION_SQL_STATE.equals(e.getSQLState())) {
+                throw e;
+            }
+            String column = getViolatedColumn(e);
+            if ("login".equals(column)) {
+                return AuthStatus.LOGIN_TAKEN;
+            }
+            if ("name".equals(column)) {
+                return AuthStatus.USERNAME_TAKEN;
+            }
+            throw e;
         }
     }
 
+    /**
+     * Finds out which column a unique constraint violation is about, from the constraint name
+     * (user_login_key, user_name_key) or, if the server did not report it, from the "Key (column)=" detail
+     *
+     * @param e a unique constraint violation
+     * @return the column name, null if unknown
+     */
+    private static String getViolatedColumn(SQLException e) {
+        String text = e.getMessage();
+        if (e instanceof PSQLException psqlException) {
+            ServerErrorMessage serverError = psqlException.getServerErrorMessage();
+            if (serverError != null) {
+                if (serverError.getConstraint() != null) {
+                    String constraint = serverError.getConstraint();
+                    if (constraint.endsWith("_login_key")) {
+                        return "login";
+                    }
+                    if (constraint.endsWith("_name_key")) {
+                        return "name";
+                    }
+                }
+                text = serverError.getDetail();
+            }
+        }
+        if (text == null) {
+            return null;
+        }
+        if (text.contains("(login)")) {
+            return "login";
+        }
+        if (text.contains("(name)")) {
+            return "name";
+        }
+        return null;
+    }
+
     /**
      * Registers a username and logs in a ClientHandler, given the username and a login and a password combination.
      * Calls ClientHandler.login on a success, otherwise sends error messages to the client.
@@ -221,42 +334,48 @@ public class JDBCAuthenticationProvider implements AuthenticationProvider {
      * or if the username is already taken, or if the user has already logged in (which is an error)
      */
     @Override
-    public synchronized boolean register(ClientHandler clientHandler, String login, String password, String username) {
-        try {
-            if (login.length() < 3 || password.length() < 6 || username.length() < 3) {
-                clientHandler.sendMessage("AUTH: Login must be 3+ symbols, password 6+ symbols, username 3+ symbols");
-                return false;
-            }
-            if (isLoginExists(login)) {
-                clientHandler.sendMessage("AUTH: Login is already taken");
-                return false;
-            }
-            if (isUsernameExists(username)) {
-                clientHandler.sendMessage("AUTH: Username is already taken");
-                return false;
-            }
-            addUser(login, password, username, UserRole.USER);
-            clientHandler.sendMessage("AUTH: Registration successful");
-            if (!clientHandler.login(new UserProfile(username, UserRole.USER))) {
-                return false;
+    public boolean register(ClientHandler clientHandler, String login, String password, String username) {
+        if (login.length() < 3 || password.length() < 6 || username.length() < 3) {
+            clientHandler.sendAuthResult(AuthStatus.INVALID_FORMAT);
+            return false;
+        }
+        try (PooledConnection connection = pool.acquire()) {
+            try {
+                AuthStatus error = registrationMode == RegistrationMode.CHECKED
+                        ? addUserChecked(connection, login, password, username)
+                        : addUserOrMapViolation(connection, login, password, username);
+                if (error != null) {
+                    clientHandler.sendAuthResult(error);
+                    return false;
+                }
+            } catch (SQLException e) {
+                connection.failed(e);
+                throw e;
             }
-            return true;
         } catch (SQLException e) {
-            clientHandler.sendMessage("AUTH: Internal database error");
-            e.printStackTrace();
+            clientHandler.sendAuthResult(AuthStatus.INTERNAL_ERROR);
+            logger.error("Registration of the login {} failed", login, e);
+            return false;
+        }
+        clientHandler.sendAuthResult(AuthStatus.REGISTERED);
+        if (!clientHandler.login(new UserProfile(username, UserRole.USER))) {
             return false;
         }
+        return true;
     }
 
     /**
-     * Closes JDBC connection
-     *
-     * @throws SQLException in case of database failure
+     * @return the connection pool, shared with the offline message store
+     */
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Closes the connection pool
      */
     @Override
-    public void close() throws SQLException {
-        if (connection != null) {
-            connection.close();
-        }
+    public void close() {
+        pool.close();
     }
 }
@@ -0,0 +1,227 @@
+package ru.otus.java.basic.chat.server;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline messages in the authentication.offline_message table of the JDBCAuthenticationProvider database.
+ * A batch is a query of the number of messages stored for its recipients, then a single JDBC batch of inserts
+ * sent in one round-trip, each insert skipped unless the recipient is in the authentication.user table.
+ * The messages of a recipient are deleted and returned by one statement, the expired ones by another
+ */
+public class JDBCOfflineMessageStore extends OfflineMessageStore {
+    private static final String INSERT_SQL =
+            "INSERT INTO authentication.offline_message (recipient, sender, text, sent_at) "
+                    + "SELECT ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM authentication.user WHERE name = ?)";
+    private static final String COUNT_SQL =
+            "SELECT u.name, (SELECT count(*) FROM authentication.offline_message m WHERE m.recipient = u.name) "
+                    + "FROM authentication.user u WHERE u.name = ANY (?)";
+    private static final String EXPIRE_SQL = "DELETE FROM authentication.offline_message WHERE sent_at < ?";
+    private static final String TAKE_SQL =
+            "DELETE FROM authentication.offline_message WHERE recipient = ? "
+                    + "RETURNING message_id, sender, text, sent_at";
+
+    private record Row(long id, OfflineMessage message) {
+    }
+
+    private final ConnectionPool pool;
+    private final LatencyHistogram insertTime;
+    private final LatencyHistogram takeTime;
+    private final LatencyHistogram expireTime;
+
+    /**
+     * Creates the store on the connection pool of the authentication provider
+     *
+     * @param pool             the connection pool, closed by the authentication provider
+     * @param batchSize        the maximum number of messages inserted at once
+     * @param flushDelayMillis the longest time a message waits for the batch to fill up
+     * @param capacity         the maximum number of messages waiting to be inserted
+     * @param maxPerRecipient  the maximum number of messages kept for a recipient
+     * @param ttlMillis        how long a message is kept in milliseconds
+     * @param metrics          the registry of the store metrics
+     */
+    public JDBCOfflineMessageStore(ConnectionPool pool, int batchSize, long flushDelayMillis, int capacity,
+                                   int maxPerRecipient, long ttlMillis, Metrics metrics) {
+        super(batchSize, flushDelayMillis, capacity, maxPerRecipient, ttlMillis, metrics);
+        this.pool = pool;
+        this.insertTime = metrics.histogram("db.query.insert_offline_messages");
+        this.takeTime = metrics.histogram("db.query.take_offline_messages");
+        this.expireTime = metrics.histogram("db.query.expire_offline_messages");
+    }
+
+    /**
+     * Noop, the connection pool is opened by the authentication provider
+     */
+    @Override
+    protected void openStorage() {
+    }
+
+    /**
+     * Inserts a batch in one transaction, so that a failure leaves none of its messages stored
+     */
+    @Override
+    protected Result[] write(List<OfflineMessage> batch) throws OfflineMessageStoreException {
+        long start = System.nanoTime();
+        try (PooledConnection connection = pool.acquire()) {
+            try {
+                return insert(connection, batch);
+            } catch (SQLException e) {
+                connection.failed(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new OfflineMessageStoreException(e);
+        } finally {
+            insertTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param connection a database connection
+     * @param batch      the messages
+     * @return for every message, STORED, UNKNOWN_RECIPIENT or RECIPIENT_FULL
+     * @throws SQLException in case of database failure, the transaction is rolled back then
+     */
+    private Result[] insert(PooledConnection connection, List<OfflineMessage> batch) throws SQLException {
+        Connection jdbc = connection.getConnection();
+        jdbc.setAutoCommit(false);
+        PreparedStatement statement = null;
+        try {
+            Map<String, Integer> counts = countStored(connection, batch);
+            Result[] results = new Result[batch.size()];
+            List<Integer> inserted = new ArrayList<>(batch.size());
+            statement = connection.prepare(INSERT_SQL);
+            for (int i = 0; i < results.length; i++) {
+                OfflineMessage message = batch.get(i);
+                Integer count = counts.get(message.recipient());
+                if (count == null) {
+                    results[i] = Result.UNKNOWN_RECIPIENT;
+                    continue;
+                }
+                if (count >= getMaxPerRecipient()) {
+                    results[i] = Result.RECIPIENT_FULL;
+                    continue;
+                }
+                counts.put(message.recipient(), count + 1);
+                statement.setString(1, message.recipient());
+                statement.setString(2, message.sender());
+                statement.setString(3, message.text());
+                statement.setTimestamp(4, new Timestamp(message.timestamp()));
+                statement.setString(5, message.recipient());
+                statement.addBatch();
+                inserted.add(i);
+            }
+            int[] insertCounts = inserted.isEmpty() ? new int[0] : statement.executeBatch();
+            jdbc.commit();
+            for (int i = 0; i < insertCounts.length; i++) {
+                boolean stored = insertCounts[i] > 0 || insertCounts[i] == Statement.SUCCESS_NO_INFO;
+                results[inserted.get(i)] = stored ? Result.STORED : Result.UNKNOWN_RECIPIENT;
+            }
+            return results;
+        } catch (SQLException e) {
+            if (statement != null) {
+                statement.clearBatch();
+            }
+            try {
+                jdbc.rollback();
+            } catch (SQLException rollbackException) {
+                e.addSuppressed(rollbackException);
+            }
+            throw e;
+        } finally {
+            jdbc.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * @param connection a database connection
+     * @param batch      the messages
+     * @return the number of messages stored for each recipient of the batch, without the unknown recipients
+     * @throws SQLException in case of database failure
+     */
+    private static Map<String, Integer> countStored(PooledConnection connection, List<OfflineMessage> batch)
+            throws SQLException {
+        String[] recipients = batch.stream().map(OfflineMessage::recipient).distinct().toArray(String[]::new);
+        Array names = connection.getConnection().createArrayOf("text", recipients);
+        try {
+            PreparedStatement statement = connection.prepare(COUNT_SQL);
+            statement.setArray(1, names);
+            Map<String, Integer> counts = new HashMap<>();
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    counts.put(result.getString(1), result.getInt(2));
+                }
+            }
+            return counts;
+        } finally {
+            names.free();
+        }
+    }
+
+    @Override
+    protected List<OfflineMessage> remove(String recipient) throws OfflineMessageStoreException {
+        long start = System.nanoTime();
+        try (PooledConnection connection = pool.acquire()) {
+            try {
+                PreparedStatement statement = connection.prepare(TAKE_SQL);
+                statement.setString(1, recipient);
+                List<Row> rows = new ArrayList<>();
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        rows.add(new Row(result.getLong(1), new OfflineMessage(recipient, result.getString(2),
+                                result.getString(3), result.getTimestamp(4).getTime())));
+                    }
+                }
+                rows.sort(Comparator.comparingLong(Row::id));
+                List<OfflineMessage> messages = new ArrayList<>(rows.size());
+                for (Row row : rows) {
+                    messages.add(row.message());
+                }
+                return messages;
+            } catch (SQLException e) {
+                connection.failed(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new OfflineMessageStoreException(e);
+        } finally {
+            takeTime.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    protected int expire(long cutoff) throws OfflineMessageStoreException {
+        long start = System.nanoTime();
+        try (PooledConnection connection = pool.acquire()) {
+            try {
+                PreparedStatement statement = connection.prepare(EXPIRE_SQL);
+                statement.setTimestamp(1, new Timestamp(cutoff));
+                return statement.executeUpdate();
+            } catch (SQLException e) {
+                connection.failed(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new OfflineMessageStoreException(e);
+        } finally {
+            expireTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Noop, the pool is left to the authentication provider
+     */
+    @Override
+    protected void closeStorage() {
+    }
+}
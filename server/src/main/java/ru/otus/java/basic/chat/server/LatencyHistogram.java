@@ -0,0 +1,113 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in microseconds with a relative error of about 3%.
+ * Values below 32 have a bucket each, larger values are grouped into 16 buckets per power of two
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(LINEAR_BUCKETS + (63 - 5) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucketOf(micros));
+        count.increment();
+        total.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * @param micros a latency in microseconds
+     * @return the index of the bucket the latency belongs to
+     */
+    private static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int mantissa = (int) (micros >>> (exponent - SUB_BUCKET_BITS));
+        return LINEAR_BUCKETS + (exponent - 5) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    /**
+     * @param bucket an index of a bucket
+     * @return the largest latency in microseconds that belongs to the bucket
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 5;
+        long mantissa = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean latency in microseconds, 0 if nothing is recorded
+     */
+    public long getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+
+    /**
+     * @return the maximum latency in microseconds
+     */
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Finds the latency below which a fraction of the recorded latencies fall
+     *
+     * @param percentile the fraction, from 0 to 100
+     * @return the latency in microseconds, 0 if nothing is recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            n += buckets.get(i);
+        }
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanMicros() + "us"
+                + ", p50=" + getPercentileMicros(50) + "us"
+                + ", p90=" + getPercentileMicros(90) + "us"
+                + ", p99=" + getPercentileMicros(99) + "us"
+                + ", p99.9=" + getPercentileMicros(99.9) + "us"
+                + ", max=" + getMaxMicros() + "us";
+    }
+}
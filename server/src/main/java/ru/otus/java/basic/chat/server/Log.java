@@ -0,0 +1,68 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * The level and the appender shared by all the loggers.
+ * Until configured, messages of INFO level and above are printed to the standard output by the logging threads
+ */
+public final class Log {
+    private static volatile LogLevel level = LogLevel.INFO;
+    private static volatile LogAppender appender = new ConsoleLogAppender(System.out);
+
+    private Log() {
+    }
+
+    /**
+     * Creates a logger named after a class
+     *
+     * @param type the class
+     * @return a new logger
+     */
+    public static Logger getLogger(Class<?> type) {
+        return new Logger(type.getSimpleName());
+    }
+
+    /**
+     * Replaces the level and the appender, the previous appender is closed
+     *
+     * @param level    the minimum level of the logged messages
+     * @param appender the appender
+     */
+    public static void configure(LogLevel level, LogAppender appender) {
+        LogAppender previous = Log.appender;
+        Log.appender = appender;
+        Log.level = level;
+        previous.close();
+    }
+
+    /**
+     * @param level the minimum level of the logged messages, OFF to log nothing
+     */
+    public static void setLevel(LogLevel level) {
+        Log.level = level;
+    }
+
+    /**
+     * Writes the pending messages of the appender and closes it, the messages logged afterwards are printed
+     * to the standard output by the logging threads
+     */
+    public static void shutdown() {
+        LogAppender previous = appender;
+        appender = new ConsoleLogAppender(System.out);
+        previous.close();
+    }
+
+    /**
+     * @param level a level
+     * @return true if the messages of the level are logged
+     */
+    static boolean isEnabled(LogLevel level) {
+        return level.compareTo(Log.level) >= 0;
+    }
+
+    /**
+     * @param event an event to pass to the appender
+     */
+    static void append(LogEvent event) {
+        appender.append(event);
+    }
+}
@@ -0,0 +1,19 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * A destination of log events
+ */
+public interface LogAppender {
+    /**
+     * Writes an event or passes it on to be written, may be called from any thread
+     *
+     * @param event the event
+     */
+    void append(LogEvent event);
+
+    /**
+     * Writes the pending events and releases the resources of the appender
+     */
+    default void close() {
+    }
+}
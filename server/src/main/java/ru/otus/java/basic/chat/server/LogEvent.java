@@ -0,0 +1,55 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * A log message that is not formatted yet. The pattern and the arguments are kept as they are,
+ * so the arguments must not change after logging
+ *
+ * @param timestamp  the time of logging in milliseconds since the epoch
+ * @param level      the level
+ * @param logger     the name of the logger
+ * @param thread     the name of the logging thread
+ * @param pattern    the message, each {} is replaced by the next argument
+ * @param arguments  the arguments, the last one is printed as a stack trace if it is a Throwable left
+ *                   without a placeholder
+ */
+public record LogEvent(long timestamp, LogLevel level, String logger, String thread,
+                       String pattern, Object[] arguments) {
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /**
+     * Formats the event as a line, followed by the stack trace of the exception if there is one
+     *
+     * @param builder the builder to append the text to
+     */
+    public void formatTo(StringBuilder builder) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(timestamp), builder);
+        builder.append(' ').append(level.name());
+        for (int i = level.name().length(); i < 5; i++) {
+            builder.append(' ');
+        }
+        builder.append(" [").append(thread).append("] ").append(logger).append(" - ");
+        int argument = 0;
+        int start = 0;
+        while (true) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0 || argument == arguments.length) {
+                break;
+            }
+            builder.append(pattern, start, placeholder).append(arguments[argument++]);
+            start = placeholder + 2;
+        }
+        builder.append(pattern, start, pattern.length()).append(System.lineSeparator());
+        if (argument < arguments.length && arguments[arguments.length - 1] instanceof Throwable throwable) {
+            StringWriter stackTrace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(stackTrace));
+            builder.append(stackTrace);
+        }
+    }
+}
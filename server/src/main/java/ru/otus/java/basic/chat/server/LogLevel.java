@@ -0,0 +1,31 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * Severity of log messages, in increasing order
+ */
+public enum LogLevel {
+    /**
+     * Every message received and sent
+     */
+    TRACE,
+    /**
+     * Connections, logins and other events of a single client
+     */
+    DEBUG,
+    /**
+     * Events of the server as a whole
+     */
+    INFO,
+    /**
+     * Problems the server recovers from
+     */
+    WARN,
+    /**
+     * Failures
+     */
+    ERROR,
+    /**
+     * Nothing is logged, only valid as the level of the log
+     */
+    OFF
+}
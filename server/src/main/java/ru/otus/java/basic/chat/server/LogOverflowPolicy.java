@@ -0,0 +1,19 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * What an AsyncLogAppender does when its buffer is full
+ */
+public enum LogOverflowPolicy {
+    /**
+     * Discard the new message and count it, the logging thread never waits
+     */
+    DROP,
+    /**
+     * Discard the new message unless it is a warning or an error, which wait for free space
+     */
+    DROP_BELOW_WARN,
+    /**
+     * Wait for free space, no message is lost
+     */
+    BLOCK
+}
@@ -0,0 +1,229 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * A named source of log messages. The messages below the level of the log are discarded before
+ * anything is allocated, the rest are formatted by the appender of the log, see Log.
+ * The message patterns use {} placeholders for the arguments, an exception passed as the extra last
+ * argument is printed with its stack trace
+ */
+public final class Logger {
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private final String name;
+
+    /**
+     * Creates a logger, use Log.getLogger
+     *
+     * @param name the name shown in the messages
+     */
+    Logger(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return true if the messages of TRACE level are logged
+     */
+    public boolean isTraceEnabled() {
+        return Log.isEnabled(LogLevel.TRACE);
+    }
+
+    /**
+     * @return true if the messages of DEBUG level are logged
+     */
+    public boolean isDebugEnabled() {
+        return Log.isEnabled(LogLevel.DEBUG);
+    }
+
+    /**
+     * Logs a message of TRACE level
+     *
+     * @param message the message
+     */
+    public void trace(String message) {
+        if (Log.isEnabled(LogLevel.TRACE)) {
+            log(LogLevel.TRACE, message, NO_ARGUMENTS);
+        }
+    }
+
+    /**
+     * Logs a message of TRACE level
+     *
+     * @param pattern  the message pattern
+     * @param argument the argument
+     */
+    public void trace(String pattern, Object argument) {
+        if (Log.isEnabled(LogLevel.TRACE)) {
+            log(LogLevel.TRACE, pattern, new Object[]{argument});
+        }
+    }
+
+    /**
+     * Logs a message of TRACE level
+     *
+     * @param pattern the message pattern
+     * @param first   the first argument
+     * @param second  the second argument
+     */
+    public void trace(String pattern, Object first, Object second) {
+        if (Log.isEnabled(LogLevel.TRACE)) {
+            log(LogLevel.TRACE, pattern, new Object[]{first, second});
+        }
+    }
+
+    /**
+     * Logs a message of TRACE level
+     *
+     * @param pattern   the message pattern
+     * @param arguments the arguments
+     */
+    public void trace(String pattern, Object... arguments) {
+        if (Log.isEnabled(LogLevel.TRACE)) {
+            log(LogLevel.TRACE, pattern, arguments);
+        }
+    }
+
+    /**
+     * Logs a message of DEBUG level
+     *
+     * @param message the message
+     */
+    public void debug(String message) {
+        if (Log.isEnabled(LogLevel.DEBUG)) {
+            log(LogLevel.DEBUG, message, NO_ARGUMENTS);
+        }
+    }
+
+    /**
+     * Logs a message of DEBUG level
+     *
+     * @param pattern  the message pattern
+     * @param argument the argument
+     */
+    public void debug(String pattern, Object argument) {
+        if (Log.isEnabled(LogLevel.DEBUG)) {
+            log(LogLevel.DEBUG, pattern, new Object[]{argument});
+        }
+    }
+
+    /**
+     * Logs a message of DEBUG level
+     *
+     * @param pattern   the message pattern
+     * @param arguments the arguments
+     */
+    public void debug(String pattern, Object... arguments) {
+        if (Log.isEnabled(LogLevel.DEBUG)) {
+            log(LogLevel.DEBUG, pattern, arguments);
+        }
+    }
+
+    /**
+     * Logs a message of INFO level
+     *
+     * @param message the message
+     */
+    public void info(String message) {
+        if (Log.isEnabled(LogLevel.INFO)) {
+            log(LogLevel.INFO, message, NO_ARGUMENTS);
+        }
+    }
+
+    /**
+     * Logs a message of INFO level
+     *
+     * @param pattern  the message pattern
+     * @param argument the argument
+     */
+    public void info(String pattern, Object argument) {
+        if (Log.isEnabled(LogLevel.INFO)) {
+            log(LogLevel.INFO, pattern, new Object[]{argument});
+        }
+    }
+
+    /**
+     * Logs a message of INFO level
+     *
+     * @param pattern   the message pattern
+     * @param arguments the arguments
+     */
+    public void info(String pattern, Object... arguments) {
+        if (Log.isEnabled(LogLevel.INFO)) {
+            log(LogLevel.INFO, pattern, arguments);
+        }
+    }
+
+    /**
+     * Logs a message of WARN level
+     *
+     * @param message the message
+     */
+    public void warn(String message) {
+        if (Log.isEnabled(LogLevel.WARN)) {
+            log(LogLevel.WARN, message, NO_ARGUMENTS);
+        }
+    }
+
+    /**
+     * Logs a message of WARN level
+     *
+     * @param pattern  the message pattern
+     * @param argument the argument
+     */
+    public void warn(String pattern, Object argument) {
+        if (Log.isEnabled(LogLevel.WARN)) {
+            log(LogLevel.WARN, pattern, new Object[]{argument});
+        }
+    }
+
+    /**
+     * Logs a message of WARN level
+     *
+     * @param pattern   the message pattern
+     * @param arguments the arguments
+     */
+    public void warn(String pattern, Object... arguments) {
+        if (Log.isEnabled(LogLevel.WARN)) {
+            log(LogLevel.WARN, pattern, arguments);
+        }
+    }
+
+    /**
+     * Logs a message of ERROR level
+     *
+     * @param message the message
+     */
+    public void error(String message) {
+        if (Log.isEnabled(LogLevel.ERROR)) {
+            log(LogLevel.ERROR, message, NO_ARGUMENTS);
+        }
+    }
+
+    /**
+     * Logs a message of ERROR level
+     *
+     * @param pattern  the message pattern
+     * @param argument the argument
+     */
+    public void error(String pattern, Object argument) {
+        if (Log.isEnabled(LogLevel.ERROR)) {
+            log(LogLevel.ERROR, pattern, new Object[]{argument});
+        }
+    }
+
+    /**
+     * Logs a message of ERROR level
+     *
+     * @param pattern   the message pattern
+     * @param arguments the arguments
+     */
+    public void error(String pattern, Object... arguments) {
+        if (Log.isEnabled(LogLevel.ERROR)) {
+            log(LogLevel.ERROR, pattern, arguments);
+        }
+    }
+
+    private void log(LogLevel level, String pattern, Object[] arguments) {
+        Log.append(new LogEvent(System.currentTimeMillis(), level, name, Thread.currentThread().getName(),
+                pattern, arguments));
+    }
+}
@@ -0,0 +1,103 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and latency histograms. The instruments are looked up once and kept in fields
+ * by the code that records them, the registry is only consulted to read all of them
+ */
+public class Metrics {
+    private final Map<String, Object> instruments = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the counter of a name, creating it on first use
+     *
+     * @param name the name
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        return register(name, Counter.class, new Counter());
+    }
+
+    /**
+     * Returns the histogram of a name, creating it on first use
+     *
+     * @param name the name
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return register(name, LatencyHistogram.class, new LatencyHistogram());
+    }
+
+    /**
+     * Registers a value computed when the metrics are read, replacing the gauge of the same name
+     *
+     * @param name  the name
+     * @param gauge the function computing the value
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        Object previous = instruments.put(name, gauge);
+        if (previous != null && !(previous instanceof LongSupplier)) {
+            instruments.put(name, previous);
+            throw new IllegalArgumentException("Metric " + name + " is not a gauge");
+        }
+    }
+
+    private <T> T register(String name, Class<T> type, T instrument) {
+        Object existing = instruments.putIfAbsent(name, instrument);
+        if (existing == null) {
+            return instrument;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(existing);
+    }
+
+    /**
+     * Reads all the metrics. A histogram is expanded into its count, mean, percentiles and maximum
+     * in microseconds, named after the histogram with a suffix
+     *
+     * @return the values by name, sorted by name
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        instruments.forEach((name, instrument) -> {
+            if (instrument instanceof Counter counter) {
+                values.put(name, counter.get());
+            } else if (instrument instanceof LongSupplier gauge) {
+                values.put(name, gauge.getAsLong());
+            } else if (instrument instanceof LatencyHistogram histogram) {
+                values.put(name + ".count", histogram.getCount());
+                values.put(name + ".mean_us", histogram.getMeanMicros());
+                values.put(name + ".p50_us", histogram.getPercentileMicros(50));
+                values.put(name + ".p99_us", histogram.getPercentileMicros(99));
+                values.put(name + ".max_us", histogram.getMaxMicros());
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Reads all the metrics as lines of text, the histograms in a single line each
+     *
+     * @return the lines "name: value", sorted by name
+     */
+    public List<String> report() {
+        Map<String, Object> sorted = new TreeMap<>(instruments);
+        List<String> lines = new ArrayList<>(sorted.size());
+        sorted.forEach((name, instrument) -> {
+            if (instrument instanceof LongSupplier gauge) {
+                lines.add(name + ": " + gauge.getAsLong());
+            } else {
+                lines.add(name + ": " + instrument);
+            }
+        });
+        return lines;
+    }
+}
@@ -0,0 +1,128 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding and decoding of the frames produced by DataOutputStream.writeUTF and consumed by DataInputStream.readUTF:
+ * an unsigned 16-bit big-endian length followed by the modified UTF-8 bytes of the string
+ */
+public final class ModifiedUtf8 {
+    /**
+     * The size of the length prefix in bytes
+     */
+    public static final int HEADER_LENGTH = 2;
+    /**
+     * The maximum length of the encoded string in bytes
+     */
+    public static final int MAX_LENGTH = 65535;
+
+    private ModifiedUtf8() {
+    }
+
+    /**
+     * Calculates the length of a string in modified UTF-8
+     *
+     * @param string a string
+     * @return the number of bytes without the length prefix
+     */
+    public static int encodedLength(String string) {
+        int length = string.length();
+        int encodedLength = length;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                encodedLength += c >= 0x800 ? 2 : 1;
+            }
+        }
+        return encodedLength;
+    }
+
+    /**
+     * Encodes a string into a frame with the length prefix, same as DataOutputStream.writeUTF would write
+     *
+     * @param string a string to encode
+     * @return a new byte array with the frame
+     * @throws UTFDataFormatException if the encoded string is longer than 65535 bytes
+     */
+    public static byte[] encode(String string) throws UTFDataFormatException {
+        int encodedLength = encodedLength(string);
+        if (encodedLength > MAX_LENGTH) {
+            throw new UTFDataFormatException("Encoded string is too long: " + encodedLength + " bytes");
+        }
+        byte[] frame = new byte[HEADER_LENGTH + encodedLength];
+        frame[0] = (byte) (encodedLength >>> 8);
+        frame[1] = (byte) encodedLength;
+        int position = HEADER_LENGTH;
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c != 0 && c < 0x80) {
+                frame[position++] = (byte) c;
+            } else if (c < 0x800) {
+                frame[position++] = (byte) (0xC0 | (c >> 6));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[position++] = (byte) (0xE0 | (c >> 12));
+                frame[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Decodes a frame from the buffer if it contains the whole frame, the buffer must be in read mode.
+     * On success the buffer position is moved past the frame, otherwise the position is left unchanged
+     *
+     * @param buffer a buffer to read from
+     * @return the decoded string, null if the buffer does not contain the whole frame yet
+     * @throws UTFDataFormatException if the frame is malformed
+     */
+    public static String decode(ByteBuffer buffer) throws UTFDataFormatException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        int encodedLength = ((buffer.get(start) & 0xFF) << 8) | (buffer.get(start + 1) & 0xFF);
+        if (buffer.remaining() < HEADER_LENGTH + encodedLength) {
+            return null;
+        }
+        char[] chars = new char[encodedLength];
+        int count = 0;
+        int position = start + HEADER_LENGTH;
+        int end = position + encodedLength;
+        while (position < end) {
+            int b = buffer.get(position) & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                position++;
+            } else if ((b & 0xE0) == 0xC0) {
+                if (position + 2 > end) {
+                    throw new UTFDataFormatException("Malformed input: partial character at end");
+                }
+                int b2 = buffer.get(position + 1);
+                if ((b2 & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("Malformed input around byte " + (position - start));
+                }
+                chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                position += 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                if (position + 3 > end) {
+                    throw new UTFDataFormatException("Malformed input: partial character at end");
+                }
+                int b2 = buffer.get(position + 1);
+                int b3 = buffer.get(position + 2);
+                if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("Malformed input around byte " + (position - start));
+                }
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                position += 3;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + (position - start));
+            }
+        }
+        buffer.position(end);
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,316 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.BinaryMessage;
+import ru.otus.java.basic.chat.protocol.BinaryProtocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioClientHandler extends ClientHandler {
+    private static final Logger logger = Log.getLogger(NioClientHandler.class);
+    private static final int INITIAL_READ_BUFFER_SIZE = 256;
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private ProtocolVersion outboundVersion = ProtocolVersion.V1;
+    private byte[] currentFrame;
+    private int currentFrameOffset;
+    private ByteBuffer unwritten;
+    private volatile boolean closing;
+
+    /**
+     * Creates a handler for a non-blocking channel, the channel is not served until start is called.
+     * All reads, command processing and writes of the connection happen on the event loop thread
+     *
+     * @param server    the Server which accepted the connection
+     * @param channel   the non-blocking SocketChannel of the connection
+     * @param eventLoop the event loop serving the connection
+     */
+    public NioClientHandler(Server server, SocketChannel channel, NioEventLoop eventLoop) {
+        super(server);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Registers the channel with the event loop
+     */
+    @Override
+    public void start() {
+        super.start();
+        eventLoop.execute(this::register);
+    }
+
+    /**
+     * Registers the channel with the selector of the event loop for reading
+     */
+    private void register() {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, server.getConfig().isTcpNoDelay());
+            key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+            logger.debug("Client connection established (id:{}).", id);
+        } catch (IOException e) {
+            connectionLost();
+            disconnect();
+        }
+    }
+
+    /**
+     * Reads available bytes from the channel and handles every complete frame received so far,
+     * in the protocol the client has switched to
+     */
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                connectionLost();
+                disconnect();
+                return;
+            }
+            metrics.bytesIn.add(read);
+            readBuffer.flip();
+            while (!closing) {
+                if (protocolVersion == ProtocolVersion.V1) {
+                    String message = ModifiedUtf8.decode(readBuffer);
+                    if (message == null) {
+                        break;
+                    }
+                    handleMessage(message);
+                } else {
+                    BinaryMessage message = BinaryProtocol.decode(readBuffer);
+                    if (message == null) {
+                        break;
+                    }
+                    handleBinaryMessage(message);
+                }
+            }
+            readBuffer.compact();
+            ensureReadBufferCapacity();
+        } catch (IOException e) {
+            connectionLost();
+            disconnect();
+        } catch (TerminateClientException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Grows the read buffer if the frame being received does not fit into it, and shrinks it back
+     * once the long frames are consumed, so that a connection does not keep a large buffer for good
+     *
+     * @throws IOException if the length of the frame is invalid, or too long for the client
+     */
+    private void ensureReadBufferCapacity() throws IOException {
+        int frameLength;
+        if (protocolVersion == ProtocolVersion.V1) {
+            frameLength = readBuffer.position() < ModifiedUtf8.HEADER_LENGTH ? -1 : ModifiedUtf8.HEADER_LENGTH
+                    + (((readBuffer.get(0) & 0xFF) << 8) | (readBuffer.get(1) & 0xFF));
+        } else {
+            frameLength = BinaryProtocol.frameLength(readBuffer.duplicate().flip());
+        }
+        if (frameLength > getMaxFrameLength()) {
+            throw new ProtocolException("Frame of " + frameLength + " bytes is too long");
+        }
+        if (frameLength > readBuffer.capacity()) {
+            resizeReadBuffer(frameLength);
+        } else if (readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE
+                && Math.max(frameLength, readBuffer.position()) <= INITIAL_READ_BUFFER_SIZE) {
+            resizeReadBuffer(INITIAL_READ_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Replaces the read buffer with a buffer of another capacity, keeping the bytes received so far
+     *
+     * @param capacity the capacity, not less than the number of bytes received
+     */
+    private void resizeReadBuffer(int capacity) {
+        ByteBuffer resized = ByteBuffer.allocate(capacity);
+        readBuffer.flip();
+        resized.put(readBuffer);
+        readBuffer = resized;
+    }
+
+    /**
+     * Continues writing the pending messages once the channel is writable again
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Schedules a flush on the event loop unless one is already scheduled or waiting for OP_WRITE
+     */
+    @Override
+    protected void onMessageQueued() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes the pending messages until the channel can't accept more, in which case waits for OP_WRITE.
+     * The messages are coalesced into the write buffer of the event loop, so that a client receiving many messages
+     * gets them in as few writes as the flush policy allows. The bytes the channel did not accept are kept
+     * to be written first next time, as the write buffer is shared.
+     * Closes the channel once everything is written if the connection is closing.
+     * Must be called on the event loop thread
+     */
+    private void flush() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            while (true) {
+                while (unwritten != null || currentFrame != null || nextFrame()) {
+                    ByteBuffer buffer = fillWriteBuffer();
+                    int written = channel.write(buffer);
+                    metrics.bytesOut.add(written);
+                    metrics.flushes.increment();
+                    if (buffer.hasRemaining()) {
+                        unwritten = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                flushScheduled.set(false);
+                if (outboundQueue.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    break;
+                }
+            }
+            if (closing && outboundQueue.isEmpty()) {
+                closeChannel();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to send the message to the client id:{}", id, e);
+            boolean disconnected = closing;
+            closeChannel();
+            if (!disconnected) {
+                disconnect();
+            }
+        }
+    }
+
+    /**
+     * Copies the bytes left from the previous write and the pending messages into the write buffer of the event loop
+     * until the buffer or one of the flush limits is full. A message that does not fit is continued by the next write
+     *
+     * @return the write buffer ready to be written
+     */
+    private ByteBuffer fillWriteBuffer() {
+        ByteBuffer buffer = eventLoop.getWriteBuffer();
+        buffer.clear().limit(Math.min(buffer.capacity(), flushPolicy.maxBytes()));
+        if (unwritten != null) {
+            buffer.put(unwritten);
+            unwritten = null;
+        }
+        int messages = currentFrame == null ? 0 : 1;
+        while (buffer.hasRemaining()) {
+            if (currentFrame == null) {
+                if (messages == flushPolicy.maxMessages() || !nextFrame()) {
+                    break;
+                }
+                messages++;
+            }
+            int length = Math.min(currentFrame.length - currentFrameOffset, buffer.remaining());
+            buffer.put(currentFrame, currentFrameOffset, length);
+            currentFrameOffset += length;
+            if (currentFrameOffset == currentFrame.length) {
+                currentFrame = null;
+                currentFrameOffset = 0;
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Takes the next message from the outbound queue and encodes it in the protocol the client has switched to,
+     * skipping the messages that can't be encoded
+     *
+     * @return true if there is a message to write, false if the queue is empty
+     */
+    private boolean nextFrame() {
+        Frame frame;
+        while ((frame = outboundQueue.poll()) != null) {
+            try {
+                currentFrame = frame.encode(outboundVersion);
+            } catch (IOException e) {
+                logger.warn("Failed to send the message to the client id:{}", id, e);
+                continue;
+            }
+            if (frame.getProtocolSwitch() != null) {
+                outboundVersion = frame.getProtocolSwitch();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops reading from the client and closes the channel after the pending messages are written
+     */
+    @Override
+    protected void closeConnection() {
+        closing = true;
+        outboundQueue.close();
+        eventLoop.execute(this::flush);
+    }
+
+    /**
+     * Discards the pending messages, closes the channel and disconnects the client on the event loop
+     */
+    @Override
+    protected void abortConnection() {
+        outboundQueue.close();
+        eventLoop.execute(() -> {
+            closeChannel();
+            disconnect();
+        });
+    }
+
+    /**
+     * Drops the connection after an unexpected failure while handling its readiness.
+     * Must be called on the event loop thread
+     *
+     * @param failure the failure
+     */
+    void fail(RuntimeException failure) {
+        logger.error("Unexpected failure of the client id:{}, disconnecting", id, failure);
+        try {
+            closeChannel();
+            disconnect();
+        } catch (RuntimeException e) {
+            logger.error("Failed to disconnect the client id:{}", id, e);
+        }
+    }
+
+    /**
+     * Cancels the selection key and closes the channel, dropping messages not written yet
+     */
+    private void closeChannel() {
+        closing = true;
+        outboundQueue.close();
+        outboundQueue.clear();
+        currentFrame = null;
+        unwritten = null;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Error while disconnecting the client id:{}", id, e);
+        }
+    }
+}
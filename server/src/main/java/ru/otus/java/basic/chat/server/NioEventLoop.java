@@ -0,0 +1,124 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioEventLoop implements Runnable {
+    private static final Logger logger = Log.getLogger(NioEventLoop.class);
+
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(ModifiedUtf8.HEADER_LENGTH + ModifiedUtf8.MAX_LENGTH);
+    private volatile Thread thread;
+
+    /**
+     * Creates an event loop with its own selector, the loop is not running until start is called
+     *
+     * @param name a name of the event loop thread
+     * @throws IOException if the selector cannot be opened
+     */
+    public NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the event loop thread
+     */
+    public void start() {
+        Thread loop = new Thread(this, name);
+        thread = loop;
+        loop.start();
+    }
+
+    /**
+     * @return the selector the channels of this event loop are registered with
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Returns the buffer the frames are copied to before being written to a channel.
+     * Shared by all the channels of the event loop, so it may only be used on the event loop thread
+     *
+     * @return the write buffer
+     */
+    public ByteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * @return true if called from the event loop thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Schedules a task to be run on the event loop thread, wakes the selector up if necessary
+     *
+     * @param task a task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Waits for the ready channels, dispatches read and write readiness to the attached NioClientHandlers
+     * and runs the scheduled tasks. A handler that throws is disconnected, so that the failure of one connection
+     * does not stop the others served by the loop
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                wakeupPending.set(false);
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    NioClientHandler clientHandler = (NioClientHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            clientHandler.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            clientHandler.onWritable();
+                        }
+                    } catch (RuntimeException e) {
+                        key.cancel();
+                        clientHandler.fail(e);
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Event loop task failed", e);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Event loop selector error", e);
+                return;
+            }
+        }
+    }
+}
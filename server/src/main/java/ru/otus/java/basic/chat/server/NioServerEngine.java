@@ -0,0 +1,56 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class NioServerEngine implements ServerEngine {
+    private static final Logger logger = Log.getLogger(NioServerEngine.class);
+
+    private final int eventLoopCount;
+
+    /**
+     * Creates a non-blocking engine, where connections are served by a fixed set of event loop threads
+     *
+     * @param eventLoopCount a number of event loop threads
+     */
+    public NioServerEngine(int eventLoopCount) {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("Event loop count must be positive");
+        }
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    /**
+     * Starts the event loops and opens the server socket channel on the specified port number
+     * Accepts connections, switches them to non-blocking mode and assigns them to the event loops in turn
+     *
+     * @param server the Server the connections belong to
+     * @param port   a port number for the server socket
+     * @throws IOException if the server socket channel or the selectors can't be opened
+     */
+    @Override
+    public void start(Server server, int port) throws IOException {
+        NioEventLoop[] eventLoops = new NioEventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new NioEventLoop("nio-event-loop-" + i);
+            eventLoops[i].start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            logger.info("Server started on port: {} (NIO, {} event loops)", port, eventLoopCount);
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    new NioClientHandler(server, channel, eventLoops[next]).start();
+                    next = (next + 1) % eventLoopCount;
+                } catch (IOException e) {
+                    logger.warn("Failed to establish connection with a client", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * A private message to a user who was offline when it was sent
+ *
+ * @param recipient the username of the recipient
+ * @param sender    the username of the sender
+ * @param text      the text of the message
+ * @param timestamp the time the message was sent, in milliseconds since the epoch
+ */
+public record OfflineMessage(String recipient, String sender, String text, long timestamp) {
+}
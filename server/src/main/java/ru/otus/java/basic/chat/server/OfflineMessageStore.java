@@ -0,0 +1,383 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the private messages to offline users until they log in. The senders' threads only put the messages
+ * into a bounded buffer, and a single flusher thread writes them to the storage in batches, waiting a little
+ * for a batch to fill up, so that a burst of messages costs a write per batch rather than per message.
+ * The sender learns the outcome through a callback once the batch is written.
+ * Taking the messages of a recipient writes the buffered ones first, so none of the messages stored
+ * before the recipient logged in is left behind.
+ * A recipient has a limited number of messages kept, and the messages older than the time to live
+ * are deleted by the flusher thread once a minute, so the storage does not grow with the users who never log in
+ */
+public abstract class OfflineMessageStore implements AutoCloseable {
+    private static final Logger logger = Log.getLogger(OfflineMessageStore.class);
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final long EXPIRY_CHECK_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * The outcome of storing a message
+     */
+    public enum Result {
+        /**
+         * The message is stored until the recipient logs in
+         */
+        STORED,
+        /**
+         * There is no user with the username of the recipient, the message is discarded
+         */
+        UNKNOWN_RECIPIENT,
+        /**
+         * The recipient has too many messages stored already, the message is discarded
+         */
+        RECIPIENT_FULL,
+        /**
+         * The buffer is full or the storage has failed, the message is discarded
+         */
+        FAILED
+    }
+
+    private record PendingMessage(OfflineMessage message, Consumer<Result> callback) {
+    }
+
+    private final int batchSize;
+    private final long flushDelayNanos;
+    private final int capacity;
+    private final int maxPerRecipient;
+    private final long ttlMillis;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition batchFull = lock.newCondition();
+    private final Lock writeLock = new ReentrantLock();
+    private final Metrics metrics;
+    private final Counter stored;
+    private final Counter unknown;
+    private final Counter full;
+    private final Counter failed;
+    private final Counter delivered;
+    private final Counter expired;
+    private final Counter batches;
+    private final LatencyHistogram batchTime;
+    private List<PendingMessage> buffer = new ArrayList<>();
+    private boolean closed;
+    private volatile Thread flusher;
+
+    /**
+     * Creates the store, the storage is not opened until start is called
+     *
+     * @param batchSize        the maximum number of messages written at once
+     * @param flushDelayMillis the longest time a message waits for the batch to fill up
+     * @param capacity         the maximum number of messages waiting to be written
+     * @param maxPerRecipient  the maximum number of messages kept for a recipient
+     * @param ttlMillis        how long a message is kept in milliseconds
+     * @param metrics          the registry of the store metrics
+     */
+    protected OfflineMessageStore(int batchSize, long flushDelayMillis, int capacity, int maxPerRecipient,
+                                  long ttlMillis, Metrics metrics) {
+        if (batchSize < 1 || flushDelayMillis < 0 || capacity < 1 || maxPerRecipient < 1 || ttlMillis < 1) {
+            throw new IllegalArgumentException("Offline message batch, capacity and limits must be positive");
+        }
+        this.batchSize = batchSize;
+        this.flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(flushDelayMillis);
+        this.capacity = capacity;
+        this.maxPerRecipient = maxPerRecipient;
+        this.ttlMillis = ttlMillis;
+        this.metrics = metrics;
+        this.stored = metrics.counter("offline.stored");
+        this.unknown = metrics.counter("offline.unknown_recipient");
+        this.full = metrics.counter("offline.recipient_full");
+        this.failed = metrics.counter("offline.failed");
+        this.delivered = metrics.counter("offline.delivered");
+        this.expired = metrics.counter("offline.expired");
+        this.batches = metrics.counter("offline.batches");
+        this.batchTime = metrics.histogram("offline.batch_time");
+    }
+
+    /**
+     * Opens the storage, registers the gauge of the pending messages and starts the flusher thread
+     */
+    public void start() {
+        openStorage();
+        metrics.gauge("offline.pending", this::getPendingCount);
+        Thread thread = Thread.ofPlatform().name("offline-flusher").daemon().unstarted(this::run);
+        flusher = thread;
+        thread.start();
+    }
+
+    /**
+     * @return the maximum number of messages kept for a recipient
+     */
+    protected int getMaxPerRecipient() {
+        return maxPerRecipient;
+    }
+
+    /**
+     * @return the timestamp before which the messages have expired
+     */
+    protected long getExpiryCutoff() {
+        return System.currentTimeMillis() - ttlMillis;
+    }
+
+    /**
+     * Writes a batch of messages to the storage, skipping the ones to unknown users and to the users
+     * who have getMaxPerRecipient messages stored already
+     *
+     * @param batch the messages in the order they were sent
+     * @return for every message, STORED, UNKNOWN_RECIPIENT or RECIPIENT_FULL
+     * @throws OfflineMessageStoreException if the storage fails, none of the messages is considered stored then
+     */
+    protected abstract Result[] write(List<OfflineMessage> batch) throws OfflineMessageStoreException;
+
+    /**
+     * Removes the stored messages of a recipient from the storage
+     *
+     * @param recipient the username of the recipient
+     * @return the messages in the order they were sent
+     * @throws OfflineMessageStoreException if the storage fails, the messages are kept then
+     */
+    protected abstract List<OfflineMessage> remove(String recipient) throws OfflineMessageStoreException;
+
+    /**
+     * Deletes the messages sent before a cutoff and frees the space they took
+     *
+     * @param cutoff the timestamp before which the messages have expired
+     * @return the number of messages deleted
+     * @throws OfflineMessageStoreException if the storage fails
+     */
+    protected abstract int expire(long cutoff) throws OfflineMessageStoreException;
+
+    /**
+     * Opens the storage before the flusher thread is started
+     */
+    protected abstract void openStorage();
+
+    /**
+     * Releases the storage after the last batch is written
+     */
+    protected abstract void closeStorage();
+
+    /**
+     * Buffers a message to be written with the next batch, never waits for the storage
+     *
+     * @param message  the message
+     * @param callback receives the outcome on the flusher thread, or right away if the buffer is full
+     */
+    public void store(OfflineMessage message, Consumer<Result> callback) {
+        lock.lock();
+        try {
+            if (!closed && buffer.size() < capacity) {
+                buffer.add(new PendingMessage(message, callback));
+                if (buffer.size() == 1) {
+                    notEmpty.signal();
+                }
+                if (buffer.size() == batchSize) {
+                    batchFull.signal();
+                }
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        failed.increment();
+        notify(callback, Result.FAILED);
+    }
+
+    /**
+     * Removes and returns the messages stored for a recipient, including the ones still in the buffer
+     *
+     * @param recipient the username of the recipient
+     * @return the messages in the order they were sent, without the expired ones, empty if the storage fails
+     */
+    public List<OfflineMessage> takeAll(String recipient) {
+        writeLock.lock();
+        try {
+            flush();
+            List<OfflineMessage> messages = remove(recipient);
+            long cutoff = getExpiryCutoff();
+            List<OfflineMessage> current = new ArrayList<>(messages.size());
+            for (OfflineMessage message : messages) {
+                if (message.timestamp() >= cutoff) {
+                    current.add(message);
+                }
+            }
+            expired.add(messages.size() - current.size());
+            delivered.add(current.size());
+            return current;
+        } catch (OfflineMessageStoreException e) {
+            logger.error("Failed to read the offline messages of {}", recipient, e);
+            return List.of();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a batch to fill up or for the delay of its first message to pass, then writes it,
+     * until the store is closed and the buffer is empty. Deletes the expired messages once a minute
+     */
+    private void run() {
+        long nextExpiry = System.nanoTime() + EXPIRY_CHECK_NANOS;
+        while (true) {
+            boolean pending;
+            lock.lock();
+            try {
+                long wait;
+                while (buffer.isEmpty() && !closed && (wait = nextExpiry - System.nanoTime()) > 0) {
+                    try {
+                        notEmpty.awaitNanos(wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (buffer.isEmpty() && closed) {
+                    return;
+                }
+                pending = !buffer.isEmpty();
+                long nanos = flushDelayNanos;
+                while (pending && buffer.size() < batchSize && !closed && nanos > 0) {
+                    try {
+                        nanos = batchFull.awaitNanos(nanos);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            writeLock.lock();
+            try {
+                if (pending) {
+                    flush();
+                }
+                if (System.nanoTime() - nextExpiry >= 0) {
+                    expireNow();
+                    nextExpiry = System.nanoTime() + EXPIRY_CHECK_NANOS;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes the expired messages from the storage. Must be called holding the write lock
+     */
+    private void expireNow() {
+        try {
+            expired.add(expire(getExpiryCutoff()));
+        } catch (OfflineMessageStoreException e) {
+            logger.error("Failed to delete the expired offline messages", e);
+        }
+    }
+
+    /**
+     * Writes everything buffered, in batches, and notifies the senders. Must be called holding the write lock
+     */
+    private void flush() {
+        List<PendingMessage> pending;
+        lock.lock();
+        try {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            pending = buffer;
+            buffer = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        for (int from = 0; from < pending.size(); from += batchSize) {
+            writeBatch(pending.subList(from, Math.min(from + batchSize, pending.size())));
+        }
+    }
+
+    /**
+     * Writes a batch of messages and notifies their senders
+     *
+     * @param pending the messages with their callbacks
+     */
+    private void writeBatch(List<PendingMessage> pending) {
+        List<OfflineMessage> batch = new ArrayList<>(pending.size());
+        for (PendingMessage message : pending) {
+            batch.add(message.message());
+        }
+        long start = System.nanoTime();
+        Result[] written;
+        try {
+            written = write(batch);
+        } catch (OfflineMessageStoreException e) {
+            logger.error("Failed to store {} offline messages", batch.size(), e);
+            written = null;
+        }
+        batches.increment();
+        batchTime.record(System.nanoTime() - start);
+        for (int i = 0; i < pending.size(); i++) {
+            Result result = written == null ? Result.FAILED : written[i];
+            switch (result) {
+                case STORED -> stored.increment();
+                case UNKNOWN_RECIPIENT -> unknown.increment();
+                case RECIPIENT_FULL -> full.increment();
+                case FAILED -> failed.increment();
+            }
+            notify(pending.get(i).callback(), result);
+        }
+    }
+
+    private static void notify(Consumer<Result> callback, Result result) {
+        try {
+            callback.accept(result);
+        } catch (RuntimeException e) {
+            logger.error("Offline message callback failed", e);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return buffer.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered messages, stops the flusher thread, waiting for it for a few seconds at most,
+     * and releases the storage
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+            batchFull.signal();
+        } finally {
+            lock.unlock();
+        }
+        Thread thread = flusher;
+        if (thread != null) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeLock.lock();
+        try {
+            flush();
+            closeStorage();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ru.otus.java.basic.chat.server;
+
+public class OfflineMessageStoreException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The offline message store failed to access its storage
+     *
+     * @param cause the underlying failure
+     */
+    public OfflineMessageStoreException(Throwable cause) {
+        super(cause);
+    }
+}
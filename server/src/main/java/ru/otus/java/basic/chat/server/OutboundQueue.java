@@ -0,0 +1,209 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class OutboundQueue<T> {
+    private final ArrayDeque<T> items = new ArrayDeque<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final long maxStallNanos;
+    private long stalledSince;
+    private long droppedCount;
+    private boolean closed;
+
+    /**
+     * Creates a bounded queue of messages waiting to be written to a client
+     *
+     * @param capacity       the maximum number of pending messages
+     * @param policy         what to do when the queue is full
+     * @param maxStallMillis for the DISCONNECT policy, the longest time the pending messages may wait
+     *                       without the consumer taking any of them, 0 to disable the check
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy, long maxStallMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.maxStallNanos = TimeUnit.MILLISECONDS.toNanos(maxStallMillis);
+    }
+
+    /**
+     * Adds a message to the queue applying the slow consumer policy if the queue is full.
+     * Messages offered after the queue is closed are ignored
+     *
+     * @param item a message
+     * @return false if the consumer is too slow and must be disconnected, true otherwise
+     */
+    public boolean offer(T item) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (items.isEmpty()) {
+                stalledSince = System.nanoTime();
+            } else if (policy == SlowConsumerPolicy.DISCONNECT && maxStallNanos > 0
+                    && System.nanoTime() - stalledSince > maxStallNanos) {
+                return false;
+            }
+            if (items.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        items.poll();
+                        droppedCount++;
+                    }
+                    case DROP_NEWEST -> {
+                        droppedCount++;
+                        return true;
+                    }
+                    case DISCONNECT -> {
+                        return false;
+                    }
+                }
+            }
+            items.add(item);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next message, waiting for one if the queue is empty
+     *
+     * @return the next message, null if the queue is closed and there are no more messages
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next message if there is one
+     *
+     * @return the next message, null if the queue is empty
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next message, waiting for one for a limited time if the queue is empty
+     *
+     * @param timeoutNanos the maximum time to wait in nanoseconds
+     * @return the next message, null if none arrived in time or if the queue is closed and there are no more messages
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (items.isEmpty()) {
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T dequeue() {
+        stalledSince = System.nanoTime();
+        return items.poll();
+    }
+
+    /**
+     * Stops accepting new messages, the messages already queued can still be taken
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the queue no longer accepts new messages
+     */
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all the pending messages
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            items.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if there are no pending messages
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of pending messages
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages discarded by the slow consumer policy
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the messages of large rooms on several threads. The members of a room are split into shards
+ * by client id and every shard is served by its own single thread, so a client receives the messages
+ * of a room in the order they were broadcast. A sender waits if a shard falls too far behind
+ */
+public class ParallelFanout {
+    private static final Logger logger = Log.getLogger(ParallelFanout.class);
+    private static final int SHARD_QUEUE_CAPACITY = 1024;
+
+    private final ExecutorService[] shards;
+    private final int threshold;
+
+    /**
+     * Creates and starts the fan-out threads
+     *
+     * @param threads   the number of threads, one per shard
+     * @param threshold the smallest room delivered in parallel
+     */
+    public ParallelFanout(int threads, int threshold) {
+        if (threads < 1 || threshold < 1) {
+            throw new IllegalArgumentException("Fan-out threads and threshold must be positive");
+        }
+        this.threshold = threshold;
+        this.shards = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(SHARD_QUEUE_CAPACITY),
+                    Thread.ofPlatform().name("fanout-" + i).daemon().factory(),
+                    ParallelFanout::waitForQueue);
+        }
+    }
+
+    /**
+     * Puts a task into the queue of a shard once there is room for it, keeping the order of the tasks
+     *
+     * @param task     the task
+     * @param executor the executor of the shard
+     */
+    private static void waitForQueue(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Fan-out is stopped");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the fan-out queue", e);
+        }
+    }
+
+    /**
+     * @param roomSize the number of members of a room
+     * @return true if the messages of the room should be delivered in parallel
+     */
+    public boolean isParallel(int roomSize) {
+        return roomSize >= threshold;
+    }
+
+    /**
+     * @return the number of shards to split the rooms into
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Queues a message to the members of every shard on the thread of the shard
+     *
+     * @param members the members of a room split by ChatRoom.shards(getShardCount())
+     * @param frame   the message
+     */
+    public void deliver(ClientHandler[][] members, Frame frame) {
+        for (int i = 0; i < members.length; i++) {
+            ClientHandler[] shard = members[i];
+            if (shard.length == 0) {
+                continue;
+            }
+            try {
+                shards[i].execute(() -> {
+                    for (ClientHandler client : shard) {
+                        client.sendFrame(frame);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.warn("Failed to deliver a message to {} clients", shard.length, e);
+            }
+        }
+    }
+
+    /**
+     * Stops the fan-out threads, the messages not delivered yet are discarded
+     */
+    public void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdownNow();
+        }
+    }
+}
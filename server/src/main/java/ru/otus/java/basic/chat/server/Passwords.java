@@ -0,0 +1,41 @@
+package ru.otus.java.basic.chat.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Random;
+
+public final class Passwords {
+    private Passwords() {
+    }
+
+    /**
+     * Calculates SHA-256 of two concatenated strings
+     *
+     * @param string     a string
+     * @param saltString another string
+     * @return Base64 encoding of SHA-256 of the concatenation of the two stings
+     */
+    public static String getSaltedHash(String string, String saltString) {
+        try {
+            return Base64.getEncoder().encodeToString(
+                    MessageDigest.getInstance("SHA-256").digest(
+                            (saltString + string).getBytes()
+                    )
+            );
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return a random salt of 16 letters and punctuation characters
+     */
+    public static String generateSalt() {
+        return new Random()
+                .ints((int) 'A', (int) 'z')
+                .limit(16)
+                .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
+                .toString();
+    }
+}
@@ -0,0 +1,251 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection this node sends its relay messages to another node through, the other node answers
+ * through its own connection to this node. The senders only queue the messages, a writer thread writes
+ * everything pending with a single flush, so the messages are batched and nobody waits for the peer.
+ * The writer reconnects when the connection is lost, starting every connection by answering the CHALLENGE
+ * of the peer with HELLO, then sending SYNC;
+ * the messages sent while the peer is disconnected are dropped
+ */
+public class PeerLink {
+    private static final Logger logger = Log.getLogger(PeerLink.class);
+    /**
+     * The longest wait for the other side of a connection during the handshake
+     */
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int HANDSHAKE_MAX_LENGTH = 1024;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long PING_INTERVAL_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_BATCH = 1024;
+    private static final int SYNC_CHUNK = 1000;
+
+    private final ClusterPeer peer;
+    private final BlockingQueue<RelayMessage> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedChat = new AtomicInteger();
+    private final int queueCapacity;
+    private final Counter sent;
+    private final Counter dropped;
+    private final Counter flushes;
+    private ClusterNode node;
+    private volatile Thread writer;
+    private volatile Socket socket;
+    private volatile boolean connected;
+    private volatile boolean closed;
+
+    /**
+     * @param peer          the node to connect to
+     * @param queueCapacity the maximum number of chat messages waiting to be written
+     * @param metrics       the registry of the cluster metrics
+     */
+    public PeerLink(ClusterPeer peer, int queueCapacity, Metrics metrics) {
+        this.peer = peer;
+        this.queueCapacity = queueCapacity;
+        this.sent = metrics.counter("cluster.sent");
+        this.dropped = metrics.counter("cluster.dropped");
+        this.flushes = metrics.counter("cluster.flushes");
+    }
+
+    /**
+     * Starts the writer thread connecting to the peer
+     *
+     * @param node this node
+     */
+    public void start(ClusterNode node) {
+        this.node = node;
+        Thread thread = Thread.ofPlatform().name("cluster-out-" + peer.nodeId()).daemon().unstarted(this::run);
+        writer = thread;
+        thread.start();
+    }
+
+    /**
+     * Queues a message to the peer, never waits
+     *
+     * @param message the message
+     * @return false if the peer is disconnected, or too far behind for a chat message, and the message is dropped
+     */
+    public boolean send(RelayMessage message) {
+        if (!connected) {
+            return false;
+        }
+        if (!message.getType().isControl() && queuedChat.incrementAndGet() > queueCapacity) {
+            queuedChat.decrementAndGet();
+            dropped.increment();
+            return false;
+        }
+        queue.add(message);
+        return true;
+    }
+
+    /**
+     * @return true if the connection to the peer is established
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the peer
+     */
+    public ClusterPeer getPeer() {
+        return peer;
+    }
+
+    /**
+     * Connects to the peer and writes the queued messages until the link is closed
+     */
+    private void run() {
+        boolean wasConnected = true;
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                connection.connect(new InetSocketAddress(peer.host(), peer.port()), CONNECT_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                RelayMessage challenge = RelayMessage.read(new DataInputStream(connection.getInputStream()),
+                        HANDSHAKE_MAX_LENGTH);
+                if (challenge.getType() != RelayMessage.Type.CHALLENGE || !challenge.field(0).equals(peer.nodeId())) {
+                    throw new IOException("Unexpected handshake " + challenge + " from the cluster peer " + peer);
+                }
+                OutputStream output = new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE);
+                discardQueued();
+                connected = true;
+                wasConnected = true;
+                output.write(RelayMessage.of(RelayMessage.Type.HELLO, node.getNodeId(),
+                        node.sign(challenge.field(1), node.getNodeId(), peer.nodeId())).encode());
+                writeSync(output);
+                writeRevocations(output);
+                output.flush();
+                logger.info("Connected to the cluster peer {}", peer);
+                pump(output);
+            } catch (IOException e) {
+                if (connected) {
+                    logger.warn("Lost the connection to the cluster peer {}", peer, e);
+                } else if (wasConnected) {
+                    logger.info("Cluster peer {} is not reachable, retrying every {} ms", peer, RECONNECT_MILLIS);
+                }
+                wasConnected = false;
+            } finally {
+                if (connected) {
+                    connected = false;
+                    node.nodeDown(peer.nodeId());
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Discards the messages left from the previous connection, the SYNC of the new one brings the directory
+     * of the peer up to date
+     */
+    private void discardQueued() {
+        List<RelayMessage> stale = new ArrayList<>();
+        queue.drainTo(stale);
+        queuedChat.addAndGet(-(int) stale.stream().filter(message -> !message.getType().isControl()).count());
+    }
+
+    /**
+     * Writes the usernames of the users of this node in chunks
+     *
+     * @param output the stream of the connection
+     * @throws IOException if the connection fails
+     */
+    private void writeSync(OutputStream output) throws IOException {
+        List<String> usernames = node.getLocalUsernames();
+        for (int from = 0; from < usernames.size(); from += SYNC_CHUNK) {
+            List<String> chunk = usernames.subList(from, Math.min(from + SYNC_CHUNK, usernames.size()));
+            output.write(RelayMessage.of(RelayMessage.Type.SYNC, chunk.toArray(new String[0])).encode());
+        }
+    }
+
+    /**
+     * Writes the revocations of the resume tokens in force, so that a peer that was disconnected
+     * when a user was kicked or has exited does not accept the tokens of the user
+     *
+     * @param output the stream of the connection
+     * @throws IOException if the connection fails
+     */
+    private void writeRevocations(OutputStream output) throws IOException {
+        for (Map.Entry<String, Long> revocation : node.getRevocations().entrySet()) {
+            output.write(RelayMessage.of(RelayMessage.Type.REVOKE, revocation.getKey(),
+                    Long.toString(revocation.getValue())).encode());
+        }
+    }
+
+    /**
+     * Writes the queued messages, everything pending at once, and a PING when there is nothing to write
+     *
+     * @param output the stream of the connection
+     * @throws IOException if the connection fails
+     */
+    private void pump(OutputStream output) throws IOException {
+        List<RelayMessage> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed) {
+            RelayMessage first;
+            try {
+                first = queue.poll(PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                output.write(RelayMessage.of(RelayMessage.Type.PING).encode());
+                output.flush();
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, MAX_BATCH - 1);
+            int chat = 0;
+            for (RelayMessage message : batch) {
+                output.write(message.encode());
+                if (!message.getType().isControl()) {
+                    chat++;
+                }
+            }
+            queuedChat.addAndGet(-chat);
+            output.flush();
+            flushes.increment();
+            sent.add(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops the writer thread and closes the connection, the queued messages are discarded
+     */
+    public void close() {
+        closed = true;
+        Thread thread = writer;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                logger.debug("Error while closing the connection to the cluster peer {}", peer, e);
+            }
+        }
+    }
+}
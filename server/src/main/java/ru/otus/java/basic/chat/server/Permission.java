@@ -0,0 +1,22 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * Actions a user role may be allowed to perform, each one is a bit of the role's permission mask
+ */
+public enum Permission {
+    WHISPER,
+    KICK,
+    EXIT,
+    STATS,
+    ROOMS,
+    HISTORY;
+
+    private final long mask = 1L << ordinal();
+
+    /**
+     * @return the bit of the permission
+     */
+    public long getMask() {
+        return mask;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.otus.java.basic.chat.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection borrowed from a ConnectionPool, closing it returns the connection to the pool
+ */
+public class PooledConnection implements AutoCloseable {
+    private static final Logger logger = Log.getLogger(PooledConnection.class);
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private long releasedAt = System.nanoTime();
+    private boolean broken;
+    private boolean returned;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    /**
+     * @return the underlying JDBC connection, must not be closed directly
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns a prepared statement for the SQL, preparing it only on the first use with this connection.
+     * The statement stays open while the connection is in the pool, so it must not be closed by the caller
+     *
+     * @param sql an SQL statement
+     * @return the cached prepared statement
+     * @throws SQLException in case of database failure
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Marks the connection to be discarded instead of being returned to the pool
+     * if the exception means the connection itself is no longer usable:
+     * a connection exception, the server shutting down or terminating the session, or the connection closed
+     *
+     * @param e an exception thrown while using the connection
+     */
+    public void failed(SQLException e) {
+        String sqlState = e.getSQLState();
+        if (sqlState == null || sqlState.startsWith("08") || sqlState.startsWith("57P")) {
+            broken = true;
+            return;
+        }
+        try {
+            broken = connection.isClosed();
+        } catch (SQLException closedCheckException) {
+            broken = true;
+        }
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    long getReleasedAt() {
+        return releasedAt;
+    }
+
+    /**
+     * Called by the pool when the connection is handed out again
+     */
+    void borrowed() {
+        returned = false;
+    }
+
+    void closeQuietly() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Error while closing a database connection", e);
+        }
+    }
+
+    /**
+     * Returns the connection to the pool, noop if it has been returned already
+     */
+    @Override
+    public void close() {
+        if (returned) {
+            return;
+        }
+        returned = true;
+        releasedAt = System.nanoTime();
+        pool.release(this);
+    }
+}
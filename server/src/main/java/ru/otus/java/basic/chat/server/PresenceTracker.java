@@ -0,0 +1,224 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gathers the users entering and leaving the rooms into a notice per room and kind of change per time window,
+ * so that a mass reconnect costs a broadcast per window rather than per user. The window starts with the first
+ * change after a quiet period. A user coming and going within a window cancels out.
+ * A few users are named in a notice, more are counted. The clients that have turned on /presence also get
+ * the exact list of the users that have come and gone
+ */
+public class PresenceTracker {
+    private static final Logger logger = Log.getLogger(PresenceTracker.class);
+
+    /**
+     * Kinds of the presence changes with the text of their notices
+     */
+    public enum Change {
+        ENTERED(true, "has entered the chat", "have entered the chat"),
+        LEFT(false, "has left the chat", "have left the chat"),
+        JOINED_ROOM(true, "has joined the room", "have joined the room"),
+        LEFT_ROOM(false, "has left the room", "have left the room");
+
+        private final boolean arrival;
+        private final String singular;
+        private final String plural;
+
+        Change(boolean arrival, String singular, String plural) {
+            this.arrival = arrival;
+            this.singular = singular;
+            this.plural = plural;
+        }
+
+        /**
+         * @return true if the user comes to the room, false if the user goes away
+         */
+        public boolean isArrival() {
+            return arrival;
+        }
+    }
+
+    private final long windowNanos;
+    private final int maxNames;
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Counter changes;
+    private final Counter cancelled;
+    private final Counter notices;
+    private Map<String, Map<String, Change>> pending = new HashMap<>();
+    private boolean closed;
+    private Server server;
+
+    /**
+     * Creates the tracker, the changes are announced once start is called
+     *
+     * @param windowMillis how long the changes are gathered in milliseconds, 0 to announce every change at once
+     * @param maxNames     the maximum number of users named in a notice, more are counted
+     * @param metrics      the registry of the presence metrics
+     */
+    public PresenceTracker(long windowMillis, int maxNames, Metrics metrics) {
+        if (windowMillis < 0 || maxNames < 1) {
+            throw new IllegalArgumentException("Presence window must not be negative and names must be positive");
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxNames = maxNames;
+        this.changes = metrics.counter("presence.changes");
+        this.cancelled = metrics.counter("presence.cancelled");
+        this.notices = metrics.counter("presence.notices");
+    }
+
+    /**
+     * Starts the flusher thread unless the changes are announced immediately
+     *
+     * @param server the server announcing the changes
+     */
+    public void start(Server server) {
+        this.server = server;
+        if (windowNanos > 0) {
+            Thread.ofPlatform().name("presence-flusher").daemon().start(this::run);
+        }
+    }
+
+    /**
+     * Records a user entering or leaving a room, never waits for the announcement
+     *
+     * @param room     the name of the room
+     * @param username the username
+     * @param change   the kind of the change
+     */
+    public void record(String room, String username, Change change) {
+        changes.increment();
+        if (windowNanos == 0) {
+            announce(room, Map.of(username, change));
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (pending.isEmpty()) {
+                changed.signal();
+            }
+            Map<String, Change> roomChanges = pending.computeIfAbsent(room, key -> new LinkedHashMap<>());
+            Change previous = roomChanges.get(username);
+            if (previous != null && previous.isArrival() != change.isArrival()) {
+                roomChanges.remove(username);
+                cancelled.increment();
+            } else {
+                roomChanges.put(username, change);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a change, gathers the changes for a window and announces them, until the tracker is closed
+     */
+    private void run() {
+        while (true) {
+            Map<String, Map<String, Change>> window;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    changed.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                long remaining = windowNanos;
+                while (remaining > 0 && !closed) {
+                    remaining = changed.awaitNanos(remaining);
+                }
+                window = pending;
+                pending = new HashMap<>();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            for (Map.Entry<String, Map<String, Change>> entry : window.entrySet()) {
+                try {
+                    announce(entry.getKey(), entry.getValue());
+                } catch (RuntimeException e) {
+                    logger.error("Failed to announce the presence changes in the room {}", entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the notices of the changes of a room, a notice per kind of change, and the list of the changes
+     * to the clients that have turned on /presence
+     *
+     * @param room        the name of the room
+     * @param roomChanges the changes by username, in the order they happened
+     */
+    private void announce(String room, Map<String, Change> roomChanges) {
+        if (roomChanges.isEmpty()) {
+            return;
+        }
+        Map<Change, List<String>> byKind = new EnumMap<>(Change.class);
+        List<String> entries = new ArrayList<>(roomChanges.size());
+        for (Map.Entry<String, Change> entry : roomChanges.entrySet()) {
+            byKind.computeIfAbsent(entry.getValue(), key -> new ArrayList<>()).add(entry.getKey());
+            entries.add((entry.getValue().isArrival() ? "+" : "-") + entry.getKey());
+        }
+        for (Map.Entry<Change, List<String>> kind : byKind.entrySet()) {
+            server.presenceNotice(room, notice(room, kind.getKey(), kind.getValue()));
+            notices.increment();
+        }
+        server.presenceUpdate(room, entries);
+    }
+
+    /**
+     * @param room      the name of the room
+     * @param change    the kind of the change
+     * @param usernames the users, at least one
+     * @return the text of the notice
+     */
+    private String notice(String room, Change change, List<String> usernames) {
+        StringBuilder text = new StringBuilder();
+        if (usernames.size() == 1) {
+            text.append(usernames.get(0)).append(' ').append(change.singular);
+        } else if (usernames.size() <= maxNames) {
+            for (int i = 0; i < usernames.size(); i++) {
+                if (i > 0) {
+                    text.append(i == usernames.size() - 1 ? " and " : ", ");
+                }
+                text.append(usernames.get(i));
+            }
+            text.append(' ').append(change.plural);
+        } else {
+            text.append(usernames.size()).append(" users ").append(change.plural);
+        }
+        if (change == Change.JOINED_ROOM || change == Change.LEFT_ROOM) {
+            text.append(' ').append(room);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Stops the flusher thread, the changes not announced yet are discarded
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * Wire protocols spoken with the clients
+ */
+public enum ProtocolVersion {
+    /**
+     * Text messages written with DataOutputStream.writeUTF, commands and replies are recognized by their prefixes
+     */
+    V1,
+    /**
+     * Binary frames with typed payloads, see BinaryProtocol. Negotiated by the client with "/proto 2"
+     */
+    V2
+}
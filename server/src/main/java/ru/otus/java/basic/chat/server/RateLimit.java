@@ -0,0 +1,46 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * How fast the clients of a role may send messages, each limit a sustained rate and a burst above it
+ *
+ * @param messagesPerSecond the sustained number of messages per second
+ * @param messageBurst      the number of messages that may be sent at once after a pause
+ * @param bytesPerSecond    the sustained number of bytes of text per second
+ * @param byteBurst         the number of bytes of text that may be sent at once after a pause
+ */
+public record RateLimit(int messagesPerSecond, int messageBurst, int bytesPerSecond, int byteBurst) {
+    /**
+     * Checks the limits
+     *
+     * @throws IllegalArgumentException if a limit is not positive
+     */
+    public RateLimit {
+        if (messagesPerSecond < 1 || bytesPerSecond < 1 || messageBurst < 1 || byteBurst < 1) {
+            throw new IllegalArgumentException("Rate limits must be positive");
+        }
+    }
+
+    /**
+     * @param value the limits in the form messages_per_second,message_burst,bytes_per_second,byte_burst
+     * @return the limits
+     * @throws IllegalArgumentException if the value is not in the form
+     */
+    public static RateLimit parse(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid rate limit " + value
+                    + ", use messages_per_second,message_burst,bytes_per_second,byte_burst");
+        }
+        try {
+            return new RateLimit(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid rate limit " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return messagesPerSecond + "," + messageBurst + "," + bytesPerSecond + "," + byteBurst;
+    }
+}
@@ -0,0 +1,90 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The flood protection of the inbound messages. Every connection has its own TokenBucket, and every user
+ * has one more, kept while the user is offline until it refills, so that reconnecting does not reset
+ * the budget. The limits depend on the role of the user, the connections not logged in yet get the USER limits.
+ * A client over a limit is told to slow down once, and disconnected if it keeps being throttled
+ */
+public class RateLimiter {
+    private static final int MIN_SWEEP_SIZE = 1024;
+
+    private final Map<UserRole, RateLimit> limits;
+    private final long disconnectNanos;
+    private final ConcurrentMap<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private volatile int sweepSize = MIN_SWEEP_SIZE;
+
+    /**
+     * @param limits           the limits of the roles, the roles without limits are not throttled
+     * @param disconnectMillis how long a client may keep being throttled before it is disconnected,
+     *                         0 to never disconnect
+     * @param metrics          the registry of the limiter metrics
+     */
+    public RateLimiter(Map<UserRole, RateLimit> limits, long disconnectMillis, Metrics metrics) {
+        if (disconnectMillis < 0) {
+            throw new IllegalArgumentException("Rate limit disconnect time must not be negative");
+        }
+        this.limits = limits.isEmpty() ? Map.of() : new EnumMap<>(limits);
+        this.disconnectNanos = TimeUnit.MILLISECONDS.toNanos(disconnectMillis);
+        metrics.gauge("ratelimit.users", users::size);
+    }
+
+    /**
+     * @param role    the role of the user, null if the connection is not logged in
+     * @param current the bucket the connection has, null if it has none
+     * @return the bucket of the connection with the limits of the role, the current one if its limits are the same,
+     * null if the role is not limited
+     */
+    public TokenBucket connectionBucket(UserRole role, TokenBucket current) {
+        RateLimit limit = limits.get(role == null ? UserRole.USER : role);
+        if (limit == null) {
+            return null;
+        }
+        return current != null && current.getLimit().equals(limit) ? current : new TokenBucket(limit);
+    }
+
+    /**
+     * @param username the username
+     * @param role     the role of the user
+     * @return the bucket of the user, the one left from the previous login if it has not refilled yet,
+     * null if the role is not limited
+     */
+    public TokenBucket userBucket(String username, UserRole role) {
+        RateLimit limit = limits.get(role);
+        if (limit == null) {
+            users.remove(username);
+            return null;
+        }
+        return users.compute(username,
+                (key, bucket) -> bucket != null && bucket.getLimit().equals(limit) ? bucket : new TokenBucket(limit));
+    }
+
+    /**
+     * Forgets the bucket of a user who has logged out if it has refilled, and the refilled buckets
+     * of the other users who have left when there are many of them
+     *
+     * @param username the username
+     */
+    public void release(String username) {
+        long now = System.nanoTime();
+        users.computeIfPresent(username, (key, bucket) -> bucket.isFull(now) ? null : bucket);
+        if (users.size() > sweepSize) {
+            users.values().removeIf(bucket -> bucket.isFull(now));
+            sweepSize = Math.max(MIN_SWEEP_SIZE, users.size() * 2);
+        }
+    }
+
+    /**
+     * @return how long a client may keep being throttled before it is disconnected in nanoseconds,
+     * 0 to never disconnect
+     */
+    public long getDisconnectNanos() {
+        return disconnectNanos;
+    }
+}
@@ -0,0 +1,218 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message between the nodes of a cluster. On the wire it is the length of the rest (4 bytes), the type (1 byte),
+ * the number of fields (2 bytes) and the fields, each one its length (4 bytes) followed by UTF-8 bytes.
+ * A message is encoded once, however many peers it is sent to
+ */
+public final class RelayMessage {
+    /**
+     * The largest encoded message accepted from a peer
+     */
+    public static final int MAX_LENGTH = 4 << 20;
+
+    /**
+     * Kinds of the messages with their fields. The control messages are never dropped by a PeerLink,
+     * the chat messages are dropped when the peer is too far behind
+     */
+    public enum Type {
+        /**
+         * The first message on a connection, sent by the node accepting it.
+         * Fields: the id of the accepting node, a random challenge
+         */
+        CHALLENGE(true),
+        /**
+         * The answer to CHALLENGE, proving the connecting node knows the secret of the cluster.
+         * Fields: the id of the connecting node, the signature of the challenge
+         */
+        HELLO(true),
+        /**
+         * Sent when the connection is idle, so that a dead peer is noticed. No fields
+         */
+        PING(true),
+        /**
+         * Usernames of the users logged in on the sending node, sent after HELLO and when a user logs in.
+         * Fields: the usernames
+         */
+        SYNC(true),
+        /**
+         * A request to own a username, sent to the coordinator of the username. Fields: the claim id, the username
+         */
+        CLAIM(true),
+        /**
+         * The answer to a CLAIM. Fields: the claim id, "true" if the claim is accepted
+         */
+        CLAIM_RESULT(true),
+        /**
+         * The sending node no longer owns a username. Fields: the username
+         */
+        RELEASE(true),
+        /**
+         * A chat message to a room. Fields: the room, the sender, the text
+         */
+        ROOM_CHAT(false),
+        /**
+         * A chat event in a room. Fields: the room, the text
+         */
+        ROOM_NOTICE(false),
+        /**
+         * A private message to a user of the receiving node. Fields: the recipient, the sender, the text
+         */
+        WHISPER(false),
+        /**
+         * Kicks a user of the receiving node. Fields: the username, the username of the kicker
+         */
+        KICK(true),
+        /**
+         * The resume tokens of a user issued up to a time are no longer valid, sent when the user is kicked
+         * or exits and, for the revocations in force, after SYNC. Fields: the username, the time in epoch milliseconds
+         */
+        REVOKE(true);
+
+        private final boolean control;
+
+        Type(boolean control) {
+            this.control = control;
+        }
+
+        /**
+         * @return true if the messages of the type keep the directory of the users or act on a user,
+         * such messages are never dropped
+         */
+        public boolean isControl() {
+            return control;
+        }
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final String[] fields;
+    private volatile byte[] encoded;
+
+    private RelayMessage(Type type, String[] fields) {
+        this.type = type;
+        this.fields = fields;
+    }
+
+    /**
+     * @param type   the type of the message
+     * @param fields the fields, as many as the type expects
+     * @return a new message
+     */
+    public static RelayMessage of(Type type, String... fields) {
+        return new RelayMessage(type, fields);
+    }
+
+    /**
+     * @return the type of the message
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @param index the index of a field
+     * @return the field
+     * @throws IOException if the peer has sent fewer fields
+     */
+    public String field(int index) throws IOException {
+        if (index >= fields.length) {
+            throw new IOException("Missing field " + index + " of a " + type + " relay message");
+        }
+        return fields[index];
+    }
+
+    /**
+     * @return the number of fields
+     */
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * Returns the wire form of the message, encoding it on the first call
+     *
+     * @return the encoded message, must not be modified
+     */
+    public byte[] encode() {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            byte[][] encodedFields = new byte[fields.length][];
+            int length = 3;
+            for (int i = 0; i < fields.length; i++) {
+                encodedFields[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+                length += 4 + encodedFields[i].length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+            buffer.putInt(length);
+            buffer.put((byte) type.ordinal());
+            buffer.putShort((short) fields.length);
+            for (byte[] field : encodedFields) {
+                buffer.putInt(field.length);
+                buffer.put(field);
+            }
+            bytes = buffer.array();
+            encoded = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a message sent by a peer
+     *
+     * @param input the stream of the connection
+     * @return the message
+     * @throws IOException if the connection fails or the message is malformed
+     */
+    public static RelayMessage read(DataInputStream input) throws IOException {
+        return read(input, MAX_LENGTH);
+    }
+
+    /**
+     * Reads a message sent by a peer, no longer than the specified length
+     *
+     * @param input     the stream of the connection
+     * @param maxLength the largest encoded message accepted
+     * @return the message
+     * @throws IOException if the connection fails or the message is malformed
+     */
+    public static RelayMessage read(DataInputStream input, int maxLength) throws IOException {
+        int length = input.readInt();
+        if (length < 3 || length > maxLength) {
+            throw new IOException("Invalid relay message length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int typeIndex = buffer.get() & 0xFF;
+        if (typeIndex >= TYPES.length) {
+            throw new IOException("Unknown relay message type " + typeIndex);
+        }
+        String[] fields = new String[buffer.getShort() & 0xFFFF];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                int fieldLength = buffer.getInt();
+                if (fieldLength < 0 || fieldLength > buffer.remaining()) {
+                    throw new IOException("Invalid relay message field length " + fieldLength);
+                }
+                fields[i] = new String(bytes, buffer.position(), fieldLength, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + fieldLength);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated relay message", e);
+        }
+        return new RelayMessage(TYPES[typeIndex], fields);
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + fields.length + " fields)";
+    }
+}
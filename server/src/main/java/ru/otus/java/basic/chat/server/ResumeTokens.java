@@ -0,0 +1,211 @@
+package ru.otus.java.basic.chat.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Signs and checks the tokens that let a client log in again after a reconnect without its password.
+ * A token is the username, the role and the time it was issued, signed with HMAC-SHA256, so checking it takes
+ * one HMAC and no lookups in the AuthenticationProvider. The tokens are not stored: a token is valid until
+ * it expires, unless the user has been kicked or has exited after it was issued. In a cluster the server relays
+ * the revocations to the other nodes.
+ * The tokens of a server with a random secret are not valid on the other servers or after a restart
+ */
+public class ResumeTokens {
+    private static final Logger logger = Log.getLogger(ResumeTokens.class);
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int FORMAT_VERSION = 1;
+    private static final int MIN_SECRET_LENGTH = 16;
+    private static final int RANDOM_SECRET_LENGTH = 32;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final long ttlMillis;
+    private final Mac prototype;
+    private final ConcurrentMap<String, Long> revoked = new ConcurrentHashMap<>();
+    private final Counter issued;
+
+    /**
+     * @param secret    the key of the signatures, null to generate a random one
+     * @param ttlMillis how long a token is valid in milliseconds, 0 to not issue tokens
+     * @param metrics   the registry of the token metrics
+     * @throws IllegalArgumentException if the secret is too short or the time to live is negative
+     */
+    public ResumeTokens(String secret, long ttlMillis, Metrics metrics) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Resume token time to live must not be negative");
+        }
+        byte[] key;
+        if (secret == null) {
+            key = new byte[RANDOM_SECRET_LENGTH];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+            if (key.length < MIN_SECRET_LENGTH) {
+                throw new IllegalArgumentException("Resume token secret must be at least " + MIN_SECRET_LENGTH + " bytes");
+            }
+        }
+        try {
+            this.prototype = Mac.getInstance(ALGORITHM);
+            this.prototype.init(new SecretKeySpec(key, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+        this.ttlMillis = ttlMillis;
+        this.issued = metrics.counter("resume.issued");
+        metrics.gauge("resume.revoked", revoked::size);
+    }
+
+    /**
+     * @return true if the tokens are issued
+     */
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * @param profile the profile of a user who has just logged in
+     * @return a new token of the user, null if the tokens are not issued
+     */
+    public String issue(UserProfile profile) {
+        if (!isEnabled()) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream payload = new DataOutputStream(bytes)) {
+            payload.writeByte(FORMAT_VERSION);
+            payload.writeLong(System.currentTimeMillis());
+            payload.writeUTF(profile.getRole().name());
+            payload.writeUTF(profile.getUsername());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] data = bytes.toByteArray();
+        issued.increment();
+        return ENCODER.encodeToString(data) + "." + ENCODER.encodeToString(sign(data));
+    }
+
+    /**
+     * Checks the signature, the expiry and the revocation of a token
+     *
+     * @param token the token
+     * @return the profile of the user the token was issued to, null if the token is not valid
+     */
+    public UserProfile verify(String token) {
+        if (!isEnabled()) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        byte[] data;
+        byte[] signature;
+        try {
+            data = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, sign(data))) {
+            return null;
+        }
+        try (DataInputStream payload = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (payload.readUnsignedByte() != FORMAT_VERSION) {
+                return null;
+            }
+            long issuedAt = payload.readLong();
+            UserRole role = UserRole.valueOf(payload.readUTF());
+            String username = payload.readUTF();
+            if (System.currentTimeMillis() - issuedAt > ttlMillis) {
+                return null;
+            }
+            Long revokedAt = revoked.get(username);
+            if (revokedAt != null && issuedAt <= revokedAt) {
+                return null;
+            }
+            return new UserProfile(username, role);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("A resume token with a valid signature could not be read", e);
+            return null;
+        }
+    }
+
+    /**
+     * Invalidates the tokens issued to a user so far
+     *
+     * @param username the username
+     * @return the time the tokens are revoked until in epoch milliseconds, 0 if the tokens are not issued
+     */
+    public long revoke(String username) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        revoke(username, now);
+        return now;
+    }
+
+    /**
+     * Invalidates the tokens issued to a user up to a time, such as a revocation relayed by another node,
+     * and forgets the revocations that have outlived the tokens. The nodes compare the times of their own clocks,
+     * so a token issued by a node whose clock is ahead may outlive a revocation by as much as the clocks differ
+     *
+     * @param username  the username
+     * @param revokedAt the time the tokens are revoked until in epoch milliseconds
+     */
+    public void revoke(String username, long revokedAt) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        revoked.values().removeIf(at -> now - at > ttlMillis);
+        if (now - revokedAt <= ttlMillis) {
+            revoked.merge(username, revokedAt, Math::max);
+        }
+    }
+
+    /**
+     * @return the times the tokens of the users are revoked until in epoch milliseconds, by username,
+     * without the revocations that have outlived the tokens
+     */
+    public Map<String, Long> getRevocations() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> current = new HashMap<>();
+        revoked.forEach((username, revokedAt) -> {
+            if (now - revokedAt <= ttlMillis) {
+                current.put(username, revokedAt);
+            }
+        });
+        return current;
+    }
+
+    /**
+     * @param data the payload of a token
+     * @return the signature of the payload
+     */
+    private byte[] sign(byte[] data) {
+        Mac mac;
+        try {
+            mac = (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(ALGORITHM + " can't be cloned", e);
+        }
+        return mac.doFinal(data);
+    }
+}
@@ -0,0 +1,268 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The history of a room: a directory of segments numbered by the sequence number of their first message.
+ * The last segment is appended to until it is full, then a new one is started; the oldest segments are deleted
+ * by the retention. Readers iterate an array snapshot of the segments, which the writer replaces when they change.
+ * A segment is unmapped once neither the history nor a reader refers to it anymore
+ */
+public class RoomHistory {
+    private static final Logger logger = Log.getLogger(RoomHistory.class);
+    private static final HistorySegment[] EMPTY = new HistorySegment[0];
+
+    private final Path directory;
+    private final int segmentBytes;
+    private volatile HistorySegment[] segments;
+    private volatile long lastUsedNanos = System.nanoTime();
+    private long nextSequence;
+
+    private RoomHistory(Path directory, int segmentBytes, HistorySegment[] segments) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the segments written before, if any. The directory is created on the first append
+     *
+     * @param directory    the directory of the room history
+     * @param segmentBytes the size of a segment file
+     * @return the history
+     * @throws IOException if the segments can't be opened
+     */
+    public static RoomHistory open(Path directory, int segmentBytes) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new RoomHistory(directory, segmentBytes, EMPTY);
+        }
+        List<Path> paths = listSegments(directory);
+        List<HistorySegment> segments = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            segments.add(HistorySegment.open(path, segmentBytes));
+        }
+        return new RoomHistory(directory, segmentBytes, segments.toArray(EMPTY));
+    }
+
+    /**
+     * @param directory the directory of the room history
+     * @return the segment files, oldest first
+     * @throws IOException if the directory can't be listed
+     */
+    private static List<Path> listSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    /**
+     * Applies the retention to a history that is not open, reading only the first record of each segment
+     * and the attributes of its file rather than mapping it. A segment has expired if the next one starts
+     * before the cutoff, the last one if its file was last modified before it. The size of the history is
+     * the size of its files, which are preallocated, so it is an upper bound of the size of the records.
+     * Must be called by the history writer thread only, with nobody opening the history meanwhile
+     *
+     * @param directory the directory of the room history
+     * @param cutoff    the timestamp before which the messages expire
+     * @param maxBytes  the maximum size of the history
+     * @return true if no segment is left
+     * @throws IOException if the segments can't be listed or read
+     */
+    public static boolean applyRetention(Path directory, long cutoff, long maxBytes) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return true;
+        }
+        List<Path> paths = listSegments(directory);
+        long[] firstTimestamps = new long[paths.size()];
+        long[] sizes = new long[paths.size()];
+        long total = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            firstTimestamps[i] = HistorySegment.readFirstTimestamp(paths.get(i));
+            sizes[i] = Files.size(paths.get(i));
+            total += sizes[i];
+        }
+        int expired = 0;
+        while (expired < paths.size()) {
+            Path path = paths.get(expired);
+            boolean last = expired == paths.size() - 1;
+            long lastTimestamp = last || firstTimestamps[expired + 1] == 0
+                    ? Files.getLastModifiedTime(path).toMillis() : firstTimestamps[expired + 1];
+            boolean old = firstTimestamps[expired] == 0 || lastTimestamp < cutoff;
+            if (!old && (total <= maxBytes || last)) {
+                break;
+            }
+            try {
+                HistorySegment.deleteFiles(path);
+            } catch (IOException e) {
+                logger.warn("Failed to delete an expired history segment of {}", directory, e);
+            }
+            total -= sizes[expired];
+            expired++;
+        }
+        if (expired < paths.size()) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            logger.warn("Failed to delete the empty history directory {}", directory, e);
+        }
+        return true;
+    }
+
+    /**
+     * Appends a message, starting a new segment if the last one is full.
+     * Must be called by the history writer thread only
+     *
+     * @param timestamp the time the message was sent
+     * @param sender    the username of the sender
+     * @param text      the text of the message
+     * @return false if the message is too long to fit into a segment
+     * @throws IOException if a new segment can't be created
+     */
+    public boolean append(long timestamp, String sender, String text) throws IOException {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        if (senderBytes.length > 0xFFFF) {
+            return false;
+        }
+        lastUsedNanos = System.nanoTime();
+        HistorySegment[] current = segments;
+        HistorySegment last = current.length == 0 ? null : current[current.length - 1];
+        if (last != null && last.append(timestamp, senderBytes, textBytes)) {
+            return true;
+        }
+        if (last != null && last.getCount() == 0) {
+            return false;
+        }
+        return roll().append(timestamp, senderBytes, textBytes);
+    }
+
+    /**
+     * Starts a new segment after the last one
+     *
+     * @return the new segment
+     * @throws IOException if the segment can't be created
+     */
+    private HistorySegment roll() throws IOException {
+        HistorySegment[] current = segments;
+        long baseSequence = nextSequence;
+        if (current.length > 0) {
+            HistorySegment last = current[current.length - 1];
+            baseSequence = last.getBaseSequence() + last.getCount();
+        }
+        Files.createDirectories(directory);
+        HistorySegment segment = HistorySegment.create(directory, baseSequence, segmentBytes);
+        HistorySegment[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = segment;
+        segments = grown;
+        return segment;
+    }
+
+    /**
+     * Passes the last messages to a consumer, oldest first. Safe to call from any thread
+     *
+     * @param limit    the maximum number of messages
+     * @param consumer the consumer of the messages
+     * @return the number of messages passed
+     */
+    public int readLast(int limit, Consumer<HistoryRecord> consumer) {
+        lastUsedNanos = System.nanoTime();
+        HistorySegment[] current = segments;
+        if (current.length == 0) {
+            return 0;
+        }
+        HistorySegment last = current[current.length - 1];
+        long next = Math.max(current[0].getBaseSequence(), last.getBaseSequence() + last.getCount() - limit);
+        int passed = 0;
+        for (HistorySegment segment : current) {
+            if (passed == limit) {
+                break;
+            }
+            long from = Math.max(next, segment.getBaseSequence());
+            int read = segment.read(from, limit - passed, consumer);
+            passed += read;
+            next = from + read;
+        }
+        return passed;
+    }
+
+    /**
+     * Writes the appended messages to the disk. Must be called by the history writer thread only
+     *
+     * @return true if something was written
+     */
+    public boolean force() {
+        boolean forced = false;
+        for (HistorySegment segment : segments) {
+            forced |= segment.force();
+        }
+        return forced;
+    }
+
+    /**
+     * Deletes the oldest segments while all their messages are older than the cutoff or the history
+     * is larger than the limit, keeping the last segment unless all its messages are old too.
+     * The directory is deleted once no segment is left, and created again by the next append.
+     * Must be called by the history writer thread only
+     *
+     * @param cutoff   the timestamp before which the messages expire
+     * @param maxBytes the maximum size of the history
+     * @return true if no segment is left
+     */
+    public boolean applyRetention(long cutoff, long maxBytes) {
+        HistorySegment[] current = segments;
+        long total = 0;
+        for (HistorySegment segment : current) {
+            total += segment.getSize();
+        }
+        int expired = 0;
+        while (expired < current.length) {
+            HistorySegment segment = current[expired];
+            boolean old = segment.getCount() == 0 || segment.getLastTimestamp() < cutoff;
+            if (!old && (total <= maxBytes || expired == current.length - 1)) {
+                break;
+            }
+            total -= segment.getSize();
+            expired++;
+        }
+        if (expired == current.length && expired > 0) {
+            HistorySegment last = current[expired - 1];
+            nextSequence = last.getBaseSequence() + last.getCount();
+        }
+        if (expired > 0) {
+            segments = Arrays.copyOfRange(current, expired, current.length);
+            for (int i = 0; i < expired; i++) {
+                try {
+                    current[i].delete();
+                } catch (IOException e) {
+                    logger.warn("Failed to delete an expired history segment of {}", directory, e);
+                }
+            }
+        }
+        if (expired < current.length) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            logger.warn("Failed to delete the empty history directory {}", directory, e);
+        }
+        return true;
+    }
+
+    /**
+     * @return the System.nanoTime of the last append or read
+     */
+    public long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+}
@@ -0,0 +1,99 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chat rooms by name. A room is created by the first client joining it and removed when the last member leaves,
+ * except the default room every client enters on login. Joining and leaving are atomic per room,
+ * so a client never joins a room that is being removed
+ */
+public class RoomRegistry {
+    public static final String DEFAULT_ROOM = "general";
+    public static final int MAX_NAME_LENGTH = 32;
+
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the registry with the default room
+     */
+    public RoomRegistry() {
+        rooms.put(DEFAULT_ROOM, new ChatRoom(DEFAULT_ROOM));
+    }
+
+    /**
+     * Checks if a name may be used for a room: up to MAX_NAME_LENGTH letters, digits, '-' and '_'
+     *
+     * @param name a room name
+     * @return true if the name is valid
+     */
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist
+     *
+     * @param client a logged in client
+     * @param name   the name of the room
+     * @return the room
+     */
+    public ChatRoom join(ClientHandler client, String name) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new ChatRoom(key);
+            }
+            room.add(client);
+            return room;
+        });
+    }
+
+    /**
+     * Removes a client from a room, removing the room if it has no members left
+     *
+     * @param client a client
+     * @param room   the room
+     */
+    public void leave(ClientHandler client, ChatRoom room) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> {
+            current.remove(client);
+            return current.isEmpty() && !key.equals(DEFAULT_ROOM) ? null : current;
+        });
+    }
+
+    /**
+     * @param name a room name
+     * @return the room, null if there is none
+     */
+    public ChatRoom get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * @return the number of rooms
+     */
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * @return the rooms sorted by name
+     */
+    public List<ChatRoom> list() {
+        List<ChatRoom> list = new ArrayList<>(rooms.values());
+        list.sort(Comparator.comparing(ChatRoom::getName));
+        return list;
+    }
+}
@@ -1,98 +1,510 @@
 package ru.otus.java.basic.chat.server;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Consumer;
 
 public class Server {
-    private final int port;
-    private final Map<String, ClientHandler> clients = new HashMap<>();
+    private static final Logger logger = Log.getLogger(Server.class);
+
+    private final ServerConfig config;
+    private final FlushPolicy flushPolicy;
+    private final ClientRegistry clients = new ClientRegistry();
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final ParallelFanout fanout;
+    private final ChatHistory history;
     private final AuthenticationProvider authenticationProvider;
+    private final OfflineMessageStore offlineMessages;
+    private final ClusterNode cluster;
+    private final RateLimiter rateLimiter;
+    private final PresenceTracker presence;
+    private final IdleReaper idleReaper;
+    private final ResumeTokens resumeTokens;
+    private final ExecutorService authExecutor;
+    private final ServerMetrics metrics;
+    private final CommandRegistry commands;
+    private volatile ObjectName mbeanName;
+
+    /**
+     * Creates the server with the authentication provider selected by the configuration
+     *
+     * @param config the server configuration
+     */
+    public Server(ServerConfig config) {
+        this(config, new ServerMetrics());
+    }
 
     /**
-     * Creates the server
+     * Creates the server with the authentication provider selected by the configuration,
+     * registering the metrics of the provider along with the ones of the server
      *
-     * @param port a port number for the server socket
+     * @param config  the server configuration
+     * @param metrics the metrics of the server
+     */
+    private Server(ServerConfig config, ServerMetrics metrics) {
+        this(config, config.createAuthenticationProvider(metrics.getRegistry()), metrics);
+    }
+
+    /**
+     * Creates the server with a specific authentication provider,
+     * wrapped into the credentials cache if the configuration enables it
+     *
+     * @param config                 the server configuration
+     * @param authenticationProvider the authentication provider
+     */
+    Server(ServerConfig config, AuthenticationProvider authenticationProvider) {
+        this(config, authenticationProvider, new ServerMetrics());
+    }
+
+    /**
+     * @param config                 the server configuration
+     * @param authenticationProvider the authentication provider
+     * @param metrics                the metrics of the server
      */
-    public Server(int port) {
-        this.port = port;
-        this.authenticationProvider = new JDBCAuthenticationProvider();
+    private Server(ServerConfig config, AuthenticationProvider authenticationProvider, ServerMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.commands = CommandRegistry.withBuiltInCommands(metrics.getRegistry());
+        this.flushPolicy = config.getFlushPolicy();
+        this.authenticationProvider = config.wrapAuthenticationProvider(authenticationProvider, metrics.getRegistry());
+        this.authExecutor = config.createAuthExecutor();
+        this.fanout = config.createParallelFanout();
+        this.history = config.createChatHistory(metrics.getRegistry());
+        this.offlineMessages = config.createOfflineMessageStore(this.authenticationProvider, metrics.getRegistry());
+        this.cluster = config.createClusterNode(metrics.getRegistry());
+        this.rateLimiter = config.createRateLimiter(metrics.getRegistry());
+        this.presence = config.createPresenceTracker(metrics.getRegistry());
+        this.idleReaper = config.createIdleReaper(metrics.getRegistry());
+        this.resumeTokens = config.createResumeTokens(metrics.getRegistry());
+        registerGauges();
     }
 
     /**
-     * Opens the server socket on the specified port number
-     * Listens to connections and creates a ClientHandler object for each accepted socket connection
+     * Registers the metrics computed from the state of the server when read
+     */
+    private void registerGauges() {
+        Metrics registry = metrics.getRegistry();
+        registry.gauge("users.online", clients::size);
+        registry.gauge("rooms", rooms::size);
+        registry.gauge("outbound.queue_depth.max", () -> {
+            long max = 0;
+            for (ClientHandler client : clients.snapshot()) {
+                max = Math.max(max, client.getOutboundQueueDepth());
+            }
+            return max;
+        });
+        registry.gauge("outbound.queue_depth.total", () -> {
+            long total = 0;
+            for (ClientHandler client : clients.snapshot()) {
+                total += client.getOutboundQueueDepth();
+            }
+            return total;
+        });
+        if (authExecutor instanceof ThreadPoolExecutor executor) {
+            registry.gauge("auth.queue_depth", () -> executor.getQueue().size());
+        }
+    }
+
+    /**
+     * Starts the connection engine selected by the configuration on the configured port number
+     * Listens to connections and creates a ClientHandler object for each accepted connection.
+     * In the cluster mode the node starts linking with the other nodes first
      */
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started on port: " + port);
-            while (true) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    new ClientHandler(this, socket);
-                } catch (IOException e) {
-                    System.out.println("Failed to establish connection with a client");
-                    e.printStackTrace();
-                }
+        registerMBean();
+        presence.start(this);
+        if (cluster != null) {
+            try {
+                cluster.start(this);
+            } catch (IOException e) {
+                logger.error("Failed to start the cluster node", e);
+                return;
             }
+        }
+        try {
+            config.createEngine().start(this, config.getPort());
         } catch (IOException e) {
-            System.out.println("Network error occurred");
-            e.printStackTrace();
+            logger.error("Network error occurred", e);
         }
     }
 
     /**
-     * Adds a ClientHandler to the list of clients and broadcasts a message to announce the new user
+     * Exposes the metrics to JMX, see MetricsMBean
+     */
+    private void registerMBean() {
+        ObjectName name = MetricsMBean.objectName(config.getPort());
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(metrics.getRegistry()), name);
+            mbeanName = name;
+        } catch (JMException e) {
+            logger.warn("Failed to register the metrics MBean {}", name, e);
+        }
+    }
+
+    /**
+     * Adds a ClientHandler to the list of clients and to the default room,
+     * and records the new user for the next presence notice of the room
+     * The username uniqueness check and the addition are a single atomic operation.
+     * In the cluster mode the username is then claimed from its coordinator node, waiting for the answer
      *
      * @param clientHandler the ClientHandler to add to the list
+     * @return the room the client has entered
      * @throws UsernameAlreadyTakenException if the clients username is already present in the list
+     *                                       or belongs to a user of another node
      */
-    public synchronized void subscribe(ClientHandler clientHandler) throws UsernameAlreadyTakenException {
-        if (clients.containsKey(clientHandler.getUsername())) {
+    public ChatRoom subscribe(ClientHandler clientHandler) throws UsernameAlreadyTakenException {
+        if (!clients.register(clientHandler)) {
             throw new UsernameAlreadyTakenException();
         }
-        clients.put(clientHandler.getUsername(), clientHandler);
-        broadcastMessage(clientHandler.getUsername() + " has entered the chat");
+        if (cluster != null && !cluster.claim(clientHandler.getUsername())) {
+            clients.unregister(clientHandler);
+            throw new UsernameAlreadyTakenException();
+        }
+        metrics.logins.increment();
+        ChatRoom room = rooms.join(clientHandler, RoomRegistry.DEFAULT_ROOM);
+        presence.record(room.getName(), clientHandler.getUsername(), PresenceTracker.Change.ENTERED);
+        return room;
     }
 
     /**
-     * Removes a ClientHandler from the list of clients and broadcasts a message to announce the departure of the user
-     * Noop if the client's username is null, or if it is not on the clients list
+     * Removes a ClientHandler from the list of clients and from its room, and records the departure
+     * of the user for the next presence notice of the room
+     * Noop if the client's username is null, or if the client is not on the clients list under its username
      *
      * @param clientHandler the ClientHandler to remove
      */
-    public synchronized void unsubscribe(ClientHandler clientHandler) {
-        if (clientHandler.getUsername() != null && clients.containsKey(clientHandler.getUsername())) {
-            broadcastMessage(clientHandler.getUsername() + " has left the chat");
-            clients.remove(clientHandler.getUsername());
+    public void unsubscribe(ClientHandler clientHandler) {
+        if (clients.unregister(clientHandler)) {
+            metrics.logouts.increment();
+            if (cluster != null) {
+                cluster.release(clientHandler.getUsername());
+            }
+            rateLimiter.release(clientHandler.getUsername());
+            ChatRoom room = clientHandler.getRoom();
+            rooms.leave(clientHandler, room);
+            presence.record(room.getName(), clientHandler.getUsername(), PresenceTracker.Change.LEFT);
         }
     }
 
     /**
-     * Broadcasts a message to all ClientHandlers in the clients list
+     * Moves a logged in client to another room, creating the room if it does not exist,
+     * records the move for the next presence notices of both rooms and sends the client the last messages
+     * of the history of the joined room
      *
-     * @param message the message to broadcast
+     * @param clientHandler the client
+     * @param from          the room the client is in
+     * @param name          the name of the room to join
+     * @return the joined room
      */
-    public synchronized void broadcastMessage(String message) {
-        for (ClientHandler client : clients.values()) {
-            client.sendMessage(message);
+    public ChatRoom changeRoom(ClientHandler clientHandler, ChatRoom from, String name) {
+        rooms.leave(clientHandler, from);
+        presence.record(from.getName(), clientHandler.getUsername(), PresenceTracker.Change.LEFT_ROOM);
+        ChatRoom to = rooms.join(clientHandler, name);
+        metrics.roomJoins.increment();
+        presence.record(to.getName(), clientHandler.getUsername(), PresenceTracker.Change.JOINED_ROOM);
+        if (history != null && config.getHistoryReplayCount() > 0) {
+            clientHandler.replayHistory(to.getName(), config.getHistoryReplayCount());
         }
+        return to;
+    }
+
+    /**
+     * @return the chat rooms
+     */
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    /**
+     * @return the flood protection of the inbound messages
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return the heartbeats and the idle timeouts of the connections
+     */
+    public IdleReaper getIdleReaper() {
+        return idleReaper;
+    }
+
+    /**
+     * @return the signing and the checking of the resume tokens
+     */
+    public ResumeTokens getResumeTokens() {
+        return resumeTokens;
     }
 
     /**
-     * Sends a private message to a client with a specified username
+     * Invalidates the resume tokens issued to a user so far, on this node and on the other nodes of the cluster,
+     * as the tokens of a node are accepted by the nodes sharing its secret
      *
-     * @param username the client's username
-     * @param message  the message to send
-     * @throws UsernameNotFoundException if the username not found in the clients list
+     * @param username the username
+     */
+    void revokeResumeTokens(String username) {
+        long revokedAt = resumeTokens.revoke(username);
+        if (cluster != null && revokedAt > 0) {
+            cluster.publish(RelayMessage.of(RelayMessage.Type.REVOKE, username, Long.toString(revokedAt)));
+        }
+    }
+
+    /**
+     * @return the history of the rooms, null if the history is disabled
+     */
+    public ChatHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Broadcasts a chat event, such as a user entering or leaving, to the members of a room
+     * on this node and on the other nodes of the cluster
+     *
+     * @param room    the room
+     * @param message the text of the event
+     */
+    public void roomMessage(ChatRoom room, String message) {
+        broadcastFrame(room, Frame.notice(message));
+        if (cluster != null) {
+            cluster.publish(RelayMessage.of(RelayMessage.Type.ROOM_NOTICE, room.getName(), message));
+        }
+    }
+
+    /**
+     * Broadcasts a notice of the users entering or leaving a room to its members on this node
+     * and on the other nodes of the cluster
+     *
+     * @param roomName the name of the room, which may have been removed since
+     * @param message  the text of the notice
+     */
+    void presenceNotice(String roomName, String message) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            broadcastFrame(room, Frame.notice(message));
+        }
+        if (cluster != null) {
+            cluster.publish(RelayMessage.of(RelayMessage.Type.ROOM_NOTICE, roomName, message));
+        }
+    }
+
+    /**
+     * Sends the list of the users entering and leaving a room to its members on this node
+     * that have turned on /presence
+     *
+     * @param roomName the name of the room
+     * @param entries  "+username" for every user that has come, "-username" for every user that has gone
+     */
+    void presenceUpdate(String roomName, List<String> entries) {
+        ChatRoom room = rooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+        List<Frame> frames = null;
+        for (ClientHandler client : room.members()) {
+            if (client.isPresenceEnabled()) {
+                if (frames == null) {
+                    frames = Frame.presence(roomName, false, entries);
+                }
+                for (Frame frame : frames) {
+                    client.sendFrame(frame);
+                }
+            }
+        }
+    }
+
+    /**
+     * Broadcasts a chat message to the members of a room on this node and on the other nodes of the cluster,
+     * and queues it to the history of the room
+     *
+     * @param room   the room
+     * @param sender the username of the sender
+     * @param text   the text of the message
      */
-    public synchronized void whisperMessage(String username, String message) throws UsernameNotFoundException {
-        if (!clients.containsKey(username)) {
+    public void broadcastChat(ChatRoom room, String sender, String text) {
+        broadcastFrame(room, Frame.chat(sender, text));
+        if (cluster != null) {
+            cluster.publish(RelayMessage.of(RelayMessage.Type.ROOM_CHAT, room.getName(), sender, text));
+        }
+        if (history != null) {
+            history.append(room.getName(), sender, text);
+        }
+    }
+
+    /**
+     * Delivers a chat message relayed by another node to the members of the room on this node,
+     * and queues it to the history of the room, as every node keeps its own history
+     *
+     * @param roomName the name of the room
+     * @param sender   the username of the sender
+     * @param text     the text of the message
+     */
+    void deliverRelayedChat(String roomName, String sender, String text) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            broadcastFrame(room, Frame.chat(sender, text));
+        }
+        if (history != null) {
+            history.append(roomName, sender, text);
+        }
+    }
+
+    /**
+     * Delivers a chat event relayed by another node to the members of the room on this node
+     *
+     * @param roomName the name of the room
+     * @param message  the text of the event
+     */
+    void deliverRelayedNotice(String roomName, String message) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            broadcastFrame(room, Frame.notice(message));
+        }
+    }
+
+    /**
+     * Queues the same frame to every member of a room, it is encoded once per protocol version.
+     * Large rooms are delivered by the fan-out threads, the time recorded then is the time to hand the frame over
+     *
+     * @param room  the room
+     * @param frame the message to broadcast
+     */
+    public void broadcastFrame(ChatRoom room, Frame frame) {
+        long start = System.nanoTime();
+        ClientHandler[] recipients = room.members();
+        if (fanout != null && fanout.isParallel(recipients.length)) {
+            fanout.deliver(room.shards(fanout.getShardCount()), frame);
+            metrics.parallelBroadcasts.increment();
+        } else {
+            for (ClientHandler client : recipients) {
+                client.sendFrame(frame);
+            }
+        }
+        metrics.broadcastTime.record(System.nanoTime() - start);
+        metrics.broadcasts.increment();
+        metrics.broadcastDeliveries.add(recipients.length);
+    }
+
+    /**
+     * Sends a private message to a client with a specified username, on this node or on another node of the cluster
+     *
+     * @param username the recipient's username
+     * @param sender   the sender's username
+     * @param text     the text of the message
+     * @return false if the user is offline, so the message has to be stored with storeWhisper
+     */
+    public boolean whisperMessage(String username, String sender, String text) {
+        ClientHandler client = clients.get(username);
+        if (client != null) {
+            metrics.whispers.increment();
+            client.sendFrame(Frame.whisper(sender, text));
+            return true;
+        }
+        String node = cluster == null ? null : cluster.ownerOf(username);
+        if (node != null && cluster.sendTo(node, RelayMessage.of(RelayMessage.Type.WHISPER, username, sender, text))) {
+            metrics.whispersRelayed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stores a private message to an offline user until the user logs in, and passes the outcome
+     * to the callback once the message is written
+     *
+     * @param username the recipient's username
+     * @param sender   the sender's username
+     * @param text     the text of the message
+     * @param offline  receives the outcome of storing the message, on another thread
+     * @throws UsernameNotFoundException if the offline messages are disabled
+     */
+    public void storeWhisper(String username, String sender, String text,
+                             Consumer<OfflineMessageStore.Result> offline) throws UsernameNotFoundException {
+        if (offlineMessages == null) {
+            metrics.whispersNotFound.increment();
             throw new UsernameNotFoundException();
         }
-        clients.get(username).sendMessage(message);
+        metrics.whispersOffline.increment();
+        offlineMessages.store(new OfflineMessage(username, sender, text, System.currentTimeMillis()), offline);
+    }
+
+    /**
+     * Delivers a private message relayed by another node, storing it if the user has just left
+     *
+     * @param username the recipient's username
+     * @param sender   the sender's username
+     * @param text     the text of the message
+     */
+    void deliverRelayedWhisper(String username, String sender, String text) {
+        ClientHandler client = clients.get(username);
+        if (client != null) {
+            metrics.whispers.increment();
+            client.sendFrame(Frame.whisper(sender, text));
+        } else if (offlineMessages != null) {
+            metrics.whispersOffline.increment();
+            offlineMessages.store(new OfflineMessage(username, sender, text, System.currentTimeMillis()), result -> {
+            });
+        } else {
+            metrics.whispersNotFound.increment();
+        }
+    }
+
+    /**
+     * Sends the private messages stored while a client was offline, in one batch.
+     * Must be called after the client is subscribed, so that the later messages are sent to it directly
+     *
+     * @param clientHandler the client that has logged in
+     */
+    public void deliverOfflineMessages(ClientHandler clientHandler) {
+        if (offlineMessages == null) {
+            return;
+        }
+        List<OfflineMessage> messages = offlineMessages.takeAll(clientHandler.getUsername());
+        if (messages.isEmpty()) {
+            return;
+        }
+        clientHandler.sendFrame(Frame.server("You have " + messages.size()
+                + " private messages received while you were offline:", 0));
+        for (OfflineMessage message : messages) {
+            clientHandler.sendFrame(Frame.offlineWhisper(message));
+        }
+    }
+
+    /**
+     * @return the server configuration
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the metrics of the server
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the limits of coalescing the messages written to a client
+     */
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Returns the text commands of the server, new commands may be registered at any time
+     *
+     * @return the command registry
+     */
+    public CommandRegistry getCommands() {
+        return commands;
     }
 
     /**
@@ -103,28 +515,151 @@ public class Server {
     }
 
     /**
-     * Kicks a username from server
+     * Runs an authentication or registration request on the authentication executor,
+     * so that the database round-trips and the password hashing don't hold the connection threads
+     *
+     * @param task the request
+     * @return true if the request is accepted, false if too many requests are already pending
+     */
+    public boolean submitAuthentication(Runnable task) {
+        try {
+            authExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Kicks a username from server, revoking the resume tokens of the user, and announces it to the room
+     * the user was in. A user of another node of the cluster is kicked by that node
      *
      * @param username a username to kick
+     * @param kicker   the username of the user kicking
+     * @return the room the user was in, null if the user has not entered a room yet or is on another node
      * @throws UsernameNotFoundException if the username not found in the clients list
      */
-    public synchronized void kick(String username, String kicker) throws UsernameNotFoundException {
-        if (!clients.containsKey(username)) {
-            throw new UsernameNotFoundException();
+    public ChatRoom kick(String username, String kicker) throws UsernameNotFoundException {
+        ClientHandler client = clients.get(username);
+        if (client != null) {
+            return kick(client, kicker);
+        }
+        String node = cluster == null ? null : cluster.ownerOf(username);
+        if (node != null && cluster.sendTo(node, RelayMessage.of(RelayMessage.Type.KICK, username, kicker))) {
+            revokeResumeTokens(username);
+            return null;
+        }
+        throw new UsernameNotFoundException();
+    }
+
+    /**
+     * Kicks a user of this node on request of another node, noop if the user has left
+     *
+     * @param username a username to kick
+     * @param kicker   the username of the user kicking
+     */
+    void kickRelayed(String username, String kicker) {
+        ClientHandler client = clients.get(username);
+        if (client != null) {
+            kick(client, kicker);
+        }
+    }
+
+    /**
+     * @param client the client to kick
+     * @param kicker the username of the user kicking
+     * @return the room the user was in, null if the user has not entered a room yet
+     */
+    private ChatRoom kick(ClientHandler client, String kicker) {
+        ChatRoom room = client.getRoom();
+        revokeResumeTokens(client.getUsername());
+        metrics.kicks.increment();
+        metrics.disconnectsKicked.increment();
+        client.sendFrame(Frame.server("You have been kicked by " + kicker, 0));
+        client.sendFrame(Frame.BYE);
+        client.disconnect();
+        if (room != null) {
+            roomMessage(room, kicker + " has kicked " + client.getUsername() + " from the chat");
         }
+        return room;
+    }
+
+    /**
+     * Logs out a user of this node whose username turned out to belong to a user of another node
+     * when the nodes reconnected
+     *
+     * @param username the username
+     * @return true if the user was logged in on this node
+     */
+    boolean evictDuplicate(String username) {
         ClientHandler client = clients.get(username);
-        client.sendMessage("SERVER: You have been kicked by " + kicker);
-        client.sendMessage("/bye");
+        if (client == null) {
+            return false;
+        }
+        client.sendFrame(Frame.server("You have logged in on another server", 0));
+        client.sendFrame(Frame.BYE);
         client.disconnect();
-        broadcastMessage(kicker + " has kicked " + username + " from the chat");
+        return true;
+    }
+
+    /**
+     * Logs out the previous connection of a user who is resuming the session from a new one, usually a connection
+     * the client has lost and the server has not noticed yet. Noop if the user is not logged in on this node
+     *
+     * @param username the username
+     * @param resuming the new connection of the user
+     */
+    void replaceSession(String username, ClientHandler resuming) {
+        ClientHandler client = clients.get(username);
+        if (client == null || client == resuming) {
+            return;
+        }
+        client.sendFrame(Frame.server("Your session has been resumed on another connection", 0));
+        client.sendFrame(Frame.BYE);
+        client.disconnect();
+    }
+
+    /**
+     * @return the usernames of the users logged in on this node
+     */
+    List<String> getLocalUsernames() {
+        ClientHandler[] snapshot = clients.snapshot();
+        List<String> usernames = new ArrayList<>(snapshot.length);
+        for (ClientHandler client : snapshot) {
+            usernames.add(client.getUsername());
+        }
+        return usernames;
     }
 
     public void stop() {
-        System.out.println("Stopping the server...");
+        logger.info("Stopping the server...");
+        authExecutor.shutdownNow();
+        if (fanout != null) {
+            fanout.shutdown();
+        }
+        presence.close();
+        idleReaper.close();
+        if (history != null) {
+            history.close();
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        if (offlineMessages != null) {
+            offlineMessages.close();
+        }
+        ObjectName name = mbeanName;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                logger.warn("Failed to unregister the metrics MBean {}", name, e);
+            }
+        }
         try {
             authenticationProvider.close();
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Failed to close the authentication provider", e);
         }
     }
 }
@@ -1,11 +1,14 @@
 package ru.otus.java.basic.chat.server;
 
 public class ServerApplication {
+    private static final Logger logger = Log.getLogger(ServerApplication.class);
     private static final int DEFAULT_PORT = 8189;
 
     /**
      * Start the chat server application
      * Arguments: [port]
+     * The rest of the configuration is read from the environment, see ServerConfig.fromEnvironment
+     * The log is configured first and flushed when the server stops
      *
      * @param args passed arguments
      */
@@ -13,14 +16,21 @@ public class ServerApplication {
         Server server = null;
         try {
             int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
-            server = new Server(port);
+            ServerConfig config = ServerConfig.fromEnvironment();
+            config.setPort(port);
+            Log.configure(config.getLogLevel(), config.createLogAppender());
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "log-shutdown"));
+            server = new Server(config);
             server.start();
         } catch (NumberFormatException e) {
-            System.out.println("Invalid port number");
+            logger.error("Invalid port number");
+        } catch (IllegalArgumentException e) {
+            logger.error(e.getMessage());
         } finally {
             if (server != null) {
                 server.stop();
             }
+            Log.shutdown();
         }
     }
 }
@@ -0,0 +1,1463 @@
+package ru.otus.java.basic.chat.server;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ServerConfig {
+    /**
+     * Available implementations of the connection handling
+     */
+    public enum Engine {
+        /**
+         * A thread per client blocking on socket streams
+         */
+        BLOCKING,
+        /**
+         * A fixed set of selector-based event loops serving non-blocking channels
+         */
+        NIO
+    }
+
+    /**
+     * Kinds of threads used for the per-client work of the blocking engine
+     */
+    public enum Threads {
+        /**
+         * Operating system threads
+         */
+        PLATFORM,
+        /**
+         * Virtual threads scheduled by the JVM on a small pool of carrier threads
+         */
+        VIRTUAL
+    }
+
+    /**
+     * Available user storages
+     */
+    public enum Authentication {
+        /**
+         * PostgreSQL database, see JDBCAuthenticationProvider
+         */
+        JDBC,
+        /**
+         * A few predefined users kept in memory, registrations are lost on restart
+         */
+        MEMORY
+    }
+
+    private int port = 8189;
+    private Authentication authentication = Authentication.JDBC;
+    private Engine engine = Engine.BLOCKING;
+    private int nioEventLoops = Runtime.getRuntime().availableProcessors();
+    private Threads threads = Threads.PLATFORM;
+    private int outboundQueueCapacity = 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private long slowConsumerMillis = 30000;
+    private int maxFrameBytes = 1 << 20;
+    private boolean tcpNoDelay = true;
+    private int flushBytes = 65536;
+    private int flushMessages = 64;
+    private long flushDelayMicros = 0;
+    private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+    private int fanoutThreshold = 512;
+    private String historyDirectory;
+    private int historySegmentBytes = 1 << 20;
+    private long historyRetentionMillis = TimeUnit.DAYS.toMillis(7);
+    private long historyRetentionBytes = 256L << 20;
+    private FsyncPolicy historyFsyncPolicy = FsyncPolicy.INTERVAL;
+    private long historyFsyncMillis = 1000;
+    private int historyQueueCapacity = 65536;
+    private int historyReplayCount = 20;
+    private boolean offlineMessages = true;
+    private String offlineFile = "offline-messages.dat";
+    private int offlineBatchSize = 100;
+    private long offlineFlushMillis = 10;
+    private int offlineQueueCapacity = 10000;
+    private int offlineMaxPerRecipient = 100;
+    private long offlineTtlMillis = TimeUnit.DAYS.toMillis(7);
+    private String clusterNodeId;
+    private String clusterBindAddress;
+    private int clusterPort = 9189;
+    private String clusterSecret;
+    private List<ClusterPeer> clusterPeers = List.of();
+    private long clusterClaimTimeoutMillis = 2000;
+    private int clusterQueueCapacity = 65536;
+    private final Map<UserRole, RateLimit> rateLimits = new EnumMap<>(Map.of(
+            UserRole.USER, new RateLimit(10, 30, 16384, 65536),
+            UserRole.ADMIN, new RateLimit(100, 300, 1 << 20, 1 << 20)
+    ));
+    private long rateLimitDisconnectMillis = 10000;
+    private long presenceWindowMillis = 250;
+    private int presenceNames = 5;
+    private long heartbeatMillis = 30000;
+    private long idleTimeoutMillis = 90000;
+    private long legacyIdleTimeoutMillis = 1800000;
+    private long loginTimeoutMillis = 60000;
+    private long idleTickMillis = 100;
+    private long resumeTokenTtlMillis = 86400000;
+    private String resumeSecret;
+    private int authCacheSize = 10000;
+    private long authCacheTtlMillis = 300000;
+    private long authCacheNegativeTtlMillis = 30000;
+    private int authThreads = 4;
+    private int authQueueCapacity = 256;
+    private LogLevel logLevel = LogLevel.INFO;
+    private int logBufferSize = 8192;
+    private LogOverflowPolicy logOverflowPolicy = LogOverflowPolicy.DROP_BELOW_WARN;
+
+    /**
+     * Creates a configuration based on environment variables, the variables that are not set keep default values:
+     * OTUS_CHAT_AUTH=jdbc|memory
+     * OTUS_CHAT_ENGINE=blocking|nio
+     * OTUS_CHAT_NIO_THREADS=number_of_event_loops
+     * OTUS_CHAT_THREADS=platform|virtual
+     * OTUS_CHAT_OUTBOUND_CAPACITY=max_pending_messages_per_client
+     * OTUS_CHAT_SLOW_CONSUMER=drop_oldest|drop_newest|disconnect
+     * OTUS_CHAT_SLOW_CONSUMER_MS=max_stall_before_disconnect_in_milliseconds
+     * OTUS_CHAT_MAX_FRAME_BYTES=longest_frame_a_logged_in_client_may_send (4096 bytes before login)
+     * OTUS_CHAT_TCP_NODELAY=true|false
+     * OTUS_CHAT_FLUSH_BYTES=bytes_coalesced_per_write
+     * OTUS_CHAT_FLUSH_MESSAGES=messages_coalesced_per_write
+     * OTUS_CHAT_FLUSH_DELAY_US=max_wait_for_more_messages_in_microseconds (0 writes as soon as nothing is pending)
+     * OTUS_CHAT_FANOUT_THREADS=number_of_threads_delivering_to_large_rooms (0 delivers on the sender's thread)
+     * OTUS_CHAT_FANOUT_THRESHOLD=min_room_size_delivered_in_parallel
+     * OTUS_CHAT_HISTORY_DIR=directory_of_the_room_history (enables the history, off by default)
+     * OTUS_CHAT_HISTORY_SEGMENT_MB=size_of_a_history_file_in_megabytes
+     * OTUS_CHAT_HISTORY_RETENTION_HOURS=time_to_keep_the_messages_in_hours
+     * OTUS_CHAT_HISTORY_RETENTION_MB=max_history_of_a_room_in_megabytes
+     * OTUS_CHAT_HISTORY_FSYNC=never|batch|interval
+     * OTUS_CHAT_HISTORY_FSYNC_MS=interval_of_forcing_the_history_to_the_disk_in_milliseconds
+     * OTUS_CHAT_HISTORY_QUEUE=max_messages_waiting_to_be_written_to_the_history
+     * OTUS_CHAT_HISTORY_REPLAY=messages_of_the_history_sent_on_joining_a_room (0 sends none)
+     * OTUS_CHAT_OFFLINE=true|false (stores the private messages to offline users until they log in)
+     * OTUS_CHAT_OFFLINE_FILE=file_of_the_offline_messages_with_memory_authentication
+     * OTUS_CHAT_OFFLINE_BATCH=max_offline_messages_written_at_once
+     * OTUS_CHAT_OFFLINE_FLUSH_MS=max_wait_for_a_batch_to_fill_up_in_milliseconds
+     * OTUS_CHAT_OFFLINE_QUEUE=max_offline_messages_waiting_to_be_written
+     * OTUS_CHAT_OFFLINE_MAX_PER_USER=max_offline_messages_kept_for_a_recipient
+     * OTUS_CHAT_OFFLINE_TTL_HOURS=time_to_keep_the_offline_messages_in_hours
+     * OTUS_CHAT_CLUSTER_NODE=id_of_this_node (enables the cluster mode, every node needs its own history and offline file)
+     * OTUS_CHAT_CLUSTER_PORT=port_the_other_nodes_connect_to
+     * OTUS_CHAT_CLUSTER_BIND=address_the_cluster_port_is_bound_to (all the interfaces if not set; the port must only
+     * be reachable by the nodes, the traffic is not encrypted)
+     * OTUS_CHAT_CLUSTER_SECRET=key_the_nodes_authenticate_each_other_with (16+ bytes, the same on all the nodes,
+     * required in the cluster mode)
+     * OTUS_CHAT_CLUSTER_PEERS=node_id@host:port,... (all the other nodes)
+     * OTUS_CHAT_CLUSTER_CLAIM_MS=max_wait_for_the_coordinator_node_to_accept_a_username_in_milliseconds
+     * OTUS_CHAT_CLUSTER_QUEUE=max_chat_messages_waiting_to_be_sent_to_a_node
+     * OTUS_CHAT_RATE_USER, OTUS_CHAT_RATE_ADMIN=messages_per_second,message_burst,bytes_per_second,byte_burst|off
+     * (the limits of a connection and of a user of the role, the USER limits apply before login)
+     * OTUS_CHAT_RATE_DISCONNECT_MS=time_a_client_may_stay_over_the_limit_in_milliseconds (0 never disconnects)
+     * OTUS_CHAT_PRESENCE_WINDOW_MS=time_users_entering_and_leaving_are_gathered_into_a_notice (0 announces each one)
+     * OTUS_CHAT_PRESENCE_NAMES=max_users_named_in_a_notice
+     * OTUS_CHAT_HEARTBEAT_MS=time_a_client_may_send_nothing_before_it_is_pinged_in_milliseconds (0 disables the pings;
+     * only the binary clients and the clients that have sent /pong are pinged)
+     * OTUS_CHAT_IDLE_TIMEOUT_MS=time_a_client_may_send_nothing_before_it_is_disconnected_in_milliseconds
+     * (0 never disconnects the idle clients; applies to the clients that have sent /pong
+     * and to the binary clients that have not answered a ping)
+     * OTUS_CHAT_LEGACY_IDLE_TIMEOUT_MS=time_a_text_client_that_is_not_pinged_may_send_nothing_in_milliseconds
+     * (0 never disconnects the idle text clients)
+     * OTUS_CHAT_LOGIN_TIMEOUT_MS=time_a_connection_may_stay_without_logging_in_in_milliseconds (0 disables the limit)
+     * OTUS_CHAT_IDLE_TICK_MS=precision_of_the_heartbeat_and_idle_timers_in_milliseconds
+     * OTUS_CHAT_RESUME_TTL_MS=time_a_resume_token_is_valid_in_milliseconds (0 disables /resume)
+     * OTUS_CHAT_RESUME_SECRET=key_signing_the_resume_tokens (16+ bytes, the same on all the nodes of a cluster;
+     * a random one if not set, the tokens are then lost on restart)
+     * OTUS_CHAT_AUTH_CACHE_SIZE=max_cached_logins (0 disables the cache)
+     * OTUS_CHAT_AUTH_CACHE_TTL_MS=time_to_cache_credentials_in_milliseconds
+     * OTUS_CHAT_AUTH_CACHE_NEGATIVE_TTL_MS=time_to_cache_unknown_logins_in_milliseconds
+     * OTUS_CHAT_AUTH_THREADS=number_of_authentication_threads
+     * OTUS_CHAT_AUTH_QUEUE=max_pending_authentication_requests
+     * OTUS_CHAT_LOG_LEVEL=trace|debug|info|warn|error|off (trace shows every message)
+     * OTUS_CHAT_LOG_BUFFER=max_pending_log_messages (0 prints the messages on the logging threads)
+     * OTUS_CHAT_LOG_OVERFLOW=drop|drop_below_warn|block
+     *
+     * @return a new configuration
+     * @throws IllegalArgumentException if some variable has an invalid value
+     */
+    public static ServerConfig fromEnvironment() {
+        ServerConfig config = new ServerConfig();
+        String authentication = System.getenv("OTUS_CHAT_AUTH");
+        if (authentication != null) {
+            config.setAuthentication(parseEnum(Authentication.class, "OTUS_CHAT_AUTH", authentication));
+        }
+        String engine = System.getenv("OTUS_CHAT_ENGINE");
+        if (engine != null) {
+            config.setEngine(parseEnum(Engine.class, "OTUS_CHAT_ENGINE", engine));
+        }
+        String nioThreads = System.getenv("OTUS_CHAT_NIO_THREADS");
+        if (nioThreads != null) {
+            config.setNioEventLoops(parseInt("OTUS_CHAT_NIO_THREADS", nioThreads));
+        }
+        String threads = System.getenv("OTUS_CHAT_THREADS");
+        if (threads != null) {
+            config.setThreads(parseEnum(Threads.class, "OTUS_CHAT_THREADS", threads));
+        }
+        String outboundCapacity = System.getenv("OTUS_CHAT_OUTBOUND_CAPACITY");
+        if (outboundCapacity != null) {
+            config.setOutboundQueueCapacity(parseInt("OTUS_CHAT_OUTBOUND_CAPACITY", outboundCapacity));
+        }
+        String slowConsumer = System.getenv("OTUS_CHAT_SLOW_CONSUMER");
+        if (slowConsumer != null) {
+            config.setSlowConsumerPolicy(parseEnum(SlowConsumerPolicy.class, "OTUS_CHAT_SLOW_CONSUMER", slowConsumer));
+        }
+        String slowConsumerMillis = System.getenv("OTUS_CHAT_SLOW_CONSUMER_MS");
+        if (slowConsumerMillis != null) {
+            config.setSlowConsumerMillis(parseInt("OTUS_CHAT_SLOW_CONSUMER_MS", slowConsumerMillis));
+        }
+        String maxFrameBytes = System.getenv("OTUS_CHAT_MAX_FRAME_BYTES");
+        if (maxFrameBytes != null) {
+            config.setMaxFrameBytes(parseInt("OTUS_CHAT_MAX_FRAME_BYTES", maxFrameBytes));
+        }
+        String tcpNoDelay = System.getenv("OTUS_CHAT_TCP_NODELAY");
+        if (tcpNoDelay != null) {
+            config.setTcpNoDelay(parseBoolean("OTUS_CHAT_TCP_NODELAY", tcpNoDelay));
+        }
+        String flushBytes = System.getenv("OTUS_CHAT_FLUSH_BYTES");
+        if (flushBytes != null) {
+            config.setFlushBytes(parseInt("OTUS_CHAT_FLUSH_BYTES", flushBytes));
+        }
+        String flushMessages = System.getenv("OTUS_CHAT_FLUSH_MESSAGES");
+        if (flushMessages != null) {
+            config.setFlushMessages(parseInt("OTUS_CHAT_FLUSH_MESSAGES", flushMessages));
+        }
+        String flushDelay = System.getenv("OTUS_CHAT_FLUSH_DELAY_US");
+        if (flushDelay != null) {
+            config.setFlushDelayMicros(parseInt("OTUS_CHAT_FLUSH_DELAY_US", flushDelay));
+        }
+        String fanoutThreads = System.getenv("OTUS_CHAT_FANOUT_THREADS");
+        if (fanoutThreads != null) {
+            config.setFanoutThreads(parseInt("OTUS_CHAT_FANOUT_THREADS", fanoutThreads));
+        }
+        String fanoutThreshold = System.getenv("OTUS_CHAT_FANOUT_THRESHOLD");
+        if (fanoutThreshold != null) {
+            config.setFanoutThreshold(parseInt("OTUS_CHAT_FANOUT_THRESHOLD", fanoutThreshold));
+        }
+        String historyDirectory = System.getenv("OTUS_CHAT_HISTORY_DIR");
+        if (historyDirectory != null) {
+            config.setHistoryDirectory(historyDirectory.isBlank() ? null : historyDirectory.trim());
+        }
+        String historySegment = System.getenv("OTUS_CHAT_HISTORY_SEGMENT_MB");
+        if (historySegment != null) {
+            config.setHistorySegmentBytes(parseInt("OTUS_CHAT_HISTORY_SEGMENT_MB", historySegment) << 20);
+        }
+        String historyRetention = System.getenv("OTUS_CHAT_HISTORY_RETENTION_HOURS");
+        if (historyRetention != null) {
+            config.setHistoryRetentionMillis(
+                    TimeUnit.HOURS.toMillis(parseInt("OTUS_CHAT_HISTORY_RETENTION_HOURS", historyRetention)));
+        }
+        String historyRetentionSize = System.getenv("OTUS_CHAT_HISTORY_RETENTION_MB");
+        if (historyRetentionSize != null) {
+            config.setHistoryRetentionBytes((long) parseInt("OTUS_CHAT_HISTORY_RETENTION_MB", historyRetentionSize) << 20);
+        }
+        String historyFsync = System.getenv("OTUS_CHAT_HISTORY_FSYNC");
+        if (historyFsync != null) {
+            config.setHistoryFsyncPolicy(parseEnum(FsyncPolicy.class, "OTUS_CHAT_HISTORY_FSYNC", historyFsync));
+        }
+        String historyFsyncInterval = System.getenv("OTUS_CHAT_HISTORY_FSYNC_MS");
+        if (historyFsyncInterval != null) {
+            config.setHistoryFsyncMillis(parseInt("OTUS_CHAT_HISTORY_FSYNC_MS", historyFsyncInterval));
+        }
+        String historyQueue = System.getenv("OTUS_CHAT_HISTORY_QUEUE");
+        if (historyQueue != null) {
+            config.setHistoryQueueCapacity(parseInt("OTUS_CHAT_HISTORY_QUEUE", historyQueue));
+        }
+        String historyReplay = System.getenv("OTUS_CHAT_HISTORY_REPLAY");
+        if (historyReplay != null) {
+            config.setHistoryReplayCount(parseInt("OTUS_CHAT_HISTORY_REPLAY", historyReplay));
+        }
+        String offline = System.getenv("OTUS_CHAT_OFFLINE");
+        if (offline != null) {
+            config.setOfflineMessages(parseBoolean("OTUS_CHAT_OFFLINE", offline));
+        }
+        String offlineFile = System.getenv("OTUS_CHAT_OFFLINE_FILE");
+        if (offlineFile != null) {
+            config.setOfflineFile(offlineFile.trim());
+        }
+        String offlineBatch = System.getenv("OTUS_CHAT_OFFLINE_BATCH");
+        if (offlineBatch != null) {
+            config.setOfflineBatchSize(parseInt("OTUS_CHAT_OFFLINE_BATCH", offlineBatch));
+        }
+        String offlineFlush = System.getenv("OTUS_CHAT_OFFLINE_FLUSH_MS");
+        if (offlineFlush != null) {
+            config.setOfflineFlushMillis(parseInt("OTUS_CHAT_OFFLINE_FLUSH_MS", offlineFlush));
+        }
+        String offlineQueue = System.getenv("OTUS_CHAT_OFFLINE_QUEUE");
+        if (offlineQueue != null) {
+            config.setOfflineQueueCapacity(parseInt("OTUS_CHAT_OFFLINE_QUEUE", offlineQueue));
+        }
+        String offlineMaxPerUser = System.getenv("OTUS_CHAT_OFFLINE_MAX_PER_USER");
+        if (offlineMaxPerUser != null) {
+            config.setOfflineMaxPerRecipient(parseInt("OTUS_CHAT_OFFLINE_MAX_PER_USER", offlineMaxPerUser));
+        }
+        String offlineTtl = System.getenv("OTUS_CHAT_OFFLINE_TTL_HOURS");
+        if (offlineTtl != null) {
+            config.setOfflineTtlMillis(TimeUnit.HOURS.toMillis(parseInt("OTUS_CHAT_OFFLINE_TTL_HOURS", offlineTtl)));
+        }
+        String clusterNode = System.getenv("OTUS_CHAT_CLUSTER_NODE");
+        if (clusterNode != null) {
+            config.setClusterNodeId(clusterNode.isBlank() ? null : clusterNode.trim());
+        }
+        String clusterPort = System.getenv("OTUS_CHAT_CLUSTER_PORT");
+        if (clusterPort != null) {
+            config.setClusterPort(parseInt("OTUS_CHAT_CLUSTER_PORT", clusterPort));
+        }
+        String clusterBind = System.getenv("OTUS_CHAT_CLUSTER_BIND");
+        if (clusterBind != null) {
+            config.setClusterBindAddress(clusterBind.isBlank() ? null : clusterBind.trim());
+        }
+        String clusterSecret = System.getenv("OTUS_CHAT_CLUSTER_SECRET");
+        if (clusterSecret != null) {
+            config.setClusterSecret(clusterSecret);
+        }
+        String clusterPeers = System.getenv("OTUS_CHAT_CLUSTER_PEERS");
+        if (clusterPeers != null) {
+            List<ClusterPeer> peers = new ArrayList<>();
+            for (String peer : clusterPeers.split(",")) {
+                if (!peer.isBlank()) {
+                    peers.add(ClusterPeer.parse(peer));
+                }
+            }
+            config.setClusterPeers(peers);
+        }
+        String clusterClaim = System.getenv("OTUS_CHAT_CLUSTER_CLAIM_MS");
+        if (clusterClaim != null) {
+            config.setClusterClaimTimeoutMillis(parseInt("OTUS_CHAT_CLUSTER_CLAIM_MS", clusterClaim));
+        }
+        String clusterQueue = System.getenv("OTUS_CHAT_CLUSTER_QUEUE");
+        if (clusterQueue != null) {
+            config.setClusterQueueCapacity(parseInt("OTUS_CHAT_CLUSTER_QUEUE", clusterQueue));
+        }
+        for (UserRole role : UserRole.values()) {
+            String rateLimit = System.getenv("OTUS_CHAT_RATE_" + role.name());
+            if (rateLimit != null) {
+                config.setRateLimit(role, rateLimit.trim().equalsIgnoreCase("off") ? null : RateLimit.parse(rateLimit));
+            }
+        }
+        String rateLimitDisconnect = System.getenv("OTUS_CHAT_RATE_DISCONNECT_MS");
+        if (rateLimitDisconnect != null) {
+            config.setRateLimitDisconnectMillis(parseInt("OTUS_CHAT_RATE_DISCONNECT_MS", rateLimitDisconnect));
+        }
+        String presenceWindow = System.getenv("OTUS_CHAT_PRESENCE_WINDOW_MS");
+        if (presenceWindow != null) {
+            config.setPresenceWindowMillis(parseInt("OTUS_CHAT_PRESENCE_WINDOW_MS", presenceWindow));
+        }
+        String presenceNames = System.getenv("OTUS_CHAT_PRESENCE_NAMES");
+        if (presenceNames != null) {
+            config.setPresenceNames(parseInt("OTUS_CHAT_PRESENCE_NAMES", presenceNames));
+        }
+        String heartbeat = System.getenv("OTUS_CHAT_HEARTBEAT_MS");
+        if (heartbeat != null) {
+            config.setHeartbeatMillis(parseInt("OTUS_CHAT_HEARTBEAT_MS", heartbeat));
+        }
+        String idleTimeout = System.getenv("OTUS_CHAT_IDLE_TIMEOUT_MS");
+        if (idleTimeout != null) {
+            config.setIdleTimeoutMillis(parseInt("OTUS_CHAT_IDLE_TIMEOUT_MS", idleTimeout));
+        }
+        String legacyIdleTimeout = System.getenv("OTUS_CHAT_LEGACY_IDLE_TIMEOUT_MS");
+        if (legacyIdleTimeout != null) {
+            config.setLegacyIdleTimeoutMillis(parseInt("OTUS_CHAT_LEGACY_IDLE_TIMEOUT_MS", legacyIdleTimeout));
+        }
+        String loginTimeout = System.getenv("OTUS_CHAT_LOGIN_TIMEOUT_MS");
+        if (loginTimeout != null) {
+            config.setLoginTimeoutMillis(parseInt("OTUS_CHAT_LOGIN_TIMEOUT_MS", loginTimeout));
+        }
+        String idleTick = System.getenv("OTUS_CHAT_IDLE_TICK_MS");
+        if (idleTick != null) {
+            config.setIdleTickMillis(parseInt("OTUS_CHAT_IDLE_TICK_MS", idleTick));
+        }
+        String resumeTtl = System.getenv("OTUS_CHAT_RESUME_TTL_MS");
+        if (resumeTtl != null) {
+            config.setResumeTokenTtlMillis(parseInt("OTUS_CHAT_RESUME_TTL_MS", resumeTtl));
+        }
+        String resumeSecret = System.getenv("OTUS_CHAT_RESUME_SECRET");
+        if (resumeSecret != null) {
+            config.setResumeSecret(resumeSecret);
+        }
+        String authCacheSize = System.getenv("OTUS_CHAT_AUTH_CACHE_SIZE");
+        if (authCacheSize != null) {
+            config.setAuthCacheSize(parseInt("OTUS_CHAT_AUTH_CACHE_SIZE", authCacheSize));
+        }
+        String authCacheTtl = System.getenv("OTUS_CHAT_AUTH_CACHE_TTL_MS");
+        if (authCacheTtl != null) {
+            config.setAuthCacheTtlMillis(parseInt("OTUS_CHAT_AUTH_CACHE_TTL_MS", authCacheTtl));
+        }
+        String authCacheNegativeTtl = System.getenv("OTUS_CHAT_AUTH_CACHE_NEGATIVE_TTL_MS");
+        if (authCacheNegativeTtl != null) {
+            config.setAuthCacheNegativeTtlMillis(parseInt("OTUS_CHAT_AUTH_CACHE_NEGATIVE_TTL_MS", authCacheNegativeTtl));
+        }
+        String authThreads = System.getenv("OTUS_CHAT_AUTH_THREADS");
+        if (authThreads != null) {
+            config.setAuthThreads(parseInt("OTUS_CHAT_AUTH_THREADS", authThreads));
+        }
+        String authQueue = System.getenv("OTUS_CHAT_AUTH_QUEUE");
+        if (authQueue != null) {
+            config.setAuthQueueCapacity(parseInt("OTUS_CHAT_AUTH_QUEUE", authQueue));
+        }
+        String logLevel = System.getenv("OTUS_CHAT_LOG_LEVEL");
+        if (logLevel != null) {
+            config.setLogLevel(parseEnum(LogLevel.class, "OTUS_CHAT_LOG_LEVEL", logLevel));
+        }
+        String logBuffer = System.getenv("OTUS_CHAT_LOG_BUFFER");
+        if (logBuffer != null) {
+            config.setLogBufferSize(parseInt("OTUS_CHAT_LOG_BUFFER", logBuffer));
+        }
+        String logOverflow = System.getenv("OTUS_CHAT_LOG_OVERFLOW");
+        if (logOverflow != null) {
+            config.setLogOverflowPolicy(parseEnum(LogOverflowPolicy.class, "OTUS_CHAT_LOG_OVERFLOW", logOverflow));
+        }
+        return config;
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + name + ": " + value);
+        }
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        return switch (value.trim().toLowerCase()) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException("Invalid value of " + name + ": " + value);
+        };
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value of " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Creates the connection engine selected by the configuration
+     *
+     * @return a new ServerEngine
+     */
+    public ServerEngine createEngine() {
+        return switch (engine) {
+            case BLOCKING -> new BlockingServerEngine(createThreadFactory("client-"));
+            case NIO -> new NioServerEngine(nioEventLoops);
+        };
+    }
+
+    /**
+     * Creates the authentication provider selected by the configuration
+     *
+     * @param metrics the registry of the provider metrics, such as the database connection pool
+     * @return a new AuthenticationProvider
+     */
+    public AuthenticationProvider createAuthenticationProvider(Metrics metrics) {
+        return switch (authentication) {
+            case JDBC -> new JDBCAuthenticationProvider(metrics);
+            case MEMORY -> new InMemoryAuthenticationProvider();
+        };
+    }
+
+    /**
+     * Puts the credentials cache in front of an authentication provider unless the cache is disabled
+     *
+     * @param provider an authentication provider
+     * @param metrics  the registry of the cache metrics
+     * @return the caching provider, or the provider itself if the cache size is 0
+     */
+    public AuthenticationProvider wrapAuthenticationProvider(AuthenticationProvider provider, Metrics metrics) {
+        if (authCacheSize <= 0) {
+            return provider;
+        }
+        return new CachingAuthenticationProvider(provider, authCacheSize, authCacheTtlMillis, authCacheNegativeTtlMillis,
+                metrics);
+    }
+
+    /**
+     * Creates the executor running the authentication and registration requests.
+     * The number of pending requests is bounded, the executor rejects the requests beyond that
+     *
+     * @return a new ExecutorService
+     */
+    public ExecutorService createAuthExecutor() {
+        if (authThreads < 1 || authQueueCapacity < 1) {
+            throw new IllegalArgumentException("Authentication threads and queue capacity must be positive");
+        }
+        return new ThreadPoolExecutor(authThreads, authThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(authQueueCapacity),
+                Thread.ofPlatform().name("auth-", 0).daemon().factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Creates the threads delivering the messages of large rooms
+     *
+     * @return a new ParallelFanout, or null if the fan-out threads are disabled
+     */
+    public ParallelFanout createParallelFanout() {
+        if (fanoutThreads <= 0) {
+            return null;
+        }
+        return new ParallelFanout(fanoutThreads, fanoutThreshold);
+    }
+
+    /**
+     * Creates the history of the chat rooms and starts its writer thread
+     *
+     * @param metrics the registry of the history metrics
+     * @return a new ChatHistory, or null if the history is disabled
+     * @throws java.io.UncheckedIOException if the history directory can't be created
+     */
+    public ChatHistory createChatHistory(Metrics metrics) {
+        if (historyDirectory == null) {
+            return null;
+        }
+        return new ChatHistory(Path.of(historyDirectory), historySegmentBytes, historyRetentionMillis,
+                historyRetentionBytes, historyFsyncPolicy, historyFsyncMillis, historyQueueCapacity, metrics);
+    }
+
+    /**
+     * Creates the store of the private messages to offline users next to the users of the authentication provider:
+     * a table of the database for JDBCAuthenticationProvider, a local file for InMemoryAuthenticationProvider
+     *
+     * @param provider the authentication provider of the server, possibly wrapped into the credentials cache
+     * @param metrics  the registry of the store metrics
+     * @return a new started OfflineMessageStore, or null if the store is disabled or the provider has no users to check
+     * @throws java.io.UncheckedIOException if the file of the messages can't be opened
+     */
+    public OfflineMessageStore createOfflineMessageStore(AuthenticationProvider provider, Metrics metrics) {
+        if (!offlineMessages) {
+            return null;
+        }
+        AuthenticationProvider users = provider instanceof CachingAuthenticationProvider caching
+                ? caching.getDelegate() : provider;
+        OfflineMessageStore store;
+        if (users instanceof JDBCAuthenticationProvider jdbc) {
+            store = new JDBCOfflineMessageStore(jdbc.getPool(), offlineBatchSize, offlineFlushMillis,
+                    offlineQueueCapacity, offlineMaxPerRecipient, offlineTtlMillis, metrics);
+        } else if (users instanceof InMemoryAuthenticationProvider memory) {
+            store = new FileOfflineMessageStore(Path.of(offlineFile), memory::hasUsername, offlineBatchSize,
+                    offlineFlushMillis, offlineQueueCapacity, offlineMaxPerRecipient, offlineTtlMillis, metrics);
+        } else {
+            return null;
+        }
+        store.start();
+        return store;
+    }
+
+    /**
+     * Creates the node linking the server with the other servers of the cluster
+     *
+     * @param metrics the registry of the cluster metrics
+     * @return a new ClusterNode, not started yet, or null if the cluster mode is disabled
+     * @throws IllegalArgumentException if the cluster secret is missing or too short
+     */
+    public ClusterNode createClusterNode(Metrics metrics) {
+        if (clusterNodeId == null) {
+            return null;
+        }
+        return new ClusterNode(clusterNodeId, clusterBindAddress, clusterPort, clusterSecret, clusterPeers,
+                clusterClaimTimeoutMillis, clusterQueueCapacity, metrics);
+    }
+
+    /**
+     * Creates the flood protection of the inbound messages
+     *
+     * @param metrics the registry of the limiter metrics
+     * @return a new RateLimiter
+     */
+    public RateLimiter createRateLimiter(Metrics metrics) {
+        return new RateLimiter(rateLimits, rateLimitDisconnectMillis, metrics);
+    }
+
+    /**
+     * Creates the heartbeats and the idle timeouts of the connections and starts the thread of their timers
+     *
+     * @param metrics the registry of the reaper metrics
+     * @return a new IdleReaper
+     */
+    public IdleReaper createIdleReaper(Metrics metrics) {
+        return new IdleReaper(heartbeatMillis, idleTimeoutMillis, legacyIdleTimeoutMillis, loginTimeoutMillis,
+                idleTickMillis, metrics);
+    }
+
+    /**
+     * Creates the signing and the checking of the resume tokens
+     *
+     * @param metrics the registry of the token metrics
+     * @return a new ResumeTokens
+     */
+    public ResumeTokens createResumeTokens(Metrics metrics) {
+        return new ResumeTokens(resumeSecret, resumeTokenTtlMillis, metrics);
+    }
+
+    /**
+     * Creates the gathering of the users entering and leaving the rooms into notices
+     *
+     * @param metrics the registry of the presence metrics
+     * @return a new PresenceTracker, not started yet
+     */
+    public PresenceTracker createPresenceTracker(Metrics metrics) {
+        return new PresenceTracker(presenceWindowMillis, presenceNames, metrics);
+    }
+
+    /**
+     * Creates the appender of the server log: an asynchronous one printing to the standard output,
+     * or a synchronous one if the log buffer size is 0
+     *
+     * @return a new LogAppender
+     */
+    public LogAppender createLogAppender() {
+        if (logBufferSize <= 0) {
+            return new ConsoleLogAppender(System.out);
+        }
+        return new AsyncLogAppender(System.out, logBufferSize, logOverflowPolicy);
+    }
+
+    /**
+     * @return the flush limits of the outgoing messages
+     * @throws IllegalArgumentException if a limit is out of range
+     */
+    public FlushPolicy getFlushPolicy() {
+        return new FlushPolicy(flushBytes, flushMessages, flushDelayMicros);
+    }
+
+    /**
+     * Creates a factory of the threads of the configured kind
+     *
+     * @param prefix a prefix of the thread names, followed by a sequence number
+     * @return a new ThreadFactory
+     */
+    public ThreadFactory createThreadFactory(String prefix) {
+        return switch (threads) {
+            case PLATFORM -> Thread.ofPlatform().name(prefix, 0).factory();
+            case VIRTUAL -> Thread.ofVirtual().name(prefix, 0).factory();
+        };
+    }
+
+    /**
+     * @return a port number for the server socket
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param port a port number for the server socket
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return the user storage
+     */
+    public Authentication getAuthentication() {
+        return authentication;
+    }
+
+    /**
+     * @param authentication the user storage
+     */
+    public void setAuthentication(Authentication authentication) {
+        this.authentication = authentication;
+    }
+
+    /**
+     * @return the connection engine
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @param engine the connection engine
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return a number of event loop threads of the NIO engine
+     */
+    public int getNioEventLoops() {
+        return nioEventLoops;
+    }
+
+    /**
+     * @param nioEventLoops a number of event loop threads of the NIO engine
+     */
+    public void setNioEventLoops(int nioEventLoops) {
+        this.nioEventLoops = nioEventLoops;
+    }
+
+    /**
+     * @return the kind of the per-client threads
+     */
+    public Threads getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads the kind of the per-client threads
+     */
+    public void setThreads(Threads threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return the maximum number of messages waiting to be written to a client
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * @param outboundQueueCapacity the maximum number of messages waiting to be written to a client
+     */
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    /**
+     * @return what to do when the outbound queue of a client is full
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * @param slowConsumerPolicy what to do when the outbound queue of a client is full
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * @return for the DISCONNECT policy, how long a client may leave its pending messages untaken, 0 if unlimited
+     */
+    public long getSlowConsumerMillis() {
+        return slowConsumerMillis;
+    }
+
+    /**
+     * @param slowConsumerMillis for the DISCONNECT policy, how long a client may leave its pending messages untaken,
+     *                           0 if unlimited
+     */
+    public void setSlowConsumerMillis(long slowConsumerMillis) {
+        this.slowConsumerMillis = slowConsumerMillis;
+    }
+
+    /**
+     * @return the longest frame a client that has logged in may send in bytes
+     */
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    /**
+     * @param maxFrameBytes the longest frame a client that has logged in may send in bytes,
+     *                      raised to the limit before login if lower
+     */
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * @return true if Nagle's algorithm is disabled on the client connections
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @param tcpNoDelay true to disable Nagle's algorithm on the client connections,
+     *                   the server coalesces the messages itself
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return the number of bytes that triggers a write to a client
+     */
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    /**
+     * @param flushBytes the number of bytes that triggers a write to a client
+     */
+    public void setFlushBytes(int flushBytes) {
+        this.flushBytes = flushBytes;
+    }
+
+    /**
+     * @return the number of messages that triggers a write to a client
+     */
+    public int getFlushMessages() {
+        return flushMessages;
+    }
+
+    /**
+     * @param flushMessages the number of messages that triggers a write to a client
+     */
+    public void setFlushMessages(int flushMessages) {
+        this.flushMessages = flushMessages;
+    }
+
+    /**
+     * @return how long a message may wait for more messages to the same client in microseconds
+     */
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    /**
+     * @param flushDelayMicros how long a message may wait for more messages to the same client in microseconds,
+     *                         0 to write as soon as nothing is pending
+     */
+    public void setFlushDelayMicros(long flushDelayMicros) {
+        this.flushDelayMicros = flushDelayMicros;
+    }
+
+    /**
+     * @return the number of threads delivering the messages of large rooms, 0 if disabled
+     */
+    public int getFanoutThreads() {
+        return fanoutThreads;
+    }
+
+    /**
+     * @param fanoutThreads the number of threads delivering the messages of large rooms,
+     *                      0 to deliver every message on the sender's thread
+     */
+    public void setFanoutThreads(int fanoutThreads) {
+        this.fanoutThreads = fanoutThreads;
+    }
+
+    /**
+     * @return the smallest room whose messages are delivered in parallel
+     */
+    public int getFanoutThreshold() {
+        return fanoutThreshold;
+    }
+
+    /**
+     * @param fanoutThreshold the smallest room whose messages are delivered in parallel
+     */
+    public void setFanoutThreshold(int fanoutThreshold) {
+        this.fanoutThreshold = fanoutThreshold;
+    }
+
+    /**
+     * @return the directory of the room history, null if the history is disabled
+     */
+    public String getHistoryDirectory() {
+        return historyDirectory;
+    }
+
+    /**
+     * @param historyDirectory the directory of the room history, null to disable the history
+     */
+    public void setHistoryDirectory(String historyDirectory) {
+        this.historyDirectory = historyDirectory;
+    }
+
+    /**
+     * @return the size of a history file in bytes
+     */
+    public int getHistorySegmentBytes() {
+        return historySegmentBytes;
+    }
+
+    /**
+     * @param historySegmentBytes the size of a history file in bytes
+     */
+    public void setHistorySegmentBytes(int historySegmentBytes) {
+        this.historySegmentBytes = historySegmentBytes;
+    }
+
+    /**
+     * @return how long the messages are kept in the history in milliseconds
+     */
+    public long getHistoryRetentionMillis() {
+        return historyRetentionMillis;
+    }
+
+    /**
+     * @param historyRetentionMillis how long the messages are kept in the history in milliseconds
+     */
+    public void setHistoryRetentionMillis(long historyRetentionMillis) {
+        this.historyRetentionMillis = historyRetentionMillis;
+    }
+
+    /**
+     * @return the maximum size of the history of a room in bytes
+     */
+    public long getHistoryRetentionBytes() {
+        return historyRetentionBytes;
+    }
+
+    /**
+     * @param historyRetentionBytes the maximum size of the history of a room in bytes
+     */
+    public void setHistoryRetentionBytes(long historyRetentionBytes) {
+        this.historyRetentionBytes = historyRetentionBytes;
+    }
+
+    /**
+     * @return when the history is forced to the disk
+     */
+    public FsyncPolicy getHistoryFsyncPolicy() {
+        return historyFsyncPolicy;
+    }
+
+    /**
+     * @param historyFsyncPolicy when the history is forced to the disk
+     */
+    public void setHistoryFsyncPolicy(FsyncPolicy historyFsyncPolicy) {
+        this.historyFsyncPolicy = historyFsyncPolicy;
+    }
+
+    /**
+     * @return the interval of forcing the history to the disk with the INTERVAL policy in milliseconds
+     */
+    public long getHistoryFsyncMillis() {
+        return historyFsyncMillis;
+    }
+
+    /**
+     * @param historyFsyncMillis the interval of forcing the history to the disk with the INTERVAL policy
+     *                           in milliseconds
+     */
+    public void setHistoryFsyncMillis(long historyFsyncMillis) {
+        this.historyFsyncMillis = historyFsyncMillis;
+    }
+
+    /**
+     * @return the maximum number of messages waiting to be written to the history
+     */
+    public int getHistoryQueueCapacity() {
+        return historyQueueCapacity;
+    }
+
+    /**
+     * @param historyQueueCapacity the maximum number of messages waiting to be written to the history,
+     *                             the messages beyond that are not stored
+     */
+    public void setHistoryQueueCapacity(int historyQueueCapacity) {
+        this.historyQueueCapacity = historyQueueCapacity;
+    }
+
+    /**
+     * @return the number of the last messages of a room sent to a client joining it
+     */
+    public int getHistoryReplayCount() {
+        return historyReplayCount;
+    }
+
+    /**
+     * @param historyReplayCount the number of the last messages of a room sent to a client joining it,
+     *                           0 to send none, at most ChatHistory.MAX_READ
+     */
+    public void setHistoryReplayCount(int historyReplayCount) {
+        this.historyReplayCount = historyReplayCount;
+    }
+
+    /**
+     * @return true if the private messages to offline users are stored until they log in
+     */
+    public boolean isOfflineMessages() {
+        return offlineMessages;
+    }
+
+    /**
+     * @param offlineMessages true to store the private messages to offline users until they log in
+     */
+    public void setOfflineMessages(boolean offlineMessages) {
+        this.offlineMessages = offlineMessages;
+    }
+
+    /**
+     * @return the file of the offline messages used with the in-memory authentication
+     */
+    public String getOfflineFile() {
+        return offlineFile;
+    }
+
+    /**
+     * @param offlineFile the file of the offline messages used with the in-memory authentication
+     */
+    public void setOfflineFile(String offlineFile) {
+        this.offlineFile = offlineFile;
+    }
+
+    /**
+     * @return the maximum number of offline messages written at once
+     */
+    public int getOfflineBatchSize() {
+        return offlineBatchSize;
+    }
+
+    /**
+     * @param offlineBatchSize the maximum number of offline messages written at once
+     */
+    public void setOfflineBatchSize(int offlineBatchSize) {
+        this.offlineBatchSize = offlineBatchSize;
+    }
+
+    /**
+     * @return the longest time an offline message waits for its batch to fill up in milliseconds
+     */
+    public long getOfflineFlushMillis() {
+        return offlineFlushMillis;
+    }
+
+    /**
+     * @param offlineFlushMillis the longest time an offline message waits for its batch to fill up
+     *                           in milliseconds, 0 writes whatever is pending right away
+     */
+    public void setOfflineFlushMillis(long offlineFlushMillis) {
+        this.offlineFlushMillis = offlineFlushMillis;
+    }
+
+    /**
+     * @return the maximum number of offline messages waiting to be written
+     */
+    public int getOfflineQueueCapacity() {
+        return offlineQueueCapacity;
+    }
+
+    /**
+     * @param offlineQueueCapacity the maximum number of offline messages waiting to be written,
+     *                             the messages beyond that are not stored
+     */
+    public void setOfflineQueueCapacity(int offlineQueueCapacity) {
+        this.offlineQueueCapacity = offlineQueueCapacity;
+    }
+
+    /**
+     * @return the maximum number of offline messages kept for a recipient
+     */
+    public int getOfflineMaxPerRecipient() {
+        return offlineMaxPerRecipient;
+    }
+
+    /**
+     * @param offlineMaxPerRecipient the maximum number of offline messages kept for a recipient,
+     *                               the messages beyond that are not stored
+     */
+    public void setOfflineMaxPerRecipient(int offlineMaxPerRecipient) {
+        this.offlineMaxPerRecipient = offlineMaxPerRecipient;
+    }
+
+    /**
+     * @return how long the offline messages are kept in milliseconds
+     */
+    public long getOfflineTtlMillis() {
+        return offlineTtlMillis;
+    }
+
+    /**
+     * @param offlineTtlMillis how long the offline messages are kept in milliseconds,
+     *                         the older ones are deleted without being delivered
+     */
+    public void setOfflineTtlMillis(long offlineTtlMillis) {
+        this.offlineTtlMillis = offlineTtlMillis;
+    }
+
+    /**
+     * @return the id of this node in the cluster, null if the cluster mode is disabled
+     */
+    public String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    /**
+     * @param clusterNodeId the id of this node in the cluster, null to disable the cluster mode
+     */
+    public void setClusterNodeId(String clusterNodeId) {
+        this.clusterNodeId = clusterNodeId;
+    }
+
+    /**
+     * @return the port the other nodes of the cluster connect to
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * @param clusterPort the port the other nodes of the cluster connect to
+     */
+    public void setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+    }
+
+    /**
+     * @return the address the cluster port is bound to, null for all the interfaces
+     */
+    public String getClusterBindAddress() {
+        return clusterBindAddress;
+    }
+
+    /**
+     * @param clusterBindAddress the address the cluster port is bound to, null for all the interfaces.
+     *                           The port must only be reachable by the nodes of the cluster
+     */
+    public void setClusterBindAddress(String clusterBindAddress) {
+        this.clusterBindAddress = clusterBindAddress;
+    }
+
+    /**
+     * @return the key the nodes of the cluster authenticate each other with
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * @param clusterSecret the key the nodes of the cluster authenticate each other with, at least 16 bytes,
+     *                      the same on all the nodes
+     */
+    public void setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+    }
+
+    /**
+     * @return the other nodes of the cluster
+     */
+    public List<ClusterPeer> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    /**
+     * @param clusterPeers the other nodes of the cluster
+     */
+    public void setClusterPeers(List<ClusterPeer> clusterPeers) {
+        this.clusterPeers = List.copyOf(clusterPeers);
+    }
+
+    /**
+     * @return the longest wait for the coordinator node of a username to accept it in milliseconds
+     */
+    public long getClusterClaimTimeoutMillis() {
+        return clusterClaimTimeoutMillis;
+    }
+
+    /**
+     * @param clusterClaimTimeoutMillis the longest wait for the coordinator node of a username to accept it
+     *                                  in milliseconds, the login is rejected if it has not answered by then
+     */
+    public void setClusterClaimTimeoutMillis(long clusterClaimTimeoutMillis) {
+        this.clusterClaimTimeoutMillis = clusterClaimTimeoutMillis;
+    }
+
+    /**
+     * @return the maximum number of chat messages waiting to be sent to a node of the cluster
+     */
+    public int getClusterQueueCapacity() {
+        return clusterQueueCapacity;
+    }
+
+    /**
+     * @param clusterQueueCapacity the maximum number of chat messages waiting to be sent to a node of the cluster,
+     *                             the chat messages beyond that are dropped, the control messages never are
+     */
+    public void setClusterQueueCapacity(int clusterQueueCapacity) {
+        this.clusterQueueCapacity = clusterQueueCapacity;
+    }
+
+    /**
+     * @param role a user role
+     * @return the inbound message limits of a connection and of a user of the role, null if they are not limited
+     */
+    public RateLimit getRateLimit(UserRole role) {
+        return rateLimits.get(role);
+    }
+
+    /**
+     * @param role      a user role
+     * @param rateLimit the inbound message limits of a connection and of a user of the role, null for no limits
+     */
+    public void setRateLimit(UserRole role, RateLimit rateLimit) {
+        if (rateLimit == null) {
+            rateLimits.remove(role);
+        } else {
+            rateLimits.put(role, rateLimit);
+        }
+    }
+
+    /**
+     * @return how long a client may keep being throttled before it is disconnected in milliseconds,
+     * 0 if it is never disconnected
+     */
+    public long getRateLimitDisconnectMillis() {
+        return rateLimitDisconnectMillis;
+    }
+
+    /**
+     * @param rateLimitDisconnectMillis how long a client may keep being throttled before it is disconnected
+     *                                  in milliseconds, 0 to never disconnect
+     */
+    public void setRateLimitDisconnectMillis(long rateLimitDisconnectMillis) {
+        this.rateLimitDisconnectMillis = rateLimitDisconnectMillis;
+    }
+
+    /**
+     * @return how long the users entering and leaving a room are gathered into a notice in milliseconds,
+     * 0 if every one is announced at once
+     */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /**
+     * @param presenceWindowMillis how long the users entering and leaving a room are gathered into a notice
+     *                             in milliseconds, 0 to announce every one at once
+     */
+    public void setPresenceWindowMillis(long presenceWindowMillis) {
+        this.presenceWindowMillis = presenceWindowMillis;
+    }
+
+    /**
+     * @return the maximum number of users named in a presence notice, more are only counted
+     */
+    public int getPresenceNames() {
+        return presenceNames;
+    }
+
+    /**
+     * @param presenceNames the maximum number of users named in a presence notice, more are only counted
+     */
+    public void setPresenceNames(int presenceNames) {
+        this.presenceNames = presenceNames;
+    }
+
+    /**
+     * @return how long a client may send nothing before it is pinged in milliseconds, 0 if the clients are not pinged
+     */
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    /**
+     * @param heartbeatMillis how long a client may send nothing before it is pinged in milliseconds,
+     *                        0 to not ping the clients. The text clients are only pinged once they have sent /pong
+     */
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * @return how long a client may send nothing before it is disconnected in milliseconds,
+     * 0 if the idle clients are never disconnected
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @param idleTimeoutMillis how long a client may send nothing before it is disconnected in milliseconds,
+     *                          0 to never disconnect the idle clients. Only applies to the clients that have
+     *                          answered a ping and to the binary clients that have left a ping unanswered
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return how long a text client that is not pinged may send nothing before it is disconnected in milliseconds,
+     * 0 if the idle text clients are never disconnected
+     */
+    public long getLegacyIdleTimeoutMillis() {
+        return legacyIdleTimeoutMillis;
+    }
+
+    /**
+     * @param legacyIdleTimeoutMillis how long a text client that is not pinged may send nothing before it is
+     *                                disconnected in milliseconds, 0 to never disconnect the idle text clients
+     */
+    public void setLegacyIdleTimeoutMillis(long legacyIdleTimeoutMillis) {
+        this.legacyIdleTimeoutMillis = legacyIdleTimeoutMillis;
+    }
+
+    /**
+     * @return how long a connection may stay without logging in in milliseconds, 0 if there is no limit
+     */
+    public long getLoginTimeoutMillis() {
+        return loginTimeoutMillis;
+    }
+
+    /**
+     * @param loginTimeoutMillis how long a connection may stay without logging in in milliseconds,
+     *                           0 for no limit
+     */
+    public void setLoginTimeoutMillis(long loginTimeoutMillis) {
+        this.loginTimeoutMillis = loginTimeoutMillis;
+    }
+
+    /**
+     * @return the precision of the heartbeat and idle timers in milliseconds
+     */
+    public long getIdleTickMillis() {
+        return idleTickMillis;
+    }
+
+    /**
+     * @param idleTickMillis the precision of the heartbeat and idle timers in milliseconds
+     */
+    public void setIdleTickMillis(long idleTickMillis) {
+        this.idleTickMillis = idleTickMillis;
+    }
+
+    /**
+     * @return how long a resume token is valid in milliseconds, 0 if the tokens are not issued
+     */
+    public long getResumeTokenTtlMillis() {
+        return resumeTokenTtlMillis;
+    }
+
+    /**
+     * @param resumeTokenTtlMillis how long a resume token is valid in milliseconds, 0 to not issue the tokens
+     */
+    public void setResumeTokenTtlMillis(long resumeTokenTtlMillis) {
+        this.resumeTokenTtlMillis = resumeTokenTtlMillis;
+    }
+
+    /**
+     * @return the key signing the resume tokens, null if a random one is generated on start
+     */
+    public String getResumeSecret() {
+        return resumeSecret;
+    }
+
+    /**
+     * @param resumeSecret the key signing the resume tokens, at least 16 bytes, the same on all the nodes
+     *                     of a cluster; null to generate a random one on start
+     */
+    public void setResumeSecret(String resumeSecret) {
+        this.resumeSecret = resumeSecret;
+    }
+
+    /**
+     * @return the maximum number of logins in the credentials cache, 0 if the cache is disabled
+     */
+    public int getAuthCacheSize() {
+        return authCacheSize;
+    }
+
+    /**
+     * @param authCacheSize the maximum number of logins in the credentials cache, 0 to disable the cache
+     */
+    public void setAuthCacheSize(int authCacheSize) {
+        this.authCacheSize = authCacheSize;
+    }
+
+    /**
+     * @return how long the credentials of a known login are cached
+     */
+    public long getAuthCacheTtlMillis() {
+        return authCacheTtlMillis;
+    }
+
+    /**
+     * @param authCacheTtlMillis how long the credentials of a known login are cached
+     */
+    public void setAuthCacheTtlMillis(long authCacheTtlMillis) {
+        this.authCacheTtlMillis = authCacheTtlMillis;
+    }
+
+    /**
+     * @return how long an unknown login is cached, 0 if unknown logins are not cached
+     */
+    public long getAuthCacheNegativeTtlMillis() {
+        return authCacheNegativeTtlMillis;
+    }
+
+    /**
+     * @param authCacheNegativeTtlMillis how long an unknown login is cached, 0 to not cache unknown logins
+     */
+    public void setAuthCacheNegativeTtlMillis(long authCacheNegativeTtlMillis) {
+        this.authCacheNegativeTtlMillis = authCacheNegativeTtlMillis;
+    }
+
+    /**
+     * @return the number of threads running the authentication requests
+     */
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    /**
+     * @param authThreads the number of threads running the authentication requests
+     */
+    public void setAuthThreads(int authThreads) {
+        this.authThreads = authThreads;
+    }
+
+    /**
+     * @return the maximum number of authentication requests waiting for a thread
+     */
+    public int getAuthQueueCapacity() {
+        return authQueueCapacity;
+    }
+
+    /**
+     * @param authQueueCapacity the maximum number of authentication requests waiting for a thread
+     */
+    public void setAuthQueueCapacity(int authQueueCapacity) {
+        this.authQueueCapacity = authQueueCapacity;
+    }
+
+    /**
+     * @return the minimum level of the logged messages
+     */
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * @param logLevel the minimum level of the logged messages
+     */
+    public void setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * @return the maximum number of log messages waiting to be printed, 0 if the messages are printed right away
+     */
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    /**
+     * @param logBufferSize the maximum number of log messages waiting to be printed, 0 to print them right away
+     */
+    public void setLogBufferSize(int logBufferSize) {
+        this.logBufferSize = logBufferSize;
+    }
+
+    /**
+     * @return what to do when the log buffer is full
+     */
+    public LogOverflowPolicy getLogOverflowPolicy() {
+        return logOverflowPolicy;
+    }
+
+    /**
+     * @param logOverflowPolicy what to do when the log buffer is full
+     */
+    public void setLogOverflowPolicy(LogOverflowPolicy logOverflowPolicy) {
+        this.logOverflowPolicy = logOverflowPolicy;
+    }
+}
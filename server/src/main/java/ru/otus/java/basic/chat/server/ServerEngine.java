@@ -0,0 +1,15 @@
+package ru.otus.java.basic.chat.server;
+
+import java.io.IOException;
+
+public interface ServerEngine {
+    /**
+     * Opens the server socket on the specified port number, accepts connections
+     * and creates a ClientHandler for each of them. Does not return while the server is running
+     *
+     * @param server the Server the connections belong to
+     * @param port   a port number for the server socket
+     * @throws IOException if the server socket can't be opened or fails
+     */
+    void start(Server server, int port) throws IOException;
+}
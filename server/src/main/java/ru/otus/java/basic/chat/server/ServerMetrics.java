@@ -0,0 +1,70 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.AuthStatus;
+
+/**
+ * The instruments recorded by the server and its clients, registered in a Metrics registry.
+ * The fields are read on the hot paths directly, without looking the names up
+ */
+public class ServerMetrics {
+    private final Metrics registry = new Metrics();
+
+    final Counter connectionsOpened = registry.counter("connections.opened");
+    final Counter connectionsClosed = registry.counter("connections.closed");
+    final Counter disconnectsExit = registry.counter("disconnects.exit");
+    final Counter disconnectsKicked = registry.counter("disconnects.kicked");
+    final Counter disconnectsLost = registry.counter("disconnects.lost");
+    final Counter disconnectsSlowConsumer = registry.counter("disconnects.slow_consumer");
+    final Counter disconnectsFlood = registry.counter("disconnects.flood");
+    final Counter disconnectsIdle = registry.counter("disconnects.idle");
+    final Counter heartbeats = registry.counter("heartbeat.pings");
+    final Counter logins = registry.counter("users.logins");
+    final Counter logouts = registry.counter("users.logouts");
+    final Counter messagesIn = registry.counter("messages.in");
+    final Counter messagesOut = registry.counter("messages.out");
+    final Counter messagesThrottled = registry.counter("messages.throttled");
+    final Counter bytesIn = registry.counter("bytes.in");
+    final Counter bytesOut = registry.counter("bytes.out");
+    final Counter flushes = registry.counter("flushes");
+    final Counter chatMessages = registry.counter("messages.chat");
+    final Counter broadcasts = registry.counter("broadcast.count");
+    final Counter parallelBroadcasts = registry.counter("broadcast.parallel");
+    final Counter broadcastDeliveries = registry.counter("broadcast.deliveries");
+    final LatencyHistogram broadcastTime = registry.histogram("broadcast.time");
+    final Counter roomJoins = registry.counter("room.joins");
+    final Counter whispers = registry.counter("whisper.count");
+    final Counter whispersNotFound = registry.counter("whisper.not_found");
+    final Counter whispersOffline = registry.counter("whisper.offline");
+    final Counter whispersRelayed = registry.counter("whisper.relayed");
+    final Counter kicks = registry.counter("kick.count");
+    final Counter unknownCommands = registry.counter("commands.unknown");
+    final Counter forbiddenCommands = registry.counter("commands.forbidden");
+    final LatencyHistogram authTime = registry.histogram("auth.time");
+    final Counter authRejected = registry.counter("auth.rejected");
+    final Counter authFailures = registry.counter("auth.failures");
+    private final Counter[] authResults = new Counter[AuthStatus.values().length];
+
+    /**
+     * Creates the instruments
+     */
+    public ServerMetrics() {
+        for (AuthStatus status : AuthStatus.values()) {
+            authResults[status.ordinal()] = registry.counter("auth.result." + status.name().toLowerCase());
+        }
+    }
+
+    /**
+     * @return the registry of all the metrics, including the ones registered by other components
+     */
+    public Metrics getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @param status an authentication or registration result
+     * @return the counter of the results
+     */
+    Counter authResult(AuthStatus status) {
+        return authResults[status.ordinal()];
+    }
+}
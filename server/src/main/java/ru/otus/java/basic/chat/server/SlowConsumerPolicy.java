@@ -0,0 +1,16 @@
+package ru.otus.java.basic.chat.server;
+
+public enum SlowConsumerPolicy {
+    /**
+     * Discards the oldest pending message to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Discards the new message
+     */
+    DROP_NEWEST,
+    /**
+     * Disconnects the client
+     */
+    DISCONNECT
+}
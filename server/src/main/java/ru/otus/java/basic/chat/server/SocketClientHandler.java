@@ -0,0 +1,265 @@
+package ru.otus.java.basic.chat.server;
+
+import ru.otus.java.basic.chat.protocol.BinaryProtocol;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+public class SocketClientHandler extends ClientHandler {
+    private static final Logger logger = Log.getLogger(SocketClientHandler.class);
+
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final OutputStream outputStream;
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Creates a handler for the socket of an established connection to a client,
+     * the socket is not read or written until start is called
+     *
+     * @param server        the Server which accepted the connection
+     * @param socket        the Socket of the connection
+     * @param threadFactory a factory of the threads serving the connection
+     * @throws IOException if something went wrong
+     */
+    public SocketClientHandler(Server server, Socket socket, ThreadFactory threadFactory) throws IOException {
+        super(server);
+        this.socket = socket;
+        this.inputStream = new DataInputStream(new CountingInputStream(socket.getInputStream(), metrics.bytesIn));
+        this.outputStream = socket.getOutputStream();
+        this.threadFactory = threadFactory;
+        socket.setTcpNoDelay(server.getConfig().isTcpNoDelay());
+    }
+
+    /**
+     * Starts the threads that read and write to the socket
+     */
+    @Override
+    public void start() {
+        super.start();
+        startThread();
+        startWriterThread();
+    }
+
+    /**
+     * Starts the thread which receives messages from the inputStream and passes them to handleMessage,
+     * or to handleBinaryMessage once the client has switched to the binary protocol.
+     * A virtual reader yields after every message: virtual threads are not preempted, so a client that keeps
+     * the input busy would otherwise starve the writer threads sharing the same carrier
+     */
+    private void startThread() {
+        logger.debug("Client connection established (id:{}).", id);
+        threadFactory.newThread(() -> {
+            boolean virtual = Thread.currentThread().isVirtual();
+            IntSupplier maxPayloadLength = () -> getMaxFrameLength() - BinaryProtocol.HEADER_LENGTH;
+            try {
+                while (true) {
+                    if (protocolVersion == ProtocolVersion.V1) {
+                        handleMessage(readText());
+                    } else {
+                        handleBinaryMessage(BinaryProtocol.read(inputStream, maxPayloadLength));
+                    }
+                    if (virtual) {
+                        Thread.yield();
+                    }
+                }
+            } catch (IOException e) {
+                connectionLost();
+            } catch (TerminateClientException e) {
+            } finally {
+                disconnect();
+            }
+        }).start();
+    }
+
+    /**
+     * Reads a frame of the text protocol, same as DataInputStream.readUTF, but rejects the frame before
+     * its bytes are allocated if it is too long for the client
+     *
+     * @return the received message
+     * @throws IOException if the connection fails or the frame is malformed or too long
+     */
+    private String readText() throws IOException {
+        int length = inputStream.readUnsignedShort();
+        if (ModifiedUtf8.HEADER_LENGTH + length > getMaxFrameLength()) {
+            throw new ProtocolException("Frame of " + (ModifiedUtf8.HEADER_LENGTH + length) + " bytes is too long");
+        }
+        byte[] frame = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+        frame[0] = (byte) (length >> 8);
+        frame[1] = (byte) length;
+        inputStream.readFully(frame, ModifiedUtf8.HEADER_LENGTH, length);
+        return ModifiedUtf8.decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Starts the thread which writes messages from the outbound queue to the outputStream
+     * until the queue is closed and drained, then closes the socket.
+     * The messages are encoded in the protocol the client has switched to by the time they are written.
+     * The messages pending for the client are coalesced into one write as the flush policy allows,
+     * a message larger than the whole buffer is written on its own.
+     * The frames go to the socket stream directly: the writes of DataOutputStream are synchronized,
+     * so a virtual writer blocked on a slow client would pin its carrier thread
+     */
+    private void startWriterThread() {
+        threadFactory.newThread(() -> {
+            try {
+                byte[] buffer = new byte[flushPolicy.maxBytes()];
+                long maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushPolicy.maxDelayMicros());
+                ProtocolVersion version = ProtocolVersion.V1;
+                Frame frame;
+                while ((frame = outboundQueue.take()) != null) {
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    int length = 0;
+                    int messages = 0;
+                    do {
+                        byte[] bytes;
+                        try {
+                            bytes = frame.encode(version);
+                        } catch (IOException e) {
+                            logger.warn("Failed to send the message to the client id:{}", id, e);
+                            continue;
+                        }
+                        if (frame.getProtocolSwitch() != null) {
+                            version = frame.getProtocolSwitch();
+                        }
+                        if (length + bytes.length > buffer.length) {
+                            write(buffer, length);
+                            length = 0;
+                            messages = 0;
+                            if (bytes.length >= buffer.length) {
+                                write(bytes, bytes.length);
+                                continue;
+                            }
+                        }
+                        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                        length += bytes.length;
+                        messages++;
+                    } while (messages < flushPolicy.maxMessages() && (frame = pollFrame(deadline, maxDelayNanos)) != null);
+                    write(buffer, length);
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    logger.warn("Failed to send the message to the client id:{}", id, e);
+                }
+            } catch (InterruptedException e) {
+            } finally {
+                closeSocket();
+            }
+        }).start();
+    }
+
+    /**
+     * Takes the next message to add to the current write, waiting for it until the deadline if the delay is enabled
+     *
+     * @param deadline      the System.nanoTime by which the current write must happen
+     * @param maxDelayNanos the flush delay, 0 to not wait at all
+     * @return the message, or null if the pending messages should be written now
+     * @throws InterruptedException if the writer thread is interrupted
+     */
+    private Frame pollFrame(long deadline, long maxDelayNanos) throws InterruptedException {
+        Frame frame = outboundQueue.poll();
+        if (frame != null || maxDelayNanos == 0) {
+            return frame;
+        }
+        long remaining = deadline - System.nanoTime();
+        return remaining > 0 ? outboundQueue.poll(remaining) : null;
+    }
+
+    /**
+     * Writes the coalesced messages to the outputStream with a single call
+     *
+     * @param bytes  the buffer holding the messages
+     * @param length the number of bytes to write, nothing is written if 0
+     * @throws IOException if the connection fails
+     */
+    private void write(byte[] bytes, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        outputStream.write(bytes, 0, length);
+        metrics.bytesOut.add(length);
+        metrics.flushes.increment();
+    }
+
+    /**
+     * Lets the writer thread write the pending messages and close the socket
+     */
+    @Override
+    protected void closeConnection() {
+        outboundQueue.close();
+    }
+
+    /**
+     * Discards the pending messages and closes the socket, the reader thread disconnects the client afterwards
+     */
+    @Override
+    protected void abortConnection() {
+        outboundQueue.close();
+        outboundQueue.clear();
+        closeSocket();
+    }
+
+    /**
+     * Closes the streams and the socket
+     */
+    private void closeSocket() {
+        try {
+            if (outputStream != null) outputStream.close();
+        } catch (IOException e) {
+            logger.warn("Error while disconnecting the client id:{}", id, e);
+        }
+        try {
+            if (inputStream != null) inputStream.close();
+        } catch (IOException e) {
+            logger.warn("Error while disconnecting the client id:{}", id, e);
+        }
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            logger.warn("Error while disconnecting the client id:{}", id, e);
+        }
+    }
+
+    /**
+     * Adds the number of bytes read from a stream to a counter
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final Counter counter;
+
+        /**
+         * @param in      the stream to read from
+         * @param counter the counter of the bytes read
+         */
+        CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counter.add(n);
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: the timers are kept in a ring of slots, one slot per tick, and a timer due further
+ * than a turn of the ring waits for the remaining turns in its slot. Scheduling a timer is O(1), and a tick only
+ * visits the timers of its slot, so the cost of a tick does not grow with the number of timers.
+ * The timers fire on the thread of the wheel, up to a tick late; a task is expected to be short and not to block.
+ * A cancelled timer is unlinked from its slot on the next tick, so it holds its task no longer than that
+ */
+public class TimingWheel {
+    private static final Logger logger = Log.getLogger(TimingWheel.class);
+
+    /**
+     * A task run when its timer fires
+     */
+    public interface Task {
+        /**
+         * @param now the current System.nanoTime
+         * @return the time until the task is to be run again in nanoseconds, negative to drop the timer
+         */
+        long run(long now);
+    }
+
+    /**
+     * A scheduled timer
+     */
+    public interface Timeout {
+        /**
+         * Stops the timer, may be called from any thread. Noop if the timer is already stopped
+         */
+        void cancel();
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timer[] slots;
+    private final Queue<Timer> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timer> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final long startNanos;
+    private volatile Thread thread;
+    private long tick;
+    private volatile boolean closed;
+
+    /**
+     * Creates a wheel and starts its thread
+     *
+     * @param name       the name of the thread
+     * @param tickMillis the length of a tick in milliseconds, the precision of the timers
+     * @param slotCount  the number of slots, rounded up to a power of two
+     * @return the running wheel
+     */
+    public static TimingWheel start(String name, long tickMillis, int slotCount) {
+        TimingWheel wheel = new TimingWheel(tickMillis, slotCount);
+        Thread thread = Thread.ofPlatform().name(name).daemon().unstarted(wheel::run);
+        wheel.thread = thread;
+        thread.start();
+        return wheel;
+    }
+
+    /**
+     * @param tickMillis the length of a tick in milliseconds, the precision of the timers
+     * @param slotCount  the number of slots, rounded up to a power of two
+     */
+    private TimingWheel(long tickMillis, int slotCount) {
+        if (tickMillis < 1 || slotCount < 1 || slotCount > 1 << 20) {
+            throw new IllegalArgumentException("Timing wheel tick must be positive and slots between 1 and 2^20");
+        }
+        int length = Integer.highestOneBit(slotCount) == slotCount ? slotCount : Integer.highestOneBit(slotCount) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = length - 1;
+        this.slots = new Timer[length];
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Schedules a task, may be called from any thread. The timer gets into its slot on the next tick
+     *
+     * @param task       the task
+     * @param delayNanos the time until the task is run in nanoseconds
+     * @return the timer of the task
+     */
+    public Timeout schedule(Task task, long delayNanos) {
+        Timer timer = new Timer(this, task, System.nanoTime() + Math.max(0, delayNanos));
+        size.incrementAndGet();
+        scheduled.add(timer);
+        return timer;
+    }
+
+    /**
+     * Runs the ticks at their times, catching up without sleeping if a tick has taken too long
+     */
+    private void run() {
+        while (!closed) {
+            long tickTime = startNanos + tick * tickNanos;
+            long wait = tickTime - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            Timer timer;
+            while ((timer = scheduled.poll()) != null) {
+                if (!timer.isCancelled()) {
+                    insert(timer, tick);
+                }
+            }
+            while ((timer = cancelled.poll()) != null) {
+                if (timer.slot >= 0) {
+                    unlink(timer);
+                }
+                remove(timer);
+            }
+            expire(System.nanoTime());
+            tick++;
+        }
+    }
+
+    /**
+     * Runs the timers of the current slot that are due on this turn of the ring, then reinserts the ones
+     * the tasks have asked to run again. The reinserted timers are due on the next tick at the earliest
+     *
+     * @param now the current System.nanoTime
+     */
+    private void expire(long now) {
+        Timer timer = slots[(int) (tick & mask)];
+        Timer again = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.rounds > 0) {
+                timer.rounds--;
+            } else {
+                unlink(timer);
+                long delay = timer.isCancelled() ? -1 : runTask(timer.task, now);
+                if (delay >= 0) {
+                    timer.deadline = now + delay;
+                    timer.next = again;
+                    again = timer;
+                } else {
+                    remove(timer);
+                }
+            }
+            timer = next;
+        }
+        while (again != null) {
+            Timer next = again.next;
+            insert(again, tick + 1);
+            again = next;
+        }
+    }
+
+    /**
+     * @param task the task
+     * @param now  the current System.nanoTime
+     * @return the delay the task has asked for, negative if it has failed
+     */
+    private static long runTask(Task task, long now) {
+        try {
+            return task.run(now);
+        } catch (RuntimeException e) {
+            logger.error("Timer task failed", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Puts a timer into the slot of the tick it is due on, with the number of turns of the ring to wait
+     *
+     * @param timer the timer
+     * @param from  the first tick the timer may fire on
+     */
+    private void insert(Timer timer, long from) {
+        long due = Math.max(from, Math.ceilDiv(timer.deadline - startNanos, tickNanos));
+        timer.rounds = (due - from) / slots.length;
+        int slot = (int) (due & mask);
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+    }
+
+    /**
+     * Takes a timer out of the list of its slot
+     *
+     * @param timer the timer
+     */
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+
+    /**
+     * Counts a timer out once it has fired for the last time or has been cancelled
+     *
+     * @param timer the timer, not in a slot
+     */
+    private void remove(Timer timer) {
+        if (!timer.removed) {
+            timer.removed = true;
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of timers scheduled
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Stops the thread of the wheel, the timers are not run anymore
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * A scheduled task, linked into the list of its slot. Only the cancelled flag is touched by other threads
+     */
+    private static final class Timer implements Timeout {
+        private final TimingWheel wheel;
+        private final Task task;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private long deadline;
+        private long rounds;
+        private int slot = -1;
+        private boolean removed;
+        private Timer prev;
+        private Timer next;
+
+        Timer(TimingWheel wheel, Task task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                wheel.cancelled.add(this);
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+}
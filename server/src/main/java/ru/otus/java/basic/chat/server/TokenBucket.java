@@ -0,0 +1,93 @@
+package ru.otus.java.basic.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The message and byte budgets of a connection or a user, refilled at the rates of a RateLimit.
+ * Each budget is kept in the GCRA form of a token bucket: instead of the number of tokens and the time
+ * of the last refill it is a single timestamp, the time the bucket becomes full again, so taking tokens
+ * is one compare-and-set without locks or allocations
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final RateLimit limit;
+    private final long messageIntervalNanos;
+    private final long messageToleranceNanos;
+    private final long byteIntervalNanos;
+    private final long byteToleranceNanos;
+    private final int byteBurst;
+    private final AtomicLong messagesFullAt;
+    private final AtomicLong bytesFullAt;
+
+    /**
+     * Creates a full bucket
+     *
+     * @param limit the rates and the bursts
+     */
+    public TokenBucket(RateLimit limit) {
+        this.limit = limit;
+        this.messageIntervalNanos = Math.max(1, NANOS_PER_SECOND / limit.messagesPerSecond());
+        this.messageToleranceNanos = messageIntervalNanos * limit.messageBurst();
+        this.byteIntervalNanos = Math.max(1, NANOS_PER_SECOND / limit.bytesPerSecond());
+        this.byteToleranceNanos = byteIntervalNanos * limit.byteBurst();
+        this.byteBurst = limit.byteBurst();
+        long now = System.nanoTime();
+        this.messagesFullAt = new AtomicLong(now);
+        this.bytesFullAt = new AtomicLong(now);
+    }
+
+    /**
+     * Takes a message and its bytes from the bucket if there are enough tokens left.
+     * A message longer than the byte burst takes the whole burst
+     *
+     * @param now   the current System.nanoTime
+     * @param bytes the size of the message
+     * @return false if the message is over the limit, no tokens are taken then
+     */
+    public boolean tryAcquire(long now, int bytes) {
+        if (!take(messagesFullAt, now, messageIntervalNanos, messageToleranceNanos)) {
+            return false;
+        }
+        if (!take(bytesFullAt, now, (long) Math.min(bytes, byteBurst) * byteIntervalNanos, byteToleranceNanos)) {
+            messagesFullAt.addAndGet(-messageIntervalNanos);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param fullAt    the time the budget becomes full
+     * @param now       the current time
+     * @param cost      the refill time of the tokens taken
+     * @param tolerance the refill time of the whole burst
+     * @return false if the budget is short of the tokens
+     */
+    private static boolean take(AtomicLong fullAt, long now, long cost, long tolerance) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current - now, 0) + cost;
+            if (next > tolerance) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, now + next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the rates and the bursts
+     */
+    public RateLimit getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param now the current System.nanoTime
+     * @return true if the bucket has refilled completely, so it is no different from a new one
+     */
+    public boolean isFull(long now) {
+        return messagesFullAt.get() - now <= 0 && bytesFullAt.get() - now <= 0;
+    }
+}
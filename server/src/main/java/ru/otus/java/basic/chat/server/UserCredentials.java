@@ -0,0 +1,20 @@
+package ru.otus.java.basic.chat.server;
+
+/**
+ * A stored user entry: the password digest and the profile
+ *
+ * @param passwordSaltedHash Base64 encoding of SHA-256 of the salt followed by the password
+ * @param passwordSalt       the salt
+ * @param profile            the user profile
+ */
+public record UserCredentials(String passwordSaltedHash, String passwordSalt, UserProfile profile) {
+    /**
+     * Checks a password against the stored digest
+     *
+     * @param password a password
+     * @return true if the password is correct
+     */
+    public boolean matches(String password) {
+        return passwordSaltedHash.equals(Passwords.getSaltedHash(password, passwordSalt));
+    }
+}
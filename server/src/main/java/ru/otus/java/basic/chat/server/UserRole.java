@@ -1,28 +1,24 @@
 package ru.otus.java.basic.chat.server;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-
 public enum UserRole {
-    ADMIN(), USER(new HashSet<>(Arrays.asList("/kick")));
-    private final Set<String> forbiddenCommands;
-
-    UserRole() {
-        this.forbiddenCommands = null;
-    }
+    ADMIN(), USER(Permission.KICK, Permission.STATS);
+    private final long allowedMask;
 
-    UserRole(Set<String> forbiddenCommands) {
-        this.forbiddenCommands = forbiddenCommands;
+    UserRole(Permission... forbiddenPermissions) {
+        long mask = -1L;
+        for (Permission permission : forbiddenPermissions) {
+            mask &= ~permission.getMask();
+        }
+        this.allowedMask = mask;
     }
 
     /**
-     * Checks if a command is allowed for the user role
+     * Checks if an action is allowed for the user role
      *
-     * @param command a command to check
-     * @return true if command is allowed, false otherwise
+     * @param permission a permission to check
+     * @return true if allowed, false otherwise
      */
-    public boolean isCommandAllowed(String command) {
-        return forbiddenCommands == null || !forbiddenCommands.contains(command);
+    public boolean isAllowed(Permission permission) {
+        return (allowedMask & permission.getMask()) != 0;
     }
 }
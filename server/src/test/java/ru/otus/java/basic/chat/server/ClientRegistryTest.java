@@ -0,0 +1,215 @@
+package ru.otus.java.basic.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Registers and unregisters the clients from many threads at once and checks that the registry
+ * neither loses nor duplicates them, and that its snapshots agree with it
+ */
+class ClientRegistryTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20_000;
+    private static final int CLIENTS_PER_THREAD = 64;
+
+    private Server server;
+    private ClientRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        ServerConfig config = new ServerConfig();
+        config.setOfflineMessages(false);
+        server = new Server(config, new InMemoryAuthenticationProvider());
+        registry = new ClientRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    void sameUsernameIsHeldByOneClientAtATime() throws InterruptedException {
+        List<TestClient> clients = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            clients.add(new TestClient(server, "shared"));
+        }
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger registered = new AtomicInteger();
+        AtomicInteger unregistered = new AtomicInteger();
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        runConcurrently(failures, clients.size(), index -> {
+            TestClient client = clients.get(index);
+            for (int round = 0; round < ROUNDS; round++) {
+                if (!registry.register(client)) {
+                    continue;
+                }
+                registered.incrementAndGet();
+                assertEquals(1, holders.incrementAndGet(), "two clients hold the same username");
+                assertSame(client, registry.get("shared"));
+                ClientHandler[] snapshot = registry.snapshot();
+                assertTrue(snapshot.length <= 1, "the snapshot has more than one client of the same username");
+                holders.decrementAndGet();
+                assertTrue(registry.unregister(client), "the registered client is lost");
+                unregistered.incrementAndGet();
+                assertFalse(registry.unregister(client), "the client is unregistered twice");
+            }
+        });
+        assertTrue(failures.isEmpty(), () -> "failures: " + failures);
+        assertTrue(registered.get() > 0);
+        assertEquals(registered.get(), unregistered.get());
+        assertEquals(0, registry.size());
+        assertNull(registry.get("shared"));
+        assertEquals(0, registry.snapshot().length);
+    }
+
+    @Test
+    void differentUsernamesAreNeitherLostNorDuplicated() throws InterruptedException {
+        List<List<TestClient>> clients = new ArrayList<>();
+        Set<ClientHandler> expected = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int thread = 0; thread < THREADS; thread++) {
+            List<TestClient> own = new ArrayList<>();
+            for (int i = 0; i < CLIENTS_PER_THREAD; i++) {
+                TestClient client = new TestClient(server, "user-" + thread + "-" + i);
+                own.add(client);
+                if (i % 2 == 0) {
+                    expected.add(client);
+                }
+            }
+            clients.add(own);
+        }
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread reader = Thread.ofPlatform().start(() -> {
+            try {
+                while (writing.get()) {
+                    assertConsistent(registry.snapshot(), THREADS * CLIENTS_PER_THREAD);
+                }
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        runConcurrently(failures, THREADS, index -> {
+            List<TestClient> own = clients.get(index);
+            for (int round = 0; round < ROUNDS / CLIENTS_PER_THREAD; round++) {
+                for (TestClient client : own) {
+                    assertTrue(registry.register(client), "a free username is taken");
+                    assertFalse(registry.register(client), "a client is registered twice");
+                }
+                for (TestClient client : own) {
+                    assertSame(client, registry.get(client.getUsername()));
+                    assertTrue(registry.unregister(client), "the registered client is lost");
+                }
+            }
+            for (int i = 0; i < own.size(); i += 2) {
+                assertTrue(registry.register(own.get(i)));
+            }
+        });
+        writing.set(false);
+        reader.join();
+        assertTrue(failures.isEmpty(), () -> "failures: " + failures);
+        assertEquals(expected.size(), registry.size());
+        ClientHandler[] snapshot = registry.snapshot();
+        assertConsistent(snapshot, expected.size());
+        Set<ClientHandler> actual = Collections.newSetFromMap(new IdentityHashMap<>());
+        Collections.addAll(actual, snapshot);
+        assertEquals(expected, actual);
+        for (ClientHandler client : expected) {
+            assertSame(client, registry.get(client.getUsername()));
+        }
+    }
+
+    /**
+     * Checks that a snapshot has no client twice and no username twice
+     *
+     * @param snapshot   the snapshot
+     * @param maxClients the most clients the snapshot may have
+     */
+    private static void assertConsistent(ClientHandler[] snapshot, int maxClients) {
+        assertTrue(snapshot.length <= maxClients, "the snapshot has more clients than there are");
+        Set<String> usernames = new HashSet<>();
+        Set<ClientHandler> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ClientHandler client : snapshot) {
+            assertTrue(seen.add(client), "the snapshot has a client twice");
+            assertTrue(usernames.add(client.getUsername()), "the snapshot has a username twice");
+        }
+    }
+
+    /**
+     * Runs a task on several threads, released at once, and waits for them to finish
+     *
+     * @param failures the queue the errors of the threads are added to
+     * @param threads  the number of threads
+     * @param task     the task, given the index of its thread
+     */
+    private static void runConcurrently(Queue<Throwable> failures, int threads, IndexedTask task)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            workers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                    task.run(index);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.MINUTES.toMillis(1));
+            assertFalse(worker.isAlive(), "a thread has not finished");
+        }
+    }
+
+    private interface IndexedTask {
+        void run(int index) throws Exception;
+    }
+
+    /**
+     * A client without a connection, logged in under a fixed username
+     */
+    private static final class TestClient extends ClientHandler {
+        private final String username;
+
+        TestClient(Server server, String username) {
+            super(server);
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        protected void closeConnection() {
+        }
+
+        @Override
+        protected void abortConnection() {
+        }
+    }
+}
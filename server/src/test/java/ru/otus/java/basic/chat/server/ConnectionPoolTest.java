@@ -0,0 +1,258 @@
+package ru.otus.java.basic.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Borrows and returns the connections of a pool backed by a stand-in database,
+ * a JDBC driver whose connections only know whether they are open and valid
+ */
+class ConnectionPoolTest {
+    private static final String URL_PREFIX = "jdbc:pool-test:";
+    private static final Map<String, FakeDatabase> DATABASES = new ConcurrentHashMap<>();
+
+    private final FakeDatabase database = new FakeDatabase();
+    private final String url = URL_PREFIX + UUID.randomUUID();
+    private final Metrics metrics = new Metrics();
+    private ConnectionPool pool;
+
+    @BeforeAll
+    static void registerDriver() throws SQLException {
+        DriverManager.registerDriver(new FakeDriver());
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        DATABASES.remove(url);
+    }
+
+    @Test
+    void borrowTimesOutWhenThePoolIsExhausted() throws SQLException {
+        start(0, 1, 100, 0);
+        PooledConnection first = pool.acquire();
+        long start = System.nanoTime();
+        SQLException e = assertThrows(SQLException.class, pool::acquire);
+        assertEquals("08001", e.getSQLState());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100, "the borrow has not waited");
+        assertEquals(1, metric("db.pool.timeouts"));
+        first.close();
+        try (PooledConnection again = pool.acquire()) {
+            assertSame(first.getConnection(), again.getConnection());
+        }
+    }
+
+    @Test
+    void brokenConnectionIsReplaced() throws SQLException {
+        start(0, 1, 1000, 0);
+        PooledConnection connection = pool.acquire();
+        Connection broken = connection.getConnection();
+        connection.failed(new SQLException("Connection reset", "08006"));
+        connection.close();
+        assertTrue(broken.isClosed());
+        assertEquals(1, metric("db.pool.broken"));
+        try (PooledConnection replacement = pool.acquire()) {
+            assertNotSame(broken, replacement.getConnection());
+            assertFalse(replacement.getConnection().isClosed());
+        }
+    }
+
+    @Test
+    void invalidIdleConnectionIsReplaced() throws SQLException {
+        start(0, 1, 1000, 0);
+        PooledConnection connection = pool.acquire();
+        Connection invalid = connection.getConnection();
+        connection.close();
+        database.connections.get(0).valid = false;
+        try (PooledConnection replacement = pool.acquire()) {
+            assertNotSame(invalid, replacement.getConnection());
+        }
+        assertTrue(invalid.isClosed());
+        assertEquals(2, database.connections.size());
+    }
+
+    @Test
+    void idleConnectionsAboveTheMinimumAreEvicted() throws SQLException, InterruptedException {
+        start(1, 3, 1000, 100);
+        PooledConnection[] connections = {pool.acquire(), pool.acquire(), pool.acquire()};
+        for (PooledConnection connection : connections) {
+            connection.close();
+        }
+        assertEquals(3, metric("db.pool.size"));
+        awaitMetric("db.pool.size", 1);
+        assertEquals(1, metric("db.pool.idle"));
+        assertEquals(2, database.connections.stream().filter(state -> state.closed).count());
+    }
+
+    @Test
+    void minimumIsRefilledAfterTheDriverFails() throws SQLException, InterruptedException {
+        start(1, 2, 1000, 100);
+        PooledConnection connection = pool.acquire();
+        connection.failed(new SQLException("Connection reset", "08006"));
+        database.failure = new IllegalStateException("driver failure");
+        connection.close();
+        assertEquals(0, metric("db.pool.size"));
+        Thread.sleep(1500);
+        assertEquals(0, metric("db.pool.size"));
+        database.failure = null;
+        awaitMetric("db.pool.size", 1);
+        assertEquals(1, metric("db.pool.idle"));
+    }
+
+    @Test
+    void connectionReturnedTwiceIsPooledOnce() throws SQLException {
+        start(0, 2, 1000, 0);
+        PooledConnection connection = pool.acquire();
+        connection.close();
+        connection.close();
+        assertEquals(0, metric("db.pool.in_use"));
+        assertEquals(1, metric("db.pool.idle"));
+        try (PooledConnection again = pool.acquire()) {
+            assertSame(connection, again);
+            assertEquals(1, metric("db.pool.in_use"));
+        }
+        assertEquals(0, metric("db.pool.in_use"));
+    }
+
+    @Test
+    void connectionBorrowedWhilePoolClosesIsClosedOnReturn() throws SQLException {
+        start(1, 2, 1000, 0);
+        PooledConnection connection = pool.acquire();
+        pool.close();
+        assertFalse(connection.getConnection().isClosed());
+        connection.close();
+        connection.close();
+        assertTrue(connection.getConnection().isClosed());
+        assertEquals(0, metric("db.pool.size"));
+        assertEquals(0, metric("db.pool.in_use"));
+        assertEquals(0, metric("db.pool.broken"));
+        assertEquals("08003", assertThrows(SQLException.class, pool::acquire).getSQLState());
+    }
+
+    private void start(int minSize, int maxSize, long acquireTimeoutMillis, long idleTimeoutMillis)
+            throws SQLException {
+        DATABASES.put(url, database);
+        pool = new ConnectionPool(url, "user", "password", minSize, maxSize,
+                acquireTimeoutMillis, idleTimeoutMillis, 0, metrics);
+        pool.start();
+    }
+
+    private long metric(String name) {
+        return metrics.snapshot().get(name);
+    }
+
+    /**
+     * Waits for a metric to reach a value, long enough for a couple of runs of the evictor
+     */
+    private void awaitMetric(String name, long value) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (metric(name) != value && System.nanoTime() - deadline < 0) {
+            Thread.sleep(20);
+        }
+        assertEquals(value, metric(name));
+    }
+
+    /**
+     * The state of a connection to the stand-in database
+     */
+    private static final class FakeConnection {
+        private volatile boolean closed;
+        private volatile boolean valid = true;
+    }
+
+    /**
+     * The stand-in database: the connections opened to it, and the failure of the next connection attempts
+     */
+    private static final class FakeDatabase {
+        private final List<FakeConnection> connections = new CopyOnWriteArrayList<>();
+        private volatile RuntimeException failure;
+
+        Connection connect() {
+            RuntimeException current = failure;
+            if (current != null) {
+                throw current;
+            }
+            FakeConnection state = new FakeConnection();
+            connections.add(state);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "close" -> {
+                            state.closed = true;
+                            yield null;
+                        }
+                        case "isClosed" -> state.closed;
+                        case "isValid" -> !state.closed && state.valid;
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "equals" -> proxy == args[0];
+                        case "toString" -> "FakeConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default -> throw new SQLFeatureNotSupportedException(method.getName());
+                    });
+        }
+    }
+
+    /**
+     * A JDBC driver connecting to the stand-in databases by their urls
+     */
+    private static final class FakeDriver implements Driver {
+        @Override
+        public Connection connect(String url, Properties info) {
+            FakeDatabase database = url.startsWith(URL_PREFIX) ? DATABASES.get(url) : null;
+            return database == null ? null : database.connect();
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith(URL_PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
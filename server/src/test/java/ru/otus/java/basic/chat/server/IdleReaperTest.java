@@ -0,0 +1,109 @@
+package ru.otus.java.basic.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Leaves the connections silent and checks that the idle reaper disconnects them by the limit that applies
+ */
+class IdleReaperTest {
+    private static final long TICK_MILLIS = 5;
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void connectionThatHasNotLoggedInIsReaped() throws InterruptedException {
+        SilentClient client = start(0, 0, 0, 100);
+        assertTrue(client.aborted.await(5, TimeUnit.SECONDS));
+        assertTrue(client.abortedAfterMillis() >= 100, "the connection is reaped before the login timeout");
+        assertEquals(1, server.getMetrics().disconnectsIdle.get());
+    }
+
+    @Test
+    void silentTextClientIsReapedAfterTheLegacyIdleTimeout() throws InterruptedException {
+        SilentClient client = start(20, 1000, 100, 0);
+        assertTrue(client.aborted.await(5, TimeUnit.SECONDS));
+        assertTrue(client.abortedAfterMillis() >= 100, "the client is reaped before the legacy idle timeout");
+        assertTrue(client.abortedAfterMillis() < 1000, "the text client is held to the idle timeout of the pings");
+        assertEquals(0, server.getMetrics().heartbeats.get());
+    }
+
+    @Test
+    void binaryClientIsReapedOnceItLeavesPingUnanswered() throws InterruptedException {
+        SilentClient client = start(50, 150, 0, 0, ProtocolVersion.V2);
+        assertTrue(client.aborted.await(5, TimeUnit.SECONDS));
+        assertTrue(client.abortedAfterMillis() >= 150, "the client is reaped before the idle timeout");
+        assertTrue(server.getMetrics().heartbeats.get() > 0, "the client is reaped without a ping");
+    }
+
+    @Test
+    void silentTextClientStaysWithoutLimits() throws InterruptedException {
+        SilentClient client = start(20, 100, 0, 0);
+        assertFalse(client.aborted.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, server.getMetrics().heartbeats.get());
+    }
+
+    private SilentClient start(long heartbeatMillis, long idleTimeoutMillis, long legacyIdleTimeoutMillis,
+                               long loginTimeoutMillis) {
+        return start(heartbeatMillis, idleTimeoutMillis, legacyIdleTimeoutMillis, loginTimeoutMillis,
+                ProtocolVersion.V1);
+    }
+
+    private SilentClient start(long heartbeatMillis, long idleTimeoutMillis, long legacyIdleTimeoutMillis,
+                               long loginTimeoutMillis, ProtocolVersion protocolVersion) {
+        ServerConfig config = new ServerConfig();
+        config.setOfflineMessages(false);
+        config.setHeartbeatMillis(heartbeatMillis);
+        config.setIdleTimeoutMillis(idleTimeoutMillis);
+        config.setLegacyIdleTimeoutMillis(legacyIdleTimeoutMillis);
+        config.setLoginTimeoutMillis(loginTimeoutMillis);
+        config.setIdleTickMillis(TICK_MILLIS);
+        server = new Server(config, new InMemoryAuthenticationProvider());
+        SilentClient client = new SilentClient(server, System.nanoTime());
+        client.protocolVersion = protocolVersion;
+        client.start();
+        return client;
+    }
+
+    /**
+     * A client without a connection that never sends anything
+     */
+    private static final class SilentClient extends ClientHandler {
+        private final long startedAt;
+        private final CountDownLatch aborted = new CountDownLatch(1);
+        private volatile long abortedAt;
+
+        SilentClient(Server server, long startedAt) {
+            super(server);
+            this.startedAt = startedAt;
+        }
+
+        long abortedAfterMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(abortedAt - startedAt);
+        }
+
+        @Override
+        protected void closeConnection() {
+        }
+
+        @Override
+        protected void abortConnection() {
+            abortedAt = System.nanoTime();
+            aborted.countDown();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ru.otus.java.basic.chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the signature, the expiry and the revocation of the resume tokens
+ */
+class ResumeTokensTest {
+    private static final String SECRET = "resume-secret-0123456789";
+    private static final long TTL_MILLIS = 60_000;
+    private static final UserProfile PROFILE = new UserProfile("alice", UserRole.USER);
+
+    @Test
+    void validTokenGivesTheProfileBack() {
+        ResumeTokens tokens = new ResumeTokens(SECRET, TTL_MILLIS, new Metrics());
+        UserProfile profile = tokens.verify(tokens.issue(PROFILE));
+        assertNotNull(profile);
+        assertEquals("alice", profile.getUsername());
+        assertEquals(UserRole.USER, profile.getRole());
+    }
+
+    @Test
+    void tokenOfAnotherSecretIsRejected() {
+        ResumeTokens tokens = new ResumeTokens(SECRET, TTL_MILLIS, new Metrics());
+        ResumeTokens other = new ResumeTokens("another-secret-0123456789", TTL_MILLIS, new Metrics());
+        assertNull(tokens.verify(other.issue(PROFILE)));
+    }
+
+    @Test
+    void tamperedTokenIsRejected() {
+        ResumeTokens tokens = new ResumeTokens(SECRET, TTL_MILLIS, new Metrics());
+        ResumeTokens forger = new ResumeTokens("another-secret-0123456789", TTL_MILLIS, new Metrics());
+        String token = tokens.issue(PROFILE);
+        int dot = token.indexOf('.');
+        String forged = forger.issue(new UserProfile("alice", UserRole.ADMIN));
+        assertNull(tokens.verify(forged.substring(0, forged.indexOf('.')) + token.substring(dot)));
+        char first = token.charAt(dot + 1);
+        assertNull(tokens.verify(token.substring(0, dot + 1) + (first == 'A' ? 'B' : 'A') + token.substring(dot + 2)));
+        assertNull(tokens.verify("not-a-token"));
+        assertNull(tokens.verify("!!!.???"));
+    }
+
+    @Test
+    void expiredTokenIsRejected() throws InterruptedException {
+        ResumeTokens tokens = new ResumeTokens(SECRET, 1, new Metrics());
+        String token = tokens.issue(PROFILE);
+        Thread.sleep(20);
+        assertNull(tokens.verify(token));
+    }
+
+    @Test
+    void revokedTokenIsRejectedAndNewTokenIsAccepted() throws InterruptedException {
+        ResumeTokens tokens = new ResumeTokens(SECRET, TTL_MILLIS, new Metrics());
+        String token = tokens.issue(PROFILE);
+        String otherUser = tokens.issue(new UserProfile("bob", UserRole.USER));
+        long revokedAt = tokens.revoke("alice");
+        assertTrue(revokedAt > 0);
+        assertNull(tokens.verify(token));
+        assertNotNull(tokens.verify(otherUser));
+        Thread.sleep(5);
+        assertNotNull(tokens.verify(tokens.issue(PROFILE)));
+    }
+
+    @Test
+    void relayedRevocationRejectsTheTokensOfAnotherNode() {
+        ResumeTokens issuing = new ResumeTokens(SECRET, TTL_MILLIS, new Metrics());
+        ResumeTokens accepting = new ResumeTokens(SECRET, TTL_MILLIS, new Metrics());
+        String token = issuing.issue(PROFILE);
+        assertNotNull(accepting.verify(token));
+        long revokedAt = issuing.revoke("alice");
+        assertEquals(Map.of("alice", revokedAt), issuing.getRevocations());
+        accepting.revoke("alice", revokedAt);
+        assertNull(accepting.verify(token));
+    }
+
+    @Test
+    void outdatedRevocationIsIgnored() {
+        ResumeTokens tokens = new ResumeTokens(SECRET, TTL_MILLIS, new Metrics());
+        tokens.revoke("alice", System.currentTimeMillis() - 2 * TTL_MILLIS);
+        assertTrue(tokens.getRevocations().isEmpty());
+        assertNotNull(tokens.verify(tokens.issue(PROFILE)));
+    }
+}
@@ -0,0 +1,86 @@
+package ru.otus.java.basic.chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Applies the retention to the histories that are not open and checks that it agrees with the segments
+ */
+class RoomHistoryTest {
+    private static final int SEGMENT_BYTES = 1024;
+    private static final long HOUR = 3_600_000;
+    private static final String TEXT = "x".repeat(200);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void expiredSegmentsOfClosedHistoryAreDeleted() throws IOException {
+        long now = System.currentTimeMillis();
+        RoomHistory history = RoomHistory.open(directory, SEGMENT_BYTES);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(history.append(now - 3 * HOUR, "alice", TEXT));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertTrue(history.append(now, "alice", TEXT));
+        }
+        history.force();
+        List<Path> before = segments();
+        assertEquals(4, before.size());
+        assertFalse(RoomHistory.applyRetention(directory, now - HOUR, Long.MAX_VALUE));
+        assertEquals(before.subList(1, before.size()), segments());
+        List<HistoryRecord> records = readAll();
+        assertEquals(4, records.stream().filter(record -> record.timestamp() < now - HOUR).count());
+        assertEquals(8, records.stream().filter(record -> record.timestamp() == now).count());
+    }
+
+    @Test
+    void oldestSegmentsOfClosedHistoryAreDeletedOverTheSizeLimit() throws IOException {
+        long now = System.currentTimeMillis();
+        RoomHistory history = RoomHistory.open(directory, SEGMENT_BYTES);
+        for (int i = 0; i < 16; i++) {
+            assertTrue(history.append(now, "alice", TEXT));
+        }
+        history.force();
+        List<Path> before = segments();
+        assertFalse(RoomHistory.applyRetention(directory, now - HOUR, 2L * SEGMENT_BYTES));
+        assertEquals(before.subList(before.size() - 2, before.size()), segments());
+    }
+
+    @Test
+    void lastSegmentExpiresByModificationTime() throws IOException {
+        long now = System.currentTimeMillis();
+        RoomHistory history = RoomHistory.open(directory, SEGMENT_BYTES);
+        assertTrue(history.append(now - 3 * HOUR, "alice", TEXT));
+        history.force();
+        Path last = segments().get(0);
+        assertFalse(RoomHistory.applyRetention(directory, now - HOUR, Long.MAX_VALUE));
+        Files.setLastModifiedTime(last, FileTime.fromMillis(now - 2 * HOUR));
+        assertTrue(RoomHistory.applyRetention(directory, now - HOUR, Long.MAX_VALUE));
+        assertFalse(Files.exists(directory));
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private List<HistoryRecord> readAll() throws IOException {
+        List<HistoryRecord> records = new ArrayList<>();
+        RoomHistory.open(directory, SEGMENT_BYTES).readLast(Integer.MAX_VALUE, records::add);
+        return records;
+    }
+}
@@ -0,0 +1,126 @@
+package ru.otus.java.basic.chat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Schedules, cancels and repeats the timers of a wheel and checks when they fire
+ */
+class TimingWheelTest {
+    private static final long TICK_MILLIS = 5;
+    private static final int SLOTS = 16;
+
+    private TimingWheel wheel;
+
+    @BeforeEach
+    void setUp() {
+        wheel = TimingWheel.start("test-wheel", TICK_MILLIS, SLOTS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wheel.close();
+    }
+
+    @Test
+    void timerFiresOnceNotBeforeItsDeadline() throws InterruptedException {
+        long delay = TimeUnit.MILLISECONDS.toNanos(50);
+        long scheduledAt = System.nanoTime();
+        AtomicLong firedAt = new AtomicLong();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(now -> {
+            firedAt.set(now);
+            runs.incrementAndGet();
+            fired.countDown();
+            return -1;
+        }, delay);
+        assertEquals(1, wheel.size());
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(firedAt.get() - scheduledAt >= delay, "the timer has fired before its deadline");
+        Thread.sleep(50);
+        assertEquals(1, runs.get());
+        awaitEmpty();
+    }
+
+    @Test
+    void timerDueAfterSeveralTurnsWaitsForThem() throws InterruptedException {
+        long delay = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS * SLOTS * 3);
+        long scheduledAt = System.nanoTime();
+        AtomicLong firedAt = new AtomicLong();
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(now -> {
+            firedAt.set(now);
+            fired.countDown();
+            return -1;
+        }, delay);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(firedAt.get() - scheduledAt >= delay, "the timer has fired on an earlier turn of the ring");
+    }
+
+    @Test
+    void cancelledTimerNeverFires() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        TimingWheel.Timeout timeout = wheel.schedule(now -> {
+            runs.incrementAndGet();
+            return -1;
+        }, TimeUnit.MILLISECONDS.toNanos(30));
+        timeout.cancel();
+        timeout.cancel();
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+        awaitEmpty();
+    }
+
+    @Test
+    void timerRunsAgainUntilItsTaskStops() throws InterruptedException {
+        long interval = TimeUnit.MILLISECONDS.toNanos(10);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(1);
+        wheel.schedule(now -> {
+            if (runs.incrementAndGet() < 5) {
+                return interval;
+            }
+            finished.countDown();
+            return -1;
+        }, interval);
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(5, runs.get());
+        awaitEmpty();
+    }
+
+    @Test
+    void failingTaskDropsOnlyItsOwnTimer() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(now -> {
+            throw new IllegalStateException("test failure");
+        }, 0);
+        wheel.schedule(now -> {
+            fired.countDown();
+            return -1;
+        }, TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        awaitEmpty();
+    }
+
+    /**
+     * Waits for the wheel to count out its timers, which it does after their tasks have returned
+     */
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (wheel.size() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, wheel.size());
+    }
+}